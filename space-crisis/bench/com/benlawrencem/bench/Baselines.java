@@ -0,0 +1,200 @@
+package com.benlawrencem.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.game.spacecrisis.bench.EntityUpdateBenchmark;
+import com.benlawrencem.game.spacecrisis.bench.MessageBenchmark;
+import com.benlawrencem.game.spacecrisis.bench.RandomWalkLevelBenchmark;
+import com.benlawrencem.net.nightingale.bench.PacketCodecBenchmark;
+import com.benlawrencem.net.nightingale.bench.PacketRecorderBenchmark;
+
+/**
+ * Runs the benchmarks and keeps their results as CSV files, one per benchmark class, so a change
+ * that makes something slower shows up as a changed line in review. Also compares two sets of
+ * results and says which benchmarks got worse.
+ *
+ *   Baselines run [directory] [benchmark class...]
+ *     Runs the given benchmark classes (by default the ones that don't open any sockets, whose
+ *     numbers hold steady from run to run) and writes each one's results to
+ *     directory/ClassName.csv, bench/baselines unless said otherwise.
+ *
+ *   Baselines compare baseline.csv results.csv [threshold]
+ *     Lists every benchmark in both files with how much it changed, and exits with 1 if any got
+ *     worse by more than threshold percent (5 by default) and by more than the error in both
+ *     measurements put together.
+ *
+ * The usual way to use it is to run it on a branch into a scratch directory and compare each file
+ * against the one in bench/baselines, then rerun it into bench/baselines on the same machine once
+ * a change that's meant to move the numbers goes in.
+ */
+public class Baselines {
+	private static final String DEFAULT_DIRECTORY = "bench/baselines";
+	private static final double DEFAULT_THRESHOLD = 5;
+	private static final Class<?>[] DEFAULT_BENCHMARKS = {
+		PacketCodecBenchmark.class,
+		PacketRecorderBenchmark.class,
+		MessageBenchmark.class,
+		EntityUpdateBenchmark.class,
+		RandomWalkLevelBenchmark.class
+	};
+	//the columns JMH writes before the benchmark's parameters
+	private static final int BENCHMARK_COLUMN = 0;
+	private static final int MODE_COLUMN = 1;
+	private static final int THREADS_COLUMN = 2;
+	private static final int SCORE_COLUMN = 4;
+	private static final int ERROR_COLUMN = 5;
+	private static final int UNIT_COLUMN = 6;
+	private static final int FIRST_PARAM_COLUMN = 7;
+
+	public static void main(String[] args) throws Exception {
+		//scores are written with the default locale's decimal point, which would be a comma in some places
+		Locale.setDefault(Locale.US);
+		if(args.length >= 1 && args[0].equals("run"))
+			run(args);
+		else if(args.length >= 3 && args[0].equals("compare"))
+			System.exit(compare(new File(args[1]), new File(args[2]), (args.length >= 4 ? Double.parseDouble(args[3]) : DEFAULT_THRESHOLD)) ? 1 : 0);
+		else {
+			System.err.println("Usage: Baselines run [directory] [benchmark class...]");
+			System.err.println("       Baselines compare baseline.csv results.csv [threshold percent]");
+			System.exit(2);
+		}
+	}
+
+	private static void run(String[] args) throws ClassNotFoundException, RunnerException {
+		File directory = new File(args.length >= 2 ? args[1] : DEFAULT_DIRECTORY);
+		directory.mkdirs();
+		List<Class<?>> benchmarks = new ArrayList<Class<?>>();
+		for(int i = 2; i < args.length; i++)
+			benchmarks.add(Class.forName(args[i]));
+		if(benchmarks.isEmpty()) {
+			for(Class<?> benchmark : DEFAULT_BENCHMARKS)
+				benchmarks.add(benchmark);
+		}
+
+		for(Class<?> benchmark : benchmarks) {
+			File results = new File(directory, benchmark.getSimpleName() + ".csv");
+			new Runner(new OptionsBuilder()
+					.include(benchmark.getName())
+					.resultFormat(ResultFormatType.CSV)
+					.result(results.getPath())
+					.shouldFailOnError(true)
+					.build()).run();
+			System.out.println("Wrote " + results.getPath());
+		}
+	}
+
+	/**
+	 * Returns true if anything got worse.
+	 */
+	private static boolean compare(File baselineFile, File resultsFile, double threshold) throws IOException {
+		Map<String, String[]> baseline = readResults(baselineFile);
+		Map<String, String[]> results = readResults(resultsFile);
+		boolean isWorse = false;
+		for(Map.Entry<String, String[]> entry : results.entrySet()) {
+			String[] result = entry.getValue();
+			String[] base = baseline.get(entry.getKey());
+			if(base == null) {
+				System.out.println(String.format("  NEW         %s: %.3f %s", entry.getKey(), score(result), result[UNIT_COLUMN]));
+				continue;
+			}
+
+			//throughput is better higher, every other mode measures time taken and is better lower
+			double change = (score(result) - score(base)) / score(base) * 100;
+			boolean isHigherBetter = result[MODE_COLUMN].equals("thrpt");
+			boolean isBeyondError = (isHigherBetter ? score(result) + error(result) < score(base) - error(base) : score(result) - error(result) > score(base) + error(base));
+			boolean isRegression = isBeyondError && (isHigherBetter ? change < -threshold : change > threshold);
+			isWorse |= isRegression;
+			System.out.println(String.format("%s %+7.1f%%  %s: %.3f -> %.3f %s", (isRegression ? "!" : " "), change, entry.getKey(), score(base), score(result), result[UNIT_COLUMN]));
+		}
+		for(String key : baseline.keySet()) {
+			if(!results.containsKey(key))
+				System.out.println("  MISSING     " + key);
+		}
+		System.out.println(isWorse ? "Some benchmarks got more than " + threshold + "% worse" : "No benchmarks got more than " + threshold + "% worse");
+		return isWorse;
+	}
+
+	private static double score(String[] result) {
+		return Double.parseDouble(result[SCORE_COLUMN]);
+	}
+
+	private static double error(String[] result) {
+		//the error is NaN when there weren't enough iterations to work one out
+		double error = Double.parseDouble(result[ERROR_COLUMN]);
+		return (Double.isNaN(error) ? 0 : error);
+	}
+
+	/**
+	 * Reads a JMH CSV file into a map from each benchmark, mode, thread count and set of parameters
+	 * to its row.
+	 */
+	private static Map<String, String[]> readResults(File file) throws IOException {
+		Map<String, String[]> results = new LinkedHashMap<String, String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String[] header = null;
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.trim().length() == 0)
+					continue;
+				String[] row = splitCsv(line);
+				if(header == null) {
+					header = row;
+					continue;
+				}
+				StringBuilder key = new StringBuilder(row[BENCHMARK_COLUMN]);
+				key.append(" ").append(row[MODE_COLUMN]);
+				if(!row[THREADS_COLUMN].equals("1"))
+					key.append(" threads=").append(row[THREADS_COLUMN]);
+				for(int i = FIRST_PARAM_COLUMN; i < row.length && i < header.length; i++) {
+					if(row[i].length() > 0)
+						key.append(" ").append(header[i].replace("Param: ", "")).append("=").append(row[i]);
+				}
+				results.put(key.toString(), row);
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	private static String[] splitCsv(String line) {
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean isQuoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				//a doubled quote inside quotes is a quote
+				if(isQuoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				}
+				else
+					isQuoted = !isQuoted;
+			}
+			else if(c == ',' && !isQuoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else
+				field.append(c);
+		}
+		fields.add(field.toString());
+		return fields.toArray(new String[fields.size()]);
+	}
+}
\ No newline at end of file
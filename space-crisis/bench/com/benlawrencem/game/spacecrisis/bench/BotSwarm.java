@@ -0,0 +1,552 @@
+package com.benlawrencem.game.spacecrisis.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.benlawrencem.game.spacecrisis.level.PlayerMovementLevel;
+import com.benlawrencem.game.spacecrisis.net.PlayerMovementServer;
+import com.benlawrencem.game.spacecrisis.net.messages.Message;
+import com.benlawrencem.game.spacecrisis.net.messages.MoveMessage;
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.ClientConnection.CouldNotConnectException;
+import com.benlawrencem.net.nightingale.DatagramTransportFactory;
+import com.benlawrencem.net.nightingale.InMemoryNetwork;
+import com.benlawrencem.net.nightingale.NioEngine;
+import com.benlawrencem.net.nightingale.PacketCapture;
+import com.benlawrencem.net.nightingale.Packet.Channel;
+import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.StringClientConnectionListener;
+
+/**
+ * Starts a player movement server and connects a swarm of bots to it that play the way the real
+ * client does: each asks for an id as soon as it's connected and then keeps walking around the
+ * level, sending a MOVE for every step. The bots step a set number of times a second, and every
+ * stage the rate doubles, until the server can't keep up.
+ *
+ *   BotSwarm [-bots 100] [-rate 10] [-seconds 10] [-stages 6] [-maxLatency 50] [-warmup 5]
+ *            [-transport udp|memory] [-shards 1] [-threads n]
+ *            [-latency 0] [-loss 0] [-seed 0] [-capture file]
+ *
+ * The first warmup seconds at the starting rate aren't counted, so the JIT has had a chance to
+ * compile the server before anything is measured. For each stage after that it prints how many
+ * moves a second the bots sent and the server got, how long the moves took to get from the bots
+ * to the server's listener (p50, p99, p999 and the worst, in milliseconds), how long the server's
+ * level took to tick, and how busy its receive loops were. A stage where the p99 goes over
+ * maxLatency milliseconds, or where the server got less than 95% of what was sent, is where
+ * latency broke down, and the ramp stops there.
+ *
+ * Over udp the server uses regular sockets on loopback, as the real one does, and the bots share
+ * the event loops of an NioEngine. Over memory everything goes through an InMemoryNetwork, with
+ * the given one way latency in milliseconds, fraction of datagrams lost and seed. The bots and the
+ * server share the machine either way, so for numbers that mean anything give the bots threads to
+ * spare, and check that they really sent what they were asked to.
+ *
+ * Latency is measured from when each move was due to be sent rather than when it was, so a sender
+ * thread that falls behind makes the numbers worse instead of quietly sending less.
+ *
+ * With -capture, everything the server receives is recorded to the given file, for ReplayCapture
+ * to play back.
+ */
+public class BotSwarm {
+	//the size of PlayerMovementLevel, which wraps around at the edges
+	private static final int LEVEL_WIDTH = 8;
+	private static final int LEVEL_HEIGHT = 6;
+	private static final int TIME_BETWEEN_TICKS = 20;
+	private static final int CONNECT_TIMEOUT = 30;
+	//how many moves each bot remembers the send time of--more than this in flight and the times get mixed up
+	private static final int SEND_TIMES_SIZE = 4096;
+	private static final double MINIMUM_DELIVERED = 0.95;
+
+	private int numBots = 100;
+	private double rate = 10;
+	private int stageSeconds = 10;
+	private int numStages = 6;
+	private double maxLatency = 50;
+	private int warmupSeconds = 5;
+	private String transport = "udp";
+	private int numShards = 1;
+	private int numThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private int latency = 0;
+	private double loss = 0;
+	private long seed = 0;
+	private File captureFile = null;
+
+	private Bot[] bots;
+	private LoadServer server;
+	private volatile long timeBetweenMoves;
+	private volatile Histogram moveLatencies = new Histogram();
+	private volatile Histogram tickTimes = new Histogram();
+	private final AtomicLong numMovesReceived = new AtomicLong();
+	private final AtomicLong numSendErrors = new AtomicLong();
+	private volatile boolean isRunning;
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		BotSwarm swarm = new BotSwarm();
+		try {
+			for(int i = 0; i < args.length; i += 2) {
+				String name = args[i];
+				String value = args[i + 1];
+				if(name.equals("-bots"))
+					swarm.numBots = Integer.parseInt(value);
+				else if(name.equals("-rate"))
+					swarm.rate = Double.parseDouble(value);
+				else if(name.equals("-seconds"))
+					swarm.stageSeconds = Integer.parseInt(value);
+				else if(name.equals("-stages"))
+					swarm.numStages = Integer.parseInt(value);
+				else if(name.equals("-maxLatency"))
+					swarm.maxLatency = Double.parseDouble(value);
+				else if(name.equals("-warmup"))
+					swarm.warmupSeconds = Integer.parseInt(value);
+				else if(name.equals("-transport") && (value.equals("udp") || value.equals("memory")))
+					swarm.transport = value;
+				else if(name.equals("-shards"))
+					swarm.numShards = Integer.parseInt(value);
+				else if(name.equals("-threads"))
+					swarm.numThreads = Integer.parseInt(value);
+				else if(name.equals("-latency"))
+					swarm.latency = Integer.parseInt(value);
+				else if(name.equals("-loss"))
+					swarm.loss = Double.parseDouble(value);
+				else if(name.equals("-seed"))
+					swarm.seed = Long.parseLong(value);
+				else if(name.equals("-capture"))
+					swarm.captureFile = new File(value);
+				else
+					throw new IllegalArgumentException(name);
+			}
+		} catch(RuntimeException e) {
+			System.err.println("Usage: BotSwarm [-bots 100] [-rate 10] [-seconds 10] [-stages 6] [-maxLatency 50] [-warmup 5]");
+			System.err.println("                [-transport udp|memory] [-shards 1] [-threads n]");
+			System.err.println("                [-latency 0] [-loss 0] [-seed 0] [-capture file]");
+			System.exit(2);
+		}
+		System.exit(swarm.run() ? 0 : 1);
+	}
+
+	/**
+	 * Returns false if the server couldn't be started or no bots could connect.
+	 */
+	private boolean run() throws IOException, InterruptedException {
+		InMemoryNetwork network = null;
+		NioEngine engine = null;
+		DatagramTransportFactory serverTransports;
+		DatagramTransportFactory botTransports;
+		if(transport.equals("memory")) {
+			network = new InMemoryNetwork(seed);
+			network.setLatency(latency);
+			network.setLossRate(loss);
+			serverTransports = network;
+			botTransports = network;
+		}
+		else {
+			engine = new NioEngine();
+			serverTransports = null;
+			botTransports = engine;
+		}
+
+		server = new LoadServer();
+		server.setVerbose(false);
+		PacketCapture capture = null;
+		if(captureFile != null) {
+			capture = new PacketCapture(captureFile);
+			server.setCapture(capture);
+		}
+		server.startServer(0, serverTransports, numShards);
+		if(!server.isRunning())
+			return false;
+		TickThread tickThread = new TickThread();
+		isRunning = true;
+		tickThread.start();
+
+		int numConnected = connectBots(botTransports);
+		System.out.println(numConnected + " of " + numBots + " bots connected over " + transport);
+		if(numConnected == 0) {
+			server.stopServer();
+			return false;
+		}
+
+		SendThread[] sendThreads = new SendThread[Math.min(numThreads, numBots)];
+		for(int i = 0; i < sendThreads.length; i++) {
+			sendThreads[i] = new SendThread(i, sendThreads.length);
+			sendThreads[i].start();
+		}
+
+		if(warmupSeconds > 0)
+			runStage(rate, warmupSeconds);
+		System.out.println("  rate   sent/s   recv/s  p50 ms  p99 ms p999 ms  max ms  tick p50  tick p99  recv busy");
+		double lastGoodThroughput = -1;
+		double brokenAtRate = -1;
+		for(int stage = 0; stage < numStages; stage++) {
+			double stageRate = rate * (1 << stage);
+			Stage result = runStage(stageRate, stageSeconds);
+			System.out.println(String.format("%6.0f %8.0f %8.0f %7.2f %7.2f %7.2f %7.2f %9.3f %9.3f %9.0f%%",
+					stageRate, result.sentPerSecond, result.receivedPerSecond,
+					millis(result.latencies.getPercentile(0.5)), millis(result.latencies.getPercentile(0.99)),
+					millis(result.latencies.getPercentile(0.999)), millis(result.latencies.getMax()),
+					millis(result.ticks.getPercentile(0.5)), millis(result.ticks.getPercentile(0.99)),
+					result.utilization * 100));
+
+			//a stage that lost more than it should have, or took too long, is where it broke
+			if(millis(result.latencies.getPercentile(0.99)) > maxLatency || result.receivedPerSecond < result.sentPerSecond * BotSwarm.MINIMUM_DELIVERED) {
+				brokenAtRate = stageRate * numConnected;
+				break;
+			}
+			lastGoodThroughput = result.receivedPerSecond;
+		}
+
+		if(brokenAtRate < 0)
+			System.out.println(String.format("Latency held up through %.0f moves/s--try more stages", lastGoodThroughput));
+		else if(lastGoodThroughput < 0)
+			System.out.println(String.format("Latency broke down at the first stage, asked for %.0f moves/s--try fewer bots or a lower rate", brokenAtRate));
+		else
+			System.out.println(String.format("Latency held up through %.0f moves/s and broke down when asked for %.0f", lastGoodThroughput, brokenAtRate));
+		if(numSendErrors.get() > 0)
+			System.out.println(numSendErrors.get() + " moves could not be sent");
+
+		isRunning = false;
+		for(Bot bot : bots)
+			bot.disconnect();
+		server.stopServer();
+		if(capture != null) {
+			capture.close();
+			System.out.println("Captured " + capture.getNumPacketsCaptured() + " packets to " + captureFile);
+		}
+		if(network != null)
+			network.shutdown();
+		if(engine != null)
+			engine.shutdown();
+		return true;
+	}
+
+	private int connectBots(DatagramTransportFactory transports) throws InterruptedException {
+		CountDownLatch settled = new CountDownLatch(numBots);
+		bots = new Bot[numBots];
+		for(int i = 0; i < numBots; i++)
+			bots[i] = new Bot(i, transports, settled);
+		for(Bot bot : bots)
+			bot.connect(server.getPort());
+		settled.await(BotSwarm.CONNECT_TIMEOUT, TimeUnit.SECONDS);
+		int numConnected = 0;
+		for(Bot bot : bots) {
+			if(bot.isConnected)
+				numConnected++;
+		}
+		return numConnected;
+	}
+
+	private Stage runStage(double stageRate, int seconds) throws InterruptedException {
+		long sentBefore = getNumMovesSent();
+		long receivedBefore = numMovesReceived.get();
+		Histogram latencies = new Histogram();
+		Histogram ticks = new Histogram();
+		moveLatencies = latencies;
+		tickTimes = ticks;
+		server.getMetrics().getReceiveLoopUtilization();
+		timeBetweenMoves = (long) (1000000000L / stageRate);
+
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		Stage stage = new Stage();
+		stage.sentPerSecond = (getNumMovesSent() - sentBefore) / elapsed;
+		stage.receivedPerSecond = (numMovesReceived.get() - receivedBefore) / elapsed;
+		stage.latencies = latencies;
+		stage.ticks = ticks;
+		stage.utilization = server.getMetrics().getReceiveLoopUtilization();
+		return stage;
+	}
+
+	private long getNumMovesSent() {
+		long numMovesSent = 0;
+		for(Bot bot : bots)
+			numMovesSent += bot.numMovesSent;
+		return numMovesSent;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static class Stage {
+		private double sentPerSecond;
+		private double receivedPerSecond;
+		private Histogram latencies;
+		private Histogram ticks;
+		private double utilization;
+	}
+
+	/**
+	 * The real server with a stopwatch on it. Every move is timed from when its bot meant to send
+	 * it to when it reaches the game's listener.
+	 */
+	private class LoadServer extends PlayerMovementServer {
+		@Override
+		public void onReceive(int clientId, String message) {
+			long now = System.nanoTime();
+			if(Message.parseType(message) == Message.Type.MOVE) {
+				//the bots use their index as their entity id, since the server doesn't hand out ids yet
+				int index = ((MoveMessage) Message.parse(message)).getEntityId();
+				if(index >= 0 && index < bots.length)
+					moveLatencies.record(now - bots[index].takeSendTime());
+				numMovesReceived.incrementAndGet();
+			}
+			super.onReceive(clientId, message);
+		}
+	}
+
+	private class Bot extends StringClientConnectionListener {
+		private final int index;
+		private final ClientConnection conn;
+		private final CountDownLatch settled;
+		private final Random random;
+		private final AtomicLongArray sendTimes;
+		private volatile boolean isConnected;
+		private volatile long numMovesSent;
+		//only ever touched by the server thread the bot's packets arrive on
+		private long numMovesReceived;
+		private long nextMoveTime;
+		private int x;
+		private int y;
+
+		public Bot(int index, DatagramTransportFactory transports, CountDownLatch settled) {
+			this.index = index;
+			this.settled = settled;
+			conn = new ClientConnection(this, transports);
+			conn.setCompressionDictionary(Message.getCompressionDictionary());
+			conn.setCompressing(true);
+			random = new Random(seed + index);
+			sendTimes = new AtomicLongArray(BotSwarm.SEND_TIMES_SIZE);
+			isConnected = false;
+			numMovesSent = 0;
+			numMovesReceived = 0;
+			nextMoveTime = 0;
+			x = random.nextInt(BotSwarm.LEVEL_WIDTH);
+			y = random.nextInt(BotSwarm.LEVEL_HEIGHT);
+		}
+
+		public void connect(int port) {
+			try {
+				conn.connect("127.0.0.1", port);
+			} catch (CouldNotConnectException e) {
+				settled.countDown();
+			}
+		}
+
+		public void disconnect() {
+			conn.disconnect();
+		}
+
+		/**
+		 * Sends every move that's come due by now. Called over and over by one send thread.
+		 */
+		public void sendMoves(long now, long timeBetweenMoves) {
+			if(!isConnected)
+				return;
+			//the bots start out spread over the time between moves, so they don't all send at once
+			if(nextMoveTime == 0)
+				nextMoveTime = now + (long) (random.nextDouble() * timeBetweenMoves);
+			//a bot that's fallen more than a second behind gives up on catching up
+			if(now - nextMoveTime > 1000000000L)
+				nextMoveTime = now;
+			while(nextMoveTime <= now) {
+				sendMove(nextMoveTime);
+				nextMoveTime += timeBetweenMoves;
+			}
+		}
+
+		private void sendMove(long sendTime) {
+			int endX = x;
+			int endY = y;
+			switch(random.nextInt(4)) {
+				case 0:
+					endY = (y + BotSwarm.LEVEL_HEIGHT - 1) % BotSwarm.LEVEL_HEIGHT;
+					break;
+				case 1:
+					endY = (y + 1) % BotSwarm.LEVEL_HEIGHT;
+					break;
+				case 2:
+					endX = (x + 1) % BotSwarm.LEVEL_WIDTH;
+					break;
+				case 3:
+					endX = (x + BotSwarm.LEVEL_WIDTH - 1) % BotSwarm.LEVEL_WIDTH;
+					break;
+			}
+
+			//the time has to be there before the move is, since the server could get it straight away
+			sendTimes.set((int) (numMovesSent % BotSwarm.SEND_TIMES_SIZE), sendTime);
+			try {
+				conn.send(Message.createMoveMessage(index, x, y, endX, endY).encode(), Channel.RELIABLE_ORDERED);
+				numMovesSent++;
+				x = endX;
+				y = endY;
+			} catch (CouldNotSendPacketException e) {
+				numSendErrors.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Returns when the next move to arrive was meant to be sent. Moves go out reliably and in
+		 * order, so they arrive in the order the times were put in.
+		 */
+		public long takeSendTime() {
+			return sendTimes.get((int) (numMovesReceived++ % BotSwarm.SEND_TIMES_SIZE));
+		}
+
+		@Override
+		public void onConnected() {
+			isConnected = true;
+			try {
+				conn.send(Message.createIdRequestMessage().encode(), Channel.RELIABLE_ORDERED);
+			} catch (CouldNotSendPacketException e) {
+				numSendErrors.incrementAndGet();
+			}
+			settled.countDown();
+		}
+
+		@Override
+		public void onCouldNotConnect(String reason) {
+			settled.countDown();
+		}
+
+		@Override
+		public void onDisconnected(String reason) {
+			isConnected = false;
+		}
+
+		@Override
+		public void onReceive(String message) {
+			//the server doesn't answer yet
+		}
+
+		@Override
+		public void onMessageNotDelivered(int messageId, int resendMessageId, String message) {
+			//everything goes out on a reliable channel, so this never gets called
+		}
+	}
+
+	private class SendThread extends Thread {
+		private final int first;
+		private final int step;
+
+		public SendThread(int first, int step) {
+			super("bot-swarm-sender-" + first);
+			setDaemon(true);
+			this.first = first;
+			this.step = step;
+		}
+
+		@Override
+		public void run() {
+			while(isRunning) {
+				long now = System.nanoTime();
+				long timeBetweenMoves = BotSwarm.this.timeBetweenMoves;
+				if(timeBetweenMoves > 0) {
+					for(int i = first; i < bots.length; i += step)
+						bots[i].sendMoves(now, timeBetweenMoves);
+				}
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {}
+			}
+		}
+	}
+
+	/**
+	 * Ticks a PlayerMovementLevel the way SpaceCrisisGameServer does and times every tick.
+	 */
+	private class TickThread extends Thread {
+		private final PlayerMovementLevel level;
+
+		public TickThread() {
+			super("bot-swarm-level");
+			setDaemon(true);
+			level = new PlayerMovementLevel();
+			level.init(true);
+		}
+
+		@Override
+		public void run() {
+			long then = System.currentTimeMillis();
+			while(isRunning) {
+				try {
+					Thread.sleep(BotSwarm.TIME_BETWEEN_TICKS);
+				} catch (InterruptedException e) {}
+				long now = System.currentTimeMillis();
+				long start = System.nanoTime();
+				level.update((int) (now - then));
+				tickTimes.record(System.nanoTime() - start);
+				then = now;
+			}
+		}
+	}
+
+	/**
+	 * Counts values in buckets that get wider as the values get bigger, so percentiles come out
+	 * within about 3% however spread out the values are. Any number of threads can record at once.
+	 */
+	private static class Histogram {
+		//every power of two is split into this many buckets
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int NUM_SUB_BUCKETS = 1 << Histogram.SUB_BUCKET_BITS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(64 * Histogram.NUM_SUB_BUCKETS);
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			if(value < 0)
+				value = 0;
+			counts.incrementAndGet(getBucket(value));
+			long oldMax;
+			while(value > (oldMax = max.get()) && !max.compareAndSet(oldMax, value));
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Returns the value that the given fraction of the values are at or below, or 0 if nothing
+		 * has been recorded.
+		 */
+		public long getPercentile(double fraction) {
+			long total = 0;
+			for(int i = 0; i < counts.length(); i++)
+				total += counts.get(i);
+			if(total == 0)
+				return 0;
+			long target = (long) Math.ceil(fraction * total);
+			long seen = 0;
+			for(int i = 0; i < counts.length(); i++) {
+				seen += counts.get(i);
+				if(seen >= target)
+					return Math.min(getHighestValue(i), max.get());
+			}
+			return max.get();
+		}
+
+		private static int getBucket(long value) {
+			if(value < Histogram.NUM_SUB_BUCKETS)
+				return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - Histogram.SUB_BUCKET_BITS)) & (Histogram.NUM_SUB_BUCKETS - 1);
+			return (exponent - Histogram.SUB_BUCKET_BITS + 1) * Histogram.NUM_SUB_BUCKETS + subBucket;
+		}
+
+		private static long getHighestValue(int bucket) {
+			if(bucket < Histogram.NUM_SUB_BUCKETS)
+				return bucket;
+			int exponent = bucket / Histogram.NUM_SUB_BUCKETS + Histogram.SUB_BUCKET_BITS - 1;
+			int subBucket = bucket % Histogram.NUM_SUB_BUCKETS;
+			return ((long) (Histogram.NUM_SUB_BUCKETS + subBucket + 1) << (exponent - Histogram.SUB_BUCKET_BITS)) - 1;
+		}
+	}
+}
\ No newline at end of file
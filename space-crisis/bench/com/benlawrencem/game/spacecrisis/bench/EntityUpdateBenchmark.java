@@ -0,0 +1,71 @@
+package com.benlawrencem.game.spacecrisis.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.newdawn.slick.Graphics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.game.spacecrisis.Direction;
+import com.benlawrencem.game.spacecrisis.display.Visibility;
+import com.benlawrencem.game.spacecrisis.entity.Entity;
+import com.benlawrencem.game.spacecrisis.level.RandomWalkLevel;
+import com.benlawrencem.game.spacecrisis.level.Tile;
+
+/**
+ * Measures Entity.update() for one entity walking round and round a small square, so it's always
+ * partway through a move and regularly committing to one, entering a tile and leaving another.
+ * Each update is one 20ms game tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityUpdateBenchmark {
+	private static final int TICK = 20;
+	private static final Direction[] SQUARE = { Direction.NORTH, Direction.EAST, Direction.SOUTH, Direction.WEST };
+
+	private Entity entity;
+	private int nextDirection;
+
+	@Setup(Level.Trial)
+	public void createEntity() {
+		RandomWalkLevel level = new RandomWalkLevel(0);
+		level.init(true);
+		entity = new Entity(level, new Tile(level, 49, 49)) {
+			public void render(Graphics g, Visibility visibility, float x, float y, float scale) {}
+		};
+		entity.setMoveSpeed(5);
+		nextDirection = 0;
+	}
+
+	@Benchmark
+	public Entity update() {
+		if(!entity.isPerformingAction()) {
+			entity.move(SQUARE[nextDirection]);
+			nextDirection = (nextDirection + 1) % SQUARE.length;
+		}
+		entity.update(TICK);
+		return entity;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(EntityUpdateBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package com.benlawrencem.game.spacecrisis.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.game.spacecrisis.net.messages.Message;
+
+/**
+ * Measures turning each type of game message into the string that goes out to the network and
+ * back again. Every message the server sends or receives goes through one or the other, and MOVE
+ * and SYNC go out for every entity that moves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	@Param({ "ID_REQUEST", "ID_RESPONSE", "SPAWN", "DESPAWN", "MOVE", "BUMP", "SYNC" })
+	public Message.Type type;
+
+	private Message message;
+	private String encoded;
+
+	@Setup(Level.Trial)
+	public void createMessage() {
+		switch(type) {
+			case ID_REQUEST:
+				message = Message.createIdRequestMessage();
+				break;
+			case ID_RESPONSE:
+				message = Message.createIdResponseMessage(1042);
+				break;
+			case SPAWN:
+				message = Message.createSpawnMessage(1042, 49, 49);
+				break;
+			case DESPAWN:
+				message = Message.createDespawnMessage(1042);
+				break;
+			case MOVE:
+				message = Message.createMoveMessage(1042, 49, 49, 50, 49);
+				break;
+			case BUMP:
+				message = Message.createBumpMessage(1042, 49, 49, 50, 49);
+				break;
+			case SYNC:
+				message = Message.createSyncMessage(1042, 49, 49, 50, 49);
+				break;
+			default:
+				throw new IllegalArgumentException("No message of type " + type);
+		}
+		encoded = message.encode();
+	}
+
+	@Benchmark
+	public String encode() {
+		return message.encode();
+	}
+
+	@Benchmark
+	public Message parse() {
+		return Message.parse(encoded);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(MessageBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.benlawrencem.game.spacecrisis.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.game.spacecrisis.level.RandomWalkLevel;
+
+/**
+ * Measures one 20ms tick of a RandomWalkLevel full of entities wandering about. The level is 99 by
+ * 99 tiles, so at 10,000 entities and up it's crowded and most of them spend their time finding
+ * they can't move. Anything much over 20ms per tick means the server can't keep up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RandomWalkLevelBenchmark {
+	private static final int TICK = 20;
+
+	@Param({ "1000", "10000", "100000" })
+	public int numEntities;
+
+	private RandomWalkLevel level;
+
+	@Setup(Level.Trial)
+	public void createLevel() {
+		level = new RandomWalkLevel(numEntities);
+		level.init(true);
+	}
+
+	@Benchmark
+	public RandomWalkLevel tick() {
+		level.update(TICK);
+		return level;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RandomWalkLevelBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
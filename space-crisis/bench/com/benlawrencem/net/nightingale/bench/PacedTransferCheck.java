@@ -0,0 +1,129 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.ClientConnectionListener;
+import com.benlawrencem.net.nightingale.InMemoryNetwork;
+import com.benlawrencem.net.nightingale.Packet.Channel;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.ServerListener;
+import com.benlawrencem.net.nightingale.ServerMetrics;
+
+/**
+ * Checks that a paced server gets a burst of large reliable messages to a client on a network
+ * that doesn't lose anything, without stalling and without flooding it with copies. The server
+ * sends 300 messages of 1,500 bytes on RELIABLE_ORDERED all at once, which is more fragments than
+ * its pacing queue holds, over an InMemoryNetwork with 10ms of latency and 5ms of jitter.
+ *
+ *   PacedTransferCheck [-repeat 3] [-seed 42]
+ *
+ * Every repeat has to have the client receive every message within 3 seconds, with fewer than
+ * 1,600 datagrams going over the network in both directions, or it exits with 1. A client that's
+ * only being held up by its pacing queue used to wait out timeouts for packets that had been
+ * dropped before they ever went out, then had them resent into the same full queue over and over,
+ * and answered every resend that did get through with an acknowledgement of its own.
+ */
+public class PacedTransferCheck {
+	private static final int NUM_MESSAGES = 300;
+	private static final int MESSAGE_SIZE = 1500;
+	private static final long MAXIMUM_TIME = 3000;
+	private static final long MAXIMUM_DATAGRAMS = 1600;
+
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		int numRepeats = 3;
+		long seed = 42;
+		try {
+			for(int i = 0; i < args.length; i += 2) {
+				if(args[i].equals("-repeat"))
+					numRepeats = Integer.parseInt(args[i + 1]);
+				else if(args[i].equals("-seed"))
+					seed = Long.parseLong(args[i + 1]);
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+		} catch(RuntimeException e) {
+			System.err.println("Usage: PacedTransferCheck [-repeat 3] [-seed 42]");
+			System.exit(2);
+		}
+
+		boolean passed = true;
+		for(int i = 0; i < numRepeats; i++)
+			passed &= transfer(seed);
+		System.out.println(passed ? "PASS" : "FAIL");
+		System.exit(passed ? 0 : 1);
+	}
+
+	private static boolean transfer(long seed) throws Exception {
+		InMemoryNetwork network = new InMemoryNetwork(seed);
+		network.setLossRate(0);
+		network.setLatency(10);
+		network.setJitter(5);
+		final AtomicInteger clientId = new AtomicInteger(-1);
+		final CountDownLatch connected = new CountDownLatch(1);
+		final CountDownLatch received = new CountDownLatch(PacedTransferCheck.NUM_MESSAGES);
+		Server server = new Server(new ServerListener() {
+			public void onServerStopped() {}
+
+			public boolean onClientConnected(int id, String address, int port) {
+				clientId.set(id);
+				return true;
+			}
+
+			public void onClientDisconnected(int id, String reason) {}
+
+			public void onReceive(int id, ByteBuffer message) {}
+
+			public void onMessageNotDelivered(int messageId, int resendMessageId, int id, ByteBuffer message) {}
+		});
+		server.setPacing(true);
+		server.startServer(7000, network);
+		ClientConnection client = new ClientConnection(new ClientConnectionListener() {
+			public void onConnected() {
+				connected.countDown();
+			}
+
+			public void onCouldNotConnect(String reason) {}
+
+			public void onDisconnected(String reason) {}
+
+			public void onReceive(ByteBuffer message) {
+				received.countDown();
+			}
+
+			public void onMessageNotDelivered(int messageId, int resendMessageId, ByteBuffer message) {}
+		}, network);
+		client.connect("127.0.0.1", 7000);
+		if(!connected.await(5, TimeUnit.SECONDS)) {
+			System.out.println("Could not connect");
+			server.stopServer();
+			network.shutdown();
+			return false;
+		}
+
+		byte[] message = new byte[PacedTransferCheck.MESSAGE_SIZE];
+		long numDatagramsBefore = network.getNumDatagramsSent();
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < PacedTransferCheck.NUM_MESSAGES; i++)
+			server.send(clientId.get(), message, Channel.RELIABLE_ORDERED);
+		//given long enough to show how far off it is, not just that it was
+		received.await(10 * PacedTransferCheck.MAXIMUM_TIME, TimeUnit.MILLISECONDS);
+		long time = System.currentTimeMillis() - start;
+		long numDatagrams = network.getNumDatagramsSent() - numDatagramsBefore;
+		long numReceived = PacedTransferCheck.NUM_MESSAGES - received.getCount();
+
+		ServerMetrics metrics = server.getMetrics();
+		boolean passed = (numReceived == PacedTransferCheck.NUM_MESSAGES && time <= PacedTransferCheck.MAXIMUM_TIME && numDatagrams < PacedTransferCheck.MAXIMUM_DATAGRAMS);
+		System.out.println(String.format("%d/%d messages in %dms, %d datagrams, %d packets sent by the server, %d resends: %s",
+				numReceived, PacedTransferCheck.NUM_MESSAGES, time, numDatagrams, metrics.getNumPacketsSent(), metrics.getNumResends(), (passed ? "ok" : "failed")));
+		client.disconnect();
+		server.stopServer();
+		network.shutdown();
+		return passed;
+	}
+}
\ No newline at end of file
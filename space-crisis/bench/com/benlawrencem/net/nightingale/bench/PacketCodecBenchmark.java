@@ -0,0 +1,92 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
+import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+
+/**
+ * Measures turning packets into bytes and back. toByteArray and parsePacket are the old way, which
+ * allocates a fresh array and packet every time; writeTo and readFrom reuse the same buffer and
+ * packet the way the send and receive paths do now, so the difference between them is what that
+ * saves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketCodecBenchmark {
+	//an empty payload is a ping or acknowledgement, 64 bytes is a typical game message and 490 fills a packet
+	@Param({ "0", "64", "490" })
+	public int payloadSize;
+
+	private Packet packet;
+	private byte[] bytes;
+	private ByteBuffer buffer;
+	private Packet readPacket;
+
+	@Setup(Level.Trial)
+	public void createPacket() throws PacketEncodingException {
+		byte[] payload = new byte[payloadSize];
+		for(int i = 0; i < payload.length; i++)
+			payload[i] = (byte) ('a' + i % 26);
+		packet = Packet.createApplicationPacket(1042, payload);
+		packet.setSequenceNumber(31337);
+		packet.setLastReceivedSequenceNumber(31300);
+		packet.setReceivedPacketHistory(0xF7FFFFFFFFFFFFFFL);
+		bytes = packet.toByteArray();
+		buffer = ByteBuffer.allocate(Packet.MAXIMUM_PACKET_SIZE);
+		readPacket = new Packet();
+	}
+
+	@Benchmark
+	public byte[] toByteArray() throws PacketEncodingException {
+		return packet.toByteArray();
+	}
+
+	@Benchmark
+	public Packet parsePacket() throws MalformedPacketException {
+		return Packet.parsePacket(bytes);
+	}
+
+	@Benchmark
+	public ByteBuffer writeTo() throws PacketEncodingException {
+		buffer.clear();
+		packet.writeTo(buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public Packet readFrom() throws MalformedPacketException {
+		buffer.clear();
+		buffer.put(bytes);
+		buffer.flip();
+		return readPacket.readFrom(buffer);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PacketCodecBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.net.nightingale.Packet;
+import com.benlawrencem.net.nightingale.PacketRecorder;
+
+/**
+ * Measures the bookkeeping done for every packet as it arrives in order, with some lost on the way,
+ * or with some swapped with the packet after them.
+ *
+ * recordIncomingPacket and hasRecordedIncomingPacket work through every sequence number in the order
+ * the pattern has them arrive. roundTrip is everything a connection does for one packet: one side
+ * sends it, the other side receives it (or doesn't) and acknowledges it, and the first side takes in
+ * the acknowledgement and looks for packets that went undelivered, which is what
+ * visitUndeliveredPackets (once getUndeliveredPackets) is for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketRecorderBenchmark {
+	public static enum Pattern { IN_ORDER, LOSSY, REORDERED };
+	private static final int NUM_SEQUENCE_NUMBERS = Packet.MAXIMUM_SEQUENCE_NUMBER - Packet.MINIMUM_SEQUENCE_NUMBER + 1;
+	//how often a packet is lost, or swapped with the one after it, in the patterns that do that
+	private static final double DISRUPTION_RATE = 0.05;
+	private static final int CONNECTION_ID = 1;
+
+	@Param({ "IN_ORDER", "LOSSY", "REORDERED" })
+	public Pattern pattern;
+
+	//every sequence number in the order it arrives, with the lost ones left out
+	private Packet[] arrivals;
+	private int nextArrival;
+	private PacketRecorder receiver;
+	private PacketRecorder filledReceiver;
+	private Packet lookup;
+	private int nextLookup;
+
+	//whether each packet sent in the round trip gets through, and whether it's held back until after the next one
+	private boolean[] isLost;
+	private boolean[] isHeldBack;
+	private int nextSend;
+	private PacketRecorder sender;
+	private PacketRecorder roundTripReceiver;
+	private Packet[] dataPackets;
+	private Packet heldBackPacket;
+	private Packet acknowledgement;
+	private ByteBuffer payload;
+	private final CountingVisitor visitor = new CountingVisitor();
+
+	@Setup(Level.Trial)
+	public void createPattern() {
+		Random random = new Random(42);
+		isLost = new boolean[NUM_SEQUENCE_NUMBERS];
+		isHeldBack = new boolean[NUM_SEQUENCE_NUMBERS];
+		for(int i = 0; i < NUM_SEQUENCE_NUMBERS; i++) {
+			isLost[i] = (pattern == Pattern.LOSSY && random.nextDouble() < DISRUPTION_RATE);
+			isHeldBack[i] = (pattern == Pattern.REORDERED && random.nextDouble() < DISRUPTION_RATE);
+		}
+
+		//the arrival order plays out the same pattern one sequence number at a time
+		Packet[] arrivals = new Packet[NUM_SEQUENCE_NUMBERS];
+		int numArrivals = 0;
+		int sequenceNumber = Packet.MINIMUM_SEQUENCE_NUMBER;
+		for(int i = 0; i < NUM_SEQUENCE_NUMBERS; i++) {
+			if(!isLost[i]) {
+				arrivals[numArrivals] = createPacket(sequenceNumber);
+				if(i > 0 && isHeldBack[i - 1] && numArrivals > 0) {
+					Packet swapped = arrivals[numArrivals - 1];
+					arrivals[numArrivals - 1] = arrivals[numArrivals];
+					arrivals[numArrivals] = swapped;
+				}
+				numArrivals++;
+			}
+			sequenceNumber = Packet.nextSequenceNumber(sequenceNumber);
+		}
+		this.arrivals = new Packet[numArrivals];
+		System.arraycopy(arrivals, 0, this.arrivals, 0, numArrivals);
+		nextArrival = 0;
+		receiver = new PacketRecorder();
+
+		//the recorder only remembers the most recent packets, so the lookups go over the last stretch of arrivals
+		filledReceiver = new PacketRecorder();
+		for(int i = 0; i < this.arrivals.length; i++)
+			filledReceiver.recordIncomingPacket(this.arrivals[i]);
+		lookup = createPacket(Packet.MINIMUM_SEQUENCE_NUMBER);
+		nextLookup = 0;
+
+		sender = new PacketRecorder();
+		roundTripReceiver = new PacketRecorder();
+		dataPackets = new Packet[] { Packet.createApplicationPacket(CONNECTION_ID, new byte[32]), Packet.createApplicationPacket(CONNECTION_ID, new byte[32]) };
+		heldBackPacket = null;
+		acknowledgement = Packet.createAcknowledgementPacket(CONNECTION_ID);
+		payload = ByteBuffer.wrap(new byte[32]);
+		nextSend = 0;
+	}
+
+	private static Packet createPacket(int sequenceNumber) {
+		Packet packet = Packet.createApplicationPacket(CONNECTION_ID, new byte[32]);
+		packet.setSequenceNumber(sequenceNumber);
+		return packet;
+	}
+
+	@Benchmark
+	public void recordIncomingPacket() {
+		receiver.recordIncomingPacket(arrivals[nextArrival]);
+		if(++nextArrival == arrivals.length)
+			nextArrival = 0;
+	}
+
+	@Benchmark
+	public boolean hasRecordedIncomingPacket() {
+		//every sequence number is looked up, including the lost ones, over the last 64 the recorder remembers
+		int sequenceNumber = arrivals[arrivals.length - 1].getSequenceNumber() - (nextLookup++ & 63);
+		if(sequenceNumber < Packet.MINIMUM_SEQUENCE_NUMBER)
+			sequenceNumber += NUM_SEQUENCE_NUMBERS;
+		lookup.setSequenceNumber(sequenceNumber);
+		return filledReceiver.hasRecordedIncomingPacket(lookup);
+	}
+
+	@Benchmark
+	public int roundTrip() {
+		int i = nextSend;
+		nextSend = (nextSend + 1) % NUM_SEQUENCE_NUMBERS;
+
+		//send the next packet
+		Packet packet = dataPackets[i & 1];
+		payload.clear();
+		packet.setPayload(payload);
+		packet.setDuplicateSequenceNumber(Packet.SEQUENCE_NUMBER_NOT_APPLICABLE);
+		sender.recordAndAddSequenceNumberToOutgoingPacket(packet);
+		sender.addReceivedPacketHistoryToOutgoingPacket(packet);
+		sender.recordOutgoingPacketTransmitted(packet.getSequenceNumber());
+
+		//it arrives (or doesn't), possibly after the one sent after it. a packet held back turns up this time round
+		// whatever happens to this one, so there's never more than one waiting
+		Packet heldBackPacket = this.heldBackPacket;
+		this.heldBackPacket = null;
+		if(!isLost[i]) {
+			if(isHeldBack[i] && heldBackPacket == null)
+				this.heldBackPacket = packet;
+			else
+				receive(packet);
+		}
+		if(heldBackPacket != null)
+			receive(heldBackPacket);
+
+		//the acknowledgement comes back and anything the sender can now tell went missing is found
+		visitor.numUndelivered = 0;
+		sender.visitUndeliveredPackets(visitor);
+		return visitor.numUndelivered;
+	}
+
+	private void receive(Packet packet) {
+		if(!roundTripReceiver.hasRecordedIncomingPacket(packet))
+			roundTripReceiver.recordIncomingPacket(packet);
+		roundTripReceiver.recordAndAddSequenceNumberToOutgoingPacket(acknowledgement);
+		roundTripReceiver.addReceivedPacketHistoryToOutgoingPacket(acknowledgement);
+		roundTripReceiver.recordOutgoingPacketTransmitted(acknowledgement.getSequenceNumber());
+		sender.recordIncomingPacket(acknowledgement);
+	}
+
+	private static class CountingVisitor implements PacketRecorder.UndeliveredPacketVisitor {
+		public int numUndelivered;
+
+		public void visitUndeliveredPacket(int sequenceNumber, int originalSequenceNumber, boolean isBundle, Packet.Channel channel, boolean isFragment, ByteBuffer payload) {
+			numUndelivered++;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(PacketRecorderBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
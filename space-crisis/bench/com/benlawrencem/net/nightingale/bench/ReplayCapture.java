@@ -0,0 +1,118 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.benlawrencem.game.spacecrisis.net.messages.Message;
+import com.benlawrencem.net.nightingale.InMemoryNetwork;
+import com.benlawrencem.net.nightingale.PacketReplay;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.ServerListener;
+import com.benlawrencem.net.nightingale.ServerMetrics;
+
+/**
+ * Replays a packet capture into a fresh server, over and over, and says how long each replay took.
+ * Run as fast as possible, a capture of a busy session measures everything the server does with
+ * what it receives--decoding, acknowledging, reassembling, decompressing and handing messages to
+ * the listener--on exactly the same traffic every time, so a change that slows any of it down
+ * shows up as fewer packets a second.
+ *
+ *   ReplayCapture capture [-speed 0] [-repeat 5] [-dictionary spacecrisis|file]
+ *
+ * A speed of 0 replays as fast as possible, 1 at the speed the packets were captured at, and
+ * anything else that many times faster. The server needs the same compression dictionary as the
+ * one that was captured to read compressed messages: spacecrisis for the game's, or a file
+ * holding the bytes of some other one. BotSwarm -capture makes a capture of the game to try it on.
+ *
+ * The server runs on an InMemoryNetwork with nobody else on it, so whatever it sends goes nowhere,
+ * and its listener accepts everyone and counts what it's given. It takes the captured clients' cookies
+ * without checking them and lets clients in without waiting, the way PacketReplay needs.
+ */
+public class ReplayCapture {
+	public static void main(String[] args) throws Exception {
+		Locale.setDefault(Locale.US);
+		File capture = null;
+		double speed = PacketReplay.AS_FAST_AS_POSSIBLE;
+		int numRepeats = 5;
+		byte[] dictionary = null;
+		try {
+			capture = new File(args[0]);
+			for(int i = 1; i < args.length; i += 2) {
+				if(args[i].equals("-speed"))
+					speed = Double.parseDouble(args[i + 1]);
+				else if(args[i].equals("-repeat"))
+					numRepeats = Integer.parseInt(args[i + 1]);
+				else if(args[i].equals("-dictionary"))
+					dictionary = (args[i + 1].equals("spacecrisis") ? Message.getCompressionDictionary() : readFile(new File(args[i + 1])));
+				else
+					throw new IllegalArgumentException(args[i]);
+			}
+		} catch(RuntimeException e) {
+			System.err.println("Usage: ReplayCapture capture [-speed 0] [-repeat 5] [-dictionary spacecrisis|file]");
+			System.exit(2);
+		}
+
+		double bestRate = 0;
+		for(int i = 0; i < numRepeats; i++) {
+			CountingListener listener = new CountingListener();
+			InMemoryNetwork network = new InMemoryNetwork();
+			Server server = new Server(listener);
+			server.setVerifyingConnectCookies(false);
+			server.setAdmissionRate(Server.UNLIMITED_ADMISSION_RATE);
+			if(dictionary != null) {
+				server.setCompressionDictionary(dictionary);
+				server.setCompressing(true);
+			}
+			server.startServer(0, network);
+
+			long start = System.nanoTime();
+			long numPackets = new PacketReplay(capture, server).replay(speed);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			double rate = numPackets / seconds;
+			bestRate = Math.max(bestRate, rate);
+
+			ServerMetrics metrics = server.getMetrics();
+			System.out.println(String.format("%d packets in %.3fs, %.0f packets/s: %d clients connected, %d messages received, %d duplicates dropped",
+					numPackets, seconds, rate, listener.numClientsConnected.get(), listener.numMessagesReceived.get(), metrics.getNumDuplicatesDropped()));
+			server.stopServer();
+			network.shutdown();
+		}
+		System.out.println(String.format("Best: %.0f packets/s", bestRate));
+		System.exit(0);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) randomAccessFile.length()];
+			randomAccessFile.readFully(bytes);
+			return bytes;
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static class CountingListener implements ServerListener {
+		private final AtomicLong numClientsConnected = new AtomicLong();
+		private final AtomicLong numMessagesReceived = new AtomicLong();
+
+		public void onServerStopped() {}
+
+		public boolean onClientConnected(int clientId, String address, int port) {
+			numClientsConnected.incrementAndGet();
+			return true;
+		}
+
+		public void onClientDisconnected(int clientId, String reason) {}
+
+		public void onReceive(int clientId, ByteBuffer message) {
+			numMessagesReceived.incrementAndGet();
+		}
+
+		public void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer message) {}
+	}
+}
\ No newline at end of file
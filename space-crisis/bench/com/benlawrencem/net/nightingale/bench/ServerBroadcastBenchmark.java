@@ -0,0 +1,167 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.ClientConnectionListener;
+import com.benlawrencem.net.nightingale.NioEngine;
+import com.benlawrencem.net.nightingale.Packet.Channel;
+import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.ServerListener;
+
+/**
+ * Measures telling every client about the same thing, like an entity moving, with 1,000 clients
+ * connected. sendToEach calls Server.send() once per client the way a game had to before there was
+ * a broadcast, broadcast encodes the message once for everybody, and sendToGroup sends to the half
+ * of the clients in a group. Each operation is one message to every client it's meant for.
+ *
+ * Messages on UNRELIABLE are the ones broadcasts encode once. RELIABLE_ORDERED messages have to be
+ * made up for each client anyway, so they show what's left over from doing it all in one pass.
+ * Compression is on, since that's what makes encoding a message expensive.
+ *
+ * Run main() to go through every combination.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBroadcastBenchmark {
+	private static final String GROUP = "half";
+	//connect requests aren't retried, so too many at once can overflow the server's socket buffer and never be heard
+	private static final int CONNECT_BATCH_SIZE = 50;
+	private static final byte[] DICTIONARY = "MOVE SYNC entity x y velocity".getBytes();
+	//about what an entity move looks like once it's encoded
+	private static final String MESSAGE = "MOVE entity 1042 x 1288.5 y 733.25 velocity 3.5 -1.25";
+
+	@Param({ "1000" })
+	public int numClients;
+
+	@Param({ "UNRELIABLE", "RELIABLE_ORDERED" })
+	public Channel channel;
+
+	private NioEngine engine;
+	private Server server;
+	private List<ClientConnection> clients;
+	private final List<Integer> clientIds = new ArrayList<Integer>();
+	private int[] clientIdArray;
+	private ByteBuffer message;
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception {
+		engine = new NioEngine();
+		final CountDownLatch connected = new CountDownLatch(numClients);
+		server = new Server(new ServerListener() {
+			public void onServerStopped() {}
+			public boolean onClientConnected(int clientId, String address, int port) {
+				synchronized(clientIds) {
+					clientIds.add(clientId);
+				}
+				connected.countDown();
+				return true;
+			}
+			public void onClientDisconnected(int clientId, String reason) {}
+			public void onReceive(int clientId, ByteBuffer message) {}
+			public void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer message) {}
+		});
+		server.setCompressionDictionary(DICTIONARY);
+		server.setCompressing(true);
+
+		//nothing should be held back by the congestion window, only the cost of sending is being measured
+		server.setPacing(false);
+		server.startServer(0, engine);
+
+		clients = new ArrayList<ClientConnection>();
+		for(int i = 0; i < numClients; i++) {
+			ClientConnection client = new ClientConnection(new ClientConnectionListener() {
+				public void onConnected() {}
+				public void onCouldNotConnect(String reason) {}
+				public void onDisconnected(String reason) {}
+				public void onReceive(ByteBuffer message) {}
+				public void onMessageNotDelivered(int messageId, int resendMessageId, ByteBuffer message) {}
+			}, engine);
+			client.setCompressionDictionary(DICTIONARY);
+			client.connect("127.0.0.1", server.getPort());
+			clients.add(client);
+			if((i + 1) % CONNECT_BATCH_SIZE == 0)
+				awaitConnections(connected, i + 1);
+		}
+		awaitConnections(connected, numClients);
+
+		synchronized(clientIds) {
+			clientIdArray = new int[clientIds.size()];
+			for(int i = 0; i < clientIdArray.length; i++) {
+				clientIdArray[i] = clientIds.get(i);
+				if(i % 2 == 0)
+					server.addToGroup(GROUP, clientIdArray[i]);
+			}
+		}
+		message = ByteBuffer.wrap(MESSAGE.getBytes());
+	}
+
+	private void awaitConnections(CountDownLatch connected, int numConnections) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(numClients - connected.getCount() < numConnections) {
+			if(System.currentTimeMillis() > deadline)
+				throw new IllegalStateException("Only " + (numClients - connected.getCount()) + " of " + numConnections + " clients connected");
+			Thread.sleep(10);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() {
+		for(ClientConnection client : clients)
+			client.disconnect();
+		server.stopServer();
+		engine.shutdown();
+	}
+
+	@Benchmark
+	public int sendToEach() throws CouldNotSendPacketException {
+		int numSent = 0;
+		for(int i = 0; i < clientIdArray.length; i++) {
+			server.send(clientIdArray[i], message, channel);
+			numSent++;
+		}
+		return numSent;
+	}
+
+	@Benchmark
+	public int broadcast() throws CouldNotSendPacketException {
+		return server.broadcast(message, channel);
+	}
+
+	@Benchmark
+	public int sendToGroup() throws CouldNotSendPacketException {
+		return server.sendToGroup(GROUP, message, channel);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(ServerBroadcastBenchmark.class.getName())
+				.build()).run();
+	}
+}
\ No newline at end of file
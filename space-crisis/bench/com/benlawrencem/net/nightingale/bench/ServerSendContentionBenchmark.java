@@ -0,0 +1,150 @@
+package com.benlawrencem.net.nightingale.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.benlawrencem.net.nightingale.ClientConnection;
+import com.benlawrencem.net.nightingale.ClientConnectionListener;
+import com.benlawrencem.net.nightingale.NioEngine;
+import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.Server;
+import com.benlawrencem.net.nightingale.ServerListener;
+
+/**
+ * Measures how Server.send() holds up when several threads are sending at once. Each sender thread
+ * gets a client of its own, so with nothing shared between clients the total throughput should keep
+ * climbing as sender threads are added. sendToSharedClient has every thread fighting over the same
+ * client for comparison.
+ *
+ * Run main() to go through 1, 2, 4 and 8 sender threads in turn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerSendContentionBenchmark {
+	public static final int[] SENDER_THREADS = { 1, 2, 4, 8 };
+	private static final int MESSAGE_SIZE = 32;
+
+	@Param({ "8" })
+	public int numClients;
+
+	private NioEngine engine;
+	private Server server;
+	private List<ClientConnection> clients;
+	private final List<Integer> clientIds = new ArrayList<Integer>();
+	private final AtomicInteger nextClient = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void startServer() throws Exception {
+		engine = new NioEngine();
+		final CountDownLatch connected = new CountDownLatch(numClients);
+		server = new Server(new ServerListener() {
+			public void onServerStopped() {}
+			public boolean onClientConnected(int clientId, String address, int port) {
+				synchronized(clientIds) {
+					clientIds.add(clientId);
+				}
+				connected.countDown();
+				return true;
+			}
+			public void onClientDisconnected(int clientId, String reason) {}
+			public void onReceive(int clientId, ByteBuffer message) {}
+			public void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer message) {}
+		});
+		server.startServer(0, engine);
+
+		clients = new ArrayList<ClientConnection>();
+		for(int i = 0; i < numClients; i++) {
+			ClientConnection client = new ClientConnection(new ClientConnectionListener() {
+				public void onConnected() {}
+				public void onCouldNotConnect(String reason) {}
+				public void onDisconnected(String reason) {}
+				public void onReceive(ByteBuffer message) {}
+				public void onMessageNotDelivered(int messageId, int resendMessageId, ByteBuffer message) {}
+			}, engine);
+			client.connect("127.0.0.1", server.getPort());
+			clients.add(client);
+		}
+		if(!connected.await(10, TimeUnit.SECONDS))
+			throw new IllegalStateException("Only " + (numClients - connected.getCount()) + " of " + numClients + " clients connected");
+	}
+
+	@TearDown(Level.Trial)
+	public void stopServer() {
+		for(ClientConnection client : clients)
+			client.disconnect();
+		server.stopServer();
+		engine.shutdown();
+	}
+
+	private int claimClientId() {
+		synchronized(clientIds) {
+			return clientIds.get(nextClient.getAndIncrement() % clientIds.size());
+		}
+	}
+
+	private int getSharedClientId() {
+		synchronized(clientIds) {
+			return clientIds.get(0);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Sender {
+		private int clientId;
+		private int sharedClientId;
+		private ByteBuffer message;
+
+		@Setup(Level.Trial)
+		public void claimClient(ServerSendContentionBenchmark benchmark) {
+			clientId = benchmark.claimClientId();
+			sharedClientId = benchmark.getSharedClientId();
+			message = ByteBuffer.allocate(MESSAGE_SIZE);
+		}
+	}
+
+	@Benchmark
+	public int sendToOwnClient(Sender sender) throws CouldNotSendPacketException {
+		sender.message.clear();
+		return server.send(sender.clientId, sender.message);
+	}
+
+	@Benchmark
+	public int sendToSharedClient(Sender sender) throws CouldNotSendPacketException {
+		sender.message.clear();
+		return server.send(sender.sharedClientId, sender.message);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		for(int threads : SENDER_THREADS) {
+			new Runner(new OptionsBuilder()
+					.include(ServerSendContentionBenchmark.class.getName())
+					.threads(threads)
+					.build()).run();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.benlawrencem.game.spacecrisis;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import com.benlawrencem.game.spacecrisis.level.Level;
+
+/**
+ * The Flight Recorder side of {@link LevelEvents}. The event's duration is
+ * how long the update took, so ticks that run over their 20ms show up
+ * alongside whatever the network was doing at the time.
+ */
+class FlightRecorderLevelEvents extends LevelEvents {
+	@Override
+	public void update(Level level, int delta) {
+		LevelUpdateEvent event = new LevelUpdateEvent();
+		event.begin();
+		level.update(delta);
+		event.end();
+		if(event.shouldCommit()) {
+			event.level = level.getClass().getSimpleName();
+			event.delta = delta;
+			event.commit();
+		}
+	}
+
+	@Name("com.benlawrencem.spacecrisis.LevelUpdate")
+	@Label("Level Update")
+	@Category("Space Crisis")
+	@StackTrace(false)
+	static class LevelUpdateEvent extends Event {
+		@Label("Level")
+		String level;
+		@Label("Delta")
+		@Timespan(Timespan.MILLISECONDS)
+		int delta;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,195 @@
+package com.benlawrencem.net.nightingale;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder side of {@link NetworkEvents}. Every event is checked
+ * with shouldCommit() before anything is copied into it, so while nothing is
+ * being recorded each hook is a flag check and an allocation escape analysis
+ * can take away. Stack traces are left off the per-packet events since
+ * they'd cost far more than the events themselves.
+ */
+class FlightRecorderNetworkEvents extends NetworkEvents {
+	@Override
+	public void packetReceived(Packet packet, int numBytes, String address, int port) {
+		PacketReceivedEvent event = new PacketReceivedEvent();
+		if(event.shouldCommit()) {
+			event.connectionId = packet.getConnectionId();
+			event.sequenceNumber = packet.getSequenceNumber();
+			event.messageType = String.valueOf(packet.getMessageType());
+			event.channel = String.valueOf(packet.getChannel());
+			event.size = numBytes;
+			event.address = address;
+			event.port = port;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void packetDropped(String reason, Packet packet, String address, int port) {
+		PacketDroppedEvent event = new PacketDroppedEvent();
+		if(event.shouldCommit()) {
+			event.reason = reason;
+			if(packet != null) {
+				event.connectionId = packet.getConnectionId();
+				event.sequenceNumber = packet.getSequenceNumber();
+				event.messageType = String.valueOf(packet.getMessageType());
+			}
+			else {
+				event.connectionId = Packet.ANONYMOUS_CONNECTION_ID;
+				event.sequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+			}
+			event.address = address;
+			event.port = port;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void packetSent(int connectionId, int sequenceNumber, int numBytes) {
+		PacketSentEvent event = new PacketSentEvent();
+		if(event.shouldCommit()) {
+			event.connectionId = connectionId;
+			event.sequenceNumber = sequenceNumber;
+			event.size = numBytes;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void packetResent(int connectionId, int sequenceNumber, int originalSequenceNumber) {
+		PacketResentEvent event = new PacketResentEvent();
+		if(event.shouldCommit()) {
+			event.connectionId = connectionId;
+			event.sequenceNumber = sequenceNumber;
+			event.originalSequenceNumber = originalSequenceNumber;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void packetUndelivered(int sequenceNumber, int numPacketsSentSince, long timeSinceSent) {
+		PacketUndeliveredEvent event = new PacketUndeliveredEvent();
+		if(event.shouldCommit()) {
+			event.sequenceNumber = sequenceNumber;
+			event.numPacketsSentSince = numPacketsSentSince;
+			event.timeSinceSent = timeSinceSent;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void connectionTimedOut(int connectionId, String address, int port) {
+		ConnectionTimedOutEvent event = new ConnectionTimedOutEvent();
+		if(event.shouldCommit()) {
+			event.connectionId = connectionId;
+			event.address = address;
+			event.port = port;
+			event.commit();
+		}
+	}
+
+	@Name("com.benlawrencem.nightingale.PacketReceived")
+	@Label("Packet Received")
+	@Category("Nightingale")
+	@StackTrace(false)
+	static class PacketReceivedEvent extends Event {
+		@Label("Connection Id")
+		int connectionId;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Message Type")
+		String messageType;
+		@Label("Channel")
+		String channel;
+		@Label("Size")
+		@DataAmount
+		int size;
+		@Label("Address")
+		String address;
+		@Label("Port")
+		int port;
+	}
+
+	@Name("com.benlawrencem.nightingale.PacketDropped")
+	@Label("Packet Dropped")
+	@Description("A packet that was thrown away without being acted on")
+	@Category("Nightingale")
+	@StackTrace(false)
+	static class PacketDroppedEvent extends Event {
+		@Label("Reason")
+		String reason;
+		@Label("Connection Id")
+		int connectionId;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Message Type")
+		String messageType;
+		@Label("Address")
+		String address;
+		@Label("Port")
+		int port;
+	}
+
+	@Name("com.benlawrencem.nightingale.PacketSent")
+	@Label("Packet Sent")
+	@Category("Nightingale")
+	@StackTrace(false)
+	static class PacketSentEvent extends Event {
+		@Label("Connection Id")
+		int connectionId;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Size")
+		@DataAmount
+		int size;
+	}
+
+	@Name("com.benlawrencem.nightingale.PacketResent")
+	@Label("Packet Resent")
+	@Category("Nightingale")
+	@StackTrace(false)
+	static class PacketResentEvent extends Event {
+		@Label("Connection Id")
+		int connectionId;
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Original Sequence Number")
+		int originalSequenceNumber;
+	}
+
+	@Name("com.benlawrencem.nightingale.PacketUndelivered")
+	@Label("Packet Undelivered")
+	@Description("A packet given up for lost")
+	@Category("Nightingale")
+	@StackTrace(false)
+	static class PacketUndeliveredEvent extends Event {
+		@Label("Sequence Number")
+		int sequenceNumber;
+		@Label("Packets Sent Since")
+		@Description("How many packets sent after this one had arrived when it was given up on")
+		int numPacketsSentSince;
+		@Label("Time Since Sent")
+		@Timespan(Timespan.MILLISECONDS)
+		long timeSinceSent;
+	}
+
+	@Name("com.benlawrencem.nightingale.ConnectionTimedOut")
+	@Label("Connection Timed Out")
+	@Category("Nightingale")
+	static class ConnectionTimedOutEvent extends Event {
+		@Label("Connection Id")
+		int connectionId;
+		@Label("Address")
+		String address;
+		@Label("Port")
+		int port;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,34 @@
+package com.benlawrencem.game.spacecrisis;
+
+import java.util.logging.Logger;
+
+import com.benlawrencem.game.spacecrisis.level.Level;
+
+/**
+ * Records each level update as a JDK Flight Recorder event when the events
+ * in the jfr source folder are on the classpath and the JVM has Flight
+ * Recorder, the same way the networking code does. Otherwise it just
+ * updates the level.
+ */
+class LevelEvents {
+	private static final Logger logger = Logger.getLogger(LevelEvents.class.getName());
+	private static final String FLIGHT_RECORDER_EVENTS = "com.benlawrencem.game.spacecrisis.FlightRecorderLevelEvents";
+	public static final LevelEvents INSTANCE = LevelEvents.load();
+
+	protected LevelEvents() {}
+
+	public void update(Level level, int delta) {
+		level.update(delta);
+	}
+
+	private static LevelEvents load() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return (LevelEvents) Class.forName(LevelEvents.FLIGHT_RECORDER_EVENTS).getDeclaredConstructor().newInstance();
+		} catch(Throwable e) {
+			//no Flight Recorder, or the events weren't compiled
+			logger.finer("Flight Recorder events are not available: " + e);
+			return new LevelEvents();
+		}
+	}
+}
\ No newline at end of file
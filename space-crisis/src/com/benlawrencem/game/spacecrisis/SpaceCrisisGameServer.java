@@ -1,17 +1,30 @@
 package com.benlawrencem.game.spacecrisis;
 
+import java.io.File;
+import java.io.IOException;
+
 import com.benlawrencem.game.spacecrisis.level.Level;
 import com.benlawrencem.game.spacecrisis.level.PlayerMovementLevel;
 import com.benlawrencem.game.spacecrisis.net.PlayerMovementServer;
+import com.benlawrencem.net.nightingale.PacketCapture;
 
 public class SpaceCrisisGameServer {
+	//pass a file name to record everything the server receives to it, for ReplayCapture
 	public static void main(String[] args) {
-		new SpaceCrisisGameServer();
+		new SpaceCrisisGameServer(args.length > 0 ? new File(args[0]) : null);
 	}
 
-	public SpaceCrisisGameServer() {
+	public SpaceCrisisGameServer(File captureFile) {
 		Level level = new PlayerMovementLevel();
 		level.init(true);
+		if(captureFile != null) {
+			try {
+				PlayerMovementServer.getInstance().setCapture(new PacketCapture(captureFile));
+				System.out.println("Capturing packets to " + captureFile);
+			} catch (IOException e) {
+				System.out.println("Could not capture packets to " + captureFile + ": " + e.getMessage());
+			}
+		}
 		PlayerMovementServer.getInstance().startServer();
 		(new LevelRunner(level)).start();
 	}
@@ -33,7 +46,7 @@ public class SpaceCrisisGameServer {
 					sleep(20);
 				} catch (InterruptedException e) {}
 				long now = System.currentTimeMillis();
-				level.update((int) (now - then));
+				LevelEvents.INSTANCE.update(level, (int) (now - then));
 				then = now;
 			}
 		}
@@ -15,6 +15,21 @@ public class RandomWalkLevel implements TileLevel {
 	private Tile[][] tiles;
 	private List<Entity> entities;
 	private Perspective perspective;
+	private int numStartingEntities;
+
+	public RandomWalkLevel() {
+		this(-1);
+	}
+
+	/**
+	 * Creates a level that starts out with numEntities walkers scattered
+	 * across it and never adds any more, rather than starting with one and
+	 * adding more every few seconds. Handy for seeing how updates hold up
+	 * with a given number of entities.
+	 */
+	public RandomWalkLevel(int numEntities) {
+		numStartingEntities = numEntities;
+	}
 
 	@Override
 	public void init(boolean isServer) {
@@ -32,12 +47,25 @@ public class RandomWalkLevel implements TileLevel {
 		Entity entity = new RandomWalkEntity(this, tiles[49][49]);
 		entities.add(entity);
 		perspective = new EntityPerspective(this, entity);
+
+		for(int i = 1; i < numStartingEntities; i++)
+			entities.add(new RandomWalkEntity(this, tiles[(int) (tiles.length * Math.random())][(int) (tiles[0].length * Math.random())]));
+	}
+
+	public int getNumEntities() {
+		return entities.size();
 	}
 
 	@Override
 	public void update(int delta) {
 		for(Entity entity : entities)
 			entity.update(delta);
+		if(numStartingEntities < 0)
+			spawnEntities(delta);
+		timer += delta;
+	}
+
+	private void spawnEntities(int delta) {
 		if(timer < 3000 && timer + delta >= 3000)
 			for(int i = 0; i < 9; i++)
 				entities.add(new RandomWalkEntity(this, tiles[49][49]));
@@ -50,7 +78,6 @@ public class RandomWalkLevel implements TileLevel {
 		if(timer < 16000 && timer + delta >= 16000)
 			for(int i = 0; i < 9000; i++)
 				entities.add(new RandomWalkEntity(this, tiles[47][53]));
-		timer += delta;
 	}
 
 	@Override
@@ -87,6 +114,15 @@ public class RandomWalkLevel implements TileLevel {
 				x--;
 				break;
 		}
+		//walking off one edge of the level brings you back on the other, so nobody can wander off it
+		if(x < 0)
+			x = tiles.length - 1;
+		else if(x > tiles.length - 1)
+			x = 0;
+		if(y < 0)
+			y = tiles[0].length - 1;
+		else if(y > tiles[0].length - 1)
+			y = 0;
 		return tiles[x][y];
 	}
 
@@ -3,14 +3,17 @@ package com.benlawrencem.game.spacecrisis.net;
 import com.benlawrencem.game.spacecrisis.net.messages.Message;
 import com.benlawrencem.net.nightingale.ClientConnection;
 import com.benlawrencem.net.nightingale.ClientConnection.CouldNotConnectException;
-import com.benlawrencem.net.nightingale.ClientConnectionListener;
+import com.benlawrencem.net.nightingale.Packet.Channel;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.StringClientConnectionListener;
 
-public class PlayerMovementClient implements ClientConnectionListener {
+public class PlayerMovementClient extends StringClientConnectionListener {
 	private ClientConnection conn;
 
 	public PlayerMovementClient() {
 		conn = new ClientConnection(this);
+		conn.setCompressionDictionary(Message.getCompressionDictionary());
+		conn.setCompressing(true);
 	}
 
 	public void connect() {
@@ -33,7 +36,7 @@ public class PlayerMovementClient implements ClientConnectionListener {
 	public void send(Message msg) {
 		System.out.println("Sneding message: \"" + msg.encode() + "\"");
 		try {
-			conn.send(msg.encode());
+			conn.send(msg.encode(), Channel.RELIABLE_ORDERED);
 		} catch (CouldNotSendPacketException e) {
 			System.out.println("Could not send message: " + e.getMessage());
 		}
@@ -83,11 +86,6 @@ public class PlayerMovementClient implements ClientConnectionListener {
 
 	@Override
 	public void onMessageNotDelivered(int messageId, int resendMessageId, String message) {
-		System.out.println("Message not delivered: \"" + message + "\" Resending...");
-		try {
-			conn.resend(resendMessageId, message);
-		} catch (CouldNotSendPacketException e) {
-			System.out.println("Message could not be resent: " + e.getMessage());
-		}
+		//everything goes out on a reliable channel, so this never gets called
 	}
 }
\ No newline at end of file
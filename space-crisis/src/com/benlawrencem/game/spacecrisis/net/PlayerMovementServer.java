@@ -1,12 +1,17 @@
 package com.benlawrencem.game.spacecrisis.net;
 
 import com.benlawrencem.game.spacecrisis.net.messages.Message;
+import com.benlawrencem.net.nightingale.DatagramTransportFactory;
+import com.benlawrencem.net.nightingale.Packet.Channel;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
+import com.benlawrencem.net.nightingale.PacketCapture;
 import com.benlawrencem.net.nightingale.Server;
 import com.benlawrencem.net.nightingale.Server.CouldNotStartServerException;
-import com.benlawrencem.net.nightingale.ServerListener;
+import com.benlawrencem.net.nightingale.ServerMetrics;
+import com.benlawrencem.net.nightingale.StringServerListener;
 
-public class PlayerMovementServer implements ServerListener {
+public class PlayerMovementServer extends StringServerListener {
+	public static final int DEFAULT_PORT = 9876;
 	private static PlayerMovementServer instance = null;
 
 	public static PlayerMovementServer getInstance() {
@@ -16,15 +21,36 @@ public class PlayerMovementServer implements ServerListener {
 	}
 
 	private Server server;
+	private boolean isVerbose;
 
 	public PlayerMovementServer() {
 		server = new Server(this);
+		server.setCompressionDictionary(Message.getCompressionDictionary());
+		server.setCompressing(true);
+		isVerbose = true;
+	}
+
+	/**
+	 * Turns printing out every message and every client coming and going on
+	 * or off. It's on by default, but with more than a few clients printing
+	 * takes longer than everything else the server does.
+	 */
+	public void setVerbose(boolean isVerbose) {
+		this.isVerbose = isVerbose;
 	}
 
 	public void startServer() {
+		startServer(PlayerMovementServer.DEFAULT_PORT, null, 1);
+	}
+
+	/**
+	 * Starts the server on the given port with numShards receive loops, on
+	 * transports opened by the given factory (null for regular sockets).
+	 */
+	public void startServer(int port, DatagramTransportFactory transportFactory, int numShards) {
 		System.out.println("Starting server...");
 		try {
-			server.startServer(9876);
+			server.startServer(port, transportFactory, numShards);
 			System.out.println("Server started!");
 		} catch (CouldNotStartServerException e) {
 			System.out.println("Server could not be started: " + e.getMessage());
@@ -39,15 +65,42 @@ public class PlayerMovementServer implements ServerListener {
 		return server.isRunning();
 	}
 
+	public int getPort() {
+		return server.getPort();
+	}
+
+	public ServerMetrics getMetrics() {
+		return server.getMetrics();
+	}
+
+	/**
+	 * Records everything that arrives to the given capture, or stops if it's
+	 * null. See {@link Server#setCapture}.
+	 */
+	public void setCapture(PacketCapture capture) {
+		server.setCapture(capture);
+	}
+
 	public void send(int clientId, Message msg) {
-		System.out.println("Sending message to client " + clientId + ": \"" + msg.encode() + "\"");
+		if(isVerbose)
+			System.out.println("Sending message to client " + clientId + ": \"" + msg.encode() + "\"");
 		try {
-			server.send(clientId, msg.encode());
+			server.send(clientId, msg.encode(), channelFor(msg));
 		} catch (CouldNotSendPacketException e) {
 			System.out.println("Could not send message to client " + clientId + ": " + e.getMessage());
 		}
 	}
 
+	public void broadcast(Message msg) {
+		if(isVerbose)
+			System.out.println("Sending message to all clients: \"" + msg.encode() + "\"");
+		try {
+			server.broadcast(msg.encode(), channelFor(msg));
+		} catch (CouldNotSendPacketException e) {
+			System.out.println("Could not send message to all clients: " + e.getMessage());
+		}
+	}
+
 	@Override
 	public void onServerStopped() {
 		System.out.println("Server stopped!");
@@ -55,19 +108,22 @@ public class PlayerMovementServer implements ServerListener {
 
 	@Override
 	public boolean onClientConnected(int clientId, String address, int port) {
-		System.out.println("Client " + clientId + " connected from " + address + ":" + port);
+		if(isVerbose)
+			System.out.println("Client " + clientId + " connected from " + address + ":" + port);
 		return true;
 	}
 
 	@Override
 	public void onClientDisconnected(int clientId, String reason) {
-		System.out.println("Client " + clientId + " disconnected: " + reason);
+		if(isVerbose)
+			System.out.println("Client " + clientId + " disconnected: " + reason);
 		//TODO send despawn message
 	}
 
 	@Override
 	public void onReceive(int clientId, String message) {
-		System.out.println("Received message from client " + clientId + ": \"" + message + "\"");
+		if(isVerbose)
+			System.out.println("Received message from client " + clientId + ": \"" + message + "\"");
 		Message msg = Message.parse(message);
 		switch(msg.getType()) {
 			case ID_REQUEST:
@@ -81,11 +137,11 @@ public class PlayerMovementServer implements ServerListener {
 
 	@Override
 	public void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message) {
-		System.out.println("Message not delivered to client " + clientId + ": \"" + message + "\" Resending...");
-		try {
-			server.resend(clientId, resendMessageId, message);
-		} catch (CouldNotSendPacketException e) {
-			System.out.println("Message could not be resent: " + e.getMessage());
-		}
+		//everything goes out on a reliable channel or doesn't need resending, so this never gets called
+	}
+
+	private static Channel channelFor(Message msg) {
+		//syncs are sent again every so often anyway, so there's no point in resending a lost one
+		return (msg.getType() == Message.Type.SYNC ? Channel.UNRELIABLE : Channel.RELIABLE_ORDERED);
 	}
 }
\ No newline at end of file
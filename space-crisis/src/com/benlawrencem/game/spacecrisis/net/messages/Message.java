@@ -1,5 +1,7 @@
 package com.benlawrencem.game.spacecrisis.net.messages;
 
+import java.io.UnsupportedEncodingException;
+
 public abstract class Message {
 	public static final String ID_REQUEST_PREFIX = "ID?";
 	public static final String ID_RESPONSE_PREFIX = "ID";
@@ -9,6 +11,18 @@ public abstract class Message {
 	public static final String BUMP_PREFIX = "BUMP";
 	public static final String SYNC_PREFIX = "SYNC";
 	public static enum Type { ID_REQUEST, ID_RESPONSE, SPAWN, DESPAWN, MOVE, BUMP, SYNC, UNKNOWN };
+	//what messages get compressed against--the server and clients have to agree on it, and the most common goes last
+	private static final String COMPRESSION_DICTIONARY = Message.ID_REQUEST_PREFIX + " " + Message.ID_RESPONSE_PREFIX + " " +
+			Message.DESPAWN_PREFIX + " " + Message.SPAWN_PREFIX + " " + Message.BUMP_PREFIX + " 0 1 2 3 4 5 6 7 8 9 " +
+			Message.SYNC_PREFIX + " " + Message.MOVE_PREFIX + " ";
+
+	public static byte[] getCompressionDictionary() {
+		try {
+			return Message.COMPRESSION_DICTIONARY.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
 
 	public static Type parseType(String message) {
 		String prefix = message.split(" ")[0];
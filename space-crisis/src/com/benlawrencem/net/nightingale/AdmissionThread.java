@@ -0,0 +1,114 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Lets the clients a {@link Server} has checked the cookies of in, one at a
+ * time and no faster than the server's admission rate, so a flood of them
+ * costs the receive loops no more than putting each one in the queue. Once
+ * the queue is full, further clients are turned away without an answer--a
+ * real client will ask again.
+ *
+ * The rate is kept with a bucket of tokens that fills up at the admission
+ * rate and holds up to a second's worth, so a burst of clients connecting
+ * at once gets straight in as long as there aren't more of them than the
+ * server would take in a second.
+ */
+class AdmissionThread extends Thread {
+	public static final int MAXIMUM_PENDING_ADMISSIONS = 1024;
+	private final Server server;
+	private final String[] addresses;
+	private final int[] ports;
+	private final int[] connectCookieTimes;
+	private final DatagramTransport[] transports;
+	private int head;
+	private int count;
+	private double tokens;
+	private long lastFillTime;
+	private volatile boolean isAdmitting;
+
+	public AdmissionThread(Server server) {
+		super("nightingale-admission");
+		this.server = server;
+		addresses = new String[AdmissionThread.MAXIMUM_PENDING_ADMISSIONS];
+		ports = new int[AdmissionThread.MAXIMUM_PENDING_ADMISSIONS];
+		connectCookieTimes = new int[AdmissionThread.MAXIMUM_PENDING_ADMISSIONS];
+		transports = new DatagramTransport[AdmissionThread.MAXIMUM_PENDING_ADMISSIONS];
+		head = 0;
+		count = 0;
+		tokens = -1;
+		lastFillTime = 0;
+		isAdmitting = true;
+		setDaemon(true);
+	}
+
+	/**
+	 * Queues the client to be let in, returning false if too many are
+	 * already waiting.
+	 */
+	public synchronized boolean add(String address, int port, int connectCookieTime, DatagramTransport transport) {
+		if(count == addresses.length)
+			return false;
+		int index = (head + count) % addresses.length;
+		addresses[index] = address;
+		ports[index] = port;
+		connectCookieTimes[index] = connectCookieTime;
+		transports[index] = transport;
+		count++;
+		notify();
+		return true;
+	}
+
+	public synchronized int getNumPending() {
+		return count;
+	}
+
+	public void run() {
+		while(isAdmitting) {
+			String address;
+			int port;
+			int connectCookieTime;
+			DatagramTransport transport;
+			synchronized(this) {
+				try {
+					while(isAdmitting && (count == 0 || !takeToken()))
+						wait(count == 0 ? 0 : getTimeUntilToken());
+				} catch (InterruptedException e) {}
+				if(!isAdmitting || count == 0)
+					continue;
+				address = addresses[head];
+				port = ports[head];
+				connectCookieTime = connectCookieTimes[head];
+				transport = transports[head];
+				addresses[head] = null;
+				transports[head] = null;
+				head = (head + 1) % addresses.length;
+				count--;
+			}
+			server.admitClient(address, port, connectCookieTime, transport);
+		}
+	}
+
+	public void stopAdmitting() {
+		isAdmitting = false;
+		interrupt();
+	}
+
+	private boolean takeToken() {
+		double rate = server.getAdmissionRate();
+		double capacity = Math.max(1, rate);
+		long now = System.currentTimeMillis();
+		//a full bucket to start with, so the first second's worth of clients don't wait
+		if(tokens < 0)
+			tokens = capacity;
+		tokens = Math.min(capacity, tokens + (now - lastFillTime) * rate / 1000.0);
+		lastFillTime = now;
+		if(tokens < 1 && rate > 0)
+			return false;
+		tokens = Math.max(0, tokens - 1);
+		return true;
+	}
+
+	private long getTimeUntilToken() {
+		double rate = server.getAdmissionRate();
+		return (rate <= 0 ? 1 : Math.max(1, (long) Math.ceil((1 - tokens) * 1000.0 / rate)));
+	}
+}
\ No newline at end of file
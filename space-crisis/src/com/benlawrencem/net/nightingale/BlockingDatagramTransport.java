@@ -0,0 +1,92 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * The original transport: a blocking DatagramSocket drained by its own
+ * {@link ReceivePacketThread}.
+ */
+public class BlockingDatagramTransport implements DatagramTransport {
+	//packets are usually encoded into direct buffers, which have to be copied out into an array for a DatagramSocket
+	private static final ThreadLocal<byte[]> SEND_BYTES = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[Packet.MAXIMUM_PACKET_SIZE];
+		}
+	};
+	private static final ThreadLocal<DatagramPacket> SEND_PACKET = new ThreadLocal<DatagramPacket>() {
+		protected DatagramPacket initialValue() {
+			return new DatagramPacket(new byte[0], 0);
+		}
+	};
+	private DatagramSocket socket;
+	private ReceivePacketThread receivePacketThread;
+
+	public BlockingDatagramTransport(PacketReceiver receiver) throws SocketException {
+		this(receiver, new DatagramSocket());
+	}
+
+	public BlockingDatagramTransport(PacketReceiver receiver, int port) throws SocketException {
+		this(receiver, new DatagramSocket(port));
+	}
+
+	/**
+	 * Binds with SO_REUSEPORT when reusePort is true, so several transports
+	 * can share the port. Throws a SocketException if that isn't supported.
+	 */
+	public BlockingDatagramTransport(PacketReceiver receiver, int port, boolean reusePort) throws IOException {
+		this(receiver, BlockingDatagramTransport.openSocket(port, reusePort));
+	}
+
+	private BlockingDatagramTransport(PacketReceiver receiver, DatagramSocket socket) {
+		this.socket = socket;
+		receivePacketThread = new ReceivePacketThread(receiver, socket);
+		receivePacketThread.start();
+	}
+
+	public void send(ByteBuffer data, InetSocketAddress address) throws IOException {
+		DatagramPacket datagramPacket = BlockingDatagramTransport.SEND_PACKET.get();
+		int length = data.remaining();
+		if(data.hasArray())
+			datagramPacket.setData(data.array(), data.arrayOffset() + data.position(), length);
+		else {
+			byte[] bytes = BlockingDatagramTransport.SEND_BYTES.get();
+			if(bytes.length < length) {
+				bytes = new byte[length];
+				BlockingDatagramTransport.SEND_BYTES.set(bytes);
+			}
+			data.get(bytes, 0, length);
+			datagramPacket.setData(bytes, 0, length);
+		}
+		datagramPacket.setSocketAddress(address);
+		socket.send(datagramPacket);
+	}
+
+	private static DatagramSocket openSocket(int port, boolean reusePort) throws IOException {
+		if(!reusePort)
+			return new DatagramSocket(port);
+		DatagramSocket socket = new DatagramSocket(null);
+		try {
+			if(!ReusePort.enable(socket))
+				throw new SocketException("SO_REUSEPORT is not supported.");
+			socket.bind(new InetSocketAddress(port));
+		} catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	public int getLocalPort() {
+		return socket.getLocalPort();
+	}
+
+	public void close() {
+		receivePacketThread.stopReceiving();
+		socket.close();
+	}
+}
\ No newline at end of file
@@ -1,49 +1,110 @@
 package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.util.List;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.benlawrencem.net.nightingale.Packet.Channel;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
 import com.benlawrencem.net.nightingale.Packet.MessageType;
 import com.benlawrencem.net.nightingale.Packet.NullPacketException;
 import com.benlawrencem.net.nightingale.Packet.CouldNotEncodePacketException;
 import com.benlawrencem.net.nightingale.Packet.PacketIOException;
 import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+import com.benlawrencem.net.nightingale.Packet.PacketTooLargeException;
 
 public class ClientConnection implements PacketReceiver {
 	private static final Logger logger = Logger.getLogger(ClientConnection.class.getName());
 	private final Object CONNECTION_LOCK = new Object();
+	//undelivered packets are collected here while the connection is locked and reported once it isn't
+	private final ThreadLocal<UndeliveredMessages> undeliveredMessages = new ThreadLocal<UndeliveredMessages>() {
+		protected UndeliveredMessages initialValue() {
+			return new UndeliveredMessages();
+		}
+	};
+	//likewise for messages arriving on reliable channels
+	private final ThreadLocal<ReceivedMessages> receivedMessages = new ThreadLocal<ReceivedMessages>() {
+		protected ReceivedMessages initialValue() {
+			return new ReceivedMessages();
+		}
+	};
 	private static final int TIME_BETWEEN_PINGS = 1000;
 	private static final int CONNECT_REQUEST_TIMEOUT = 3000;
+	//connect requests and their answers can get lost like anything else, so they're sent again this often until one gets through
+	private static final int CONNECT_REQUEST_RESEND_INTERVAL = 500;
 	private static final int RECEIVE_PACKET_TIMEOUT = 3000;
+	private static final int DEFAULT_ACKNOWLEDGEMENT_DELAY = 40;
 	private static final String CONNECT_REQUEST_REFUSED = "Connection refused by server.";
 	private static final String CONNECT_REQUEST_TIMED_OUT = "Connect request timed out.";
 	private static final String CONNECTION_TIMED_OUT = "Connection timed out.";
 	private static final String DISCONNECTED_BY_CLIENT = "Disconnect requested by client.";
 	private ClientConnectionListener listener;
-	private DatagramSocket socket;
+	private DatagramTransportFactory transportFactory;
+	private DatagramTransport transport;
 	private String serverAddress;
-	private InetAddress serverInetAddress;
+	private InetSocketAddress serverSocketAddress;
 	private int serverPort;
 	private boolean isConnected;
 	private boolean isAttemptingToConnect;
 	private int clientId;
+	//the cookie the server challenged us with, which has to go back with our connect requests from then on
+	private final ByteBuffer connectCookie;
+	private boolean hasConnectCookie;
 	private PacketRecorder recorder;
-	private PingThread pingThread;
-	private TimeoutThread timeoutThread;
-	private ReceivePacketThread receivePacketThread;
-	private long latency;
+	private ReliableChannels reliableChannels;
+	private MessageFragments fragments;
+	private CompressionContext compression;
+	private volatile boolean isCompressing;
+	private volatile int acknowledgementDelay;
+	private volatile byte[] compressionDictionary;
+	private final CompressionStats compressionStats = new CompressionStats();
+	private final TimerWheel timerWheel;
+	private final ConnectionTimeout connectionTimeout;
+	private final PingTimeout pingTimeout;
+	private final DeliveryCheckTimeout deliveryCheckTimeout;
+	private final AcknowledgementTimeout acknowledgementTimeout;
+	//what timeouts and delivery checks tell the listener runs on this, never on the wheel's thread
+	private final SerialExecutor timerCallbacks;
 
 	public ClientConnection(ClientConnectionListener listener) {
+		this(listener, null);
+	}
+
+	/**
+	 * Creates a connection whose transport is opened by the given factory,
+	 * such as an {@link NioEngine}, whose event loops let many connections
+	 * share a handful of threads, or an {@link InMemoryNetwork}. A null
+	 * factory gives the regular blocking connection.
+	 */
+	public ClientConnection(ClientConnectionListener listener, DatagramTransportFactory transportFactory) {
+		this(listener, transportFactory, TimerWheel.getSharedInstance());
+	}
+
+	/**
+	 * Creates a connection whose timeouts and pings run on the given wheel
+	 * instead of the shared one.
+	 */
+	public ClientConnection(ClientConnectionListener listener, DatagramTransportFactory transportFactory, TimerWheel timerWheel) {
 		this.listener = listener;
+		this.transportFactory = transportFactory;
+		this.timerWheel = timerWheel;
+		connectionTimeout = new ConnectionTimeout(this);
+		pingTimeout = new PingTimeout(this);
+		deliveryCheckTimeout = new DeliveryCheckTimeout(this);
+		acknowledgementTimeout = new AcknowledgementTimeout(this);
+		timerCallbacks = new SerialExecutor();
+		connectCookie = ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE);
 		recorder = new PacketRecorder();
+		reliableChannels = new ReliableChannels();
+		fragments = new MessageFragments();
+		isCompressing = false;
+		acknowledgementDelay = ClientConnection.DEFAULT_ACKNOWLEDGEMENT_DELAY;
+		compressionDictionary = null;
+		compression = new CompressionContext(compressionStats, null, false);
 		resetVariables();
 	}
 
@@ -63,23 +124,25 @@ public class ClientConnection implements PacketReceiver {
 				}
 				isAttemptingToConnect = true;
 				serverAddress = address;
-				serverInetAddress = InetAddress.getByName(serverAddress);
+				serverSocketAddress = new InetSocketAddress(InetAddress.getByName(serverAddress), port);
 				serverPort = port;
-				socket = new DatagramSocket();
-				receivePacketThread = new ReceivePacketThread(this, socket);
-				receivePacketThread.start();
-				timeoutThread = new TimeoutThread(this, ClientConnection.CONNECT_REQUEST_TIMEOUT);
-				timeoutThread.start();
+				compression = new CompressionContext(compressionStats, compressionDictionary, isCompressing);
+				if(transportFactory == null)
+					transport = new BlockingDatagramTransport(this);
+				else
+					transport = transportFactory.open(this);
+				timerWheel.schedule(connectionTimeout, ClientConnection.CONNECT_REQUEST_TIMEOUT);
 				logger.finer("Sending connect request packet");
 				sendPacket(Packet.createConnectRequestPacket());
+				timerWheel.schedule(pingTimeout, ClientConnection.CONNECT_REQUEST_RESEND_INTERVAL);
 			}
 		} catch (UnknownHostException e) {
 			closeConnection();
 			logger.fine("Could not connect due to UnknownHostException: " + e.getMessage());
 			throw new ServerNotFoundException(address, port); //wrapped so callers can just catch CouldNotConnectException
-		} catch (SocketException e) {
+		} catch (IOException e) {
 			closeConnection();
-			logger.fine("Could not connect due to SocketException: " + e.getMessage());
+			logger.fine("Could not connect due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
 			throw new CouldNotOpenSocketToServerException(e);
 		} catch (CouldNotSendPacketException e) {
 			closeConnection();
@@ -115,19 +178,69 @@ public class ClientConnection implements PacketReceiver {
 	}
 
 	public int send(String message) throws CouldNotSendPacketException {
-		synchronized(CONNECTION_LOCK) {
-			logger.fine("Sending message:   " + message);
-			return sendPacket(Packet.createApplicationPacket(clientId, message));
-		}
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
+
+	/**
+	 * Sends the bytes between the buffer's position and limit. The buffer's
+	 * position isn't changed, and since the message may be handed back by
+	 * {@link ClientConnectionListener#onMessageNotDelivered} its contents
+	 * shouldn't be modified afterwards.
+	 */
+	public int send(ByteBuffer message) throws CouldNotSendPacketException {
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
+
+	public int send(byte[] message) throws CouldNotSendPacketException {
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
+
+	/**
+	 * Sends the message on the given channel. Messages on a reliable channel
+	 * are resent automatically until they arrive and are never reported to
+	 * {@link ClientConnectionListener#onMessageNotDelivered}, and UNRELIABLE
+	 * messages aren't reported either. Sending without a channel is the same
+	 * as sending on NOTIFY_UNDELIVERED.
+	 *
+	 * On any channel but NOTIFY_UNDELIVERED, messages too big for one packet
+	 * (up to {@link Packet#MAXIMUM_MESSAGE_SIZE}) are split up and put back
+	 * together on the other side, and the sequence number of the last piece
+	 * is returned.
+	 */
+	public int send(String message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
+	}
+
+	public int send(ByteBuffer message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
+	}
+
+	public int send(byte[] message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
 	}
 
 	public int resend(int originalMessageId, String message) throws CouldNotSendPacketException {
-		synchronized(CONNECTION_LOCK) {
-			logger.fine("Resending message: " + message);
-			Packet packet = Packet.createApplicationPacket(clientId, message);
-			packet.setDuplicateSequenceNumber(originalMessageId);
-			return sendPacket(packet);
-		}
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
+	}
+
+	public int resend(int originalMessageId, ByteBuffer message) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
+	}
+
+	public int resend(int originalMessageId, byte[] message) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
 	}
 
 	public void receivePacket(Packet packet, String address, int port) {
@@ -143,24 +256,30 @@ public class ClientConnection implements PacketReceiver {
 		//ignore packets with invalid protocol bytes
 		if(!packet.isValidProtocol()) {
 			logger.finer("Ignoring packet with invalid protocol");
+			NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_INVALID_PROTOCOL, packet, address, port);
 			return;
 		}
 
 		//ugly, but I don't want the listener callbacks to be in a synchronized block
 		int listenerAction = -1;
-		List<Packet> undeliveredPackets = null;
+		UndeliveredMessages undeliveredMessages = this.undeliveredMessages.get();
+		undeliveredMessages.clear();
+		ReceivedMessages receivedMessages = this.receivedMessages.get();
+		receivedMessages.clear();
 		String disconnectReason = null;
 
 		synchronized(CONNECTION_LOCK) {
 			//ignore all packets if the client isn't connected or isn't attempting to connect to any server
 			if(!isAttemptingToConnect && !isConnected) {
 				logger.finer("Ignoring packet because the client is not connected to any server");
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_UNKNOWN_CLIENT, packet, address, port);
 				return;
 			}
 
 			//ignore packets that don't match the server address and port we have on record
 			if((serverAddress == null && address != null) || (serverAddress != null && !serverAddress.equals(address)) || serverPort != port) {
 				logger.finer("Ignoring packet from " + address + ":" + port + " because it is not from the server at " + serverAddress + ":" + serverPort);
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_ADDRESS_MISMATCH, packet, address, port);
 				return;
 			}
 
@@ -168,20 +287,22 @@ public class ClientConnection implements PacketReceiver {
 				//ignore packets we've received before
 				if(recorder.hasRecordedIncomingPacket(packet)) {
 					logger.finer("Ignoring packet that has already been received before");
-					undeliveredPackets = recorder.getUndeliveredPackets();
+					NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_DUPLICATE, packet, address, port);
+					recorder.visitUndeliveredPackets(undeliveredMessages);
 				}
 
-				//ignore duplicates of packets we've received before
-				else if(packet.isDuplicate() && recorder.hasRecordedDuplicateOfIncomingPacket(packet)) {
+				//ignore duplicates of packets we've received before--reliable channels weed out their own
+				else if(packet.isDuplicate() && !packet.getChannel().isReliable() && recorder.hasRecordedDuplicateOfIncomingPacket(packet)) {
 					logger.finer("Ignoring duplicate of packet that has already been received before");
+					NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_DUPLICATE, packet, address, port);
 					recorder.recordIncomingPacket(packet); //we still want to record having received it (must be run AFTER hasRecordedDuplicateOfIncomingPacket)
-					undeliveredPackets = recorder.getUndeliveredPackets();
+					recorder.visitUndeliveredPackets(undeliveredMessages);
 				}
 
 				else {
 					//record the packet as having been received
 					recorder.recordIncomingPacket(packet);
-					undeliveredPackets = recorder.getUndeliveredPackets();
+					recorder.visitUndeliveredPackets(undeliveredMessages);
 	
 					//when attempting to connect we expect to receive either a connection refused or connection accepted packet
 					if(isAttemptingToConnect) {
@@ -190,13 +311,26 @@ public class ClientConnection implements PacketReceiver {
 								acceptConnection(packet);
 								listenerAction = 1; //onConnected
 								break;
+							case CONNECT_CHALLENGE:
+								//the server wants to know we're really here before it goes to any trouble, so the cookie goes straight back
+								ByteBuffer cookie = packet.getPayload();
+								if(cookie == null || cookie.remaining() != ConnectCookies.COOKIE_SIZE) {
+									logger.finer("Ignoring connect challenge because its cookie is the wrong size");
+									return;
+								}
+								connectCookie.clear();
+								connectCookie.put(cookie);
+								connectCookie.flip();
+								hasConnectCookie = true;
+								sendConnectRequest();
+								break;
 							case CONNECTION_REFUSED:
 								logger.fine("Connection refused");
 								closeConnection();
 								listenerAction = 2; //onCouldNotConnect
 								break;
 							default:
-								logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECTION_ACCEPTED and CONNECTION_REFUSED packets are expected");
+								logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECTION_ACCEPTED, CONNECT_CHALLENGE and CONNECTION_REFUSED packets are expected");
 								return;
 						}
 					}
@@ -205,13 +339,33 @@ public class ClientConnection implements PacketReceiver {
 					else if(isConnected) {
 						switch(packet.getMessageType()) {
 							case APPLICATION:
-								logger.fine("Receiving message: " + packet.getMessage());
-								listenerAction = 3; //onReceive
-								timeoutThread.resetTimeout();
+							case APPLICATION_BUNDLE:
+								//on RELIABLE_ORDERED each message is compressed on its own and gets inflated once it's its turn
+								if(packet.isCompressed() && packet.getChannel() != Channel.RELIABLE_ORDERED && !compression.decompress(packet)) {
+									logger.finer("Ignoring packet because it could not be decompressed");
+									connectionTimeout.postpone(ClientConnection.RECEIVE_PACKET_TIMEOUT);
+									break;
+								}
+								if(logger.isLoggable(Level.FINE))
+									logger.fine("Receiving message: " + packet.getMessage());
+								if(packet.getChannel().isReliable()) {
+									//only the messages the channel hasn't let through before get handed to the listener
+									reliableChannels.receive(packet, fragments, compression, receivedMessages);
+									listenerAction = 5; //onReceive for each message let through
+								}
+								else if(packet.isFragment()) {
+									//the listener only hears about the message once all of it is here
+									fragments.receive(packet.getChannel(), packet.getPayload(), receivedMessages);
+									listenerAction = 5; //onReceive for each message let through
+								}
+								else
+									listenerAction = 3; //onReceive
+								connectionTimeout.postpone(ClientConnection.RECEIVE_PACKET_TIMEOUT);
 								break;
 							case PING_RESPONSE:
-								handlePingResponse(packet);
-								timeoutThread.resetTimeout();
+							case ACKNOWLEDGEMENT:
+								//the recorder has already timed the round trip from the acknowledgement it carries
+								connectionTimeout.postpone(ClientConnection.RECEIVE_PACKET_TIMEOUT);
 								break;
 							case FORCE_DISCONNECT:
 								logger.fine("Disconnected by server: " + packet.getMessage());
@@ -220,7 +374,7 @@ public class ClientConnection implements PacketReceiver {
 								listenerAction = 4; //onDisconnected
 								break;
 							default:
-								logger.finer("Ignoring " + packet.getMessageType() + " packet because only APPLICATION, PING_RESPONSE and FORCE_DISCONNECT packets are expected");
+								logger.finer("Ignoring " + packet.getMessageType() + " packet because only APPLICATION, APPLICATION_BUNDLE, ACKNOWLEDGEMENT and FORCE_DISCONNECT packets are expected");
 								return;
 						}
 					}
@@ -228,6 +382,11 @@ public class ClientConnection implements PacketReceiver {
 			}
 		}
 
+		//messages on reliable channels are resent without ever bothering the listener
+		resendReliableMessages(undeliveredMessages);
+		scheduleDeliveryCheck();
+		scheduleAcknowledgement();
+
 		//execute listener callback--once again, ugly but shouldn't be synchronized
 		if(listener != null) {
 			switch(listenerAction) {
@@ -238,22 +397,162 @@ public class ClientConnection implements PacketReceiver {
 					listener.onCouldNotConnect(ClientConnection.CONNECT_REQUEST_REFUSED);
 					break;
 				case 3: //onReceive
-					listener.onReceive(packet.getMessage());
+					if(packet.getMessageType() == MessageType.APPLICATION_BUNDLE) {
+						ByteBuffer payload = packet.getPayload();
+						if(payload != null) {
+							int end = payload.limit();
+							for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;)
+								listener.onReceive(payload.hasRemaining() ? payload : null);
+						}
+					}
+					else
+						listener.onReceive(packet.getPayload());
 					break;
 				case 4: //onDisconnected
 					listener.onDisconnected(disconnectReason);
 					break;
+				case 5: //onReceive for messages on a reliable channel
+					for(int i = 0; i < receivedMessages.size(); i++)
+						listener.onReceive(receivedMessages.getMessage(i));
+					break;
 			}
 
 			//inform the listener of any undelivered application messages
-			if(undeliveredPackets != null) {
-				for(Packet undeliveredPacket : undeliveredPackets) {
-					if(undeliveredPacket.getMessageType() == MessageType.APPLICATION) {
-						listener.onMessageNotDelivered(
-								undeliveredPacket.getSequenceNumber(),
-								(packet.isDuplicate() ? undeliveredPacket.getDuplicateSequenceNumber() : undeliveredPacket.getSequenceNumber()),
-								undeliveredPacket.getMessage());
-					}
+			notifyMessagesNotDelivered(undeliveredMessages, false);
+		}
+	}
+
+	private void notifyMessagesNotDelivered(UndeliveredMessages undeliveredMessages, boolean isFromTimer) {
+		for(int i = 0; i < undeliveredMessages.size(); i++) {
+			if(undeliveredMessages.getChannel(i).isReliable())
+				continue;
+			int messageId = undeliveredMessages.getMessageId(i);
+			int resendMessageId = undeliveredMessages.getResendMessageId(i);
+			ByteBuffer payload = undeliveredMessages.getPayload(i);
+			if(!undeliveredMessages.isBundle(i))
+				notifyMessageNotDelivered(messageId, resendMessageId, payload, isFromTimer);
+
+			//every message in a bundle is reported separately, all under the id of the bundle
+			else if(payload != null) {
+				int end = payload.limit();
+				for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;)
+					notifyMessageNotDelivered(messageId, resendMessageId, (payload.hasRemaining() ? payload : null), isFromTimer);
+			}
+		}
+	}
+
+	private void notifyMessageNotDelivered(final int messageId, final int resendMessageId, ByteBuffer payload, boolean isFromTimer) {
+		if(!isFromTimer) {
+			listener.onMessageNotDelivered(messageId, resendMessageId, payload);
+			return;
+		}
+
+		//the payload is only borrowed from the recorder, which will have reused it by the time the listener gets to it
+		final ByteBuffer copy = (payload == null ? null : ByteBuffer.allocate(payload.remaining()));
+		if(copy != null) {
+			copy.put(payload.duplicate());
+			copy.flip();
+		}
+		timerCallbacks.execute(new Runnable() {
+			public void run() {
+				listener.onMessageNotDelivered(messageId, resendMessageId, copy);
+			}
+		});
+	}
+
+	/**
+	 * Packets the server has received something sent after can be waiting
+	 * out the retransmission timeout when the server goes quiet, so rather
+	 * than wait for its next packet to find out they were lost, we look again
+	 * once the timeout is up.
+	 */
+	private void scheduleDeliveryCheck() {
+		synchronized(CONNECTION_LOCK) {
+			if(!isConnected)
+				return;
+			long delay = recorder.getTimeUntilDeliveryCheck();
+			if(delay != -1)
+				timerWheel.schedule(deliveryCheckTimeout, delay);
+		}
+	}
+
+	/**
+	 * Rather than answer every packet from the server, acknowledgements wait
+	 * to ride along on whatever's sent to it next. If nothing is by the time
+	 * they're due, they go out on their own. One that's due straight away
+	 * goes out before the receive thread moves on rather than waiting for the
+	 * wheel's next tick.
+	 */
+	private void scheduleAcknowledgement() {
+		synchronized(CONNECTION_LOCK) {
+			if(!isConnected)
+				return;
+			long delay = recorder.getTimeUntilAcknowledgement(acknowledgementDelay);
+			if(delay == 0)
+				sendAcknowledgement();
+			else if(delay != -1)
+				timerWheel.schedule(acknowledgementTimeout, delay);
+		}
+	}
+
+	private void sendAcknowledgement() {
+		synchronized(CONNECTION_LOCK) {
+			if(!isConnected)
+				return;
+
+			//anything sent to the server since it was scheduled will have taken care of it
+			long delay = recorder.getTimeUntilAcknowledgement(acknowledgementDelay);
+			if(delay == -1)
+				return;
+			if(delay > 0) {
+				timerWheel.schedule(acknowledgementTimeout, delay);
+				return;
+			}
+			try {
+				sendPacket(Packet.createAcknowledgementPacket(clientId));
+			} catch (CouldNotSendPacketException e) {
+				//it'll be owed again as soon as the server sends anything else
+				logger.finest("Could not acknowledge packets from server: " + e.getMessage());
+			}
+		}
+	}
+
+	private void checkDelivery() {
+		UndeliveredMessages undeliveredMessages = this.undeliveredMessages.get();
+		undeliveredMessages.clear();
+		synchronized(CONNECTION_LOCK) {
+			if(!isConnected)
+				return;
+			recorder.visitUndeliveredPackets(undeliveredMessages);
+		}
+		resendReliableMessages(undeliveredMessages);
+		scheduleDeliveryCheck();
+		if(listener != null)
+			notifyMessagesNotDelivered(undeliveredMessages, true);
+	}
+
+	private void resendReliableMessages(UndeliveredMessages undeliveredMessages) {
+		for(int i = 0; i < undeliveredMessages.size(); i++) {
+			Channel channel = undeliveredMessages.getChannel(i);
+			ByteBuffer frames = undeliveredMessages.getPayload(i);
+			if(!channel.isReliable() || frames == null)
+				continue;
+
+			//the frames still carry their message ids, so the whole bundle goes out again just as it was
+			synchronized(CONNECTION_LOCK) {
+				if(!isConnected)
+					return;
+				Packet packet = Packet.createApplicationBundlePacket(clientId, channel, frames);
+				packet.setIsFragment(undeliveredMessages.isFragment(i));
+				packet.setDuplicateSequenceNumber(undeliveredMessages.getResendMessageId(i));
+				//the sooner the server acknowledges it, the sooner we know whether anything else went missing with it
+				packet.setIsImmediateResponse(true);
+				try {
+					logger.finer("Resending packet " + undeliveredMessages.getMessageId(i));
+					sendPacket(packet);
+				} catch (CouldNotSendPacketException e) {
+					//it's recorded as sent regardless, so it'll be found undelivered and resent again
+					logger.finer("Could not resend packet: " + e.getMessage());
 				}
 			}
 		}
@@ -270,6 +569,25 @@ public class ClientConnection implements PacketReceiver {
 					//ignore all exceptions--who cares if we had trouble sending a ping?
 					logger.finest("Could not ping server: " + e.getMessage());
 				}
+				timerWheel.schedule(pingTimeout, ClientConnection.TIME_BETWEEN_PINGS);
+			}
+
+			//until we're connected there's nothing to ping, but the connect request may need sending again
+			else if(isAttemptingToConnect) {
+				sendConnectRequest();
+				timerWheel.schedule(pingTimeout, ClientConnection.CONNECT_REQUEST_RESEND_INTERVAL);
+			}
+		}
+	}
+
+	private void sendConnectRequest() {
+		synchronized(CONNECTION_LOCK) {
+			try {
+				logger.finer("Sending connect request packet" + (hasConnectCookie ? " with cookie" : ""));
+				sendPacket(hasConnectCookie ? Packet.createConnectRequestPacket(connectCookie.duplicate()) : Packet.createConnectRequestPacket());
+			} catch (CouldNotSendPacketException e) {
+				//it'll be sent again, or the request will time out
+				logger.finest("Could not send connect request: " + e.getMessage());
 			}
 		}
 	}
@@ -281,11 +599,8 @@ public class ClientConnection implements PacketReceiver {
 			clientId = packet.getConnectionId();
 			isAttemptingToConnect = false;
 			isConnected = true; //we are now officially connected!
-			timeoutThread.stopTimeout();
-			timeoutThread = new TimeoutThread(this, ClientConnection.RECEIVE_PACKET_TIMEOUT);
-			timeoutThread.start();
-			pingThread = new PingThread(this, ClientConnection.TIME_BETWEEN_PINGS);
-			pingThread.start();
+			timerWheel.schedule(connectionTimeout, ClientConnection.RECEIVE_PACKET_TIMEOUT);
+			timerWheel.schedule(pingTimeout, 0);
 		}
 	}
 
@@ -293,6 +608,8 @@ public class ClientConnection implements PacketReceiver {
 		boolean timedOutBeforeConnecting = false;
 		boolean timedOutAfterConnecting = false;
 		synchronized(CONNECTION_LOCK) {
+			if(isAttemptingToConnect || isConnected)
+				NetworkEvents.INSTANCE.connectionTimedOut(clientId, serverAddress, serverPort);
 			if(isAttemptingToConnect) {
 				logger.fine("Connection to " + serverAddress + ":" + serverPort + " timed out");
 				closeConnection();
@@ -313,10 +630,18 @@ public class ClientConnection implements PacketReceiver {
 		// other happening
 		if(listener != null) {
 			if(timedOutBeforeConnecting) {
-				listener.onCouldNotConnect(ClientConnection.CONNECT_REQUEST_TIMED_OUT);
+				timerCallbacks.execute(new Runnable() {
+					public void run() {
+						listener.onCouldNotConnect(ClientConnection.CONNECT_REQUEST_TIMED_OUT);
+					}
+				});
 			}
 			else if(timedOutAfterConnecting) {
-				listener.onDisconnected(ClientConnection.CONNECTION_TIMED_OUT);
+				timerCallbacks.execute(new Runnable() {
+					public void run() {
+						listener.onDisconnected(ClientConnection.CONNECTION_TIMED_OUT);
+					}
+				});
 			}
 		}
 	}
@@ -338,32 +663,77 @@ public class ClientConnection implements PacketReceiver {
 	private void closeConnection() {
 		logger.finer("Closing connection to server");
 		synchronized(CONNECTION_LOCK) {
-			if(receivePacketThread != null)
-				receivePacketThread.stopReceiving();
-			if(timeoutThread != null)
-				timeoutThread.stopTimeout();
-			if(pingThread != null)
-				pingThread.stopPinging();
-			if(socket != null)
-				socket.close();
+			connectionTimeout.cancel();
+			pingTimeout.cancel();
+			deliveryCheckTimeout.cancel();
+			acknowledgementTimeout.cancel();
+			if(transport != null)
+				transport.close();
 			resetVariables();
 		}
 	}
 
 	private void resetVariables() {
 		synchronized(CONNECTION_LOCK) {
-			socket = null;
+			transport = null;
 			serverAddress = null;
-			serverInetAddress = null;
+			serverSocketAddress = null;
 			serverPort = -1;
 			isConnected = false;
 			isAttemptingToConnect = false;
 			clientId = Packet.ANONYMOUS_CONNECTION_ID;
-			pingThread = null;
-			timeoutThread = null;
-			receivePacketThread = null;
+			hasConnectCookie = false;
 			recorder.reset();
-			latency = -1;
+			reliableChannels.reset();
+			fragments.reset();
+		}
+	}
+
+	private int sendApplicationPacket(Packet packet) throws CouldNotSendPacketException {
+		synchronized(CONNECTION_LOCK) {
+			//the client id may have been assigned after the packet was created
+			packet.setConnectionId(clientId);
+			if(logger.isLoggable(Level.FINE))
+				logger.fine((packet.isDuplicate() ? "Resending message: " : "Sending message:   ") + packet.getMessage());
+
+			//ordered messages are compressed in the order they get their ids, before they're split up
+			Channel channel = packet.getChannel();
+			int messageLength = packet.getPayloadLength();
+			if(channel == Channel.RELIABLE_ORDERED && isConnected && !packet.isDuplicate() && compression.isCompressing() && messageLength <= Packet.MAXIMUM_MESSAGE_SIZE)
+				packet.setPayload(compression.compressOrdered(packet.getPayload()));
+
+			//messages too big for one packet get split up, except on NOTIFY_UNDELIVERED where there'd be no telling which piece went missing
+			if(channel != Channel.NOTIFY_UNDELIVERED && !packet.isDuplicate() && MessageFragments.needsFragmenting(packet.getPayloadLength(), channel)) {
+				if(!isConnected)
+					throw new NotConnectedException(packet);
+				if(messageLength > Packet.MAXIMUM_MESSAGE_SIZE)
+					throw new CouldNotEncodePacketException(new PacketTooLargeException(Packet.MAXIMUM_MESSAGE_SIZE), packet);
+				return sendFragments(packet);
+			}
+
+			//reliable messages go out framed along with their ids--one that can't be sent mustn't use up an id
+			if(channel.isReliable()) {
+				if(!isConnected)
+					throw new NotConnectedException(packet);
+				packet = MessageBundle.createReliablePacket(clientId, channel, reliableChannels.nextMessageId(channel), packet.getPayload());
+			}
+			return sendPacket(packet);
+		}
+	}
+
+	private int sendFragments(Packet packet) throws CouldNotSendPacketException {
+		synchronized(CONNECTION_LOCK) {
+			//each reliable fragment gets an id of its own so the ones that go missing can be resent on their own
+			Channel channel = packet.getChannel();
+			ByteBuffer message = packet.getPayload();
+			int groupId = fragments.nextGroupId();
+			int numFragments = MessageFragments.getNumFragments(message.remaining(), channel);
+			int sequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+			for(int i = 0; i < numFragments; i++) {
+				int messageId = (channel.isReliable() ? reliableChannels.nextMessageId(channel) : Packet.SEQUENCE_NUMBER_NOT_APPLICABLE);
+				sequenceNumber = sendPacket(MessageFragments.createFragmentPacket(clientId, channel, messageId, groupId, i, numFragments, message));
+			}
+			return sequenceNumber;
 		}
 	}
 
@@ -388,12 +758,16 @@ public class ClientConnection implements PacketReceiver {
 				recorder.recordAndAddSequenceNumberToOutgoingPacket(packet);
 				recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
 				sequenceNumber = packet.getSequenceNumber();
+				if(packet.isDuplicate())
+					NetworkEvents.INSTANCE.packetResent(clientId, sequenceNumber, packet.getDuplicateSequenceNumber());
 
 				try {
 					//attempt to send the packet
-					byte[] bytes = packet.toByteArray();
-					DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, serverInetAddress, serverPort);
-					socket.send(datagramPacket);
+					ByteBuffer data = compression.encode(packet);
+					int numBytes = data.remaining();
+					transport.send(data, serverSocketAddress);
+					recorder.recordOutgoingPacketTransmitted(sequenceNumber);
+					NetworkEvents.INSTANCE.packetSent(clientId, sequenceNumber, numBytes);
 					if(logger.isLoggable(Level.FINEST))
 						logger.finest("Outgoing packet:\n  " + packet.toString().replaceAll("\n", "\n  "));
 				} catch (PacketEncodingException e) {
@@ -416,31 +790,69 @@ public class ClientConnection implements PacketReceiver {
 		return sequenceNumber;
 	}
 
-	private void handlePingResponse(Packet pingResponse) {
-		//ignore if the ping response is null
-		if(pingResponse == null)
-			return;
+	/**
+	 * Returns the smoothed round trip time to the server in milliseconds, or
+	 * -1 if nothing has been acknowledged yet. Every packet the server
+	 * acknowledges counts towards it, pings included.
+	 */
+	public long getLatency() {
+		return recorder.getRttEstimator().getSmoothedRtt();
+	}
 
-		//if the ping response doesn't have a sequence number of the ping it's responding to then we can't do anything
-		if(pingResponse.getLastReceivedSequenceNumber() == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
-			return;
+	/**
+	 * Returns how much the round trip time to the server varies, in
+	 * milliseconds, or -1 if nothing has been acknowledged yet.
+	 */
+	public long getJitter() {
+		return recorder.getRttEstimator().getRttVariance();
+	}
 
-		synchronized(CONNECTION_LOCK) {
-			//if we have no record of when the ping was sent then we can't do anything
-			PacketReceipt pingReceipt = recorder.getSentPacketWithSequenceNumber(pingResponse.getLastReceivedSequenceNumber());
-			if(pingReceipt == null)
-				return;
+	/**
+	 * Returns how many milliseconds a packet sent to the server can go
+	 * unacknowledged before it's given up for lost.
+	 */
+	public long getRetransmissionTimeout() {
+		return recorder.getRttEstimator().getRetransmissionTimeout();
+	}
 
-			//record the latency
-			long timeOfPing = pingReceipt.getTime();
-			long now = System.currentTimeMillis();
-			long timeSincePing = now - timeOfPing;
-			latency = (latency == -1 ? timeSincePing : (latency + timeSincePing) / 2);
-		}
+	/**
+	 * While compressing, application messages sent to the server are
+	 * compressed the same way {@link Server#setCompressing} describes.
+	 * Whatever the server sends compressed is decompressed regardless. It
+	 * takes effect the next time the client connects.
+	 */
+	public void setCompressing(boolean isCompressing) {
+		this.isCompressing = isCompressing;
 	}
 
-	public long getLatency() {
-		return latency;
+	public boolean isCompressing() {
+		return isCompressing;
+	}
+
+	/**
+	 * Sets the bytes messages are compressed against. It has to be exactly the
+	 * same as the server's, see {@link Server#setCompressionDictionary}. It
+	 * takes effect the next time the client connects.
+	 */
+	public void setCompressionDictionary(byte[] dictionary) {
+		compressionDictionary = (dictionary == null ? null : dictionary.clone());
+	}
+
+	/**
+	 * Sets how many milliseconds the server's packets may go unacknowledged
+	 * waiting for something else to be sent before a packet is sent just to
+	 * acknowledge them, the same as {@link Server#setAcknowledgementDelay}.
+	 */
+	public void setAcknowledgementDelay(int acknowledgementDelay) {
+		this.acknowledgementDelay = Math.max(0, acknowledgementDelay);
+	}
+
+	public int getAcknowledgementDelay() {
+		return acknowledgementDelay;
+	}
+
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
 	}
 
 	public static abstract class CouldNotConnectException extends Exception {
@@ -461,14 +873,14 @@ public class ClientConnection implements PacketReceiver {
 
 	public static class CouldNotOpenSocketToServerException extends CouldNotConnectException {
 		private static final long serialVersionUID = 7033616636602581976L;
-		private SocketException wrappedException;
+		private IOException wrappedException;
 
-		public CouldNotOpenSocketToServerException(SocketException e) {
+		public CouldNotOpenSocketToServerException(IOException e) {
 			super("Could not open socket to server" + (e == null ? "." : "--" + e.getMessage()));
 			wrappedException = e;
 		}
 
-		public SocketException getException() {
+		public IOException getException() {
 			return wrappedException;
 		}
 	}
@@ -503,72 +915,56 @@ public class ClientConnection implements PacketReceiver {
 	 * developers is made up for in not polluting the public namespace for
 	 * anyone using this class.
 	 * 
-	 * Why is is a Thread? Ruminating on other possibilities.
+	 * It used to be a Thread of its own, but with thousands of connections in
+	 * one process that added up to thousands of threads doing nothing but
+	 * sleeping. Now every connection shares the same TimerWheel.
 	 */
-	private static class TimeoutThread extends Thread {
+	private static class ConnectionTimeout extends TimerWheel.Timeout {
 		private ClientConnection client;
-		private int timeout;
-		private boolean isWaitingToTimeOut;
-		private long timeOfLastReset;
 
-		public TimeoutThread(ClientConnection client, int timeoutInMilliseconds) {
-			super();
+		public ConnectionTimeout(ClientConnection client) {
 			this.client = client;
-			timeout = timeoutInMilliseconds;
-			isWaitingToTimeOut = false;
-		}
-
-		public void run() {
-			isWaitingToTimeOut = true;
-			resetTimeout();
-			while(isWaitingToTimeOut) {
-				//if the thread was last reset over [timeout] milliseconds ago then the client has timed out
-				long now = System.currentTimeMillis();
-				if(now >= timeOfLastReset + timeout) {
-					isWaitingToTimeOut = false;
-					if(client != null)
-						client.timeOut();
-				}
+		}
 
-				//wait an amount of time until thread should have timed out
-				try {
-					Thread.sleep(Math.max(50, timeout - now + timeOfLastReset));
-				} catch (InterruptedException e) {}
-			}
+		protected void expire() {
+			client.timeOut();
 		}
+	}
+
+	private static class PingTimeout extends TimerWheel.Timeout {
+		private ClientConnection client;
 
-		public void resetTimeout() {
-			timeOfLastReset = System.currentTimeMillis();
+		public PingTimeout(ClientConnection client) {
+			this.client = client;
 		}
 
-		public void stopTimeout() {
-			isWaitingToTimeOut = false;
+		protected void expire() {
+			//pinging schedules the next ping for as long as we stay connected
+			client.ping();
 		}
 	}
 
-	public class PingThread extends Thread {
+	private static class AcknowledgementTimeout extends TimerWheel.Timeout {
 		private ClientConnection client;
-		private int timeout;
-		private boolean isPinging;
 
-		public PingThread(ClientConnection client, int millisecondsBetweenPings) {
+		public AcknowledgementTimeout(ClientConnection client) {
 			this.client = client;
-			timeout = millisecondsBetweenPings;
-			isPinging = false;
 		}
 
-		public void run() {
-			isPinging = true;
-			while(isPinging) {
-				client.ping();
-				try {
-					Thread.sleep(timeout);
-				} catch (InterruptedException e) {}
-			}
+		protected void expire() {
+			client.sendAcknowledgement();
+		}
+	}
+
+	private static class DeliveryCheckTimeout extends TimerWheel.Timeout {
+		private ClientConnection client;
+
+		public DeliveryCheckTimeout(ClientConnection client) {
+			this.client = client;
 		}
 
-		public void stopPinging() {
-			isPinging = false;
+		protected void expire() {
+			client.checkDelivery();
 		}
 	}
 }
\ No newline at end of file
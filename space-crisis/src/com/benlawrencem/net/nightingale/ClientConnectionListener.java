@@ -1,13 +1,30 @@
 package com.benlawrencem.net.nightingale;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Receives messages as raw bytes. Extend
+ * {@link StringClientConnectionListener} instead to work with String
+ * messages.
+ */
 public interface ClientConnectionListener {
 	void onConnected();
 	void onCouldNotConnect(String reason);
 	void onDisconnected(String reason);
-	void onReceive(String message);
+
+	/**
+	 * Called when a message arrives from the server.
+	 * 
+	 * @param message the message, between the buffer's position and limit, or
+	 *  null if the message was empty. The buffer is reused once this method
+	 *  returns, so copy anything that needs to be kept
+	 */
+	void onReceive(ByteBuffer message);
 
 	/**
 	 * Called when a message to the server gets lost or fails to be delivered.
+	 * Only messages sent on the NOTIFY_UNDELIVERED channel (the default) are
+	 * reported--reliable channels resend on their own.
 	 * The message could actually still be delivered after this method is
 	 * called if it arrives at the server out of order. Resending the message
 	 * using the {@link ClientConnection.resend} method will guarantee that if
@@ -22,5 +39,5 @@ public interface ClientConnectionListener {
 	 *  isn't a duplicate, resendMessageId will be equal to messageId
 	 * @param message the message that couldn't be delivered
 	 */
-	void onMessageNotDelivered(int messageId, int resendMessageId, String message);
+	void onMessageNotDelivered(int messageId, int resendMessageId, ByteBuffer message);
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * A named set of clients that messages can be sent to all at once, such as
+ * everyone on the same level. The members are kept in an array that's
+ * replaced whenever a client joins or leaves, so sending to the group never
+ * has to lock it--clients change groups far less often than messages go
+ * out to them.
+ */
+class ClientGroup {
+	private static final ClientInfo[] NO_MEMBERS = new ClientInfo[0];
+
+	private final String name;
+	private volatile ClientInfo[] members;
+
+	public ClientGroup(String name) {
+		this.name = name;
+		members = ClientGroup.NO_MEMBERS;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns false if the client was already in the group.
+	 */
+	public synchronized boolean add(ClientInfo client) {
+		ClientInfo[] members = this.members;
+		for(int i = 0; i < members.length; i++) {
+			if(members[i] == client)
+				return false;
+		}
+		ClientInfo[] biggerMembers = new ClientInfo[members.length + 1];
+		System.arraycopy(members, 0, biggerMembers, 0, members.length);
+		biggerMembers[members.length] = client;
+		this.members = biggerMembers;
+		return true;
+	}
+
+	/**
+	 * Returns false if the client wasn't in the group.
+	 */
+	public synchronized boolean remove(ClientInfo client) {
+		ClientInfo[] members = this.members;
+		for(int i = 0; i < members.length; i++) {
+			if(members[i] == client) {
+				ClientInfo[] smallerMembers = (members.length == 1 ? ClientGroup.NO_MEMBERS : new ClientInfo[members.length - 1]);
+				System.arraycopy(members, 0, smallerMembers, 0, i);
+				System.arraycopy(members, i + 1, smallerMembers, i, members.length - i - 1);
+				this.members = smallerMembers;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the members as of now. The array is never modified, so it can
+	 * be gone through without worrying about clients joining or leaving in
+	 * the meantime.
+	 */
+	public ClientInfo[] getMembers() {
+		return members;
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	public synchronized void clear() {
+		members = ClientGroup.NO_MEMBERS;
+	}
+}
\ No newline at end of file
@@ -1,30 +1,66 @@
 package com.benlawrencem.net.nightingale;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 public class ClientInfo {
 	private int connectionId;
 	private String clientAddress;
 	private int clientPort;
 	private InetAddress clientInetAddress;
+	private InetSocketAddress clientSocketAddress;
 	private PacketRecorder recorder;
-	private long timeOfLastCommunication;
-	private long latency;
+	//each channel coalesces its messages into a bundle of its own--bundles don't allocate anything until they're used
+	private MessageBundle[] bundles;
+	private ReliableChannels reliableChannels;
+	private MessageFragments fragments;
+	private CompressionContext compression;
+	private PacingQueue pacingQueue;
+	private volatile long timeOfLastCommunication;
+	private volatile long latency;
+	private DatagramTransport transport;
+	private TimerWheel.Timeout timeout;
+	private int timeoutDuration;
+	private TimerWheel.Timeout lingerTimeout;
+	private TimerWheel.Timeout deliveryCheckTimeout;
+	private TimerWheel.Timeout pacingTimeout;
+	private TimerWheel.Timeout acknowledgementTimeout;
+	private boolean isQueuedForFlush;
+	private ListenerDispatcher.ListenerQueue listenerQueue;
+	private ClientMetrics metrics;
+	//when the client was let in, in the server's connect cookie time, so a cookie made since can be told from an old one
+	private volatile int connectCookieTime;
 
 	public ClientInfo(int connectionId, String address, int port, InetAddress inetAddress) {
 		this.connectionId = connectionId;
 		clientAddress = address;
 		clientPort = port;
 		clientInetAddress = inetAddress;
+		clientSocketAddress = new InetSocketAddress(inetAddress, port);
 		recorder = new PacketRecorder();
+		bundles = new MessageBundle[Packet.Channel.values().length];
+		for(Packet.Channel channel : Packet.Channel.values())
+			bundles[channel.ordinal()] = new MessageBundle(channel);
+		reliableChannels = new ReliableChannels();
+		fragments = new MessageFragments();
+		pacingQueue = new PacingQueue();
 		timeOfLastCommunication = System.currentTimeMillis();
 		latency = -1;
+		metrics = new ClientMetrics(this);
 	}
 
 	public int getClientId() {
 		return connectionId;
 	}
 
+	public int getConnectCookieTime() {
+		return connectCookieTime;
+	}
+
+	public void setConnectCookieTime(int connectCookieTime) {
+		this.connectCookieTime = connectCookieTime;
+	}
+
 	public String getAddress() {
 		return clientAddress;
 	}
@@ -33,14 +69,54 @@ public class ClientInfo {
 		return clientInetAddress;
 	}
 
+	public InetSocketAddress getSocketAddress() {
+		return clientSocketAddress;
+	}
+
 	public int getPort() {
 		return clientPort;
 	}
 
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
 	public PacketRecorder getPacketRecorder() {
 		return recorder;
 	}
 
+	MessageBundle getMessageBundle(Packet.Channel channel) {
+		return bundles[channel.ordinal()];
+	}
+
+	MessageBundle[] getMessageBundles() {
+		return bundles;
+	}
+
+	ReliableChannels getReliableChannels() {
+		return reliableChannels;
+	}
+
+	MessageFragments getMessageFragments() {
+		return fragments;
+	}
+
+	/**
+	 * Returns the client's compression state, or null if it was never given
+	 * one, in which case nothing it's sent gets compressed.
+	 */
+	CompressionContext getCompressionContext() {
+		return compression;
+	}
+
+	void setCompressionContext(CompressionContext compression) {
+		this.compression = compression;
+	}
+
+	PacingQueue getPacingQueue() {
+		return pacingQueue;
+	}
+
 	public boolean matchesAddress(String address, int port) {
 		if(address == null)
 			return (clientAddress == null && port == clientPort);
@@ -53,13 +129,99 @@ public class ClientInfo {
 
 	public void resetTimeout() {
 		timeOfLastCommunication = System.currentTimeMillis();
+		if(timeout != null)
+			timeout.postpone(timeoutDuration);
+	}
+
+	/**
+	 * The socket the client's packets arrive on, which is also the one
+	 * replies should go out on.
+	 */
+	DatagramTransport getTransport() {
+		return transport;
+	}
+
+	void setTransport(DatagramTransport transport) {
+		this.transport = transport;
+	}
+
+	TimerWheel.Timeout getTimeout() {
+		return timeout;
+	}
+
+	void setTimeout(TimerWheel.Timeout timeout, int timeoutDuration) {
+		this.timeout = timeout;
+		this.timeoutDuration = timeoutDuration;
+	}
+
+	TimerWheel.Timeout getLingerTimeout() {
+		return lingerTimeout;
+	}
+
+	void setLingerTimeout(TimerWheel.Timeout lingerTimeout) {
+		this.lingerTimeout = lingerTimeout;
 	}
 
+	TimerWheel.Timeout getDeliveryCheckTimeout() {
+		return deliveryCheckTimeout;
+	}
+
+	void setDeliveryCheckTimeout(TimerWheel.Timeout deliveryCheckTimeout) {
+		this.deliveryCheckTimeout = deliveryCheckTimeout;
+	}
+
+	TimerWheel.Timeout getPacingTimeout() {
+		return pacingTimeout;
+	}
+
+	void setPacingTimeout(TimerWheel.Timeout pacingTimeout) {
+		this.pacingTimeout = pacingTimeout;
+	}
+
+	TimerWheel.Timeout getAcknowledgementTimeout() {
+		return acknowledgementTimeout;
+	}
+
+	void setAcknowledgementTimeout(TimerWheel.Timeout acknowledgementTimeout) {
+		this.acknowledgementTimeout = acknowledgementTimeout;
+	}
+
+	boolean isQueuedForFlush() {
+		return isQueuedForFlush;
+	}
+
+	void setQueuedForFlush(boolean isQueuedForFlush) {
+		this.isQueuedForFlush = isQueuedForFlush;
+	}
+
+	/**
+	 * Returns the queue this client's listener callbacks wait in, creating it
+	 * the first time the given dispatcher asks for it.
+	 */
+	synchronized ListenerDispatcher.ListenerQueue getListenerQueue(ListenerDispatcher dispatcher) {
+		if(listenerQueue == null || listenerQueue.getDispatcher() != dispatcher)
+			listenerQueue = dispatcher.createQueue();
+		return listenerQueue;
+	}
+
+	/**
+	 * Returns the server's own smoothed round trip time to the client, or
+	 * what the client last reported if the server hasn't measured one yet.
+	 */
 	public long getLatency() {
+		RttEstimator rttEstimator = recorder.getRttEstimator();
+		return (rttEstimator.hasSamples() ? rttEstimator.getSmoothedRtt() : latency);
+	}
+
+	/**
+	 * Returns the round trip time the client last reported in a ping, or -1
+	 * if it hasn't.
+	 */
+	public long getReportedLatency() {
 		return latency;
 	}
 
-	public void setLatency(long latency) {
+	public void setReportedLatency(long latency) {
 		this.latency = latency;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Running totals and estimates for one client's connection to the server.
+ * Packets and bytes are counted as they cross the wire, headers included,
+ * so compressed packets count at their compressed size and packets held
+ * back for pacing only count once they're actually sent. Undelivered
+ * packets are the application packets given up for lost, and resends are
+ * messages sent again, whether by the reliable channels or by the
+ * application calling {@link Server#resend}.
+ *
+ * The counters are only ever added to with the client locked, which the
+ * server does anyway while it's sending or receiving, so counting costs
+ * next to nothing. Reading them locks the client too.
+ */
+public class ClientMetrics implements ClientMetricsMBean {
+	private final ClientInfo client;
+	private long numPacketsReceived;
+	private long numBytesReceived;
+	private long numPacketsSent;
+	private long numBytesSent;
+	private long numDuplicatesDropped;
+	private long numPacketsUndelivered;
+	private long numResends;
+
+	ClientMetrics(ClientInfo client) {
+		this.client = client;
+	}
+
+	void recordPacketReceived(int numBytes) {
+		numPacketsReceived++;
+		numBytesReceived += numBytes;
+	}
+
+	void recordPacketSent(int numBytes) {
+		numPacketsSent++;
+		numBytesSent += numBytes;
+	}
+
+	void recordDuplicateDropped() {
+		numDuplicatesDropped++;
+	}
+
+	void recordPacketsUndelivered(int numPackets) {
+		numPacketsUndelivered += numPackets;
+	}
+
+	void recordResend() {
+		numResends++;
+	}
+
+	public int getClientId() {
+		return client.getClientId();
+	}
+
+	public String getAddress() {
+		return client.getAddress();
+	}
+
+	public int getPort() {
+		return client.getPort();
+	}
+
+	public long getNumPacketsReceived() {
+		synchronized(client) {
+			return numPacketsReceived;
+		}
+	}
+
+	public long getNumBytesReceived() {
+		synchronized(client) {
+			return numBytesReceived;
+		}
+	}
+
+	public long getNumPacketsSent() {
+		synchronized(client) {
+			return numPacketsSent;
+		}
+	}
+
+	public long getNumBytesSent() {
+		synchronized(client) {
+			return numBytesSent;
+		}
+	}
+
+	/**
+	 * Returns how many packets from the client were thrown away because
+	 * they, or another copy of the same message, had already arrived.
+	 */
+	public long getNumDuplicatesDropped() {
+		synchronized(client) {
+			return numDuplicatesDropped;
+		}
+	}
+
+	public long getNumPacketsUndelivered() {
+		synchronized(client) {
+			return numPacketsUndelivered;
+		}
+	}
+
+	public long getNumResends() {
+		synchronized(client) {
+			return numResends;
+		}
+	}
+
+	/**
+	 * Returns the smoothed round trip time in milliseconds, or -1 if it
+	 * hasn't been measured yet.
+	 */
+	public long getRoundTripTime() {
+		return client.getPacketRecorder().getRttEstimator().getSmoothedRtt();
+	}
+
+	public long getJitter() {
+		return client.getPacketRecorder().getRttEstimator().getRttVariance();
+	}
+
+	public long getRetransmissionTimeout() {
+		return client.getPacketRecorder().getRttEstimator().getRetransmissionTimeout();
+	}
+
+	/**
+	 * Returns the fraction of the packets the client has told us about one
+	 * way or the other that it never got, from 0 to 1.
+	 */
+	public double getLossRate() {
+		return client.getPacketRecorder().getCongestionController().getLossRate();
+	}
+
+	public int getCongestionWindow() {
+		return client.getPacketRecorder().getCongestionController().getCongestionWindow();
+	}
+
+	/**
+	 * Returns how many milliseconds it's been since anything arrived from the
+	 * client.
+	 */
+	public long getTimeSinceLastCommunication() {
+		return System.currentTimeMillis() - client.getTimeOfLastCommunication();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * What the server knows about how one client's connection is doing, as
+ * seen over JMX. See {@link ClientMetrics}.
+ */
+public interface ClientMetricsMBean {
+	int getClientId();
+	String getAddress();
+	int getPort();
+	long getNumPacketsReceived();
+	long getNumBytesReceived();
+	long getNumPacketsSent();
+	long getNumBytesSent();
+	long getNumDuplicatesDropped();
+	long getNumPacketsUndelivered();
+	long getNumResends();
+	long getRoundTripTime();
+	long getJitter();
+	long getRetransmissionTimeout();
+	double getLossRate();
+	int getCongestionWindow();
+	long getTimeSinceLastCommunication();
+}
\ No newline at end of file
@@ -0,0 +1,251 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+
+/**
+ * One connection's compression state. Application packets on every channel
+ * but RELIABLE_ORDERED are compressed whole against the preset dictionary
+ * on their way out, since they can arrive in any order or not at all and so
+ * each one has to make sense on its own. Those that don't come out smaller
+ * go out as they were, and the ones that do are flagged as compressed.
+ *
+ * RELIABLE_ORDERED messages all arrive, in order, so they're compressed one
+ * at a time against everything sent on the channel before them as well: the
+ * dictionary is the preset one followed by the last couple of kilobytes of
+ * the channel's messages, which both ends keep track of. A message that's
+ * nearly the same as the one before it compresses down to a few bytes.
+ * Every ordered message gets one byte in front of it saying whether it was
+ * compressed:
+ *
+ * 	byte	1 byte	0 if the message follows as it was, 1 if it's deflated
+ * 	byte[]	n bytes	message
+ *
+ * Packets on RELIABLE_ORDERED are flagged as compressed when the messages in
+ * them carry that byte. The messages are compressed before they're bundled or
+ * split into fragments, so they're only inflated once they're whole and it's
+ * their turn to be handed over.
+ *
+ * Not thread safe. Whoever owns the connection calls it with the connection
+ * locked.
+ */
+class CompressionContext {
+	private static final int HISTORY_SIZE = 2048;
+	private static final byte MESSAGE_UNCOMPRESSED = 0;
+	private static final byte MESSAGE_DEFLATED = 1;
+
+	private CompressionStats stats;
+	private byte[] dictionary;
+	private boolean isCompressing;
+	//the preset dictionary followed by the most recent ordered messages, both only created once the channel gets used
+	private byte[] sentHistory;
+	private int sentHistoryLength;
+	private byte[] receivedHistory;
+	private int receivedHistoryLength;
+	//whole messages put back together from compressed fragments, before they're inflated
+	private ReceivedMessages reassembledMessages;
+
+	/**
+	 * Creates the state for a connection that compresses what it sends if
+	 * isCompressing is set. Whatever arrives flagged as compressed is inflated
+	 * either way.
+	 */
+	public CompressionContext(CompressionStats stats, byte[] dictionary, boolean isCompressing) {
+		this.stats = stats;
+		this.dictionary = (dictionary == null ? new byte[0] : dictionary);
+		this.isCompressing = isCompressing;
+		sentHistoryLength = this.dictionary.length;
+		receivedHistoryLength = this.dictionary.length;
+	}
+
+	public boolean isCompressing() {
+		return isCompressing;
+	}
+
+	/**
+	 * Returns whether packets on every channel but RELIABLE_ORDERED come out
+	 * exactly the same encoded by either context, which they do when both
+	 * compress against the same dictionary or neither compresses at all.
+	 */
+	public boolean encodesLike(CompressionContext other) {
+		if(other == null || isCompressing != other.isCompressing)
+			return false;
+		return !isCompressing || dictionary == other.dictionary || (dictionary.length == 0 && other.dictionary.length == 0);
+	}
+
+	/**
+	 * Encodes the packet into the calling thread's send buffer like
+	 * {@link Packet#encode}, compressing its payload on the way if the
+	 * connection compresses and it's worth it. The packet itself is left as
+	 * it was, except for RELIABLE_ORDERED packets which get flagged, since
+	 * their messages were compressed when they were sent.
+	 */
+	public ByteBuffer encode(Packet packet) throws PacketEncodingException {
+		Packet.MessageType messageType = packet.getMessageType();
+		if(!isCompressing || (messageType != Packet.MessageType.APPLICATION && messageType != Packet.MessageType.APPLICATION_BUNDLE))
+			return packet.encode();
+		if(packet.getChannel() == Channel.RELIABLE_ORDERED) {
+			packet.setIsCompressed(true);
+			return packet.encode();
+		}
+		ByteBuffer payload = packet.getPayload();
+		if(payload == null)
+			return packet.encode();
+
+		long startTime = System.nanoTime();
+		int length = payload.remaining();
+		ByteBuffer compressedPayload = PayloadCompressor.get().deflatePayload(payload, dictionary);
+		long time = System.nanoTime() - startTime;
+		if(compressedPayload == null) {
+			stats.recordPassedThrough(length, length, time);
+			return packet.encode();
+		}
+		stats.recordCompressed(length, compressedPayload.remaining(), time);
+
+		//the packet gets its own payload back once it's encoded, so that resends and toString() see what the application sent
+		packet.setPayload(compressedPayload);
+		packet.setIsCompressed(true);
+		try {
+			return packet.encode();
+		} finally {
+			packet.setPayload(payload);
+			packet.setIsCompressed(false);
+		}
+	}
+
+	/**
+	 * Inflates the payload of a packet that arrived flagged as compressed on
+	 * any channel but RELIABLE_ORDERED, replacing it in the packet. The new
+	 * payload lives in the calling thread's receive buffer. Returns false if
+	 * it couldn't be inflated.
+	 */
+	public boolean decompress(Packet packet) {
+		ByteBuffer payload = packet.getPayload();
+		if(payload == null)
+			return false;
+		long startTime = System.nanoTime();
+		ByteBuffer uncompressedPayload = PayloadCompressor.get().inflatePayload(payload, dictionary);
+		long time = System.nanoTime() - startTime;
+		if(uncompressedPayload == null) {
+			stats.recordCorrupt(time);
+			return false;
+		}
+		stats.recordDecompressed(time);
+		packet.setPayload(uncompressedPayload);
+		packet.setIsCompressed(false);
+		return true;
+	}
+
+	/**
+	 * Compresses the next message to go out on RELIABLE_ORDERED, returning it
+	 * along with the byte that says whether it was. Messages have to come
+	 * through here in the order they're given their ids. The returned buffer
+	 * belongs to the calling thread and is only valid until it compresses
+	 * another message.
+	 */
+	public ByteBuffer compressOrdered(ByteBuffer message) {
+		int length = (message == null ? 0 : message.remaining());
+		PayloadCompressor compressor = PayloadCompressor.get();
+		byte[] compressedMessage = compressor.getDeflatedMessageBuffer(length + 1);
+		if(sentHistory == null)
+			sentHistory = createHistory();
+
+		int compressedLength = -1;
+		long startTime = System.nanoTime();
+		if(length > 0)
+			compressedLength = compressor.deflate(message, sentHistory, sentHistoryLength, compressedMessage, 1, length);
+		long time = System.nanoTime() - startTime;
+		if(compressedLength == -1) {
+			compressedMessage[0] = CompressionContext.MESSAGE_UNCOMPRESSED;
+			int start = (message == null ? 0 : message.position());
+			for(int i = 0; i < length; i++)
+				compressedMessage[i + 1] = message.get(start + i);
+			compressedLength = length;
+			stats.recordPassedThrough(length, length + 1, time);
+		}
+		else {
+			compressedMessage[0] = CompressionContext.MESSAGE_DEFLATED;
+			stats.recordCompressed(length, compressedLength + 1, time);
+		}
+		if(length > 0)
+			sentHistoryLength = appendToHistory(sentHistory, sentHistoryLength, message);
+		return ByteBuffer.wrap(compressedMessage, 0, compressedLength + 1);
+	}
+
+	/**
+	 * Takes in a message let through on RELIABLE_ORDERED from a packet that
+	 * was flagged as compressed, adding it to receivedMessages as it was
+	 * before it was compressed. Messages have to come through here in order.
+	 * One that can't be inflated is dropped.
+	 */
+	public void decompressOrdered(ByteBuffer message, ReceivedMessages receivedMessages) {
+		if(message == null || !message.hasRemaining()) {
+			stats.recordCorrupt(0);
+			return;
+		}
+		if(receivedHistory == null)
+			receivedHistory = createHistory();
+		byte header = message.get(message.position());
+		ByteBuffer data = message.duplicate();
+		data.position(data.position() + 1);
+
+		if(header == CompressionContext.MESSAGE_UNCOMPRESSED) {
+			if(data.hasRemaining())
+				receivedHistoryLength = appendToHistory(receivedHistory, receivedHistoryLength, data);
+			receivedMessages.add(data);
+			return;
+		}
+
+		PayloadCompressor compressor = PayloadCompressor.get();
+		byte[] uncompressedMessage = compressor.getInflatedMessageBuffer();
+		long startTime = System.nanoTime();
+		int length = (header == CompressionContext.MESSAGE_DEFLATED ? compressor.inflate(data, receivedHistory, receivedHistoryLength, uncompressedMessage, 0, uncompressedMessage.length) : -1);
+		long time = System.nanoTime() - startTime;
+		if(length == -1) {
+			//the two ends' histories don't match anymore, so everything after this is likely to be garbage too
+			stats.recordCorrupt(time);
+			return;
+		}
+		stats.recordDecompressed(time);
+		ByteBuffer uncompressed = ByteBuffer.wrap(uncompressedMessage, 0, length);
+		if(length > 0)
+			receivedHistoryLength = appendToHistory(receivedHistory, receivedHistoryLength, uncompressed);
+		receivedMessages.add(uncompressed);
+	}
+
+	/**
+	 * Returns somewhere to put back together a compressed message that
+	 * arrived in fragments before it gets inflated.
+	 */
+	public ReceivedMessages getReassembledMessages() {
+		if(reassembledMessages == null)
+			reassembledMessages = new ReceivedMessages();
+		reassembledMessages.clear();
+		return reassembledMessages;
+	}
+
+	private byte[] createHistory() {
+		byte[] history = new byte[dictionary.length + CompressionContext.HISTORY_SIZE];
+		System.arraycopy(dictionary, 0, history, 0, dictionary.length);
+		return history;
+	}
+
+	/**
+	 * Adds a message to the end of the history, sliding older messages out
+	 * past the preset dictionary to make room. Returns the new length.
+	 */
+	private int appendToHistory(byte[] history, int historyLength, ByteBuffer message) {
+		int length = Math.min(message.remaining(), CompressionContext.HISTORY_SIZE);
+		int start = message.limit() - length;
+		int overflow = historyLength + length - history.length;
+		if(overflow > 0) {
+			System.arraycopy(history, dictionary.length + overflow, history, dictionary.length, historyLength - dictionary.length - overflow);
+			historyLength -= overflow;
+		}
+		for(int i = 0; i < length; i++)
+			history[historyLength + i] = message.get(start + i);
+		return historyLength + length;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals for the compression stage of a server or connection. Every
+ * application payload that compression was tried on counts, including the
+ * ones that didn't shrink and went out as they were, so the ratio is what
+ * actually made it onto the wire. Times are spent inside the Deflater and
+ * Inflater, in nanoseconds.
+ */
+public class CompressionStats {
+	private AtomicLong numCompressed;
+	private AtomicLong numPassedThrough;
+	private AtomicLong numDecompressed;
+	private AtomicLong numCorrupt;
+	private AtomicLong uncompressedBytes;
+	private AtomicLong compressedBytes;
+	private AtomicLong compressionTime;
+	private AtomicLong decompressionTime;
+
+	public CompressionStats() {
+		numCompressed = new AtomicLong(0);
+		numPassedThrough = new AtomicLong(0);
+		numDecompressed = new AtomicLong(0);
+		numCorrupt = new AtomicLong(0);
+		uncompressedBytes = new AtomicLong(0);
+		compressedBytes = new AtomicLong(0);
+		compressionTime = new AtomicLong(0);
+		decompressionTime = new AtomicLong(0);
+	}
+
+	/**
+	 * Returns how many payloads went out compressed.
+	 */
+	public long getNumCompressed() {
+		return numCompressed.get();
+	}
+
+	/**
+	 * Returns how many payloads went out uncompressed because compressing
+	 * them wouldn't have made them any smaller.
+	 */
+	public long getNumPassedThrough() {
+		return numPassedThrough.get();
+	}
+
+	public long getNumDecompressed() {
+		return numDecompressed.get();
+	}
+
+	/**
+	 * Returns how many compressed payloads arrived that couldn't be
+	 * decompressed, and were thrown away.
+	 */
+	public long getNumCorrupt() {
+		return numCorrupt.get();
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes.get();
+	}
+
+	/**
+	 * Returns the bytes sent over the bytes there would have been without
+	 * compression, so 0.25 means payloads are a quarter of their old size.
+	 * It's 1 until something has been sent.
+	 */
+	public double getCompressionRatio() {
+		long uncompressedBytes = this.uncompressedBytes.get();
+		return (uncompressedBytes == 0 ? 1.0 : (double) compressedBytes.get() / uncompressedBytes);
+	}
+
+	public long getCompressionTime() {
+		return compressionTime.get();
+	}
+
+	public long getDecompressionTime() {
+		return decompressionTime.get();
+	}
+
+	/**
+	 * Returns the average nanoseconds spent compressing a payload, counting
+	 * the ones that were passed through.
+	 */
+	public double getAverageCompressionTime() {
+		long numPayloads = numCompressed.get() + numPassedThrough.get();
+		return (numPayloads == 0 ? 0 : (double) compressionTime.get() / numPayloads);
+	}
+
+	public double getAverageDecompressionTime() {
+		long numPayloads = numDecompressed.get() + numCorrupt.get();
+		return (numPayloads == 0 ? 0 : (double) decompressionTime.get() / numPayloads);
+	}
+
+	public void reset() {
+		numCompressed.set(0);
+		numPassedThrough.set(0);
+		numDecompressed.set(0);
+		numCorrupt.set(0);
+		uncompressedBytes.set(0);
+		compressedBytes.set(0);
+		compressionTime.set(0);
+		decompressionTime.set(0);
+	}
+
+	public String toString() {
+		return "Compressed: " + getNumCompressed() + ", passed through: " + getNumPassedThrough() + ", ratio: " + getCompressionRatio() +
+				", average compression time: " + (long) getAverageCompressionTime() + "ns, average decompression time: " + (long) getAverageDecompressionTime() + "ns";
+	}
+
+	void recordCompressed(int uncompressedLength, int compressedLength, long time) {
+		numCompressed.incrementAndGet();
+		uncompressedBytes.addAndGet(uncompressedLength);
+		compressedBytes.addAndGet(compressedLength);
+		compressionTime.addAndGet(time);
+	}
+
+	void recordPassedThrough(int uncompressedLength, int sentLength, long time) {
+		numPassedThrough.incrementAndGet();
+		uncompressedBytes.addAndGet(uncompressedLength);
+		compressedBytes.addAndGet(sentLength);
+		compressionTime.addAndGet(time);
+	}
+
+	void recordDecompressed(long time) {
+		numDecompressed.incrementAndGet();
+		decompressionTime.addAndGet(time);
+	}
+
+	void recordCorrupt(long time) {
+		numCorrupt.incrementAndGet();
+		decompressionTime.addAndGet(time);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,306 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Decides how many packets can be on their way to the other side at once
+ * (the congestion window) and how quickly they should go out, the same way
+ * TCP Reno does but counted in packets rather than bytes. The window grows
+ * by a packet for every packet acknowledged until the first loss, and after
+ * that by about a packet every round trip. Each time packets go missing it's
+ * cut by 30%, but only once per round trip no matter how many of them were
+ * lost together. If the other side keeps sending but nothing it sends
+ * acknowledges anything for a whole retransmission timeout, the window drops
+ * right down to its minimum.
+ *
+ * Unlike TCP, acknowledgements only ever ride along on packets the other
+ * side was sending anyway. When it has nothing to send for a while there's
+ * no telling what happened to the packets in flight, so once a round trip
+ * has passed they stop counting against the window, but it isn't cut for
+ * them.
+ *
+ * The window is also kept to no more than twice as many packets as the
+ * connection has lately been shown to deliver in its shortest round trip
+ * (the most it's delivered in a round trip over the last ten, times the
+ * minimum round trip time). That's enough to keep the link busy with room
+ * to find out it can take more, but it means a connection that's been
+ * sending slowly doesn't hang onto a huge window it hasn't used and then
+ * dump it all at once. When the window is pulled in like that the slow
+ * start threshold is left high, so it grows back quickly when it's needed.
+ *
+ * Packets aren't sent as one burst whenever the window opens up. They're
+ * paced out at a little over a window per round trip, which keeps a client
+ * with a slow link from having its router's queue overflow all at once.
+ *
+ * Like the RttEstimator it's fed by whoever owns the PacketRecorder with it
+ * locked, but the figures can be read from anywhere.
+ */
+public class CongestionController {
+	public static final int INITIAL_CONGESTION_WINDOW = 16;
+	public static final int MINIMUM_CONGESTION_WINDOW = 8;
+	public static final int MAXIMUM_CONGESTION_WINDOW = 4096;
+	//pacing a little faster than the window leaves room for it to grow
+	private static final double SLOW_START_PACING_GAIN = 2.0;
+	private static final double PACING_GAIN = 1.25;
+	//a smaller cut than Reno's half, since games lose the odd packet all the time without being congested
+	private static final double DECREASE_FACTOR = 0.7;
+	//how many packets can go out back to back after a quiet spell--at high rates it's however many would go out over
+	// the burst time instead, since whoever's sending them may not get around to it more often than that
+	private static final double MINIMUM_BURST = 4;
+	private static final long BURST_TIME = 10;
+	//how many round trips' worth of delivery rates the window limit looks back over, and how many round trips of the
+	// best of them it allows in flight
+	private static final int NUM_DELIVERY_RATE_ROUNDS = 10;
+	private static final double WINDOW_LIMIT_GAIN = 2.0;
+
+	private RttEstimator rttEstimator;
+	private volatile double congestionWindow;
+	private volatile double slowStartThreshold;
+	private volatile int numPacketsInFlight;
+	private volatile long numPacketsAcknowledged;
+	private volatile long numPacketsLost;
+	private volatile long numLossEvents;
+	private volatile long numTimeouts;
+	//packets sent before this time count towards the loss event that started it
+	private long recoveryStartTime;
+	//the last time a packet in flight was acknowledged or given up for lost
+	private long lastProgressTime;
+	private double pacingTokens;
+	private long lastPacingTime;
+	//packets acknowledged a second in each of the last few round trips, most recent at deliveryRateIndex
+	private final double[] deliveryRates;
+	private int deliveryRateIndex;
+	private volatile double maximumDeliveryRate;
+	private long roundStartTime;
+	private int numPacketsAcknowledgedThisRound;
+	private volatile double windowLimit;
+
+	public CongestionController(RttEstimator rttEstimator) {
+		this.rttEstimator = rttEstimator;
+		deliveryRates = new double[CongestionController.NUM_DELIVERY_RATE_ROUNDS];
+		reset();
+	}
+
+	/**
+	 * Returns how many milliseconds until the next packet can go out: 0 if it
+	 * can go now, otherwise however long until the pacing lets it or, if the
+	 * window is full, until it gives up waiting for acknowledgements.
+	 * lastReceiveTime is when the other side last sent anything at all.
+	 */
+	public long getTimeUntilSend(long now, long lastReceiveTime) {
+		if(numPacketsInFlight >= (int) congestionWindow) {
+			//the other side has been talking without acknowledging anything, so everything in flight is as good as lost
+			boolean isStarved = (lastReceiveTime > lastProgressTime);
+			long smoothedRtt = rttEstimator.getSmoothedRtt();
+			long wait = (isStarved || smoothedRtt == -1 ? rttEstimator.getRetransmissionTimeout() : smoothedRtt);
+			long timeout = lastProgressTime + wait - now;
+			if(timeout > 0)
+				return timeout;
+
+			if(isStarved) {
+				numTimeouts++;
+				slowStartThreshold = Math.max(CongestionController.MINIMUM_CONGESTION_WINDOW, congestionWindow * CongestionController.DECREASE_FACTOR);
+				congestionWindow = CongestionController.MINIMUM_CONGESTION_WINDOW;
+				recoveryStartTime = now;
+			}
+			numPacketsInFlight = 0;
+			lastProgressTime = now;
+		}
+
+		double pacingRate = getPacingRate() / 1000.0;
+		if(pacingRate <= 0)
+			return 0;
+		double maximumBurst = Math.max(CongestionController.MINIMUM_BURST, pacingRate * CongestionController.BURST_TIME);
+		pacingTokens = Math.min(maximumBurst, pacingTokens + (now - lastPacingTime) * pacingRate);
+		lastPacingTime = now;
+		if(pacingTokens >= 1)
+			return 0;
+		return Math.max(1, (long) Math.ceil((1 - pacingTokens) / pacingRate));
+	}
+
+	/**
+	 * Takes note of a packet actually going out onto the network.
+	 */
+	public void onPacketSent(long now) {
+		if(numPacketsInFlight == 0)
+			lastProgressTime = now;
+		numPacketsInFlight++;
+		pacingTokens = Math.max(0, pacingTokens - 1);
+	}
+
+	public void onPacketAcknowledged(long now) {
+		numPacketsInFlight = Math.max(0, numPacketsInFlight - 1);
+		numPacketsAcknowledged++;
+		lastProgressTime = now;
+		if(congestionWindow < slowStartThreshold)
+			congestionWindow += 1;
+		else
+			congestionWindow += 1 / congestionWindow;
+		recordDelivery(now);
+		if(congestionWindow > windowLimit) {
+			//it wasn't cut for a loss, so whatever it had grown to is still a fair guess at what the link can take
+			slowStartThreshold = Math.max(slowStartThreshold, congestionWindow * CongestionController.DECREASE_FACTOR);
+			congestionWindow = windowLimit;
+		}
+	}
+
+	/**
+	 * Takes note of a packet that was sent at timeSent being given up for
+	 * lost.
+	 */
+	public void onPacketLost(long timeSent, long now) {
+		numPacketsInFlight = Math.max(0, numPacketsInFlight - 1);
+		numPacketsLost++;
+		lastProgressTime = now;
+
+		//packets lost together are one loss event--the window was already cut for them
+		if(timeSent < recoveryStartTime)
+			return;
+		numLossEvents++;
+		slowStartThreshold = Math.max(CongestionController.MINIMUM_CONGESTION_WINDOW, congestionWindow * CongestionController.DECREASE_FACTOR);
+		congestionWindow = slowStartThreshold;
+		recoveryStartTime = now;
+	}
+
+	/**
+	 * Takes note of a packet in flight that will never be heard about again,
+	 * because it's been forgotten or there's no telling whether it arrived.
+	 */
+	public void onPacketForgotten() {
+		numPacketsInFlight = Math.max(0, numPacketsInFlight - 1);
+	}
+
+	/**
+	 * Returns how many packets can be in flight at once.
+	 */
+	public int getCongestionWindow() {
+		return (int) congestionWindow;
+	}
+
+	/**
+	 * Returns the most packets the window is allowed to grow to given the
+	 * rate the connection has been delivering at and its minimum round trip
+	 * time, or {@link #MAXIMUM_CONGESTION_WINDOW} until there's enough to go
+	 * on.
+	 */
+	public int getWindowLimit() {
+		return (int) windowLimit;
+	}
+
+	/**
+	 * Returns the most packets a second that were acknowledged over any of
+	 * the last few round trips, or 0 if not a round trip has passed yet.
+	 */
+	public double getDeliveryRate() {
+		return maximumDeliveryRate;
+	}
+
+	public int getSlowStartThreshold() {
+		return (slowStartThreshold == Double.MAX_VALUE ? Integer.MAX_VALUE : (int) slowStartThreshold);
+	}
+
+	public boolean isInSlowStart() {
+		return congestionWindow < slowStartThreshold;
+	}
+
+	public int getNumPacketsInFlight() {
+		return numPacketsInFlight;
+	}
+
+	/**
+	 * Returns how many packets a second are let out, or 0 if they aren't
+	 * being paced because there's no round trip time to go on yet.
+	 */
+	public double getPacingRate() {
+		long smoothedRtt = rttEstimator.getSmoothedRtt();
+		if(smoothedRtt == -1)
+			return 0;
+		double gain = (isInSlowStart() ? CongestionController.SLOW_START_PACING_GAIN : CongestionController.PACING_GAIN);
+		return gain * congestionWindow * 1000.0 / Math.max(1, smoothedRtt);
+	}
+
+	public long getNumPacketsAcknowledged() {
+		return numPacketsAcknowledged;
+	}
+
+	public long getNumPacketsLost() {
+		return numPacketsLost;
+	}
+
+	/**
+	 * Returns the fraction of the packets that have been either acknowledged
+	 * or given up for lost that were lost, or 0 if there haven't been any.
+	 */
+	public double getLossRate() {
+		long numPacketsLost = this.numPacketsLost;
+		long numPackets = numPacketsAcknowledged + numPacketsLost;
+		return (numPackets == 0 ? 0 : (double) numPacketsLost / numPackets);
+	}
+
+	/**
+	 * Returns how many times the window has been cut for packets going
+	 * missing, not counting timeouts.
+	 */
+	public long getNumLossEvents() {
+		return numLossEvents;
+	}
+
+	/**
+	 * Returns how many times the window has dropped to its minimum because
+	 * nothing the other side sent for a whole retransmission timeout
+	 * acknowledged anything.
+	 */
+	public long getNumTimeouts() {
+		return numTimeouts;
+	}
+
+	public void reset() {
+		congestionWindow = CongestionController.INITIAL_CONGESTION_WINDOW;
+		slowStartThreshold = Double.MAX_VALUE;
+		numPacketsInFlight = 0;
+		numPacketsAcknowledged = 0;
+		numPacketsLost = 0;
+		numLossEvents = 0;
+		numTimeouts = 0;
+		recoveryStartTime = 0;
+		lastProgressTime = 0;
+		pacingTokens = CongestionController.MINIMUM_BURST;
+		lastPacingTime = System.currentTimeMillis();
+		for(int i = 0; i < deliveryRates.length; i++)
+			deliveryRates[i] = 0;
+		deliveryRateIndex = 0;
+		maximumDeliveryRate = 0;
+		roundStartTime = 0;
+		numPacketsAcknowledgedThisRound = 0;
+		windowLimit = CongestionController.MAXIMUM_CONGESTION_WINDOW;
+	}
+
+	private void recordDelivery(long now) {
+		numPacketsAcknowledgedThisRound++;
+		if(roundStartTime == 0) {
+			roundStartTime = now;
+			return;
+		}
+		long smoothedRtt = rttEstimator.getSmoothedRtt();
+		long elapsed = now - roundStartTime;
+		if(smoothedRtt == -1 || elapsed < Math.max(1, smoothedRtt))
+			return;
+
+		//a round trip is over, so its rate goes in place of the oldest one's
+		deliveryRateIndex = (deliveryRateIndex + 1) % deliveryRates.length;
+		deliveryRates[deliveryRateIndex] = numPacketsAcknowledgedThisRound * 1000.0 / elapsed;
+		roundStartTime = now;
+		numPacketsAcknowledgedThisRound = 0;
+		double maximum = 0;
+		for(int i = 0; i < deliveryRates.length; i++)
+			maximum = Math.max(maximum, deliveryRates[i]);
+		maximumDeliveryRate = maximum;
+
+		long minimumRtt = Math.max(1, rttEstimator.getMinimumRtt());
+		double limit = CongestionController.WINDOW_LIMIT_GAIN * maximum * minimumRtt / 1000.0;
+		windowLimit = Math.min(Math.max(limit, CongestionController.MINIMUM_CONGESTION_WINDOW), CongestionController.MAXIMUM_CONGESTION_WINDOW);
+	}
+
+	public String toString() {
+		return "Congestion window: " + getCongestionWindow() + ", in flight: " + numPacketsInFlight + ", pacing rate: " + (long) getPacingRate() +
+				"/s, limit: " + getWindowLimit() + ", lost: " + numPacketsLost + ", loss events: " + numLossEvents + ", timeouts: " + numTimeouts;
+	}
+}
\ No newline at end of file
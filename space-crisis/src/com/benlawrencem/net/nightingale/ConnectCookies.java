@@ -0,0 +1,141 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Makes and checks the cookies a server answers connect requests with. A
+ * client has to send its cookie back before the server will spend anything
+ * on it, which it can only do if it's really getting packets at the address
+ * it says it's at. The cookie carries everything needed to check it, so the
+ * server doesn't have to remember who it's handed them out to:
+ *
+ *   int     when it was made, in seconds since these cookies started
+ *   byte[8] the first 8 bytes of HMAC-SHA256(key, time, port, address)
+ *
+ * The key is made up fresh for each set of cookies and never leaves the
+ * server, so a cookie can't be forged, and one that's made it back in time
+ * is only ever good for the address and port it was made for.
+ */
+class ConnectCookies {
+	public static final int COOKIE_SIZE = 12;
+	private static final int MAC_SIZE = 8;
+	//long enough for a client to get the cookie back to us with a few resends along the way
+	private static final int COOKIE_LIFETIME = 10;
+	private static final String ALGORITHM = "HmacSHA256";
+	private final SecretKeySpec key;
+	private final long startNanoTime;
+	//macs can't be shared between threads, and every shard checks cookies, so each thread gets its own
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(ConnectCookies.ALGORITHM);
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				//every Java platform has to support HmacSHA256
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	//the time, port and address are put together here to be signed, and the signature comes out in here too
+	private static final ThreadLocal<byte[]> SIGN_BYTES = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[Math.max(6 + PacketCapture.MAXIMUM_ADDRESS_LENGTH, 32)];
+		}
+	};
+
+	public ConnectCookies() {
+		byte[] keyBytes = new byte[32];
+		new SecureRandom().nextBytes(keyBytes);
+		key = new SecretKeySpec(keyBytes, ConnectCookies.ALGORITHM);
+		startNanoTime = System.nanoTime();
+	}
+
+	/**
+	 * Writes a cookie for the address and port at the buffer's position.
+	 */
+	public void write(ByteBuffer buffer, String address, int port) {
+		int time = getTime();
+		byte[] signature = sign(time, address, port);
+		buffer.putInt(time);
+		buffer.put(signature, 0, ConnectCookies.MAC_SIZE);
+	}
+
+	/**
+	 * Returns whether the bytes between the buffer's position and limit are a
+	 * cookie these cookies made for the address and port lately, without
+	 * changing the buffer's position.
+	 */
+	public boolean isValid(ByteBuffer cookie, String address, int port) {
+		if(cookie == null || cookie.remaining() != ConnectCookies.COOKIE_SIZE)
+			return false;
+		int start = cookie.position();
+		int time = cookie.getInt(start);
+		int age = getTime() - time;
+		if(age < 0 || age > ConnectCookies.COOKIE_LIFETIME)
+			return false;
+
+		//every byte is compared whatever happens, so how long it takes doesn't say how much of a forgery was right
+		byte[] signature = sign(time, address, port);
+		int difference = 0;
+		for(int i = 0; i < ConnectCookies.MAC_SIZE; i++)
+			difference |= signature[i] ^ cookie.get(start + 4 + i);
+		return difference == 0;
+	}
+
+	/**
+	 * Returns whether the bytes between the buffer's position and limit are
+	 * the zeros a client sends before it has a cookie.
+	 */
+	public static boolean isBlank(ByteBuffer cookie) {
+		if(cookie == null)
+			return true;
+		for(int i = cookie.position(); i < cookie.limit(); i++) {
+			if(cookie.get(i) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns when the cookie between the buffer's position and limit says it
+	 * was made.
+	 */
+	public static int getTime(ByteBuffer cookie) {
+		return cookie.getInt(cookie.position());
+	}
+
+	/**
+	 * Returns the time a cookie made now would say it was made.
+	 */
+	public int getTime() {
+		return (int) ((System.nanoTime() - startNanoTime) / 1000000000L);
+	}
+
+	private byte[] sign(int time, String address, int port) {
+		byte[] bytes = SIGN_BYTES.get();
+		int addressLength = Math.min(address == null ? 0 : address.length(), PacketCapture.MAXIMUM_ADDRESS_LENGTH);
+		bytes[0] = (byte) (time >>> 24);
+		bytes[1] = (byte) (time >>> 16);
+		bytes[2] = (byte) (time >>> 8);
+		bytes[3] = (byte) time;
+		bytes[4] = (byte) (port >>> 8);
+		bytes[5] = (byte) port;
+		for(int i = 0; i < addressLength; i++)
+			bytes[6 + i] = (byte) address.charAt(i);
+		Mac mac = macs.get();
+		mac.update(bytes, 0, 6 + addressLength);
+		try {
+			mac.doFinal(bytes, 0);
+		} catch (GeneralSecurityException e) {
+			//the buffer always has room for the whole mac
+			throw new IllegalStateException(e);
+		}
+		return bytes;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Hands out connection ids in constant time. Free ids wait in a ring and
+ * get handed out oldest-freed first, so an id that was just released isn't
+ * given straight back out while packets meant for its last owner might
+ * still be arriving.
+ */
+class ConnectionIdAllocator {
+	private final int[] freeIds;
+	private final boolean[] isAllocated;
+	private int head;
+	private int numFree;
+
+	public ConnectionIdAllocator() {
+		freeIds = new int[Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID + 1];
+		isAllocated = new boolean[Packet.MAXIMUM_CONNECTION_ID + 1];
+		reset();
+	}
+
+	/**
+	 * Returns an unused connection id, or Packet.ANONYMOUS_CONNECTION_ID if
+	 * every id is already taken.
+	 */
+	public synchronized int allocate() {
+		if(numFree == 0)
+			return Packet.ANONYMOUS_CONNECTION_ID;
+		int connectionId = freeIds[head];
+		head = (head + 1) % freeIds.length;
+		numFree--;
+		isAllocated[connectionId] = true;
+		return connectionId;
+	}
+
+	/**
+	 * Puts the connection id back to be used again. Ids that weren't handed
+	 * out by this allocator (or were already released) are ignored.
+	 */
+	public synchronized void release(int connectionId) {
+		if(connectionId < Packet.MINIMUM_CONNECTION_ID || connectionId > Packet.MAXIMUM_CONNECTION_ID || !isAllocated[connectionId])
+			return;
+		isAllocated[connectionId] = false;
+		freeIds[(head + numFree) % freeIds.length] = connectionId;
+		numFree++;
+	}
+
+	public synchronized int getNumAllocated() {
+		return freeIds.length - numFree;
+	}
+
+	public synchronized void reset() {
+		for(int i = 0; i < freeIds.length; i++) {
+			freeIds[i] = Packet.MINIMUM_CONNECTION_ID + i;
+			isAllocated[freeIds[i]] = false;
+		}
+		head = 0;
+		numFree = freeIds.length;
+	}
+}
\ No newline at end of file
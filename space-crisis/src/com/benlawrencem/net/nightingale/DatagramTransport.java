@@ -0,0 +1,22 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The socket underneath a {@link Server} or {@link ClientConnection}. A
+ * transport delivers every incoming datagram to the {@link PacketReceiver}
+ * it was opened with and sends outgoing datagrams on request.
+ */
+public interface DatagramTransport {
+	/**
+	 * Sends the remaining bytes of the buffer as a single datagram. The
+	 * buffer's position may be changed by this call.
+	 */
+	void send(ByteBuffer data, InetSocketAddress address) throws IOException;
+
+	int getLocalPort();
+
+	void close();
+}
\ No newline at end of file
@@ -0,0 +1,26 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+
+/**
+ * Opens the transports a {@link Server} or {@link ClientConnection} sends
+ * and receives through. {@link NioEngine} opens non-blocking sockets and
+ * {@link InMemoryNetwork} opens transports that never leave the JVM. Passing
+ * a null factory gets the original blocking sockets.
+ */
+public interface DatagramTransportFactory {
+	/**
+	 * Opens a transport on any free port.
+	 */
+	DatagramTransport open(PacketReceiver receiver) throws IOException;
+
+	/**
+	 * Opens a transport on the given port, or any free port if it's 0. If
+	 * reusePort is true several transports can share the port, with each
+	 * sender's datagrams always going to the same one of them. Throws an
+	 * IOException if that isn't supported.
+	 */
+	DatagramTransport open(PacketReceiver receiver, int port, boolean reusePort) throws IOException;
+
+	boolean isReusePortSupported();
+}
\ No newline at end of file
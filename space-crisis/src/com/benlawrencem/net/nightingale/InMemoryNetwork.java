@@ -0,0 +1,460 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
+
+/**
+ * A pretend network that never leaves the JVM, for connecting a server to
+ * thousands of clients on one machine without running out of sockets, and
+ * for seeing how connections hold up when the network is bad. Pass it to a
+ * {@link Server} and its {@link ClientConnection}s in place of an
+ * {@link NioEngine} and have the clients connect to 127.0.0.1 on the
+ * server's port.
+ *
+ * Every datagram can be lost, duplicated or held back so that packets sent
+ * after it overtake it, and takes the latency (plus up to the jitter) to
+ * arrive. With a bandwidth set, each sender to receiver link only carries
+ * that many bytes a second, and datagrams queue up behind one another until
+ * the link is a second behind, when it starts dropping them like a router
+ * with a full buffer would. What happens to each datagram is decided by a
+ * random number generator for its link seeded from the network's seed, so
+ * the same seed loses, duplicates and reorders the same datagrams on every
+ * run. Delays are still measured in real time though, so what the
+ * connections do about it can vary a little with how busy the machine is.
+ *
+ * Datagrams are delivered one at a time on a thread of the network's own,
+ * so receivers never hear about more than one at once.
+ */
+public class InMemoryNetwork implements DatagramTransportFactory {
+	private static final Logger logger = Logger.getLogger(InMemoryNetwork.class.getName());
+	//every transport is on the same pretend machine
+	private static final String ADDRESS = "127.0.0.1";
+	private static final int FIRST_EPHEMERAL_PORT = 1024;
+	private static final int MAXIMUM_PORT = 65535;
+	private static final long MAXIMUM_QUEUE_DELAY = 1000000000L;
+	private final Object NETWORK_LOCK = new Object();
+	private final long seed;
+	private final ConcurrentMap<Integer, InMemoryTransport[]> ports = new ConcurrentHashMap<Integer, InMemoryTransport[]>();
+	private final ConcurrentMap<Long, Link> links = new ConcurrentHashMap<Long, Link>();
+	private final PriorityQueue<Datagram> datagrams = new PriorityQueue<Datagram>();
+	private long nextDatagramId;
+	private int nextEphemeralPort;
+	private final DeliveryThread deliveryThread;
+	private volatile double lossRate;
+	private volatile double duplicationRate;
+	private volatile double reorderRate;
+	private volatile int reorderDelay;
+	private volatile int latency;
+	private volatile int jitter;
+	private volatile int bandwidth;
+	private final AtomicLong numDatagramsSent = new AtomicLong();
+	private final AtomicLong numDatagramsLost = new AtomicLong();
+	private final AtomicLong numDatagramsDuplicated = new AtomicLong();
+	private final AtomicLong numDatagramsReordered = new AtomicLong();
+	private final AtomicLong numDatagramsDelivered = new AtomicLong();
+
+	public InMemoryNetwork() {
+		this(0);
+	}
+
+	public InMemoryNetwork(long seed) {
+		this.seed = seed;
+		nextDatagramId = 0;
+		nextEphemeralPort = InMemoryNetwork.FIRST_EPHEMERAL_PORT;
+		lossRate = 0;
+		duplicationRate = 0;
+		reorderRate = 0;
+		reorderDelay = 10;
+		latency = 0;
+		jitter = 0;
+		bandwidth = 0;
+		deliveryThread = new DeliveryThread();
+		deliveryThread.start();
+	}
+
+	public DatagramTransport open(PacketReceiver receiver) throws IOException {
+		return open(receiver, 0, false);
+	}
+
+	public DatagramTransport open(PacketReceiver receiver, int port, boolean reusePort) throws IOException {
+		synchronized(NETWORK_LOCK) {
+			if(port == 0)
+				port = findFreePort();
+			else if(port < 0 || port > InMemoryNetwork.MAXIMUM_PORT)
+				throw new BindException("Port " + port + " is out of range.");
+			InMemoryTransport[] bound = ports.get(port);
+			if(bound == null)
+				bound = new InMemoryTransport[0];
+			for(InMemoryTransport other : bound) {
+				if(!reusePort || !other.reusePort)
+					throw new BindException("Port " + port + " is already in use.");
+			}
+			InMemoryTransport transport = new InMemoryTransport(receiver, port, reusePort);
+			InMemoryTransport[] biggerBound = new InMemoryTransport[bound.length + 1];
+			System.arraycopy(bound, 0, biggerBound, 0, bound.length);
+			biggerBound[bound.length] = transport;
+			ports.put(port, biggerBound);
+			return transport;
+		}
+	}
+
+	public boolean isReusePortSupported() {
+		return true;
+	}
+
+	/**
+	 * Stops delivering datagrams. Anything still on its way is lost.
+	 */
+	public void shutdown() {
+		deliveryThread.stopDelivering();
+		synchronized(datagrams) {
+			datagrams.clear();
+		}
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, of each datagram never arriving.
+	 */
+	public void setLossRate(double lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	public double getLossRate() {
+		return lossRate;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, of each datagram arriving twice. The
+	 * copy takes its own time to arrive.
+	 */
+	public void setDuplicationRate(double duplicationRate) {
+		this.duplicationRate = duplicationRate;
+	}
+
+	public double getDuplicationRate() {
+		return duplicationRate;
+	}
+
+	/**
+	 * Sets the chance, from 0 to 1, of each datagram being held up for
+	 * another reorderDelay milliseconds, long enough for the ones sent
+	 * after it to get there first.
+	 */
+	public void setReordering(double reorderRate, int reorderDelay) {
+		this.reorderRate = reorderRate;
+		this.reorderDelay = reorderDelay;
+	}
+
+	public double getReorderRate() {
+		return reorderRate;
+	}
+
+	public int getReorderDelay() {
+		return reorderDelay;
+	}
+
+	/**
+	 * Sets how many milliseconds every datagram takes to arrive, one way.
+	 */
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	public int getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Sets how many milliseconds on top of the latency a datagram can take,
+	 * chosen at random for each one. Anything more than the time between
+	 * datagrams reorders some of them.
+	 */
+	public void setJitter(int jitter) {
+		this.jitter = jitter;
+	}
+
+	public int getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * Sets how many bytes a second each sender can get through to each
+	 * receiver, or 0 for no limit.
+	 */
+	public void setBandwidth(int bytesPerSecond) {
+		bandwidth = bytesPerSecond;
+	}
+
+	public int getBandwidth() {
+		return bandwidth;
+	}
+
+	public long getNumDatagramsSent() {
+		return numDatagramsSent.get();
+	}
+
+	/**
+	 * Returns how many datagrams were lost on purpose or because their link
+	 * was too far behind. Datagrams sent to a port nobody's listening on
+	 * don't count.
+	 */
+	public long getNumDatagramsLost() {
+		return numDatagramsLost.get();
+	}
+
+	public long getNumDatagramsDuplicated() {
+		return numDatagramsDuplicated.get();
+	}
+
+	public long getNumDatagramsReordered() {
+		return numDatagramsReordered.get();
+	}
+
+	public long getNumDatagramsDelivered() {
+		return numDatagramsDelivered.get();
+	}
+
+	private int findFreePort() throws BindException {
+		int numPorts = InMemoryNetwork.MAXIMUM_PORT - InMemoryNetwork.FIRST_EPHEMERAL_PORT + 1;
+		for(int i = 0; i < numPorts; i++) {
+			int port = nextEphemeralPort;
+			nextEphemeralPort = (port == InMemoryNetwork.MAXIMUM_PORT ? InMemoryNetwork.FIRST_EPHEMERAL_PORT : port + 1);
+			if(!ports.containsKey(port))
+				return port;
+		}
+		throw new BindException("No ports left.");
+	}
+
+	private void close(InMemoryTransport transport) {
+		synchronized(NETWORK_LOCK) {
+			InMemoryTransport[] bound = ports.get(transport.port);
+			if(bound == null)
+				return;
+			for(int i = 0; i < bound.length; i++) {
+				if(bound[i] == transport) {
+					if(bound.length == 1)
+						ports.remove(transport.port);
+					else {
+						InMemoryTransport[] smallerBound = new InMemoryTransport[bound.length - 1];
+						System.arraycopy(bound, 0, smallerBound, 0, i);
+						System.arraycopy(bound, i + 1, smallerBound, i, bound.length - i - 1);
+						ports.put(transport.port, smallerBound);
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	private void send(InMemoryTransport from, ByteBuffer data, int toPort) {
+		//the caller reuses its buffer, so the datagram gets a copy of its own
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		numDatagramsSent.incrementAndGet();
+
+		Link link = getLink(from.port, toPort);
+		long now = System.nanoTime();
+		long deliveryTime;
+		long duplicateDeliveryTime = -1;
+		synchronized(link) {
+			//the same number of random numbers is drawn for every datagram, so one datagram's fate never changes another's
+			Random random = link.random;
+			boolean isLost = random.nextDouble() < lossRate;
+			boolean isDuplicated = random.nextDouble() < duplicationRate;
+			boolean isReordered = random.nextDouble() < reorderRate;
+			int delay = latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+			int duplicateDelay = latency + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+
+			//a link that's busy sending what it was given before has to finish that first
+			long sendTime = now;
+			if(bandwidth > 0) {
+				long startTime = Math.max(now, link.timeAvailable);
+				if(startTime - now > InMemoryNetwork.MAXIMUM_QUEUE_DELAY)
+					isLost = true;
+				else {
+					link.timeAvailable = startTime + bytes.length * 1000000000L / bandwidth;
+					sendTime = link.timeAvailable;
+				}
+			}
+			if(isLost) {
+				numDatagramsLost.incrementAndGet();
+				return;
+			}
+			if(isReordered) {
+				delay += reorderDelay;
+				numDatagramsReordered.incrementAndGet();
+			}
+			deliveryTime = sendTime + delay * 1000000L;
+			if(isDuplicated) {
+				duplicateDeliveryTime = sendTime + duplicateDelay * 1000000L;
+				numDatagramsDuplicated.incrementAndGet();
+			}
+		}
+		enqueue(new Datagram(deliveryTime, from.port, toPort, bytes));
+		if(duplicateDeliveryTime != -1)
+			enqueue(new Datagram(duplicateDeliveryTime, from.port, toPort, bytes));
+	}
+
+	private Link getLink(int fromPort, int toPort) {
+		Long key = Long.valueOf(((long) fromPort << 16) | toPort);
+		Link link = links.get(key);
+		if(link == null) {
+			//each link's random numbers only depend on the seed and its ports, not on what else is going on
+			Link newLink = new Link(new Random(seed ^ (key.longValue() * 0x9E3779B97F4A7C15L)));
+			link = links.putIfAbsent(key, newLink);
+			if(link == null)
+				link = newLink;
+		}
+		return link;
+	}
+
+	private void enqueue(Datagram datagram) {
+		synchronized(datagrams) {
+			datagram.id = nextDatagramId++;
+			datagrams.add(datagram);
+			//the delivery thread only needs waking if this is due before whatever it's waiting for
+			if(datagrams.peek() == datagram)
+				datagrams.notify();
+		}
+	}
+
+	private void deliver(Datagram datagram, Packet packet) {
+		InMemoryTransport[] bound = ports.get(datagram.toPort);
+		if(bound == null || bound.length == 0)
+			return;
+
+		//like SO_REUSEPORT, each sender's datagrams always go to the same one of the transports sharing a port
+		InMemoryTransport transport = bound[datagram.fromPort % bound.length];
+		numDatagramsDelivered.incrementAndGet();
+		try {
+			packet.readFrom(ByteBuffer.wrap(datagram.bytes));
+			NetworkEvents.INSTANCE.packetReceived(packet, datagram.bytes.length, InMemoryNetwork.ADDRESS, datagram.fromPort);
+		} catch (MalformedPacketException e) {
+			packet = null;
+			NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_MALFORMED, null, InMemoryNetwork.ADDRESS, datagram.fromPort);
+		}
+		try {
+			transport.receiver.receivePacket(packet, InMemoryNetwork.ADDRESS, datagram.fromPort);
+		} catch (RuntimeException e) {
+			//one misbehaving receiver shouldn't take down everyone else on the network
+			logger.log(Level.WARNING, "Exception while delivering packet to port " + datagram.toPort, e);
+		}
+	}
+
+	private class InMemoryTransport implements DatagramTransport {
+		private final PacketReceiver receiver;
+		private final int port;
+		private final boolean reusePort;
+		private volatile boolean isOpen;
+
+		public InMemoryTransport(PacketReceiver receiver, int port, boolean reusePort) {
+			this.receiver = receiver;
+			this.port = port;
+			this.reusePort = reusePort;
+			isOpen = true;
+		}
+
+		public void send(ByteBuffer data, InetSocketAddress address) throws IOException {
+			if(!isOpen)
+				throw new SocketException("Socket is closed.");
+			InMemoryNetwork.this.send(this, data, address.getPort());
+		}
+
+		public int getLocalPort() {
+			return port;
+		}
+
+		public void close() {
+			isOpen = false;
+			InMemoryNetwork.this.close(this);
+		}
+	}
+
+	private static class Link {
+		private final Random random;
+		//when the link will have finished sending everything it's been given so far
+		private long timeAvailable;
+
+		public Link(Random random) {
+			this.random = random;
+			timeAvailable = Long.MIN_VALUE;
+		}
+	}
+
+	private static class Datagram implements Comparable<Datagram> {
+		private final long deliveryTime;
+		private final int fromPort;
+		private final int toPort;
+		private final byte[] bytes;
+		//datagrams due at the same time are delivered in the order they were sent
+		private long id;
+
+		public Datagram(long deliveryTime, int fromPort, int toPort, byte[] bytes) {
+			this.deliveryTime = deliveryTime;
+			this.fromPort = fromPort;
+			this.toPort = toPort;
+			this.bytes = bytes;
+		}
+
+		public int compareTo(Datagram other) {
+			//nanoTime can be negative, so times are compared by their difference
+			long delta = deliveryTime - other.deliveryTime;
+			if(delta != 0)
+				return (delta < 0 ? -1 : 1);
+			return (id < other.id ? -1 : (id == other.id ? 0 : 1));
+		}
+	}
+
+	private class DeliveryThread extends Thread {
+		private volatile boolean isDelivering;
+
+		public DeliveryThread() {
+			super("nightingale-in-memory-network");
+			setDaemon(true);
+			isDelivering = true;
+		}
+
+		public void run() {
+			//like the receive loops, the same packet is reused for every datagram
+			Packet packet = new Packet();
+			while(isDelivering) {
+				Datagram datagram;
+				synchronized(datagrams) {
+					datagram = datagrams.peek();
+					try {
+						if(datagram == null) {
+							datagrams.wait();
+							continue;
+						}
+						long wait = datagram.deliveryTime - System.nanoTime();
+						if(wait > 0) {
+							datagrams.wait(wait / 1000000, (int) (wait % 1000000));
+							continue;
+						}
+					} catch (InterruptedException e) {
+						continue;
+					}
+					datagrams.poll();
+				}
+				deliver(datagram, packet);
+			}
+		}
+
+		public void stopDelivering() {
+			isDelivering = false;
+			interrupt();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,229 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a Server's listener callbacks on an executor instead of the receive
+ * thread. Each client gets a queue of its own that's drained by one task at a
+ * time, so a client's callbacks happen strictly in order while different
+ * clients' callbacks run side by side. Connection requests share a queue of
+ * their own since there's no client yet.
+ *
+ * Each queue holds at most maxBacklog callbacks. Once a client's listener
+ * falls that far behind, further messages on the unreliable channels (and
+ * undelivered message reports) for it are dropped, same as if the packets
+ * had been lost on the way. Messages on the reliable channels have already
+ * been acknowledged by then and will never be resent, so they're queued
+ * however far behind the listener is, and so are disconnects.
+ */
+class ListenerDispatcher {
+	private static final Logger logger = Logger.getLogger(ListenerDispatcher.class.getName());
+	public static final int DEFAULT_MAX_BACKLOG = 256;
+	private static final int INITIAL_QUEUE_SIZE = 8;
+	//a queue gives up its thread after this many callbacks so other clients get a turn
+	private static final int CALLBACKS_PER_RUN = 64;
+	private static final int RECEIVE = 1;
+	private static final int MESSAGE_NOT_DELIVERED = 2;
+	private static final int CLIENT_DISCONNECTED = 3;
+	private static final int CONNECT_REQUEST = 4;
+
+	private Server server;
+	private ServerListener listener;
+	private Executor executor;
+	private int maxBacklog;
+	private AtomicLong numDroppedCallbacks;
+	private ListenerQueue connectRequests;
+
+	public ListenerDispatcher(Server server, ServerListener listener, Executor executor, int maxBacklog) {
+		this.server = server;
+		this.listener = listener;
+		this.executor = executor;
+		this.maxBacklog = Math.max(1, maxBacklog);
+		numDroppedCallbacks = new AtomicLong(0);
+		connectRequests = new ListenerQueue();
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	public long getNumDroppedCallbacks() {
+		return numDroppedCallbacks.get();
+	}
+
+	public ListenerQueue createQueue() {
+		return new ListenerQueue();
+	}
+
+	/**
+	 * Returns false if the request had to be dropped because too many are
+	 * already waiting.
+	 */
+	public boolean dispatchConnectRequest(int clientId, String address, int port, int connectCookieTime, DatagramTransport transport) {
+		//a connect request has no message id, so the time its cookie was made goes there instead
+		return connectRequests.add(ListenerDispatcher.CONNECT_REQUEST, clientId, connectCookieTime, 0, address, port, transport, null, true);
+	}
+
+	private static class Callback {
+		private int type;
+		private int clientId;
+		private int messageId;
+		private int resendMessageId;
+		private String text;
+		private int port;
+		private DatagramTransport transport;
+		private ByteBuffer payload;
+		private boolean hasPayload;
+	}
+
+	class ListenerQueue implements Runnable {
+		private Callback[] callbacks;
+		private int head;
+		private int count;
+		private boolean isScheduled;
+
+		public ListenerQueue() {
+			callbacks = new Callback[Math.min(ListenerDispatcher.INITIAL_QUEUE_SIZE, maxBacklog)];
+			head = 0;
+			count = 0;
+			isScheduled = false;
+		}
+
+		public ListenerDispatcher getDispatcher() {
+			return ListenerDispatcher.this;
+		}
+
+		/**
+		 * Queues a copy of the message--the buffer it arrived in will be
+		 * reused long before the listener gets to it.
+		 */
+		public void receive(int clientId, ByteBuffer payload, boolean isReliable) {
+			add(ListenerDispatcher.RECEIVE, clientId, 0, 0, null, 0, null, payload, !isReliable);
+		}
+
+		public void messageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer payload) {
+			add(ListenerDispatcher.MESSAGE_NOT_DELIVERED, clientId, messageId, resendMessageId, null, 0, null, payload, true);
+		}
+
+		public void clientDisconnected(int clientId, String reason) {
+			//disconnects always get through so the listener can clean up after the client
+			add(ListenerDispatcher.CLIENT_DISCONNECTED, clientId, 0, 0, reason, 0, null, null, false);
+		}
+
+		private boolean add(int type, int clientId, int messageId, int resendMessageId, String text, int port, DatagramTransport transport, ByteBuffer payload, boolean isDroppable) {
+			synchronized(this) {
+				if(count == callbacks.length) {
+					if(count >= maxBacklog && isDroppable) {
+						numDroppedCallbacks.incrementAndGet();
+						logger.fine("Dropping callback for client " + clientId + " because its listener is " + count + " callbacks behind");
+						return false;
+					}
+					grow();
+				}
+				int index = (head + count) % callbacks.length;
+				Callback callback = callbacks[index];
+				if(callback == null)
+					callback = callbacks[index] = new Callback();
+				callback.type = type;
+				callback.clientId = clientId;
+				callback.messageId = messageId;
+				callback.resendMessageId = resendMessageId;
+				callback.text = text;
+				callback.port = port;
+				callback.transport = transport;
+				callback.hasPayload = (payload != null);
+				if(payload != null) {
+					//each slot keeps its own buffer and only replaces it with a bigger one when it has to
+					if(callback.payload == null || callback.payload.capacity() < payload.remaining())
+						callback.payload = ByteBuffer.allocate(Math.max(payload.remaining(), 64));
+					callback.payload.clear();
+					int start = payload.position();
+					for(int i = 0; i < payload.remaining(); i++)
+						callback.payload.put(payload.get(start + i));
+					callback.payload.flip();
+				}
+				count++;
+				if(isScheduled)
+					return true;
+				isScheduled = true;
+			}
+			schedule();
+			return true;
+		}
+
+		public void run() {
+			for(int i = 0; i < ListenerDispatcher.CALLBACKS_PER_RUN; i++) {
+				Callback callback;
+				synchronized(this) {
+					if(count == 0) {
+						isScheduled = false;
+						return;
+					}
+					callback = callbacks[head];
+				}
+
+				//the slot stays ours until we move the head past it, so it's safe to use outside of the lock
+				try {
+					deliver(callback);
+				} catch(RuntimeException e) {
+					logger.log(Level.WARNING, "Listener threw an exception handling a callback for client " + callback.clientId, e);
+				}
+				synchronized(this) {
+					callback.text = null;
+					callback.transport = null;
+					head = (head + 1) % callbacks.length;
+					count--;
+				}
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				synchronized(this) {
+					isScheduled = false;
+				}
+				logger.warning("Listener executor rejected callbacks: " + e.getMessage());
+			}
+		}
+
+		private void grow() {
+			//past the backlog it only grows for callbacks that can't be dropped, and then it grows like any other queue
+			int length = (callbacks.length < maxBacklog ? Math.min(2 * callbacks.length, maxBacklog) : 2 * callbacks.length);
+			Callback[] biggerCallbacks = new Callback[length];
+			for(int i = 0; i < count; i++)
+				biggerCallbacks[i] = callbacks[(head + i) % callbacks.length];
+			callbacks = biggerCallbacks;
+			head = 0;
+		}
+
+		private void deliver(Callback callback) {
+			ByteBuffer payload = (callback.hasPayload ? callback.payload : null);
+			switch(callback.type) {
+				case ListenerDispatcher.RECEIVE:
+					listener.onReceive(callback.clientId, payload);
+					break;
+				case ListenerDispatcher.MESSAGE_NOT_DELIVERED:
+					listener.onMessageNotDelivered(callback.messageId, callback.resendMessageId, callback.clientId, payload);
+					break;
+				case ListenerDispatcher.CLIENT_DISCONNECTED:
+					listener.onClientDisconnected(callback.clientId, callback.text);
+					break;
+				case ListenerDispatcher.CONNECT_REQUEST:
+					server.handleConnectRequest(callback.clientId, callback.text, callback.port, callback.messageId, callback.transport);
+					break;
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects application messages bound for the same client so they can go out
+ * together in a single APPLICATION_BUNDLE packet. Each message is framed by a
+ * two byte length:
+ * 
+ * 	short	2 bytes	message length
+ * 	byte[]	n bytes	message
+ * 
+ * Every message in a bundle goes out on the same channel. On the reliable
+ * channels each message starts with the id it was given on its channel, and
+ * the framed length includes it:
+ * 
+ * 	short	2 bytes	message id
+ * 	byte[]	n bytes	message
+ */
+class MessageBundle {
+	private static final int FRAME_HEADER_SIZE = 2;
+	private static final int MESSAGE_ID_SIZE = 2;
+	private Packet.Channel channel;
+	private ByteBuffer frames;
+	private int numMessages;
+	private long timeOfFirstMessage;
+
+	public MessageBundle() {
+		this(Packet.Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public MessageBundle(Packet.Channel channel) {
+		this.channel = channel;
+		frames = null;
+		numMessages = 0;
+		timeOfFirstMessage = -1;
+	}
+
+	public boolean isEmpty() {
+		return numMessages == 0;
+	}
+
+	public int getNumMessages() {
+		return numMessages;
+	}
+
+	public long getTimeOfFirstMessage() {
+		return timeOfFirstMessage;
+	}
+
+	/**
+	 * Adds the message between the buffer's position and limit to the bundle,
+	 * or returns false if there isn't room left for it. A null message is
+	 * treated as empty.
+	 */
+	public boolean add(ByteBuffer message) {
+		return add(Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, message);
+	}
+
+	/**
+	 * Adds a message along with the id it was given on the bundle's channel.
+	 * The id is ignored unless the channel is reliable.
+	 */
+	public boolean add(int messageId, ByteBuffer message) {
+		int length = (message == null ? 0 : message.remaining());
+		int idLength = (channel.isReliable() ? MessageBundle.MESSAGE_ID_SIZE : 0);
+		if(frames == null)
+			frames = ByteBuffer.allocate(Packet.MAXIMUM_PAYLOAD_SIZE);
+		if(frames.remaining() < MessageBundle.FRAME_HEADER_SIZE + idLength + length)
+			return false;
+		frames.putShort((short) (idLength + length));
+		if(idLength > 0)
+			frames.putShort((short) messageId);
+		for(int i = 0; i < length; i++)
+			frames.put(message.get(message.position() + i));
+		if(numMessages == 0)
+			timeOfFirstMessage = System.currentTimeMillis();
+		numMessages++;
+		return true;
+	}
+
+	/**
+	 * Turns the bundled messages into a packet and empties the bundle. The
+	 * packet keeps the bundle's buffer, so the bundle starts a fresh one.
+	 */
+	public Packet toPacket(int connectionId) {
+		frames.flip();
+		Packet packet = Packet.createApplicationBundlePacket(connectionId, channel, frames);
+		frames = null;
+		numMessages = 0;
+		timeOfFirstMessage = -1;
+		return packet;
+	}
+
+	public static boolean fits(int messageLength) {
+		return MessageBundle.FRAME_HEADER_SIZE + messageLength <= Packet.MAXIMUM_PAYLOAD_SIZE;
+	}
+
+	public static boolean fits(int messageLength, Packet.Channel channel) {
+		return fits(messageLength + (channel.isReliable() ? MessageBundle.MESSAGE_ID_SIZE : 0));
+	}
+
+	/**
+	 * Returns the biggest message that fits in a bundle on the given channel.
+	 */
+	public static int getMaximumMessageSize(Packet.Channel channel) {
+		return Packet.MAXIMUM_PAYLOAD_SIZE - MessageBundle.FRAME_HEADER_SIZE - (channel.isReliable() ? MessageBundle.MESSAGE_ID_SIZE : 0);
+	}
+
+	/**
+	 * Wraps a single reliable message in a bundle of its own, for when it
+	 * isn't being held back to go out with others.
+	 */
+	public static Packet createReliablePacket(int connectionId, Packet.Channel channel, int messageId, ByteBuffer message) {
+		MessageBundle bundle = new MessageBundle(channel);
+		int length = (message == null ? 0 : message.remaining());
+		bundle.frames = ByteBuffer.allocate(MessageBundle.FRAME_HEADER_SIZE + MessageBundle.MESSAGE_ID_SIZE + length);
+		bundle.add(messageId, message);
+		return bundle.toPacket(connectionId);
+	}
+
+	/**
+	 * Reads the id off the front of a reliable message selected with
+	 * {@link #selectFrame} and moves the buffer's position past it. Returns
+	 * Packet.SEQUENCE_NUMBER_NOT_APPLICABLE if the frame is too short to
+	 * have one.
+	 */
+	public static int readMessageId(ByteBuffer frame) {
+		if(frame.remaining() < MessageBundle.MESSAGE_ID_SIZE)
+			return Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		int messageId = frame.getShort(frame.position()) & 0xFFFF;
+		frame.position(frame.position() + MessageBundle.MESSAGE_ID_SIZE);
+		return messageId;
+	}
+
+	/**
+	 * Positions the buffer on the message framed at the given offset and
+	 * returns the offset of the frame after it, or -1 if there's no complete
+	 * frame at that offset. Iterate over a bundle's payload with:
+	 * 
+	 * 	int end = payload.limit();
+	 * 	for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;)
+	 * 		...
+	 */
+	public static int selectFrame(ByteBuffer payload, int offset, int end) {
+		//whoever read the last frame may have left the limit short of the rest of the bundle
+		payload.limit(end);
+		if(offset + MessageBundle.FRAME_HEADER_SIZE > end)
+			return -1;
+		int length = payload.getShort(offset) & 0xFFFF;
+		int start = offset + MessageBundle.FRAME_HEADER_SIZE;
+		if(start + length > end)
+			return -1;
+		payload.limit(start + length);
+		payload.position(start);
+		return start + length;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,253 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+
+/**
+ * Splits messages too big for a single packet into fragments, and puts them
+ * back together on the other side. Each fragment goes out in a packet of its
+ * own, flagged as a fragment, and starts with:
+ *
+ * 	short	2 bytes	fragment group id (which message it's a piece of)
+ * 	short	2 bytes	fragment index
+ * 	short	2 bytes	number of fragments
+ * 	byte[]	n bytes	fragment data
+ *
+ * Every fragment but the last is filled right up, so where a fragment's data
+ * belongs follows from its index. On a reliable channel each fragment is a
+ * reliable message of its own, so only the fragments that go missing get
+ * resent. On UNRELIABLE one lost fragment loses the whole message.
+ *
+ * Only a handful of half-received UNRELIABLE messages are kept per
+ * connection. One that hasn't had a fragment arrive in a while is thrown
+ * away, and so is the oldest one if room is needed for another. Reliable
+ * messages are always finished eventually since each missing fragment gets
+ * resent, so they're never thrown away for being slow--there's just a far
+ * higher cap on how many can be in progress, past which the oldest goes.
+ *
+ * Not thread safe. Whoever owns the connection calls it with the connection
+ * locked.
+ */
+class MessageFragments {
+	public static final int HEADER_SIZE = 6;
+	private static final int MAXIMUM_UNRELIABLE_PARTIAL_MESSAGES = 4;
+	private static final int MAXIMUM_RELIABLE_PARTIAL_MESSAGES = 256;
+	private static final long STALE_TIME = 5000;
+
+	private int lastSentGroupId;
+	//reliable slots are only created as they're needed
+	private PartialMessage[] unreliablePartialMessages;
+	private PartialMessage[] reliablePartialMessages;
+	private long numEvictedMessages;
+
+	public MessageFragments() {
+		unreliablePartialMessages = new PartialMessage[MessageFragments.MAXIMUM_UNRELIABLE_PARTIAL_MESSAGES];
+		for(int i = 0; i < unreliablePartialMessages.length; i++)
+			unreliablePartialMessages[i] = new PartialMessage();
+		reliablePartialMessages = new PartialMessage[0];
+		numEvictedMessages = 0;
+		reset();
+	}
+
+	/**
+	 * Returns whether a message of the given length is too big to go out on
+	 * the channel in one packet.
+	 */
+	public static boolean needsFragmenting(int messageLength, Channel channel) {
+		if(channel.isReliable())
+			return !MessageBundle.fits(messageLength, channel);
+		return messageLength > Packet.MAXIMUM_PAYLOAD_SIZE;
+	}
+
+	public static int getFragmentSize(Channel channel) {
+		//reliable fragments travel framed along with their message ids like any other reliable message
+		int maximumPayloadSize = (channel.isReliable() ? MessageBundle.getMaximumMessageSize(channel) : Packet.MAXIMUM_PAYLOAD_SIZE);
+		return maximumPayloadSize - MessageFragments.HEADER_SIZE;
+	}
+
+	public static int getNumFragments(int messageLength, Channel channel) {
+		int fragmentSize = getFragmentSize(channel);
+		return (messageLength + fragmentSize - 1) / fragmentSize;
+	}
+
+	/**
+	 * Creates the packet for one fragment of the message between the buffer's
+	 * position and limit. The message id is the fragment's id on its reliable
+	 * channel, and is ignored otherwise.
+	 */
+	public static Packet createFragmentPacket(int connectionId, Channel channel, int messageId, int groupId, int index, int numFragments, ByteBuffer message) {
+		int fragmentSize = getFragmentSize(channel);
+		int start = message.position() + index * fragmentSize;
+		int length = Math.min(fragmentSize, message.limit() - start);
+		ByteBuffer fragment = ByteBuffer.allocate(MessageFragments.HEADER_SIZE + length);
+		fragment.putShort((short) groupId);
+		fragment.putShort((short) index);
+		fragment.putShort((short) numFragments);
+		for(int i = 0; i < length; i++)
+			fragment.put(message.get(start + i));
+		fragment.flip();
+
+		Packet packet;
+		if(channel.isReliable())
+			packet = MessageBundle.createReliablePacket(connectionId, channel, messageId, fragment);
+		else {
+			packet = Packet.createApplicationPacket(connectionId, fragment);
+			packet.setChannel(channel);
+		}
+		packet.setIsFragment(true);
+		return packet;
+	}
+
+	public int nextGroupId() {
+		return lastSentGroupId = Packet.nextSequenceNumber(lastSentGroupId);
+	}
+
+	/**
+	 * Takes in a fragment that arrived on the given channel, adding the whole
+	 * message to receivedMessages if it was the last piece missing.
+	 */
+	public void receive(Channel channel, ByteBuffer fragment, ReceivedMessages receivedMessages) {
+		if(fragment == null || fragment.remaining() < MessageFragments.HEADER_SIZE)
+			return;
+		int start = fragment.position();
+		int groupId = fragment.getShort(start) & 0xFFFF;
+		int index = fragment.getShort(start + 2) & 0xFFFF;
+		int numFragments = fragment.getShort(start + 4) & 0xFFFF;
+		int dataLength = fragment.remaining() - MessageFragments.HEADER_SIZE;
+
+		//throw out anything that couldn't have come from a well behaved sender
+		int fragmentSize = getFragmentSize(channel);
+		if(numFragments == 0 || index >= numFragments || (numFragments - 1) * fragmentSize >= Packet.MAXIMUM_MESSAGE_SIZE)
+			return;
+		if(dataLength > fragmentSize || (index < numFragments - 1 && dataLength < fragmentSize))
+			return;
+
+		long now = System.currentTimeMillis();
+		PartialMessage message = findPartialMessage(channel, groupId, numFragments, now);
+		if(message.received[index])
+			return;
+		message.received[index] = true;
+		message.numReceived++;
+		message.timeOfLastFragment = now;
+		int offset = index * fragmentSize;
+		for(int i = 0; i < dataLength; i++)
+			message.data.put(offset + i, fragment.get(start + MessageFragments.HEADER_SIZE + i));
+		if(index == numFragments - 1)
+			message.length = offset + dataLength;
+
+		if(message.numReceived == message.numFragments) {
+			message.data.clear();
+			message.data.limit(message.length);
+			receivedMessages.add(message.data);
+			message.isInUse = false;
+		}
+	}
+
+	public int getNumPartialMessages() {
+		int numPartialMessages = 0;
+		for(PartialMessage message : unreliablePartialMessages) {
+			if(message.isInUse)
+				numPartialMessages++;
+		}
+		for(PartialMessage message : reliablePartialMessages) {
+			if(message.isInUse)
+				numPartialMessages++;
+		}
+		return numPartialMessages;
+	}
+
+	/**
+	 * Returns how many half-received messages have been thrown away, either
+	 * for going stale or to make room for newer ones.
+	 */
+	public long getNumEvictedMessages() {
+		return numEvictedMessages;
+	}
+
+	public void reset() {
+		lastSentGroupId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		for(PartialMessage message : unreliablePartialMessages)
+			message.isInUse = false;
+		for(PartialMessage message : reliablePartialMessages)
+			message.isInUse = false;
+	}
+
+	private PartialMessage findPartialMessage(Channel channel, int groupId, int numFragments, long now) {
+		PartialMessage[] partialMessages = (channel.isReliable() ? reliablePartialMessages : unreliablePartialMessages);
+		PartialMessage freeMessage = null;
+		PartialMessage oldestMessage = null;
+		for(PartialMessage message : partialMessages) {
+			if(message.isInUse && message.channel == channel && message.groupId == groupId && message.numFragments == numFragments)
+				return message;
+
+			//this is as good a time as any to get rid of stale messages
+			if(message.isInUse && !channel.isReliable() && now - message.timeOfLastFragment > MessageFragments.STALE_TIME) {
+				message.isInUse = false;
+				numEvictedMessages++;
+			}
+			if(!message.isInUse)
+				freeMessage = message;
+			else if(oldestMessage == null || message.timeOfLastFragment < oldestMessage.timeOfLastFragment)
+				oldestMessage = message;
+		}
+
+		if(freeMessage == null && channel.isReliable() && partialMessages.length < MessageFragments.MAXIMUM_RELIABLE_PARTIAL_MESSAGES)
+			freeMessage = growReliablePartialMessages();
+
+		//with no room left, the message that's gone longest without hearing anything makes way
+		if(freeMessage == null) {
+			freeMessage = oldestMessage;
+			numEvictedMessages++;
+		}
+		freeMessage.start(channel, groupId, numFragments, getFragmentSize(channel));
+		return freeMessage;
+	}
+
+	private PartialMessage growReliablePartialMessages() {
+		int size = Math.min(Math.max(2 * reliablePartialMessages.length, MessageFragments.MAXIMUM_UNRELIABLE_PARTIAL_MESSAGES), MessageFragments.MAXIMUM_RELIABLE_PARTIAL_MESSAGES);
+		PartialMessage[] biggerPartialMessages = new PartialMessage[size];
+		System.arraycopy(reliablePartialMessages, 0, biggerPartialMessages, 0, reliablePartialMessages.length);
+		for(int i = reliablePartialMessages.length; i < size; i++)
+			biggerPartialMessages[i] = new PartialMessage();
+		PartialMessage freeMessage = biggerPartialMessages[reliablePartialMessages.length];
+		reliablePartialMessages = biggerPartialMessages;
+		return freeMessage;
+	}
+
+	private static class PartialMessage {
+		private boolean isInUse;
+		private Channel channel;
+		private int groupId;
+		private int numFragments;
+		private int numReceived;
+		private boolean[] received;
+		private ByteBuffer data;
+		private int length;
+		private long timeOfLastFragment;
+
+		public PartialMessage() {
+			isInUse = false;
+			received = new boolean[0];
+			data = null;
+		}
+
+		public void start(Channel channel, int groupId, int numFragments, int fragmentSize) {
+			isInUse = true;
+			this.channel = channel;
+			this.groupId = groupId;
+			this.numFragments = numFragments;
+			numReceived = 0;
+			length = 0;
+
+			//the buffers stay around for the next message and only get replaced when they're too small
+			if(received.length < numFragments)
+				received = new boolean[numFragments];
+			for(int i = 0; i < numFragments; i++)
+				received[i] = false;
+			if(data == null || data.capacity() < numFragments * fragmentSize)
+				data = ByteBuffer.allocate(numFragments * fragmentSize);
+			data.clear();
+		}
+	}
+}
\ No newline at end of file
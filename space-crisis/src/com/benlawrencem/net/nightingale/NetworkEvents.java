@@ -0,0 +1,77 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.logging.Logger;
+
+/**
+ * Hooks for recording what happens to packets as JDK Flight Recorder
+ * events. Flight Recorder only exists on newer JVMs, so the events
+ * themselves live in the jfr source folder, which is its own Java 11
+ * project (space-crisis-jfr) and has to be put on the classpath alongside
+ * everything else. If they're there and the JVM has Flight Recorder,
+ * they're used; otherwise every hook does nothing. Either way a hook whose
+ * event isn't being recorded costs about as much as checking a flag, so
+ * unlike logging they can stay in the paths every packet goes through.
+ *
+ * Recording is started the usual way, with -XX:StartFlightRecording or
+ * jcmd, and the events show up under Nightingale.
+ */
+class NetworkEvents {
+	private static final Logger logger = Logger.getLogger(NetworkEvents.class.getName());
+	public static final String DROPPED_MALFORMED = "Malformed";
+	public static final String DROPPED_INVALID_PROTOCOL = "Invalid protocol";
+	public static final String DROPPED_UNKNOWN_CLIENT = "Unknown client";
+	public static final String DROPPED_ADDRESS_MISMATCH = "Address mismatch";
+	public static final String DROPPED_DUPLICATE = "Duplicate";
+	public static final String DROPPED_ADMISSION_QUEUE_FULL = "Admission queue full";
+	private static final String FLIGHT_RECORDER_EVENTS = "com.benlawrencem.net.nightingale.FlightRecorderNetworkEvents";
+	public static final NetworkEvents INSTANCE = NetworkEvents.load();
+
+	protected NetworkEvents() {}
+
+	/**
+	 * A datagram arrived and was read as a packet. It may still be dropped
+	 * by whoever it's handed to.
+	 */
+	public void packetReceived(Packet packet, int numBytes, String address, int port) {}
+
+	/**
+	 * A packet was thrown away without being acted on, for one of the
+	 * DROPPED_ reasons. The packet is null if it couldn't be read at all.
+	 */
+	public void packetDropped(String reason, Packet packet, String address, int port) {}
+
+	/**
+	 * A packet went out on the socket. Packets held back for pacing count
+	 * once they're actually sent.
+	 */
+	public void packetSent(int connectionId, int sequenceNumber, int numBytes) {}
+
+	/**
+	 * A message is going out again in a new packet.
+	 */
+	public void packetResent(int connectionId, int sequenceNumber, int originalSequenceNumber) {}
+
+	/**
+	 * A packet was given up for lost, either because numPacketsSentSince
+	 * packets sent after it arrived or because it's gone unacknowledged for
+	 * longer than the retransmission timeout.
+	 */
+	public void packetUndelivered(int sequenceNumber, int numPacketsSentSince, long timeSinceSent) {}
+
+	/**
+	 * Nothing arrived from the other side for too long, so the connection
+	 * was dropped.
+	 */
+	public void connectionTimedOut(int connectionId, String address, int port) {}
+
+	private static NetworkEvents load() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			return (NetworkEvents) Class.forName(NetworkEvents.FLIGHT_RECORDER_EVENTS).getDeclaredConstructor().newInstance();
+		} catch(Throwable e) {
+			//no Flight Recorder, or the events weren't compiled
+			logger.finer("Flight Recorder events are not available: " + e);
+			return new NetworkEvents();
+		}
+	}
+}
\ No newline at end of file
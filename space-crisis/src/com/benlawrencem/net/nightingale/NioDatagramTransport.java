@@ -0,0 +1,42 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Logger;
+
+class NioDatagramTransport implements DatagramTransport {
+	private static final Logger logger = Logger.getLogger(NioDatagramTransport.class.getName());
+	private DatagramChannel channel;
+	private PacketReceiver receiver;
+
+	public NioDatagramTransport(DatagramChannel channel, PacketReceiver receiver) {
+		this.channel = channel;
+		this.receiver = receiver;
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	public PacketReceiver getReceiver() {
+		return receiver;
+	}
+
+	public void send(ByteBuffer data, InetSocketAddress address) throws IOException {
+		//a non-blocking send that finds the socket buffer full drops the datagram, which to the other end looks just like loss
+		if(channel.send(data, address) == 0)
+			logger.finest("Outgoing datagram dropped because the socket send buffer is full");
+	}
+
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	public void close() {
+		try {
+			channel.close(); //cancels the channel's selection key too
+		} catch (IOException e) {}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,89 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A small, fixed pool of selector threads that can drive any number of
+ * non-blocking sockets. Pass the same engine to several {@link Server}s and
+ * {@link ClientConnection}s and they'll all share its threads instead of each
+ * socket getting a {@link ReceivePacketThread} of its own.
+ */
+public class NioEngine implements DatagramTransportFactory {
+	private static final Logger logger = Logger.getLogger(NioEngine.class.getName());
+	private NioEventLoop[] eventLoops;
+	private AtomicInteger nextEventLoop;
+
+	public NioEngine() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioEngine(int numEventLoops) throws IOException {
+		if(numEventLoops < 1)
+			throw new IllegalArgumentException("NioEngine requires at least one event loop. " + numEventLoops + " given.");
+		logger.fine("Starting NioEngine with " + numEventLoops + (numEventLoops == 1 ? " event loop" : " event loops"));
+		eventLoops = new NioEventLoop[numEventLoops];
+		try {
+			for(int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new NioEventLoop("nightingale-nio-" + i);
+				eventLoops[i].start();
+			}
+		} catch(IOException e) {
+			shutdown();
+			throw e;
+		}
+		nextEventLoop = new AtomicInteger(0);
+	}
+
+	public DatagramTransport open(PacketReceiver receiver) throws IOException {
+		return open(receiver, 0);
+	}
+
+	public DatagramTransport open(PacketReceiver receiver, int port) throws IOException {
+		return open(receiver, port, false);
+	}
+
+	/**
+	 * Binds with SO_REUSEPORT when reusePort is true, so several transports
+	 * can share the port. Throws a SocketException if that isn't supported.
+	 */
+	public DatagramTransport open(PacketReceiver receiver, int port, boolean reusePort) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if(reusePort && !ReusePort.enable(channel))
+				throw new SocketException("SO_REUSEPORT is not supported.");
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		//spread channels over the event loops round robin
+		NioDatagramTransport transport = new NioDatagramTransport(channel, receiver);
+		int index = (nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+		eventLoops[index].register(transport);
+		logger.finer("Bound non-blocking socket on port " + transport.getLocalPort() + " to event loop " + index);
+		return transport;
+	}
+
+	public boolean isReusePortSupported() {
+		return ReusePort.isSupported();
+	}
+
+	public int getNumEventLoops() {
+		return eventLoops.length;
+	}
+
+	public void shutdown() {
+		logger.fine("Shutting down NioEngine");
+		for(NioEventLoop eventLoop : eventLoops) {
+			if(eventLoop != null)
+				eventLoop.stopLooping();
+		}
+	}
+}
\ No newline at end of file
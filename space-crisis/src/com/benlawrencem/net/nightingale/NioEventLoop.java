@@ -0,0 +1,126 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
+
+class NioEventLoop extends Thread {
+	private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+	//stop draining one channel after this many datagrams so a busy socket can't starve the others on this loop
+	private static final int MAXIMUM_RECEIVES_PER_SELECT = 64;
+	private Selector selector;
+	private Queue<NioDatagramTransport> pendingRegistrations;
+	private ByteBuffer receiveBuffer;
+	private Packet receivePacket;
+	private volatile boolean isLooping;
+
+	public NioEventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		pendingRegistrations = new ConcurrentLinkedQueue<NioDatagramTransport>();
+		//like the blocking receive loop, one buffer and one packet get reused for every datagram on this loop, and the
+		// buffer has a byte to spare so oversized datagrams get rejected instead of truncated
+		receiveBuffer = ByteBuffer.allocateDirect(Packet.MAXIMUM_PACKET_SIZE + 1);
+		receivePacket = new Packet();
+		isLooping = true;
+	}
+
+	public void register(NioDatagramTransport transport) {
+		//channels can only be registered safely from the selecting thread, so queue it up and wake the selector
+		pendingRegistrations.add(transport);
+		selector.wakeup();
+	}
+
+	public void run() {
+		logger.finer("Event loop " + getName() + " selecting...");
+		while(isLooping) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("IOException while selecting: " + e.getMessage());
+				continue;
+			}
+			registerPendingTransports();
+
+			for(Iterator<SelectionKey> iter = selector.selectedKeys().iterator(); iter.hasNext();) {
+				SelectionKey key = iter.next();
+				iter.remove();
+				if(key.isValid() && key.isReadable())
+					receivePackets((NioDatagramTransport) key.attachment());
+			}
+		}
+
+		try {
+			selector.close(); //also deregisters every channel
+		} catch (IOException e) {}
+		logger.finer("Event loop " + getName() + " stopped");
+	}
+
+	public void stopLooping() {
+		isLooping = false;
+		selector.wakeup();
+	}
+
+	private void registerPendingTransports() {
+		NioDatagramTransport transport;
+		while((transport = pendingRegistrations.poll()) != null) {
+			try {
+				transport.getChannel().register(selector, SelectionKey.OP_READ, transport);
+			} catch (ClosedChannelException e) {
+				//the transport was closed before we got around to registering it
+			}
+		}
+	}
+
+	private void receivePackets(NioDatagramTransport transport) {
+		DatagramChannel channel = transport.getChannel();
+		PacketReceiver receiver = transport.getReceiver();
+		for(int i = 0; i < NioEventLoop.MAXIMUM_RECEIVES_PER_SELECT; i++) {
+			InetSocketAddress address;
+			receiveBuffer.clear();
+			try {
+				address = (InetSocketAddress) channel.receive(receiveBuffer);
+			} catch (IOException e) {
+				//same as the blocking receive loop: keep going and let the connection time out if the problem persists
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("IOException while receiving packets: " + e.getMessage());
+				return;
+			}
+
+			//nothing left to read on this channel
+			if(address == null)
+				return;
+
+			Packet packet;
+			receiveBuffer.flip();
+			int numBytes = receiveBuffer.remaining();
+			String hostAddress = address.getAddress().getHostAddress();
+			try {
+				packet = receivePacket.readFrom(receiveBuffer);
+				NetworkEvents.INSTANCE.packetReceived(packet, numBytes, hostAddress, address.getPort());
+			} catch (MalformedPacketException e) {
+				packet = null;
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_MALFORMED, null, hostAddress, address.getPort());
+			}
+
+			try {
+				receiver.receivePacket(packet, hostAddress, address.getPort());
+			} catch (RuntimeException e) {
+				//one misbehaving receiver shouldn't take down every other socket sharing this loop
+				logger.log(Level.WARNING, "Exception while receiving packet on event loop " + getName(), e);
+			}
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,140 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encoded packets waiting for the congestion controller to let them go
+ * out to one client, oldest first. Packets are copied in since they're
+ * encoded into a buffer that gets reused for the next one. The copies are
+ * kept around afterwards, so a client that's paced all the time doesn't
+ * allocate anything once its queue has grown to fit.
+ *
+ * A client that can't keep up for long enough fills the queue, and from
+ * then on packets are dropped as if they'd been lost on the way, which is
+ * what the reliable channels are there for.
+ *
+ * Each packet is queued along with the sequence number of the packet it
+ * was first sent as, so a resend isn't queued behind a copy of the same
+ * packet that's still waiting.
+ *
+ * Not thread safe. The server uses it with the client locked.
+ */
+class PacingQueue {
+	private static final int INITIAL_SIZE = 8;
+	public static final int MAXIMUM_SIZE = 256;
+
+	private ByteBuffer[] datagrams;
+	private int[] sequenceNumbers;
+	private int[] originalSequenceNumbers;
+	private int head;
+	private int size;
+
+	public PacingQueue() {
+		datagrams = new ByteBuffer[PacingQueue.INITIAL_SIZE];
+		sequenceNumbers = new int[PacingQueue.INITIAL_SIZE];
+		originalSequenceNumbers = new int[PacingQueue.INITIAL_SIZE];
+		head = 0;
+		size = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns how many more packets can be queued before they start getting
+	 * dropped.
+	 */
+	public int remainingCapacity() {
+		return PacingQueue.MAXIMUM_SIZE - size;
+	}
+
+	/**
+	 * Copies the remaining bytes of the datagram onto the end of the queue.
+	 * The original sequence number is the one the packet was first sent as,
+	 * which is its own unless it's a resend. Returns false, leaving the queue
+	 * as it was, if it's full.
+	 */
+	public boolean offer(int sequenceNumber, int originalSequenceNumber, ByteBuffer datagram) {
+		if(size == datagrams.length) {
+			if(datagrams.length >= PacingQueue.MAXIMUM_SIZE)
+				return false;
+			grow();
+		}
+		int index = (head + size) % datagrams.length;
+		ByteBuffer copy = datagrams[index];
+		if(copy == null || copy.capacity() < datagram.remaining()) {
+			copy = ByteBuffer.allocate(Math.max(datagram.remaining(), Packet.MAXIMUM_PACKET_SIZE));
+			datagrams[index] = copy;
+		}
+		copy.clear();
+		copy.put(datagram);
+		copy.flip();
+		sequenceNumbers[index] = sequenceNumber;
+		originalSequenceNumbers[index] = originalSequenceNumber;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Returns the oldest datagram, which stays in the queue until
+	 * {@link #remove} is called. Its position may be changed by whoever sends
+	 * it.
+	 */
+	public ByteBuffer peek() {
+		return (size == 0 ? null : datagrams[head]);
+	}
+
+	public int peekSequenceNumber() {
+		return (size == 0 ? Packet.SEQUENCE_NUMBER_NOT_APPLICABLE : sequenceNumbers[head]);
+	}
+
+	public int peekOriginalSequenceNumber() {
+		return (size == 0 ? Packet.SEQUENCE_NUMBER_NOT_APPLICABLE : originalSequenceNumbers[head]);
+	}
+
+	/**
+	 * Returns whether a copy of the packet first sent with the given
+	 * sequence number is still waiting to go out.
+	 */
+	public boolean containsCopyOf(int originalSequenceNumber) {
+		for(int i = 0; i < size; i++) {
+			if(originalSequenceNumbers[(head + i) % datagrams.length] == originalSequenceNumber)
+				return true;
+		}
+		return false;
+	}
+
+	public void remove() {
+		if(size == 0)
+			return;
+		head = (head + 1) % datagrams.length;
+		size--;
+	}
+
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	private void grow() {
+		int length = 2 * datagrams.length;
+		ByteBuffer[] biggerDatagrams = new ByteBuffer[length];
+		int[] biggerSequenceNumbers = new int[length];
+		int[] biggerOriginalSequenceNumbers = new int[length];
+		for(int i = 0; i < datagrams.length; i++) {
+			int index = (head + i) % datagrams.length;
+			biggerDatagrams[i] = datagrams[index];
+			biggerSequenceNumbers[i] = sequenceNumbers[index];
+			biggerOriginalSequenceNumbers[i] = originalSequenceNumbers[index];
+		}
+		datagrams = biggerDatagrams;
+		sequenceNumbers = biggerSequenceNumbers;
+		originalSequenceNumbers = biggerOriginalSequenceNumbers;
+		head = 0;
+	}
+}
\ No newline at end of file
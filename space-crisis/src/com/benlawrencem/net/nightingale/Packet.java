@@ -1,23 +1,45 @@
 package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 public class Packet {
-	private static final int HEADER_SIZE = 17;
-	private static final int PROTOCOL_ID = 103675707;
+	private static final int HEADER_SIZE = 22;
+	//the protocol id doubles as the protocol version--103675707 had one-byte connection ids, 103675708 had a 32 packet history,
+	// 103675709 connected without a cookie
+	private static final int PROTOCOL_ID = 103675710;
+	//how many packets before the last received one the received packet history covers
+	public static final int RECEIVED_PACKET_HISTORY_SIZE = 64;
 	public static final int ANONYMOUS_CONNECTION_ID = 0;
 	public static final int MINIMUM_CONNECTION_ID = 1;
-	public static final int MAXIMUM_CONNECTION_ID = 255;
+	public static final int MAXIMUM_CONNECTION_ID = 65535;
 	public static final int SEQUENCE_NUMBER_NOT_APPLICABLE = 0;
 	public static final int MINIMUM_SEQUENCE_NUMBER = 1;
 	public static final int MAXIMUM_SEQUENCE_NUMBER = 65535;
 	public static final int MAXIMUM_PACKET_SIZE = 512;
+	public static final int MAXIMUM_PAYLOAD_SIZE = MAXIMUM_PACKET_SIZE - HEADER_SIZE;
+	//messages too big for one packet are split into fragments, as long as they don't go out on NOTIFY_UNDELIVERED
+	public static final int MAXIMUM_MESSAGE_SIZE = 65536;
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	//every thread that sends gets its own encode buffer, so encoding a packet doesn't allocate anything
+	private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(Packet.MAXIMUM_PACKET_SIZE);
+		}
+	};
+	private static final ThreadLocal<byte[]> DECODE_BYTES = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[Packet.MAXIMUM_PACKET_SIZE];
+		}
+	};
 
 	public static enum MessageType {
 		INVALID, APPLICATION, PING, PING_RESPONSE, CONNECT_REQUEST,
 		CONNECTION_ACCEPTED, CONNECTION_REFUSED, FORCE_DISCONNECT,
-		CLIENT_DISCONNECT
+		CLIENT_DISCONNECT, APPLICATION_BUNDLE, ACKNOWLEDGEMENT, CONNECT_CHALLENGE
 	};
 	private static final byte MESSAGE_TYPE_INVALID = 0;
 	private static final byte MESSAGE_TYPE_APPLICATION = -128;
@@ -28,30 +50,68 @@ public class Packet {
 	private static final byte MESSAGE_TYPE_CONNECTION_REFUSED = -123;
 	private static final byte MESSAGE_TYPE_FORCE_DISCONNECT = -122;
 	private static final byte MESSAGE_TYPE_CLIENT_DISCONNECT = -121;
+	private static final byte MESSAGE_TYPE_APPLICATION_BUNDLE = -120;
+	private static final byte MESSAGE_TYPE_ACKNOWLEDGEMENT = -119;
+	private static final byte MESSAGE_TYPE_CONNECT_CHALLENGE = -118;
+
+	/**
+	 * How an application message gets delivered. NOTIFY_UNDELIVERED is what
+	 * messages sent without a channel have always done: nothing is resent,
+	 * but the sender's listener hears about anything that didn't arrive so
+	 * it can resend it itself. UNRELIABLE messages are fire and forget--no
+	 * record of them is kept at all, which suits state that's sent again
+	 * every tick anyway. Reliable messages are resent by the library until
+	 * they arrive and are only ever handed to the listener once, and
+	 * RELIABLE_ORDERED ones are also handed over in the order they were sent.
+	 */
+	public static enum Channel {
+		NOTIFY_UNDELIVERED, UNRELIABLE, RELIABLE_UNORDERED, RELIABLE_ORDERED;
+
+		public boolean isReliable() {
+			return this == RELIABLE_UNORDERED || this == RELIABLE_ORDERED;
+		}
+	};
+	//the channel takes up the low bits of the packet flags
+	private static final int CHANNEL_FLAGS_MASK = 3;
+	private static final int FRAGMENT_FLAG = 64;
+	private static final int COMPRESSED_FLAG = 32;
+	private static final Channel[] CHANNELS = Channel.values();
 
 	private int protocolId;
 	private int connectionId;
 	private int sequenceNumber;
 	private int duplicateSequenceNumber;
 	private int lastReceivedSequenceNumber;
-	private int receivedPacketHistory;
+	private long receivedPacketHistory;
+	//asks the other side to acknowledge the packet straight away rather than waiting to send something anyway
 	private boolean isImmediateResponse;
+	private boolean isFragment;
+	private boolean isCompressed;
+	private Channel channel;
 	private MessageType messageType;
 	private String message;
 
+	//a received packet is only a view over the receive buffer--the message isn't decoded until someone asks for it
+	private ByteBuffer payloadBuffer;
+	private int payloadOffset;
+	private int payloadLength;
+
 	/* Packet structure:
 	 	int		4 bytes	protocol id
-	 	byte	1 byte	connection id
+	 	short	2 bytes	connection id
 	 	short	2 bytes	sequence number
 	 	short	2 bytes	duplicate sequence number
 	 	short	2 bytes	last received sequence number
-	 	int		4 bytes	received packet history
-	 	byte	1 byte	packet flags
+	 	long	8 bytes	received packet history
+	 	byte	1 byte	packet flags (high bit: immediate response, bit 6: fragment, bit 5: compressed, low two bits: channel)
 	 	byte	1 byte	message type
 	 	String	n bytes	message
 	 */
 
-	private Packet() {
+	/**
+	 * Creates an empty packet meant to be reused with {@link #readFrom}.
+	 */
+	public Packet() {
 		protocolId = Packet.PROTOCOL_ID;
 		connectionId = Packet.ANONYMOUS_CONNECTION_ID;
 		sequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
@@ -59,8 +119,14 @@ public class Packet {
 		lastReceivedSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
 		receivedPacketHistory = 0;
 		isImmediateResponse = false;
+		isFragment = false;
+		isCompressed = false;
+		channel = Channel.NOTIFY_UNDELIVERED;
 		messageType = MessageType.INVALID;
 		message = null;
+		payloadBuffer = null;
+		payloadOffset = 0;
+		payloadLength = 0;
 	}
 
 	private Packet(int connectionId, MessageType messageType, String message) {
@@ -124,11 +190,15 @@ public class Packet {
 		return lastReceivedSequenceNumber != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
 	}
 
-	public int getReceivedPacketHistory() {
+	/**
+	 * Returns which of the 64 packets before the last received one have been
+	 * received, the one just before it in the highest bit.
+	 */
+	public long getReceivedPacketHistory() {
 		return receivedPacketHistory;
 	}
 
-	public void setReceivedPacketHistory(int receivedPacketHistory) {
+	public void setReceivedPacketHistory(long receivedPacketHistory) {
 		this.receivedPacketHistory = receivedPacketHistory;
 	}
 
@@ -140,6 +210,38 @@ public class Packet {
 		this.isImmediateResponse = isImmediateResponse;
 	}
 
+	/**
+	 * Whether the packet carries one piece of a message that was too big to
+	 * fit in a packet of its own.
+	 */
+	public boolean isFragment() {
+		return isFragment;
+	}
+
+	public void setIsFragment(boolean isFragment) {
+		this.isFragment = isFragment;
+	}
+
+	/**
+	 * Whether the packet's payload was compressed. On RELIABLE_ORDERED it
+	 * means each message in the packet was compressed on its own instead.
+	 */
+	public boolean isCompressed() {
+		return isCompressed;
+	}
+
+	public void setIsCompressed(boolean isCompressed) {
+		this.isCompressed = isCompressed;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	public void setChannel(Channel channel) {
+		this.channel = (channel == null ? Channel.NOTIFY_UNDELIVERED : channel);
+	}
+
 	public MessageType getMessageType() {
 		return messageType;
 	}
@@ -149,6 +251,8 @@ public class Packet {
 	}
 
 	public String getMessage() {
+		if(message == null && payloadBuffer != null && payloadLength > 0)
+			message = decodeMessage(payloadBuffer, payloadOffset, payloadLength);
 		return message;
 	}
 
@@ -156,23 +260,203 @@ public class Packet {
 		this.message = message;
 		if(this.message != null && this.message.equals(""))
 			this.message = null;
+		payloadBuffer = null;
+		payloadOffset = 0;
+		payloadLength = 0;
+	}
+
+	/**
+	 * Returns the message as raw bytes between the returned buffer's position
+	 * and limit, or null if the packet has no message. The buffer belongs to
+	 * the packet (for received packets it's the receive buffer itself), so
+	 * it's only valid for as long as the packet is.
+	 */
+	public ByteBuffer getPayload() {
+		if(payloadBuffer == null) {
+			if(message == null)
+				return null;
+			payloadBuffer = ByteBuffer.wrap(message.getBytes(Packet.CHARSET));
+			payloadOffset = 0;
+			payloadLength = payloadBuffer.capacity();
+		}
+		if(payloadLength == 0)
+			return null;
+		payloadBuffer.limit(payloadOffset + payloadLength);
+		payloadBuffer.position(payloadOffset);
+		return payloadBuffer;
+	}
+
+	public int getPayloadLength() {
+		if(payloadBuffer == null && message != null)
+			getPayload();
+		return payloadLength;
+	}
+
+	/**
+	 * Returns how many bytes the packet takes up on the wire, header and all.
+	 */
+	int getLength() {
+		return Packet.HEADER_SIZE + getPayloadLength();
+	}
+
+	/**
+	 * Uses the bytes between the buffer's position and limit as the message.
+	 * The bytes aren't copied, so they shouldn't be modified while the packet
+	 * is still in use. The buffer's position is left untouched.
+	 */
+	public void setPayload(ByteBuffer payload) {
+		message = null;
+		if(payload == null || !payload.hasRemaining()) {
+			payloadBuffer = null;
+			payloadOffset = 0;
+			payloadLength = 0;
+		}
+		else {
+			payloadBuffer = payload.slice();
+			payloadOffset = 0;
+			payloadLength = payloadBuffer.remaining();
+		}
+	}
+
+	/**
+	 * Encodes the packet into the calling thread's reusable send buffer. The
+	 * returned buffer is ready to be written to a channel and is only valid
+	 * until the same thread encodes another packet.
+	 */
+	public ByteBuffer encode() throws PacketEncodingException {
+		ByteBuffer buffer = Packet.ENCODE_BUFFER.get();
+		buffer.clear();
+		writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	public void writeTo(ByteBuffer buffer) throws PacketEncodingException {
+		int start = buffer.position();
+		try {
+			buffer.putInt(protocolId);
+			buffer.putShort(Packet.encodeConnectionId(connectionId));
+			buffer.putShort(Packet.encodeSequenceNumber(sequenceNumber));
+			buffer.putShort(Packet.encodeSequenceNumber(duplicateSequenceNumber));
+			buffer.putShort(Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
+			buffer.putLong(receivedPacketHistory);
+			buffer.put((byte) ((isImmediateResponse ? Byte.MIN_VALUE : 0) | (isFragment ? Packet.FRAGMENT_FLAG : 0) | (isCompressed ? Packet.COMPRESSED_FLAG : 0) | channel.ordinal()));
+			buffer.put(Packet.encodeMessageType(messageType));
+			writePayloadTo(buffer);
+		} catch (BufferOverflowException e) {
+			buffer.position(start);
+			throw new PacketTooLargeException(buffer.remaining());
+		}
+	}
+
+	/**
+	 * Overwrites the connection id, sequence numbers and received packet
+	 * history in the header of an encoded packet, starting at the datagram's
+	 * position, with this packet's. The rest of the header and the payload
+	 * are left as they were, so one encoding of a message can go out to any
+	 * number of connections.
+	 */
+	void rewriteHeaderOf(ByteBuffer datagram) throws PacketEncodingException {
+		int start = datagram.position();
+		datagram.putShort(start + 4, Packet.encodeConnectionId(connectionId));
+		datagram.putShort(start + 6, Packet.encodeSequenceNumber(sequenceNumber));
+		datagram.putShort(start + 8, Packet.encodeSequenceNumber(duplicateSequenceNumber));
+		Packet.rewriteReceivedPacketHistory(datagram, lastReceivedSequenceNumber, receivedPacketHistory);
+	}
+
+	/**
+	 * Overwrites the acknowledgement fields in the header of a packet that's
+	 * already been encoded, starting at the datagram's position, so that one
+	 * held back for a while still acknowledges everything received since.
+	 */
+	static void rewriteReceivedPacketHistory(ByteBuffer datagram, int lastReceivedSequenceNumber, long receivedPacketHistory) throws SequenceNumberOutOfRangeException {
+		int start = datagram.position();
+		datagram.putShort(start + 10, Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
+		datagram.putLong(start + 12, receivedPacketHistory);
+	}
+
+	/**
+	 * Writes just the message, the same bytes that follow the header when the
+	 * whole packet is written. Throws a BufferOverflowException if it doesn't
+	 * fit.
+	 */
+	void writePayloadTo(ByteBuffer buffer) {
+		if(payloadBuffer != null) {
+			for(int i = 0; i < payloadLength; i++)
+				buffer.put(payloadBuffer.get(payloadOffset + i));
+		}
+		else if(message != null)
+			encodeMessage(message, buffer);
 	}
 
 	public byte[] toByteArray() throws PacketEncodingException {
-		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + (message == null ? 0 : message.length()));
-		buffer.putInt(protocolId);
-		buffer.put(Packet.encodeConnectionId(connectionId));
-		buffer.putShort(Packet.encodeSequenceNumber(sequenceNumber));
-		buffer.putShort(Packet.encodeSequenceNumber(duplicateSequenceNumber));
-		buffer.putShort(Packet.encodeSequenceNumber(lastReceivedSequenceNumber));
-		buffer.putInt(receivedPacketHistory);
-		buffer.put((isImmediateResponse ? Byte.MIN_VALUE : 0));
-		buffer.put(Packet.encodeMessageType(messageType));
-		if(message != null)
-			buffer.put(message.getBytes());
+		int messageLength = (payloadBuffer != null ? payloadLength : (message == null ? 0 : message.getBytes(Packet.CHARSET).length));
+		ByteBuffer buffer = ByteBuffer.allocate(Packet.HEADER_SIZE + messageLength);
+		writeTo(buffer);
 		return buffer.array();
 	}
 
+	/**
+	 * Points this packet at the datagram between the buffer's position and
+	 * limit, decoding the header but leaving the message undecoded. The
+	 * packet keeps reading from the buffer, so it's only valid until the
+	 * buffer is reused. Call {@link #copy} to hold onto it any longer.
+	 */
+	public Packet readFrom(ByteBuffer buffer) throws MalformedPacketException {
+		if(buffer == null)
+			throw new NullByteArrayException();
+		int start = buffer.position();
+		int length = buffer.remaining();
+		if(length < Packet.HEADER_SIZE)
+			throw new NotEnoughBytesException(length);
+		//receive buffers have a byte to spare so that datagrams that got cut short end up here instead of being read as whole
+		if(length > Packet.MAXIMUM_PACKET_SIZE)
+			throw new TooManyBytesException(length);
+
+		protocolId = buffer.getInt(start);
+		connectionId = decodeConnectionId(buffer.getShort(start + 4));
+		sequenceNumber = decodeSequenceNumber(buffer.getShort(start + 6));
+		duplicateSequenceNumber = decodeSequenceNumber(buffer.getShort(start + 8));
+		lastReceivedSequenceNumber = decodeSequenceNumber(buffer.getShort(start + 10));
+		receivedPacketHistory = buffer.getLong(start + 12);
+		byte flags = buffer.get(start + 20);
+		isImmediateResponse = ((flags & Byte.MIN_VALUE) != 0);
+		isFragment = ((flags & Packet.FRAGMENT_FLAG) != 0);
+		isCompressed = ((flags & Packet.COMPRESSED_FLAG) != 0);
+		channel = Packet.CHANNELS[flags & Packet.CHANNEL_FLAGS_MASK];
+		messageType = decodeMessageType(buffer.get(start + 21));
+		message = null;
+		payloadBuffer = buffer;
+		payloadOffset = start + Packet.HEADER_SIZE;
+		payloadLength = length - Packet.HEADER_SIZE;
+		return this;
+	}
+
+	/**
+	 * Returns a packet that holds its own copy of the message, for when a
+	 * packet obtained from {@link #readFrom} needs to outlive its buffer.
+	 */
+	public Packet copy() {
+		Packet packet = new Packet(connectionId, messageType, message);
+		packet.protocolId = protocolId;
+		packet.sequenceNumber = sequenceNumber;
+		packet.duplicateSequenceNumber = duplicateSequenceNumber;
+		packet.lastReceivedSequenceNumber = lastReceivedSequenceNumber;
+		packet.receivedPacketHistory = receivedPacketHistory;
+		packet.isImmediateResponse = isImmediateResponse;
+		packet.isFragment = isFragment;
+		packet.isCompressed = isCompressed;
+		packet.channel = channel;
+		if(message == null && payloadBuffer != null && payloadLength > 0) {
+			byte[] bytes = new byte[payloadLength];
+			for(int i = 0; i < payloadLength; i++)
+				bytes[i] = payloadBuffer.get(payloadOffset + i);
+			packet.payloadBuffer = ByteBuffer.wrap(bytes);
+			packet.payloadLength = payloadLength;
+		}
+		return packet;
+	}
+
 	public String toString() {
 		int columnSize = 20;
 		byte[] bytes;
@@ -190,31 +474,31 @@ public class Packet {
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nConnection Id:   " + col((isAnonymousConnection() ? "ANONYMOUS" : "" + connectionId), columnSize);
-		for(int i = 4; i < 5 && i < bytes.length; i++)
+		for(int i = 4; i < 6 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nSequence Number: " + col((hasSequenceNumber() ? "" + sequenceNumber : "N/A"), columnSize);
-		for(int i = 5; i < 7 && i < bytes.length; i++)
+		for(int i = 6; i < 8 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nDuplicate Of:    " + col((isDuplicate() ? "" + duplicateSequenceNumber : "N/A"), columnSize);
-		for(int i = 7; i < 9 && i < bytes.length; i++)
+		for(int i = 8; i < 10 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nLast Received:   " + col((hasReceivedPacketHistory() ? "" + lastReceivedSequenceNumber : "N/A"), columnSize);
-		for(int i = 9; i < 11 && i < bytes.length; i++)
+		for(int i = 10; i < 12 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nPacket History:  " + col("" + receivedPacketHistory, columnSize);
-		for(int i = 11; i < 15 && i < bytes.length; i++)
+		for(int i = 12; i < 20 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
-		s += "\nPacket Flags:    " + col((isImmediateResponse() ? "IMMEDIATE" : "NOT IMMEDIATE"), columnSize);
-		for(int i = 15; i < 16 && i < bytes.length; i++)
+		s += "\nPacket Flags:    " + col((isImmediateResponse() ? "IMMEDIATE " : "") + (isFragment() ? "FRAGMENT " : "") + (isCompressed() ? "COMPRESSED " : "") + channel, columnSize);
+		for(int i = 20; i < 21 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		s += "\nMessage Type:    " + col("" + messageType, columnSize);
-		for(int i = 16; i < 17 && i < bytes.length; i++)
+		for(int i = 21; i < 22 && i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 
 		if(message != null && message.length() > columnSize - 3) {
@@ -223,7 +507,7 @@ public class Packet {
 		}
 		else
 			s += "\nMessage:         " + col((message == null ? "null" : "\"" + message + "\""), columnSize);
-		for(int i = 17; i < bytes.length; i++)
+		for(int i = 22; i < bytes.length; i++)
 			s += toByteString(bytes[i]) + " ";
 		return s;
 	}
@@ -245,14 +529,14 @@ public class Packet {
 		return s;
 	}
 
-	private static byte encodeConnectionId(int connectionId) throws ConnectionIdOutOfRangeException {
+	private static short encodeConnectionId(int connectionId) throws ConnectionIdOutOfRangeException {
 		if(connectionId != Packet.ANONYMOUS_CONNECTION_ID && (connectionId < Packet.MINIMUM_CONNECTION_ID || connectionId > Packet.MAXIMUM_CONNECTION_ID))
 			throw new ConnectionIdOutOfRangeException(connectionId);
-		return (byte) (connectionId > Byte.MAX_VALUE ? connectionId + 2*Byte.MIN_VALUE : connectionId);
+		return (short) (connectionId > Short.MAX_VALUE ? connectionId + 2*Short.MIN_VALUE : connectionId);
 	}
 
-	private static int decodeConnectionId(byte connectionId) {
-		return (int) (connectionId < 0 ? connectionId - 2*Byte.MIN_VALUE : connectionId);
+	private static int decodeConnectionId(short connectionId) {
+		return (int) (connectionId < 0 ? connectionId - 2*Short.MIN_VALUE : connectionId);
 	}
 
 	private static short encodeSequenceNumber(int sequenceNumber) throws SequenceNumberOutOfRangeException {
@@ -283,6 +567,12 @@ public class Packet {
 				return Packet.MESSAGE_TYPE_FORCE_DISCONNECT;
 			case CLIENT_DISCONNECT:
 				return Packet.MESSAGE_TYPE_CLIENT_DISCONNECT;
+			case APPLICATION_BUNDLE:
+				return Packet.MESSAGE_TYPE_APPLICATION_BUNDLE;
+			case ACKNOWLEDGEMENT:
+				return Packet.MESSAGE_TYPE_ACKNOWLEDGEMENT;
+			case CONNECT_CHALLENGE:
+				return Packet.MESSAGE_TYPE_CONNECT_CHALLENGE;
 			default:
 				return Packet.MESSAGE_TYPE_INVALID;
 		}
@@ -306,11 +596,53 @@ public class Packet {
 				return MessageType.FORCE_DISCONNECT;
 			case Packet.MESSAGE_TYPE_CLIENT_DISCONNECT:
 				return MessageType.CLIENT_DISCONNECT;
+			case Packet.MESSAGE_TYPE_APPLICATION_BUNDLE:
+				return MessageType.APPLICATION_BUNDLE;
+			case Packet.MESSAGE_TYPE_ACKNOWLEDGEMENT:
+				return MessageType.ACKNOWLEDGEMENT;
+			case Packet.MESSAGE_TYPE_CONNECT_CHALLENGE:
+				return MessageType.CONNECT_CHALLENGE;
 			default:
 				return MessageType.INVALID;
 		}
 	}
 
+	/**
+	 * Decodes the bytes between the buffer's position and limit the same way
+	 * String messages are encoded, without changing the buffer's position.
+	 */
+	public static String decodeMessage(ByteBuffer payload) {
+		if(payload == null || !payload.hasRemaining())
+			return null;
+		return decodeMessage(payload, payload.position(), payload.remaining());
+	}
+
+	private static void encodeMessage(String message, ByteBuffer buffer) {
+		//messages are nearly always plain ASCII, which can be written straight into the buffer without any allocation
+		int length = message.length();
+		for(int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			if(c >= 0x80) {
+				buffer.put(message.substring(i).getBytes(Packet.CHARSET));
+				return;
+			}
+			buffer.put((byte) c);
+		}
+	}
+
+	private static String decodeMessage(ByteBuffer buffer, int offset, int length) {
+		if(buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset, length, Packet.CHARSET);
+		byte[] bytes = Packet.DECODE_BYTES.get();
+		if(bytes.length < length) {
+			bytes = new byte[length];
+			Packet.DECODE_BYTES.set(bytes);
+		}
+		for(int i = 0; i < length; i++)
+			bytes[i] = buffer.get(offset + i);
+		return new String(bytes, 0, length, Packet.CHARSET);
+	}
+
 	public static int nextConnectionId(int connectionId) {
 		if(connectionId == Packet.ANONYMOUS_CONNECTION_ID || connectionId == Packet.MAXIMUM_CONNECTION_ID)
 			return Packet.MINIMUM_CONNECTION_ID;
@@ -341,35 +673,46 @@ public class Packet {
 			throw new NullByteArrayException();
 		if(length > bytes.length)
 			length = bytes.length;
-		if(length < Packet.HEADER_SIZE)
-			throw new NotEnoughBytesException(length);
 
-		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
-		buffer.put(bytes);
-		buffer.flip();
-		Packet packet = new Packet();
-		packet.protocolId = buffer.getInt();
-		packet.connectionId = decodeConnectionId(buffer.get());
-		packet.sequenceNumber = decodeSequenceNumber(buffer.getShort());
-		packet.duplicateSequenceNumber = decodeSequenceNumber(buffer.getShort());
-		packet.lastReceivedSequenceNumber = decodeSequenceNumber(buffer.getShort());
-		packet.receivedPacketHistory = buffer.getInt();
-		byte packetFlagsByte = buffer.get();
-		if((packetFlagsByte & Byte.MIN_VALUE) != 0)
-			packet.isImmediateResponse = true;
-		packet.messageType = decodeMessageType(buffer.get());
-		packet.message = new String(bytes).substring(Packet.HEADER_SIZE, length);
-		if(packet.message != null && packet.message.equals(""))
-			packet.message = null;
-		return packet;
+		//unlike readFrom, parsed packets get their own copy of the message so they don't depend on the byte array afterwards
+		return new Packet().readFrom(ByteBuffer.wrap(bytes, 0, length)).copy();
 	}
 
 	public static Packet createApplicationPacket(int connectionId, String message) {
 		return new Packet(connectionId, MessageType.APPLICATION, message);
 	}
 
+	public static Packet createApplicationPacket(int connectionId, ByteBuffer payload) {
+		Packet packet = new Packet(connectionId, MessageType.APPLICATION, null);
+		packet.setPayload(payload);
+		return packet;
+	}
+
+	public static Packet createApplicationPacket(int connectionId, byte[] payload) {
+		return createApplicationPacket(connectionId, (payload == null ? null : ByteBuffer.wrap(payload)));
+	}
+
+	public static Packet createApplicationBundlePacket(int connectionId, ByteBuffer frames) {
+		Packet packet = new Packet(connectionId, MessageType.APPLICATION_BUNDLE, null);
+		packet.setPayload(frames);
+		return packet;
+	}
+
+	public static Packet createApplicationBundlePacket(int connectionId, Channel channel, ByteBuffer frames) {
+		Packet packet = createApplicationBundlePacket(connectionId, frames);
+		packet.setChannel(channel);
+		return packet;
+	}
+
+	/**
+	 * Creates a ping, which the server acknowledges straight away rather than
+	 * waiting for something to send back, so the round trip it measures is
+	 * the network's and not the acknowledgement delay's.
+	 */
 	public static Packet createPingPacket(int connectionId, long latency) {
-		return new Packet(connectionId, MessageType.PING, "" + latency);
+		Packet packet = new Packet(connectionId, MessageType.PING, "" + latency);
+		packet.setIsImmediateResponse(true);
+		return packet;
 	}
 
 	public static Packet createPingResponsePacket(int connectionId) {
@@ -378,12 +721,49 @@ public class Packet {
 		return packet;
 	}
 
+	/**
+	 * Creates a packet that carries nothing but the acknowledgements in its
+	 * header, for when they can't wait for something else to go out.
+	 */
+	public static Packet createAcknowledgementPacket(int connectionId) {
+		return new Packet(connectionId, MessageType.ACKNOWLEDGEMENT, null);
+	}
+
+	/**
+	 * Creates the first connect request, before the server has handed out a
+	 * cookie. It's padded out to the size of one so the challenge that comes
+	 * back is no bigger than the request--otherwise anyone could have the
+	 * server send someone else more than they sent it.
+	 */
 	public static Packet createConnectRequestPacket() {
-		return new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_REQUEST, null);
+		return createConnectRequestPacket(ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE));
+	}
+
+	/**
+	 * Creates a connect request carrying the cookie the server sent back in
+	 * its challenge.
+	 */
+	public static Packet createConnectRequestPacket(ByteBuffer cookie) {
+		Packet packet = new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_REQUEST, null);
+		packet.setPayload(cookie);
+		return packet;
 	}
 
+	public static Packet createConnectChallengePacket(ByteBuffer cookie) {
+		Packet packet = new Packet(Packet.ANONYMOUS_CONNECTION_ID, MessageType.CONNECT_CHALLENGE, null);
+		packet.setPayload(cookie);
+		return packet;
+	}
+
+	/**
+	 * Creates the packet that lets a client in. It asks to be acknowledged
+	 * straight away, since its round trip is the first one the server gets to
+	 * time.
+	 */
 	public static Packet createConnectionAcceptedPacket(int connectionId) {
-		return new Packet(connectionId, MessageType.CONNECTION_ACCEPTED, null);
+		Packet packet = new Packet(connectionId, MessageType.CONNECTION_ACCEPTED, null);
+		packet.setIsImmediateResponse(true);
+		return packet;
 	}
 
 	public static Packet createConnectionRefusedPacket() {
@@ -422,6 +802,14 @@ public class Packet {
 		}
 	}
 
+	public static class TooManyBytesException extends MalformedPacketException {
+		private static final long serialVersionUID = -2470412858377452306L;
+
+		public TooManyBytesException(int numBytes) {
+			super("Packet construction allows maximum of " + Packet.MAXIMUM_PACKET_SIZE + " bytes. " + numBytes + " or more given.");
+		}
+	}
+
 	public static abstract class PacketEncodingException extends Exception {
 		private static final long serialVersionUID = -8101834090041580202L;
 
@@ -446,6 +834,14 @@ public class Packet {
 		}
 	}
 
+	public static class PacketTooLargeException extends PacketEncodingException {
+		private static final long serialVersionUID = -3877405136436025624L;
+
+		public PacketTooLargeException(int bytesAvailable) {
+			super("Packet does not fit in the " + bytesAvailable + (bytesAvailable == 1 ? " byte" : " bytes") + " available to encode it.");
+		}
+	}
+
 	public static abstract class CouldNotSendPacketException extends Exception {
 		private static final long serialVersionUID = 4469495505607428313L;
 		private Packet packet;
@@ -0,0 +1,161 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
+
+/**
+ * Records every datagram a {@link Server} receives, with when it arrived
+ * and who sent it, to a file that {@link PacketCaptureReader} and
+ * {@link PacketReplay} can read back. Hand one to
+ * {@link Server#setCapture}.
+ *
+ * The file is written through a memory mapping, 16MB at a time, so
+ * recording a packet is a copy into memory rather than a system call, and
+ * what's been recorded survives the JVM crashing (though not the machine).
+ * Records are only ever appended. Each starts with its length, which is
+ * written last, so a reader never sees half a record--it sees the zeros
+ * the rest of the mapping is filled with and stops. A file that was closed
+ * properly is cut down to just its records.
+ *
+ * The file starts with a header:
+ *
+ *   int    magic number, "NGCP"
+ *   short  format version, 1
+ *   short  unused
+ *   long   when the capture started, in milliseconds since the epoch
+ *
+ * followed by one record for each datagram:
+ *
+ *   int    length of the whole record, in bytes
+ *   long   nanoseconds since the capture started
+ *   short  sender's port
+ *   byte   length of the sender's address
+ *   byte[] sender's address as text, like "127.0.0.1"
+ *   byte[] the datagram, or nothing if it wasn't a packet at all
+ *
+ * with everything big-endian. Any number of threads can record at once,
+ * one at a time.
+ */
+public class PacketCapture {
+	private static final Logger logger = Logger.getLogger(PacketCapture.class.getName());
+	static final int MAGIC_NUMBER = 0x4E474350;
+	static final short VERSION = 1;
+	static final int FILE_HEADER_SIZE = 16;
+	//length, time, port and address length
+	static final int RECORD_HEADER_SIZE = 15;
+	static final int MAXIMUM_ADDRESS_LENGTH = 255;
+	static final int REGION_SIZE = 16 * 1024 * 1024;
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private final long startTime;
+	private final long startNanoTime;
+	private long numPacketsCaptured;
+	private boolean isClosed;
+
+	/**
+	 * Starts a new capture in the given file, overwriting whatever was
+	 * there.
+	 */
+	public PacketCapture(File file) throws IOException {
+		this.file = file;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		channel = randomAccessFile.getChannel();
+		startTime = System.currentTimeMillis();
+		startNanoTime = System.nanoTime();
+		numPacketsCaptured = 0;
+		isClosed = false;
+		regionStart = 0;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, PacketCapture.REGION_SIZE);
+		region.putInt(PacketCapture.MAGIC_NUMBER);
+		region.putShort(PacketCapture.VERSION);
+		region.putShort((short) 0);
+		region.putLong(startTime);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public synchronized long getNumPacketsCaptured() {
+		return numPacketsCaptured;
+	}
+
+	/**
+	 * Appends the packet to the capture, or a record with no datagram if the
+	 * packet is null because what arrived couldn't be read as one.
+	 */
+	synchronized void record(Packet packet, String address, int port) {
+		if(isClosed)
+			return;
+		long time = System.nanoTime() - startNanoTime;
+		int addressLength = Math.min(address == null ? 0 : address.length(), PacketCapture.MAXIMUM_ADDRESS_LENGTH);
+		int packetLength = (packet == null ? 0 : packet.getLength());
+		int recordLength = PacketCapture.RECORD_HEADER_SIZE + addressLength + packetLength;
+
+		//records never straddle two mappings, the next one just starts where this one got to
+		if(region.remaining() < recordLength) {
+			try {
+				regionStart += region.position();
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, PacketCapture.REGION_SIZE);
+			} catch (IOException e) {
+				logger.warning("Stopping capture to " + file + " because it could not be extended: " + e.getMessage());
+				close();
+				return;
+			}
+		}
+
+		int start = region.position();
+		region.position(start + 4);
+		region.putLong(time);
+		region.putShort((short) port);
+		region.put((byte) addressLength);
+		for(int i = 0; i < addressLength; i++)
+			region.put((byte) address.charAt(i));
+		if(packet != null) {
+			try {
+				packet.writeTo(region);
+			} catch (PacketEncodingException e) {
+				//anything that was read from a datagram can be written back out, but just in case it's kept as unreadable
+				region.position(start + PacketCapture.RECORD_HEADER_SIZE + addressLength);
+			}
+		}
+		region.putInt(start, region.position() - start);
+		numPacketsCaptured++;
+	}
+
+	/**
+	 * Stops capturing and cuts the file down to what was recorded. Packets
+	 * that arrive afterwards aren't recorded.
+	 */
+	public synchronized void close() {
+		if(isClosed)
+			return;
+		isClosed = true;
+		long end = regionStart + region.position();
+		try {
+			//some systems won't shrink a file that's still mapped, which is fine--readers stop at the zeros
+			try {
+				channel.truncate(end);
+			} catch (IOException e) {
+				logger.fine("Could not trim capture file " + file + ": " + e.getMessage());
+			}
+			randomAccessFile.close();
+		} catch (IOException e) {
+			logger.warning("Could not close capture file " + file + ": " + e.getMessage());
+		}
+	}
+}
\ No newline at end of file
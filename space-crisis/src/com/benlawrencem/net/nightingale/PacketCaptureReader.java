@@ -0,0 +1,150 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.benlawrencem.net.nightingale.Packet.MalformedPacketException;
+
+/**
+ * Reads back the datagrams recorded by a {@link PacketCapture}, in the
+ * order they arrived, through a memory mapping that slides along the file.
+ * The file can still be being written to--the reader just stops at the
+ * last record that was finished when it got there.
+ *
+ *   PacketCaptureReader reader = new PacketCaptureReader(file);
+ *   while(reader.next())
+ *     doSomethingWith(reader.getPacket(), reader.getAddress(), reader.getPort());
+ *   reader.close();
+ */
+public class PacketCaptureReader {
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final long startTime;
+	private MappedByteBuffer region;
+	//the packet reads from a view of its own, since whoever it's handed to is free to move its position and limit
+	private ByteBuffer packetView;
+	private long regionStart;
+	private int offset;
+	private final byte[] addressBytes;
+	private final Packet packet;
+	private long time;
+	private String address;
+	private int port;
+	private boolean isPacket;
+
+	public PacketCaptureReader(File file) throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "r");
+		channel = randomAccessFile.getChannel();
+		addressBytes = new byte[PacketCapture.MAXIMUM_ADDRESS_LENGTH];
+		packet = new Packet();
+		map(0);
+		if(region.capacity() < PacketCapture.FILE_HEADER_SIZE || region.getInt(0) != PacketCapture.MAGIC_NUMBER) {
+			close();
+			throw new IOException(file + " is not a packet capture");
+		}
+		short version = region.getShort(4);
+		if(version != PacketCapture.VERSION) {
+			close();
+			throw new IOException(file + " is a version " + version + " packet capture, only version " + PacketCapture.VERSION + " can be read");
+		}
+		startTime = region.getLong(8);
+		offset = PacketCapture.FILE_HEADER_SIZE;
+	}
+
+	/**
+	 * Returns when the capture started, in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Moves on to the next datagram, returning false if there are no more.
+	 */
+	public boolean next() throws IOException {
+		//the next record is at the end of the mapping or past it, so the mapping moves up to start there
+		int remaining = region.capacity() - offset;
+		if(remaining < 4 || remaining < region.getInt(offset)) {
+			map(regionStart + offset);
+			remaining = region.capacity();
+			if(remaining < 4)
+				return false;
+		}
+		int recordLength = region.getInt(offset);
+		if(recordLength < PacketCapture.RECORD_HEADER_SIZE || recordLength > remaining)
+			return false;
+
+		time = region.getLong(offset + 4);
+		port = region.getShort(offset + 12) & 0xFFFF;
+		int addressLength = region.get(offset + 14) & 0xFF;
+		for(int i = 0; i < addressLength; i++)
+			addressBytes[i] = region.get(offset + PacketCapture.RECORD_HEADER_SIZE + i);
+		if(address == null || !matchesAddress(addressLength))
+			address = new String(addressBytes, 0, addressLength, "ISO-8859-1");
+
+		//the packet reads straight out of the mapping rather than getting a copy
+		int start = offset + PacketCapture.RECORD_HEADER_SIZE + addressLength;
+		int end = offset + recordLength;
+		packetView.limit(end);
+		packetView.position(start);
+		try {
+			isPacket = (start < end && packet.readFrom(packetView) != null);
+		} catch (MalformedPacketException e) {
+			isPacket = false;
+		}
+		offset = end;
+		return true;
+	}
+
+	/**
+	 * Returns how many nanoseconds after the capture started the datagram
+	 * arrived.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Returns the datagram, or null if it couldn't be read as a packet when
+	 * it arrived. The same packet is reused for every datagram, so it's only
+	 * good until the next call to {@link #next}.
+	 */
+	public Packet getPacket() {
+		return (isPacket ? packet : null);
+	}
+
+	public void close() throws IOException {
+		randomAccessFile.close();
+	}
+
+	private boolean matchesAddress(int addressLength) {
+		//most datagrams come from someone who's sent one before, so the last address usually does
+		if(address.length() != addressLength)
+			return false;
+		for(int i = 0; i < addressLength; i++) {
+			if(address.charAt(i) != (char) (addressBytes[i] & 0xFF))
+				return false;
+		}
+		return true;
+	}
+
+	private void map(long position) throws IOException {
+		long size = Math.min(PacketCapture.REGION_SIZE, Math.max(0, channel.size() - position));
+		region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		packetView = region.duplicate();
+		regionStart = position;
+		offset = 0;
+	}
+}
\ No newline at end of file
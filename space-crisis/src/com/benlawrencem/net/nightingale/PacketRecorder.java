@@ -1,25 +1,95 @@
 package com.benlawrencem.net.nightingale;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 public class PacketRecorder {
-	private static final int NUM_RECEIVED_PACKETS_STORED = 64;
-	private PacketReceipt[] receivedPackets;
-	private int receivedPacketHistoryInt;
+	/**
+	 * Gets told about each sent application packet that the other side's
+	 * packet history shows never arrived. The payload is owned by the
+	 * recorder and is only valid for the duration of the call. Packets sent
+	 * on the UNRELIABLE channel are never recorded, so they're never
+	 * reported.
+	 */
+	public interface UndeliveredPacketVisitor {
+		void visitUndeliveredPacket(int sequenceNumber, int originalSequenceNumber, boolean isBundle, Packet.Channel channel, boolean isFragment, ByteBuffer payload);
+	}
+
+	//has to be more than the history covers, so a packet the history has just moved past can still be told apart from a new one
+	private static final int NUM_RECEIVED_PACKETS_STORED = 2 * Packet.RECEIVED_PACKET_HISTORY_SIZE;
+	//once this many packets that want acknowledging have come in without anything going back, the acknowledgement stops
+	// waiting for a packet to ride along on--any longer and the oldest of them would fall out of the history unacknowledged
+	private static final int MAXIMUM_UNACKNOWLEDGED_PACKETS = Packet.RECEIVED_PACKET_HISTORY_SIZE / 2;
+	//incoming packets are usually views over a reused receive buffer, so only what we need from them is copied out
+	private boolean[] receivedPackets;
+	private long receivedPacketHistory;
 	private int lastReceivedPacketIndex;
 	private int lastReceivedPacketSequenceNumber;
-
+	private int lastReceivedPacketLastReceivedSequenceNumber;
+	private long lastReceivedPacketReceivedPacketHistory;
+	private long lastReceivedPacketTime;
+	private long lastReceiveTime;
+	//when the oldest packet we haven't sent anything back since arrived, or -1 if we're all caught up
+	private long acknowledgementOwedTime;
+	private boolean isAcknowledgementUrgent;
+	private int numPacketsOwedAcknowledgement;
+
+	//sent packets are kept in primitive rings indexed by sequence number, so recording one doesn't allocate anything
 	private static final int NUM_SENT_PACKETS_STORED = 64;
-	private PacketReceipt[] sentPackets;
-	private int lastSentPacketIndex;
+	//application packets can't be forgotten before they're known to have arrived or been reported, so the rings grow to hold them up to this size
+	private static final int MAXIMUM_SENT_PACKETS_STORED = 8192;
+	private static final short SENT_FLAG_APPLICATION = 1;
+	private static final short SENT_FLAG_BUNDLE = 2;
+	private static final short SENT_FLAG_HAS_PAYLOAD = 4;
+	//the channel's ordinal is kept in the two bits above the flags, with whether it's a fragment above that
+	private static final int SENT_FLAGS_CHANNEL_SHIFT = 3;
+	private static final int SENT_FLAGS_CHANNEL_MASK = 3;
+	private static final short SENT_FLAG_FRAGMENT = 32;
+	private static final short SENT_FLAG_ACKNOWLEDGED = 64;
+	//set once the packet has actually gone out, until it's acknowledged or given up on
+	private static final short SENT_FLAG_IN_FLIGHT = 128;
+	//set while the packet is waiting to be paced out, which can be a while after it was recorded
+	private static final short SENT_FLAG_QUEUED = 256;
+	//set for packets that only carry acknowledgements. the other side never acknowledges them in turn (it would never
+	// end), so they're never in flight, never timed, and never waited on to find out what happened to them
+	private static final short SENT_FLAG_ACKNOWLEDGEMENT = 512;
+	//set once the packet's been given up for lost, so if it turns out to have arrived after all we know it was only late
+	private static final short SENT_FLAG_GIVEN_UP = 1024;
+	//set for packets that were thrown away instead of going out, which are as good as lost the moment it happens
+	private static final short SENT_FLAG_DROPPED = 2048;
+	private static final Packet.Channel[] CHANNELS = Packet.Channel.values();
+	//how many packets newer than a missing one the other side has to receive before it's given up on without waiting
+	// out the timeout, to begin with. it goes up whenever a packet given up on turns out to have only been overtaken
+	private static final int INITIAL_REORDERING_THRESHOLD = 3;
+	private static final int MAXIMUM_REORDERING_THRESHOLD = Packet.RECEIVED_PACKET_HISTORY_SIZE / 2;
+	private int[] sentSequenceNumbers;
+	private int[] sentDuplicateSequenceNumbers;
+	private long[] sentTimes;
+	private short[] sentFlags;
+	//only application messages need their payloads kept around, and each slot's buffer is reused once it exists
+	private ByteBuffer[] sentPayloads;
+	private int[] sentPayloadLengths;
 	private int lastSentPacketSequenceNumber;
 
+	//every packet up to and including this one has either been acknowledged or reported undelivered
 	private int lastSentPacketCheckedForDelivery;
+	private int reorderingThreshold;
+	//how much later than a missing packet the packets overtaking it have to have been sent, in milliseconds
+	private long reorderingWindow;
+	private long numSpuriousResends;
+	private RttEstimator rttEstimator;
+	private CongestionController congestionController;
 
 	public PacketRecorder() {
-		receivedPackets = new PacketReceipt[PacketRecorder.NUM_RECEIVED_PACKETS_STORED];
-		sentPackets = new PacketReceipt[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		rttEstimator = new RttEstimator();
+		congestionController = new CongestionController(rttEstimator);
+		receivedPackets = new boolean[PacketRecorder.NUM_RECEIVED_PACKETS_STORED];
+		sentSequenceNumbers = new int[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		sentDuplicateSequenceNumbers = new int[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		sentTimes = new long[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		sentFlags = new short[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		sentPayloads = new ByteBuffer[PacketRecorder.NUM_SENT_PACKETS_STORED];
+		sentPayloadLengths = new int[PacketRecorder.NUM_SENT_PACKETS_STORED];
 		reset();
 	}
 
@@ -36,40 +106,52 @@ public class PacketRecorder {
 		if(packet == null || !packet.hasSequenceNumber())
 			return;
 
+		//whatever order it arrived in, its history is still news about which of our packets were delivered
+		lastReceiveTime = System.currentTimeMillis();
+		recordAcknowledgements(packet);
+
+		//packets that are only there to acknowledge things don't get acknowledged themselves, or it would never end
+		if(isAcknowledgementWanted(packet)) {
+			if(acknowledgementOwedTime == -1)
+				acknowledgementOwedTime = lastReceiveTime;
+			numPacketsOwedAcknowledgement++;
+			isAcknowledgementUrgent |= packet.isImmediateResponse() || numPacketsOwedAcknowledgement >= PacketRecorder.MAXIMUM_UNACKNOWLEDGED_PACKETS;
+		}
+
 		//if we've never received a packet before, our job is easy
 		if(lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
-			receivedPackets[0] = new PacketReceipt(packet);
-			receivedPacketHistoryInt = 0;
+			receivedPackets[0] = true;
+			receivedPacketHistory = 0;
 			lastReceivedPacketIndex = 0;
-			lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
+			recordLastReceivedPacket(packet);
 		}
 		else {
 			//if our last received packet is really old, our job is almost exactly the same as receiving our first packet
 			int delta = Packet.deltaBetweenSequenceNumbers(lastReceivedPacketSequenceNumber, packet.getSequenceNumber());
 			if(delta >= PacketRecorder.NUM_RECEIVED_PACKETS_STORED) {
-				receivedPackets[0] = new PacketReceipt(packet);
+				receivedPackets[0] = true;
 				for(int i = 1; i < receivedPackets.length; i++)
-					receivedPackets[i] = null;
-				receivedPacketHistoryInt = 0;
+					receivedPackets[i] = false;
+				receivedPacketHistory = 0;
 				lastReceivedPacketIndex = 0;
-				lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
+				recordLastReceivedPacket(packet);
 			}
 
 			//if the packet is one in the near future, push things over and add it
 			else if (delta > 0) {
-				//add a 1 to the history int, marking the last received packet as having been received
-				receivedPacketHistoryInt = (receivedPacketHistoryInt >> 1) | Integer.MIN_VALUE;
+				//add a 1 to the history, marking the last received packet as having been received
+				receivedPacketHistory = (receivedPacketHistory >>> 1) | Long.MIN_VALUE;
 
-				//add nulls in-between the last received packet and this packet, representing missing packets
+				//mark the packets in-between the last received packet and this packet as missing
 				for(int i = 1; i < delta; i++) {
-					receivedPackets[(lastReceivedPacketIndex + i) % PacketRecorder.NUM_RECEIVED_PACKETS_STORED] = null;
-					receivedPacketHistoryInt = (receivedPacketHistoryInt >> 1) & Integer.MAX_VALUE; //also shift a 0, meaning a missed packet
+					receivedPackets[(lastReceivedPacketIndex + i) % PacketRecorder.NUM_RECEIVED_PACKETS_STORED] = false;
+					receivedPacketHistory >>>= 1; //also shift a 0, meaning a missed packet
 				}
 
 				//add the packet
 				lastReceivedPacketIndex = (lastReceivedPacketIndex + delta) % PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
-				receivedPackets[lastReceivedPacketIndex] = new PacketReceipt(packet);
-				lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
+				receivedPackets[lastReceivedPacketIndex] = true;
+				recordLastReceivedPacket(packet);
 			}
 
 			//if the packet is one in the recent past, slot it in
@@ -77,14 +159,13 @@ public class PacketRecorder {
 				int index = lastReceivedPacketIndex + delta;
 				if(index < 0)
 					index += PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
-				receivedPackets[index] = new PacketReceipt(packet);
-
-				//add a 1 to the correct position in the history int
-				if(delta >= -32) {
-					//ex: delta = -1  -->  leftmost bit needs to be a 1  -->  mask with 2^31  -->  mask with Integer.MIN_VALUE
-					//ex: delta = -32 -->  rightmost bit needs to be a 1 -->  mask with 2^0
-					int mask = (delta == -1 ? Integer.MIN_VALUE : (int) Math.pow(2, 32 + delta));
-					receivedPacketHistoryInt = receivedPacketHistoryInt & mask;
+				receivedPackets[index] = true;
+
+				//add a 1 to the correct position in the history
+				if(delta >= -Packet.RECEIVED_PACKET_HISTORY_SIZE) {
+					//ex: delta = -1  -->  leftmost bit needs to be a 1  -->  mask with 2^63  -->  mask with Long.MIN_VALUE
+					//ex: delta = -64 -->  rightmost bit needs to be a 1 -->  mask with 2^0
+					receivedPacketHistory |= 1L << (Packet.RECEIVED_PACKET_HISTORY_SIZE + delta);
 				}
 			}
 
@@ -92,65 +173,146 @@ public class PacketRecorder {
 		}
 	}
 
-	public synchronized List<Packet> getUndeliveredPackets() {
-		List<Packet> undeliveredPackets = new ArrayList<Packet>();
+	/**
+	 * Reports every sent packet that's been given up for lost since the last
+	 * visit. A packet is given up once the other side has received something
+	 * sent after it without acknowledging it, and either it's gone
+	 * unacknowledged for longer than the retransmission timeout or the other
+	 * side has received a few packets sent after it. Giving up on a packet as
+	 * soon as one sent after it arrives resends ones that were only overtaken
+	 * on the way, and waiting for the timeout alone is slow when the other
+	 * side only acknowledges whenever it next has something to send.
+	 *
+	 * How many packets count as a few depends on the connection. Every time a
+	 * packet that was given up on turns out to have arrived after all, it's
+	 * raised to however far behind that packet had fallen. The packets
+	 * overtaking a missing one also have to have been sent a while after it,
+	 * a quarter of the minimum round trip longer each time, up to the
+	 * smoothed round trip time. A burst of packets sent all at once can arrive
+	 * in any order on a link with some jitter, and there's nothing lost about
+	 * any of them.
+	 *
+	 * The last packets sent have nothing after them to be overtaken by, so
+	 * they're given up once the newest packet from the other side arrived a
+	 * whole retransmission timeout after they were sent and still didn't
+	 * acknowledge them.
+	 *
+	 * Packets that were dropped without ever going out are given up on as
+	 * soon as they're reached, without waiting for anything.
+	 */
+	public synchronized void visitUndeliveredPackets(UndeliveredPacketVisitor visitor) {
+		visitUndeliveredPackets(visitor, Integer.MAX_VALUE);
+	}
 
+	/**
+	 * The same as visitUndeliveredPackets, but gives up on at most
+	 * maximumDropped of the packets that were dropped without going out.
+	 * Whoever drops packets passes however many it has room to resend, since
+	 * resending more would only get them dropped again. The rest wait where
+	 * they are, along with everything sent after them.
+	 */
+	public synchronized void visitUndeliveredPackets(UndeliveredPacketVisitor visitor, int maximumDropped) {
 		//if we've never received a packet then we have no way to tell if the packets we've sent have been delivered
 		if(lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
-			return undeliveredPackets;
-
-		//if we received null packets (shouldn't be possible) then once again there's no way to tell which packets have been delivered
-		if(receivedPackets[lastReceivedPacketIndex] == null)
-			return undeliveredPackets;
-		Packet packet = receivedPackets[lastReceivedPacketIndex].getPacket();
-		if(packet == null)
-			return undeliveredPackets;
+			return;
 
 		//if the last received packet doesn't have history information then there's no information on which packets were delivered
-		if(!packet.hasReceivedPacketHistory())
-			return undeliveredPackets;
-
-		//if the the last received packet has older history information than when we last checked then we gain no new information
-		int packetVerifiedAsDelivered = packet.getLastReceivedSequenceNumber();
-		if(lastSentPacketCheckedForDelivery != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE
-				&& Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, packetVerifiedAsDelivered) <= 0)
-			return undeliveredPackets;
-
-		//if we've never checked packet history before then we set an anchor here and don't do any checking yet
-		if(lastSentPacketCheckedForDelivery == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
-			lastSentPacketCheckedForDelivery = packetVerifiedAsDelivered;
-			return undeliveredPackets;
-		}
+		int lastPacketDelivered = lastReceivedPacketLastReceivedSequenceNumber;
+		if(lastPacketDelivered == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return;
+
+		long now = System.currentTimeMillis();
+		long retransmissionTimeout = rttEstimator.getRetransmissionTimeout();
+		long lastPacketDeliveredTime = getTimeSent(lastPacketDelivered);
+		if(lastPacketDeliveredTime == -1)
+			lastPacketDeliveredTime = now;
+		while(lastSentPacketCheckedForDelivery != lastSentPacketSequenceNumber) {
+			int sequenceNumber = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
+			int index = sequenceNumber % sentSequenceNumbers.length;
+
+			//packets that were acknowledged, or that we no longer have a record of, need no more checking
+			if(sentSequenceNumbers[index] == sequenceNumber && (sentFlags[index] & (PacketRecorder.SENT_FLAG_ACKNOWLEDGED | PacketRecorder.SENT_FLAG_ACKNOWLEDGEMENT)) == 0) {
+				//packets go out in order, so if this one can't be given up on yet, neither can any sent after it. packets
+				// still waiting to be paced out can be overtaken by ones that weren't, but they haven't had a chance to arrive
+				int delta = Packet.deltaBetweenSequenceNumbers(sequenceNumber, lastPacketDelivered);
+				if((sentFlags[index] & PacketRecorder.SENT_FLAG_QUEUED) != 0)
+					break;
+				if((sentFlags[index] & PacketRecorder.SENT_FLAG_DROPPED) != 0) {
+					if(maximumDropped == 0)
+						break;
+					maximumDropped--;
+				}
+				else {
+					if(delta <= 0) {
+						//nothing sent after it has arrived either, but what the other side sent since has had time to say it did
+						if(lastReceivedPacketTime - sentTimes[index] < retransmissionTimeout)
+							break;
+					}
+					else if(now - sentTimes[index] < retransmissionTimeout
+							&& (delta <= reorderingThreshold || lastPacketDeliveredTime - sentTimes[index] < reorderingWindow))
+						break;
+				}
 
-		//check each packet between the last packet checked for delivery and the new packet verified as delivered
-		lastSentPacketCheckedForDelivery = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
-		while(lastSentPacketCheckedForDelivery != packetVerifiedAsDelivered) {
-			int delta = Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, packetVerifiedAsDelivered);
-			if(delta <= 32) {
-				//if the most recent packet has 0s in it that means packet weren't delivered
-				//ex: delta = 32 --> rightmost bit represents delivery --> mask with 2^0
-				//ex: delta = 1  --> leftmost bit represents delivery  --> mask with 2^31 --> mask with Integer.MIN_VALUE
-				int mask = (delta == 1 ? Integer.MIN_VALUE : (int) Math.pow(2, 32 - delta));
-				if((packet.getReceivedPacketHistory() & mask) == 0) {
-					int index = lastSentPacketIndex - delta;
-					if(index < 0)
-						index += PacketRecorder.NUM_SENT_PACKETS_STORED;
-					if(sentPackets[index] != null && sentPackets[index].getPacket() != null)
-						undeliveredPackets.add(sentPackets[index].getPacket());
+				//there's no telling whether packets older than the history made it--reliable ones are assumed not to, since
+				// resending one that did arrive costs a little bandwidth but never resending one that didn't loses it for good
+				if((sentFlags[index] & PacketRecorder.SENT_FLAG_IN_FLIGHT) != 0) {
+					sentFlags[index] &= ~PacketRecorder.SENT_FLAG_IN_FLIGHT;
+					if(delta > Packet.RECEIVED_PACKET_HISTORY_SIZE)
+						congestionController.onPacketForgotten();
+					else
+						congestionController.onPacketLost(sentTimes[index], now);
 				}
+				sentFlags[index] |= PacketRecorder.SENT_FLAG_GIVEN_UP;
+				NetworkEvents.INSTANCE.packetUndelivered(sequenceNumber, Math.max(0, delta), now - sentTimes[index]);
+				visitSentPacket(sequenceNumber, visitor, delta > Packet.RECEIVED_PACKET_HISTORY_SIZE);
 			}
-			lastSentPacketCheckedForDelivery = Packet.nextSequenceNumber(lastSentPacketCheckedForDelivery);
+			lastSentPacketCheckedForDelivery = sequenceNumber;
 		}
-		return undeliveredPackets;
 	}
-	
+
+	/**
+	 * Returns how many milliseconds until the next packet that's only being
+	 * held back by the retransmission timeout can be given up for lost, or -1
+	 * if none are. The other side may not send anything else for a while, so
+	 * whoever owns the recorder should visit undelivered packets again then
+	 * rather than waiting for the next packet to arrive.
+	 */
+	public synchronized long getTimeUntilDeliveryCheck() {
+		int lastPacketDelivered = lastReceivedPacketLastReceivedSequenceNumber;
+		if(lastReceivedPacketSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE || lastPacketDelivered == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return -1;
+		int sequenceNumber = lastSentPacketCheckedForDelivery;
+		while(sequenceNumber != lastSentPacketSequenceNumber) {
+			sequenceNumber = Packet.nextSequenceNumber(sequenceNumber);
+			if(Packet.deltaBetweenSequenceNumbers(sequenceNumber, lastPacketDelivered) <= 0)
+				return -1;
+			int index = sequenceNumber % sentSequenceNumbers.length;
+			if(sentSequenceNumbers[index] == sequenceNumber && (sentFlags[index] & (PacketRecorder.SENT_FLAG_ACKNOWLEDGED | PacketRecorder.SENT_FLAG_ACKNOWLEDGEMENT)) == 0) {
+				//dropped packets wait for room to be resent, which the acknowledgements for the ones still going out make
+				if((sentFlags[index] & (PacketRecorder.SENT_FLAG_QUEUED | PacketRecorder.SENT_FLAG_DROPPED)) != 0)
+					return -1;
+				return Math.max(0, sentTimes[index] + rttEstimator.getRetransmissionTimeout() - System.currentTimeMillis());
+			}
+		}
+		return -1;
+	}
+
 	public synchronized void addReceivedPacketHistoryToOutgoingPacket(Packet packet) {
 		if(packet != null) {
 			packet.setLastReceivedSequenceNumber(lastReceivedPacketSequenceNumber);
-			packet.setReceivedPacketHistory(receivedPacketHistoryInt);
+			packet.setReceivedPacketHistory(receivedPacketHistory);
 		}
 	}
 
+	/**
+	 * The same as addReceivedPacketHistoryToOutgoingPacket, but for a packet
+	 * that's already been encoded and was waiting to go out.
+	 */
+	public synchronized void addReceivedPacketHistoryToOutgoingDatagram(ByteBuffer datagram) throws Packet.SequenceNumberOutOfRangeException {
+		if(datagram != null)
+			Packet.rewriteReceivedPacketHistory(datagram, lastReceivedPacketSequenceNumber, receivedPacketHistory);
+	}
+
 	public synchronized void recordAndAddSequenceNumberToOutgoingPacket(Packet packet) {
 		//ignore null packets
 		if(packet == null)
@@ -160,51 +322,187 @@ public class PacketRecorder {
 		lastSentPacketSequenceNumber = Packet.nextSequenceNumber(lastSentPacketSequenceNumber);
 		packet.setSequenceNumber(lastSentPacketSequenceNumber);
 
-		//add packet to array of sent packets
-		lastSentPacketIndex++;
-		if(lastSentPacketIndex == PacketRecorder.NUM_SENT_PACKETS_STORED)
-			lastSentPacketIndex = 0;
-		sentPackets[lastSentPacketIndex] = new PacketReceipt(packet);
+		//record the packet in its slot
+		int index = lastSentPacketSequenceNumber % sentSequenceNumbers.length;
+		while(isAwaitingDeliveryCheck(index) && sentSequenceNumbers.length < PacketRecorder.MAXIMUM_SENT_PACKETS_STORED) {
+			growSentPackets();
+			index = lastSentPacketSequenceNumber % sentSequenceNumbers.length;
+		}
+		if((sentFlags[index] & PacketRecorder.SENT_FLAG_IN_FLIGHT) != 0)
+			congestionController.onPacketForgotten();
+		sentSequenceNumbers[index] = lastSentPacketSequenceNumber;
+		sentDuplicateSequenceNumbers[index] = packet.getDuplicateSequenceNumber();
+		sentTimes[index] = System.currentTimeMillis();
+		sentFlags[index] = 0;
+		if(packet.getMessageType() == Packet.MessageType.ACKNOWLEDGEMENT)
+			sentFlags[index] |= PacketRecorder.SENT_FLAG_ACKNOWLEDGEMENT;
+		//unreliable messages are never reported, so there's no reason to hold onto them
+		if(packet.getChannel() == Packet.Channel.UNRELIABLE)
+			return;
+		if(packet.getMessageType() == Packet.MessageType.APPLICATION || packet.getMessageType() == Packet.MessageType.APPLICATION_BUNDLE) {
+			sentFlags[index] |= PacketRecorder.SENT_FLAG_APPLICATION | (packet.getChannel().ordinal() << PacketRecorder.SENT_FLAGS_CHANNEL_SHIFT);
+			if(packet.getMessageType() == Packet.MessageType.APPLICATION_BUNDLE)
+				sentFlags[index] |= PacketRecorder.SENT_FLAG_BUNDLE;
+			if(packet.isFragment())
+				sentFlags[index] |= PacketRecorder.SENT_FLAG_FRAGMENT;
+			if(recordPayload(index, packet))
+				sentFlags[index] |= PacketRecorder.SENT_FLAG_HAS_PAYLOAD;
+		}
 	}
 
 	public synchronized void recordPreviousOutgoingPacketNotSent() {
 		//no-op--the receiving party will recognize the packet has not been received and request a duplicate
 	}
 
-	public synchronized PacketReceipt getSentPacketWithSequenceNumber(int sequenceNumber) {
-		//ignore N/A sequence numbers
-		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
-			return null;
+	/**
+	 * Records a packet that's been given its sequence number as waiting to
+	 * be paced out. It isn't given up for lost until it's gone out and had a
+	 * chance to arrive, even if packets sent after it get there first.
+	 */
+	public synchronized void recordOutgoingPacketQueued(int sequenceNumber) {
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sequenceNumber != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE && sentSequenceNumbers[index] == sequenceNumber)
+			sentFlags[index] |= PacketRecorder.SENT_FLAG_QUEUED;
+	}
 
-		//if the sequence number is for a packet in the future then we haven't sent it yet
-		int delta = Packet.deltaBetweenSequenceNumbers(sequenceNumber, lastSentPacketSequenceNumber);
-		if(delta < 0)
-			return null;
+	/**
+	 * Records a packet that's been given its sequence number as thrown away
+	 * without going out, because too many were already waiting to be paced
+	 * out. It's given up for lost as soon as the packets before it have been
+	 * dealt with and there's room to resend it, rather than waiting to find
+	 * out what the other side makes of the ones after it. Since it never went
+	 * out, it doesn't count as a loss against the congestion window either.
+	 */
+	public synchronized void recordOutgoingPacketDropped(int sequenceNumber) {
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sequenceNumber != Packet.SEQUENCE_NUMBER_NOT_APPLICABLE && sentSequenceNumbers[index] == sequenceNumber)
+			sentFlags[index] |= PacketRecorder.SENT_FLAG_DROPPED;
+	}
 
-		//if the sequence number is too far in the past then we won't have a record of it
-		if(delta >= PacketRecorder.NUM_SENT_PACKETS_STORED)
-			return null;
+	/**
+	 * Records a packet that's been given its sequence number as actually
+	 * going out onto the network, which is when it starts counting against
+	 * the congestion window and its round trip starts being timed--unless
+	 * it's only an acknowledgement, which doesn't get acknowledged back.
+	 * Since it carries our received packet history, nothing is owed an
+	 * acknowledgement after it.
+	 */
+	public synchronized void recordOutgoingPacketTransmitted(int sequenceNumber) {
+		//whatever it was, it carried everything we've received so far
+		acknowledgementOwedTime = -1;
+		isAcknowledgementUrgent = false;
+		numPacketsOwedAcknowledgement = 0;
+
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE || sentSequenceNumbers[index] != sequenceNumber)
+			return;
+		long now = System.currentTimeMillis();
+		sentTimes[index] = now;
+		sentFlags[index] &= ~PacketRecorder.SENT_FLAG_QUEUED;
+		if((sentFlags[index] & PacketRecorder.SENT_FLAG_ACKNOWLEDGEMENT) != 0)
+			return;
+		sentFlags[index] |= PacketRecorder.SENT_FLAG_IN_FLIGHT;
+		congestionController.onPacketSent(now);
+	}
 
-		//return the sent packet
-		int index = (lastSentPacketSequenceNumber - delta) % PacketRecorder.NUM_SENT_PACKETS_STORED;
-		if(index < 0)
-			index += PacketRecorder.NUM_SENT_PACKETS_STORED;
-		return sentPackets[index];
+	/**
+	 * Returns how many milliseconds until something has to go back to the
+	 * other side to acknowledge what it's sent, given how long acknowledgements
+	 * are allowed to wait for a packet to ride along on. Returns 0 if it's due
+	 * now, or -1 if there's nothing waiting to be acknowledged.
+	 */
+	public synchronized long getTimeUntilAcknowledgement(long acknowledgementDelay) {
+		if(acknowledgementOwedTime == -1)
+			return -1;
+		if(isAcknowledgementUrgent)
+			return 0;
+		return Math.max(0, acknowledgementOwedTime + acknowledgementDelay - System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns how many milliseconds until the congestion controller lets the
+	 * next packet go out, 0 meaning straight away.
+	 */
+	public synchronized long getTimeUntilSend() {
+		return congestionController.getTimeUntilSend(System.currentTimeMillis(), lastReceiveTime);
+	}
+
+	/**
+	 * Returns the round trip time estimate fed by the acknowledgements in the
+	 * packets we receive.
+	 */
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+
+	public CongestionController getCongestionController() {
+		return congestionController;
+	}
+
+	/**
+	 * Returns how many packets newer than a missing one the other side has to
+	 * have received before it's given up for lost without waiting out the
+	 * retransmission timeout.
+	 */
+	public synchronized int getReorderingThreshold() {
+		return reorderingThreshold;
+	}
+
+	/**
+	 * Returns how many of the packets given up for lost turned out to have
+	 * arrived after all, and were resent (if they were reliable) for nothing.
+	 */
+	public synchronized long getNumSpuriousResends() {
+		return numSpuriousResends;
+	}
+
+	/**
+	 * Returns when the packet with the given sequence number was sent, or -1
+	 * if there's no record of it.
+	 */
+	public synchronized long getTimeSent(int sequenceNumber) {
+		//ignore N/A sequence numbers
+		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return -1;
+
+		//if the slot has been reused by a newer packet then we no longer have a record of this one
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sentSequenceNumbers[index] != sequenceNumber)
+			return -1;
+		return sentTimes[index];
 	}
 
 	public synchronized void reset() {
 		for(int i = 0; i < receivedPackets.length; i++)
-			receivedPackets[i] = null;
-		receivedPacketHistoryInt = 0;
+			receivedPackets[i] = false;
+		receivedPacketHistory = 0;
 		lastReceivedPacketIndex = -1;
 		lastReceivedPacketSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
-
-		for(int i = 0; i < sentPackets.length; i++)
-			sentPackets[i] = null;
-		lastSentPacketIndex = -1;
+		lastReceivedPacketLastReceivedSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		lastReceivedPacketReceivedPacketHistory = 0;
+		lastReceivedPacketTime = 0;
+		lastReceiveTime = 0;
+		acknowledgementOwedTime = -1;
+		isAcknowledgementUrgent = false;
+		numPacketsOwedAcknowledgement = 0;
+
+		for(int i = 0; i < sentSequenceNumbers.length; i++) {
+			sentSequenceNumbers[i] = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+			sentFlags[i] = 0;
+		}
 		lastSentPacketSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
 
 		lastSentPacketCheckedForDelivery = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		reorderingThreshold = PacketRecorder.INITIAL_REORDERING_THRESHOLD;
+		reorderingWindow = 0;
+		numSpuriousResends = 0;
+		rttEstimator.reset();
+		congestionController.reset();
+	}
+
+	private static boolean isAcknowledgementWanted(Packet packet) {
+		Packet.MessageType messageType = packet.getMessageType();
+		return messageType == Packet.MessageType.APPLICATION || messageType == Packet.MessageType.APPLICATION_BUNDLE || messageType == Packet.MessageType.PING;
 	}
 
 	private synchronized boolean hasReceivedPacketWithSequenceNumber(int sequenceNumber) {
@@ -229,10 +527,156 @@ public class PacketRecorder {
 		if(delta <= -NUM_RECEIVED_PACKETS_STORED)
 			return true;
 
-		//otherwise find the index of the packet in the receivedPackets array and if it's null we haven't received it before
+		//otherwise find the index of the packet in the receivedPackets array to see if we've received it before
 		int index = (lastReceivedPacketIndex + delta);
 		if(index < 0)
 			index += PacketRecorder.NUM_RECEIVED_PACKETS_STORED;
-		return receivedPackets[index] != null;
+		return receivedPackets[index];
+	}
+
+	private void recordLastReceivedPacket(Packet packet) {
+		lastReceivedPacketSequenceNumber = packet.getSequenceNumber();
+		lastReceivedPacketLastReceivedSequenceNumber = packet.getLastReceivedSequenceNumber();
+		lastReceivedPacketReceivedPacketHistory = packet.getReceivedPacketHistory();
+		lastReceivedPacketTime = lastReceiveTime;
+	}
+
+	private void recordAcknowledgements(Packet packet) {
+		int lastPacketDelivered = packet.getLastReceivedSequenceNumber();
+		if(lastPacketDelivered == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return;
+		long now = System.currentTimeMillis();
+
+		//only the newest packet the other side has received makes for a good sample--it would have acknowledged the
+		// ones before it sooner if it'd had anything to send
+		acknowledge(lastPacketDelivered, now, 0);
+		long history = packet.getReceivedPacketHistory();
+		int sequenceNumber = lastPacketDelivered;
+		for(int delta = 1; delta <= Packet.RECEIVED_PACKET_HISTORY_SIZE && history != 0; delta++) {
+			sequenceNumber = (sequenceNumber == Packet.MINIMUM_SEQUENCE_NUMBER ? Packet.MAXIMUM_SEQUENCE_NUMBER : sequenceNumber - 1);
+			//ex: delta = 1  --> leftmost bit represents delivery  --> mask with 2^63 --> mask with Long.MIN_VALUE
+			//ex: delta = 64 --> rightmost bit represents delivery --> mask with 2^0
+			long mask = 1L << (Packet.RECEIVED_PACKET_HISTORY_SIZE - delta);
+			if((history & mask) != 0) {
+				acknowledge(sequenceNumber, now, delta);
+				history &= ~mask;
+			}
+		}
+	}
+
+	/**
+	 * Takes note of a packet having arrived, distance being how many packets
+	 * sent after it had arrived before the other side said so.
+	 */
+	private void acknowledge(int sequenceNumber, long now, int distance) {
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sentSequenceNumbers[index] != sequenceNumber || (sentFlags[index] & PacketRecorder.SENT_FLAG_ACKNOWLEDGED) != 0)
+			return;
+		sentFlags[index] |= PacketRecorder.SENT_FLAG_ACKNOWLEDGED;
+		if((sentFlags[index] & PacketRecorder.SENT_FLAG_GIVEN_UP) != 0)
+			recordSpuriousResend(distance);
+		if((sentFlags[index] & PacketRecorder.SENT_FLAG_IN_FLIGHT) != 0) {
+			sentFlags[index] &= ~PacketRecorder.SENT_FLAG_IN_FLIGHT;
+			congestionController.onPacketAcknowledged(now);
+		}
+
+		//resent packets aren't sampled (Karn's rule). each copy has a sequence number of its own so the acknowledgement
+		// isn't ambiguous here like it is in TCP, but resends go out in bursts after losses and would skew the estimate.
+		// acknowledgements aren't either--the other side only says it got one whenever it next sends something anyway
+		if(distance == 0 && sentDuplicateSequenceNumbers[index] == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE && (sentFlags[index] & PacketRecorder.SENT_FLAG_ACKNOWLEDGEMENT) == 0)
+			rttEstimator.addSample(now - sentTimes[index]);
+	}
+
+	private void recordSpuriousResend(int distance) {
+		//the acknowledgement may have waited for a few more packets to arrive, so this is as far behind as it could have been
+		numSpuriousResends++;
+		reorderingThreshold = Math.min(Math.max(reorderingThreshold, distance), PacketRecorder.MAXIMUM_REORDERING_THRESHOLD);
+		long minimumRtt = Math.max(4, rttEstimator.getMinimumRtt());
+		long smoothedRtt = Math.max(minimumRtt, rttEstimator.getSmoothedRtt());
+		reorderingWindow = Math.min(reorderingWindow + minimumRtt / 4, smoothedRtt);
+	}
+
+	private boolean recordPayload(int index, Packet packet) {
+		//slots start out just big enough and only grow when a bigger message comes along
+		ByteBuffer payload = sentPayloads[index];
+		if(payload == null)
+			payload = sentPayloads[index] = ByteBuffer.allocate(Math.max(packet.getPayloadLength(), 1));
+		while(true) {
+			try {
+				payload.clear();
+				packet.writePayloadTo(payload);
+				sentPayloadLengths[index] = payload.position();
+				return true;
+			} catch (BufferOverflowException e) {
+				//a message too big for any packet will never get sent anyway
+				if(payload.capacity() >= Packet.MAXIMUM_PAYLOAD_SIZE)
+					return false;
+				payload = sentPayloads[index] = ByteBuffer.allocate(Math.min(Math.max(packet.getPayloadLength(), 2 * payload.capacity()), Packet.MAXIMUM_PAYLOAD_SIZE));
+			}
+		}
+	}
+
+	private boolean isAwaitingDeliveryCheck(int index) {
+		int sequenceNumber = sentSequenceNumbers[index];
+		if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE || (sentFlags[index] & PacketRecorder.SENT_FLAG_APPLICATION) == 0)
+			return false;
+		return lastSentPacketCheckedForDelivery == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE
+				|| Packet.deltaBetweenSequenceNumbers(lastSentPacketCheckedForDelivery, sequenceNumber) > 0;
+	}
+
+	private void growSentPackets() {
+		int size = 2 * sentSequenceNumbers.length;
+		int[] biggerSequenceNumbers = new int[size];
+		int[] biggerDuplicateSequenceNumbers = new int[size];
+		long[] biggerTimes = new long[size];
+		short[] biggerFlags = new short[size];
+		ByteBuffer[] biggerPayloads = new ByteBuffer[size];
+		int[] biggerPayloadLengths = new int[size];
+		for(int i = 0; i < size; i++)
+			biggerSequenceNumbers[i] = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		for(int i = 0; i < sentSequenceNumbers.length; i++) {
+			int sequenceNumber = sentSequenceNumbers[i];
+			if(sequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+				continue;
+			int index = sequenceNumber % size;
+			biggerSequenceNumbers[index] = sequenceNumber;
+			biggerDuplicateSequenceNumbers[index] = sentDuplicateSequenceNumbers[i];
+			biggerTimes[index] = sentTimes[i];
+			biggerFlags[index] = sentFlags[i];
+			biggerPayloads[index] = sentPayloads[i];
+			biggerPayloadLengths[index] = sentPayloadLengths[i];
+		}
+		sentSequenceNumbers = biggerSequenceNumbers;
+		sentDuplicateSequenceNumbers = biggerDuplicateSequenceNumbers;
+		sentTimes = biggerTimes;
+		sentFlags = biggerFlags;
+		sentPayloads = biggerPayloads;
+		sentPayloadLengths = biggerPayloadLengths;
+	}
+
+	private void visitSentPacket(int sequenceNumber, UndeliveredPacketVisitor visitor, boolean onlyIfReliable) {
+		//we only report application packets that we still have a record of
+		int index = sequenceNumber % sentSequenceNumbers.length;
+		if(sentSequenceNumbers[index] != sequenceNumber || (sentFlags[index] & PacketRecorder.SENT_FLAG_APPLICATION) == 0)
+			return;
+		Packet.Channel channel = getSentChannel(index);
+		if(onlyIfReliable && !channel.isReliable())
+			return;
+		ByteBuffer payload = null;
+		if((sentFlags[index] & PacketRecorder.SENT_FLAG_HAS_PAYLOAD) != 0) {
+			payload = sentPayloads[index];
+			payload.limit(sentPayloadLengths[index]);
+			payload.position(0);
+			if(!payload.hasRemaining())
+				payload = null;
+		}
+		int originalSequenceNumber = sentDuplicateSequenceNumbers[index];
+		if(originalSequenceNumber == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			originalSequenceNumber = sequenceNumber;
+		visitor.visitUndeliveredPacket(sequenceNumber, originalSequenceNumber, (sentFlags[index] & PacketRecorder.SENT_FLAG_BUNDLE) != 0, channel, (sentFlags[index] & PacketRecorder.SENT_FLAG_FRAGMENT) != 0, payload);
+	}
+
+	private Packet.Channel getSentChannel(int index) {
+		return PacketRecorder.CHANNELS[(sentFlags[index] >> PacketRecorder.SENT_FLAGS_CHANNEL_SHIFT) & PacketRecorder.SENT_FLAGS_CHANNEL_MASK];
 	}
 }
\ No newline at end of file
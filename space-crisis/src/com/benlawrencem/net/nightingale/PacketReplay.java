@@ -0,0 +1,74 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the datagrams in a {@link PacketCapture} file to a receiver, such
+ * as a {@link Server}, as though they were arriving all over again. They
+ * can come at the speed they originally did, some number of times faster,
+ * or as fast as the receiver will take them.
+ *
+ * A server taking a replay should be running on transports that don't go
+ * anywhere, like an {@link InMemoryNetwork}'s, because it'll answer the
+ * captured addresses. Clients are given ids in the order they connect, so
+ * a fresh server ends up with the same clients under the same ids as the
+ * one that was captured--as long as it isn't verifying connect cookies,
+ * since the ones in the capture were made by the captured server, and lets
+ * clients in at {@link Server#UNLIMITED_ADMISSION_RATE}, so they're in
+ * before their next packets are replayed.
+ */
+public class PacketReplay {
+	/**
+	 * The speed that doesn't wait between datagrams at all.
+	 */
+	public static final double AS_FAST_AS_POSSIBLE = 0;
+	private final File file;
+	private final PacketReceiver receiver;
+	private volatile boolean isReplaying;
+
+	public PacketReplay(File file, PacketReceiver receiver) {
+		this.file = file;
+		this.receiver = receiver;
+		isReplaying = false;
+	}
+
+	/**
+	 * Replays the whole capture on the calling thread, speed times as fast
+	 * as it was captured (so 1 is the original speed), or without waiting
+	 * if speed is {@link #AS_FAST_AS_POSSIBLE}. Returns how many datagrams
+	 * were replayed.
+	 */
+	public long replay(double speed) throws IOException {
+		PacketCaptureReader reader = new PacketCaptureReader(file);
+		long numPackets = 0;
+		isReplaying = true;
+		try {
+			long startNanoTime = System.nanoTime();
+			while(isReplaying && reader.next()) {
+				if(speed > 0) {
+					//sleeping can only be trusted to a millisecond or so, so it's parked again until it's really time
+					long due = startNanoTime + (long) (reader.getTime() / speed);
+					long wait;
+					while((wait = due - System.nanoTime()) > 0)
+						LockSupport.parkNanos(wait);
+				}
+				receiver.receivePacket(reader.getPacket(), reader.getAddress(), reader.getPort());
+				numPackets++;
+			}
+		} finally {
+			isReplaying = false;
+			reader.close();
+		}
+		return numPackets;
+	}
+
+	/**
+	 * Stops a replay that's going on in another thread after the datagram
+	 * it's on.
+	 */
+	public void stop() {
+		isReplaying = false;
+	}
+}
\ No newline at end of file
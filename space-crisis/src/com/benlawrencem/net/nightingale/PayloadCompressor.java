@@ -0,0 +1,159 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates payloads against a dictionary. The streams are raw
+ * deflate, without zlib's header or checksum, since on payloads this small
+ * those six bytes would eat most of what compressing saves. That means a
+ * sender and receiver using different dictionaries get garbage rather than
+ * an error, so they have to agree on one up front.
+ *
+ * A Deflater holds onto a good few hundred kilobytes outside the heap, far
+ * too much to give every connection its own, so each thread that sends or
+ * receives gets one from {@link #get}. Not thread safe otherwise.
+ */
+class PayloadCompressor {
+	private static final ThreadLocal<PayloadCompressor> COMPRESSORS = new ThreadLocal<PayloadCompressor>() {
+		protected PayloadCompressor initialValue() {
+			return new PayloadCompressor();
+		}
+	};
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] input;
+	private byte[] probe;
+	//whole packets are compressed into and out of these, and they're only valid until the same thread does so again
+	private byte[] deflatedPayload;
+	private byte[] inflatedPayload;
+	//likewise for single messages, which can be a lot bigger since they're compressed before they're split into fragments
+	private byte[] deflatedMessage;
+	private byte[] inflatedMessage;
+
+	private PayloadCompressor() {
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		inflater = new Inflater(true);
+		input = new byte[Packet.MAXIMUM_PAYLOAD_SIZE];
+		probe = new byte[1];
+		deflatedPayload = new byte[Packet.MAXIMUM_PAYLOAD_SIZE];
+		inflatedPayload = new byte[Packet.MAXIMUM_PAYLOAD_SIZE];
+		deflatedMessage = null;
+		inflatedMessage = null;
+	}
+
+	public static PayloadCompressor get() {
+		return COMPRESSORS.get();
+	}
+
+	/**
+	 * Deflates the message between the buffer's position and limit into
+	 * output, and returns the compressed length--or -1 if it wouldn't come
+	 * out shorter than maximumLength. The buffer's position is left
+	 * untouched.
+	 */
+	public int deflate(ByteBuffer message, byte[] dictionary, int dictionaryLength, byte[] output, int offset, int maximumLength) {
+		int length = message.remaining();
+		if(input.length < length)
+			input = new byte[length];
+		int start = message.position();
+		for(int i = 0; i < length; i++)
+			input[i] = message.get(start + i);
+
+		deflater.reset();
+		if(dictionaryLength > 0)
+			deflater.setDictionary(dictionary, 0, dictionaryLength);
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		int compressedLength = 0;
+		while(!deflater.finished() && compressedLength < maximumLength) {
+			int numBytes = deflater.deflate(output, offset + compressedLength, maximumLength - compressedLength);
+			if(numBytes == 0)
+				break;
+			compressedLength += numBytes;
+		}
+		return (deflater.finished() && compressedLength < maximumLength ? compressedLength : -1);
+	}
+
+	/**
+	 * Inflates the data between the buffer's position and limit into output,
+	 * and returns the uncompressed length--or -1 if the data is cut short,
+	 * isn't deflate data at all, or comes out longer than maximumLength.
+	 */
+	public int inflate(ByteBuffer data, byte[] dictionary, int dictionaryLength, byte[] output, int offset, int maximumLength) {
+		int length = data.remaining();
+		if(input.length < length)
+			input = new byte[length];
+		int start = data.position();
+		for(int i = 0; i < length; i++)
+			input[i] = data.get(start + i);
+
+		inflater.reset();
+		try {
+			if(dictionaryLength > 0)
+				inflater.setDictionary(dictionary, 0, dictionaryLength);
+			inflater.setInput(input, 0, length);
+			int uncompressedLength = 0;
+			while(!inflater.finished() && uncompressedLength < maximumLength) {
+				int numBytes = inflater.inflate(output, offset + uncompressedLength, maximumLength - uncompressedLength);
+				if(numBytes == 0) {
+					if(inflater.needsInput() || inflater.needsDictionary())
+						return -1;
+					break;
+				}
+				uncompressedLength += numBytes;
+			}
+
+			//a full output buffer might only be missing the end of the stream, or might be too small
+			if(!inflater.finished() && (inflater.inflate(probe, 0, 1) > 0 || !inflater.finished()))
+				return -1;
+			return uncompressedLength;
+		} catch (DataFormatException e) {
+			return -1;
+		} catch (IllegalArgumentException e) {
+			//thrown by setDictionary when the data can't be the start of a stream
+			return -1;
+		}
+	}
+
+	/**
+	 * Deflates a whole packet's payload into this thread's packet buffer.
+	 * Returns null if it wouldn't come out any smaller.
+	 */
+	public ByteBuffer deflatePayload(ByteBuffer payload, byte[] dictionary) {
+		int compressedLength = deflate(payload, dictionary, dictionary.length, deflatedPayload, 0, payload.remaining());
+		return (compressedLength == -1 ? null : ByteBuffer.wrap(deflatedPayload, 0, compressedLength));
+	}
+
+	/**
+	 * Inflates a whole packet's payload into this thread's packet buffer.
+	 * Returns null if it couldn't be inflated.
+	 */
+	public ByteBuffer inflatePayload(ByteBuffer payload, byte[] dictionary) {
+		int uncompressedLength = inflate(payload, dictionary, dictionary.length, inflatedPayload, 0, inflatedPayload.length);
+		return (uncompressedLength == -1 ? null : ByteBuffer.wrap(inflatedPayload, 0, uncompressedLength));
+	}
+
+	/**
+	 * Returns this thread's buffer for compressing single messages into, at
+	 * least the given length.
+	 */
+	public byte[] getDeflatedMessageBuffer(int length) {
+		if(deflatedMessage == null || deflatedMessage.length < length)
+			deflatedMessage = new byte[Math.max(length, Packet.MAXIMUM_PAYLOAD_SIZE)];
+		return deflatedMessage;
+	}
+
+	/**
+	 * Returns this thread's buffer for inflating single messages into, big
+	 * enough for any message.
+	 */
+	public byte[] getInflatedMessageBuffer() {
+		if(inflatedMessage == null)
+			inflatedMessage = new byte[Packet.MAXIMUM_MESSAGE_SIZE];
+		return inflatedMessage;
+	}
+}
\ No newline at end of file
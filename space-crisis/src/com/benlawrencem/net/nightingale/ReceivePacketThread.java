@@ -3,6 +3,7 @@ package com.benlawrencem.net.nightingale;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,18 +24,30 @@ public class ReceivePacketThread extends Thread {
 	public void run() {
 		logger.finer("Receiving packets...");
 		isReceiving = true;
+
+		//the same buffer and packet are reused for every datagram, so receivers must not hold onto the packet. it has one byte
+		// more than any packet needs so a datagram that was too big to fit gets rejected rather than quietly cut short
+		byte[] bytes = new byte[Packet.MAXIMUM_PACKET_SIZE + 1];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+		Packet packet = new Packet();
 		while(isReceiving) {
-			byte[] bytes = new byte[Packet.MAXIMUM_PACKET_SIZE];
-			DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
+			datagramPacket.setLength(bytes.length);
 			try {
 				socket.receive(datagramPacket);
+				String address = datagramPacket.getAddress().getHostAddress();
+				int port = datagramPacket.getPort();
 				try {
-					Packet packet = Packet.parsePacket(datagramPacket.getData(), datagramPacket.getLength());
+					buffer.limit(datagramPacket.getLength());
+					buffer.position(0);
+					packet.readFrom(buffer);
 					logger.finest("Received packet");
-					receiver.receivePacket(packet, datagramPacket.getAddress().getHostAddress(), datagramPacket.getPort());
+					NetworkEvents.INSTANCE.packetReceived(packet, datagramPacket.getLength(), address, port);
+					receiver.receivePacket(packet, address, port);
 				} catch (MalformedPacketException e) {
 					//it might be valuable to inform the server that it's receiving invalid packets from a client
-					receiver.receivePacket(null, datagramPacket.getAddress().getHostAddress(), datagramPacket.getPort());
+					NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_MALFORMED, null, address, port);
+					receiver.receivePacket(null, address, port);
 				}
 			} catch (IOException e) {
 				//if the packet is having trouble receiving, the best thing to
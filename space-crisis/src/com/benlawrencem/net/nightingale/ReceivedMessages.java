@@ -0,0 +1,79 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the messages a reliable channel lets through while their
+ * connection is locked so the listener can be handed them afterwards. Like
+ * {@link UndeliveredMessages}, the messages are copied into one reusable
+ * buffer that only grows when it has to.
+ */
+class ReceivedMessages {
+	private int[] offsets;
+	private int[] lengths;
+	private ByteBuffer messages;
+	private int numMessages;
+
+	public ReceivedMessages() {
+		offsets = new int[8];
+		lengths = new int[8];
+		messages = ByteBuffer.allocate(Packet.MAXIMUM_PACKET_SIZE);
+		numMessages = 0;
+	}
+
+	/**
+	 * Copies the message between the buffer's position and limit. A null
+	 * message is treated as empty.
+	 */
+	public void add(ByteBuffer message) {
+		if(numMessages == offsets.length)
+			grow();
+		int length = (message == null ? 0 : message.remaining());
+		int offset = (numMessages == 0 ? 0 : offsets[numMessages - 1] + lengths[numMessages - 1]);
+		if(offset + length > messages.capacity()) {
+			ByteBuffer biggerMessages = ByteBuffer.allocate(Math.max(2 * messages.capacity(), offset + length));
+			messages.clear();
+			messages.limit(offset);
+			biggerMessages.put(messages);
+			messages = biggerMessages;
+		}
+		//handing out the last batch of messages left the limit wherever the last one ended
+		messages.clear();
+		int start = (message == null ? 0 : message.position());
+		for(int i = 0; i < length; i++)
+			messages.put(offset + i, message.get(start + i));
+		offsets[numMessages] = offset;
+		lengths[numMessages] = length;
+		numMessages++;
+	}
+
+	public int size() {
+		return numMessages;
+	}
+
+	public void clear() {
+		numMessages = 0;
+	}
+
+	/**
+	 * Positions the shared buffer on the i-th message, or returns null if the
+	 * message was empty. It's only valid until the next call.
+	 */
+	public ByteBuffer getMessage(int i) {
+		if(lengths[i] == 0)
+			return null;
+		messages.clear();
+		messages.position(offsets[i]);
+		messages.limit(offsets[i] + lengths[i]);
+		return messages;
+	}
+
+	private void grow() {
+		int[] biggerOffsets = new int[2 * offsets.length];
+		int[] biggerLengths = new int[2 * lengths.length];
+		System.arraycopy(offsets, 0, biggerOffsets, 0, numMessages);
+		System.arraycopy(lengths, 0, biggerLengths, 0, numMessages);
+		offsets = biggerOffsets;
+		lengths = biggerLengths;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,249 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+
+/**
+ * Keeps track of one connection's reliable channels: the ids handed out to
+ * the messages it sends, and which of the messages it receives have already
+ * been let through. Resending is handled by whoever owns the connection--
+ * this only makes sure that whatever arrives more than once gets handed to
+ * the listener once, and that ordered messages get handed over in order.
+ *
+ * Not thread safe. Whoever owns the connection calls it with the
+ * connection locked.
+ */
+class ReliableChannels {
+	//how far behind the newest unordered message a late one can arrive and still be recognized as new
+	private static final int UNORDERED_WINDOW = 1024;
+	private static final int INITIAL_ORDERED_BUFFER_SIZE = 16;
+	//any further ahead and the id would look like an old one that had wrapped around
+	private static final int MAXIMUM_ORDERED_BUFFER_SIZE = (Packet.MAXIMUM_SEQUENCE_NUMBER - Packet.MINIMUM_SEQUENCE_NUMBER + 1) / 2;
+
+	private int lastSentUnorderedId;
+	private int lastSentOrderedId;
+
+	//both rings are only created once the channel gets used
+	private boolean[] receivedUnordered;
+	private int lastReceivedUnorderedId;
+	private int lastReceivedUnorderedIndex;
+
+	private ByteBuffer[] bufferedOrdered;
+	private boolean[] isBufferedOrdered;
+	private boolean[] isBufferedFragment;
+	private boolean[] isBufferedCompressed;
+	private int nextOrderedId;
+	private int nextOrderedIndex;
+	private int numBufferedOrdered;
+
+	public ReliableChannels() {
+		reset();
+	}
+
+	/**
+	 * Returns the id the next message sent on the given reliable channel
+	 * should carry.
+	 */
+	public int nextMessageId(Channel channel) {
+		if(channel == Channel.RELIABLE_ORDERED)
+			return lastSentOrderedId = Packet.nextSequenceNumber(lastSentOrderedId);
+		return lastSentUnorderedId = Packet.nextSequenceNumber(lastSentUnorderedId);
+	}
+
+	/**
+	 * Takes in every message in a packet that arrived on a reliable channel.
+	 * Reliable messages always arrive framed in a bundle along with their ids.
+	 * Fragments get passed on to be reassembled once it's their turn, and
+	 * only the whole message ends up in receivedMessages. Compressed ordered
+	 * messages are likewise only inflated once they're whole and it's their
+	 * turn.
+	 */
+	public void receive(Packet packet, MessageFragments fragments, CompressionContext compression, ReceivedMessages receivedMessages) {
+		if(packet.getMessageType() != Packet.MessageType.APPLICATION_BUNDLE)
+			return;
+		ByteBuffer payload = packet.getPayload();
+		if(payload == null)
+			return;
+		int end = payload.limit();
+		for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;) {
+			int messageId = MessageBundle.readMessageId(payload);
+			receive(packet.getChannel(), messageId, (payload.hasRemaining() ? payload : null), packet.isFragment(), packet.isCompressed(), fragments, compression, receivedMessages);
+		}
+	}
+
+	/**
+	 * Takes in a message that arrived on a reliable channel and adds whatever
+	 * can now be handed to the listener, in order, to receivedMessages. That
+	 * may be nothing (it's a duplicate, or an ordered message that's waiting
+	 * on an earlier one), or several messages (it was the one the others
+	 * were waiting on).
+	 */
+	public void receive(Channel channel, int messageId, ByteBuffer message, boolean isFragment, boolean isCompressed, MessageFragments fragments, CompressionContext compression, ReceivedMessages receivedMessages) {
+		if(messageId == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE)
+			return;
+		if(channel == Channel.RELIABLE_ORDERED)
+			receiveOrdered(messageId, message, isFragment, isCompressed, fragments, compression, receivedMessages);
+		else if(channel == Channel.RELIABLE_UNORDERED && receiveUnordered(messageId))
+			letThrough(channel, message, isFragment, false, fragments, compression, receivedMessages);
+	}
+
+	/**
+	 * Returns how many ordered messages have arrived but are still waiting on
+	 * an earlier one.
+	 */
+	public int getNumBufferedMessages() {
+		return numBufferedOrdered;
+	}
+
+	public void reset() {
+		lastSentUnorderedId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		lastSentOrderedId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		lastReceivedUnorderedId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		lastReceivedUnorderedIndex = 0;
+		nextOrderedId = Packet.MINIMUM_SEQUENCE_NUMBER;
+		nextOrderedIndex = 0;
+		numBufferedOrdered = 0;
+		if(isBufferedOrdered != null) {
+			for(int i = 0; i < isBufferedOrdered.length; i++)
+				isBufferedOrdered[i] = false;
+		}
+	}
+
+	private void letThrough(Channel channel, ByteBuffer message, boolean isFragment, boolean isCompressed, MessageFragments fragments, CompressionContext compression, ReceivedMessages receivedMessages) {
+		if(!isCompressed) {
+			if(isFragment)
+				fragments.receive(channel, message, receivedMessages);
+			else
+				receivedMessages.add(message);
+		}
+		else if(!isFragment)
+			compression.decompressOrdered(message, receivedMessages);
+		else {
+			//a compressed message can't be inflated until all of it is here
+			ReceivedMessages reassembledMessages = compression.getReassembledMessages();
+			fragments.receive(channel, message, reassembledMessages);
+			for(int i = 0; i < reassembledMessages.size(); i++)
+				compression.decompressOrdered(reassembledMessages.getMessage(i), receivedMessages);
+		}
+	}
+
+	private boolean receiveUnordered(int messageId) {
+		//the first message is always new
+		if(lastReceivedUnorderedId == Packet.SEQUENCE_NUMBER_NOT_APPLICABLE) {
+			if(receivedUnordered == null)
+				receivedUnordered = new boolean[ReliableChannels.UNORDERED_WINDOW];
+			for(int i = 0; i < receivedUnordered.length; i++)
+				receivedUnordered[i] = false;
+			lastReceivedUnorderedIndex = 0;
+			receivedUnordered[0] = true;
+			lastReceivedUnorderedId = messageId;
+			return true;
+		}
+
+		//messages newer than any we've seen push the window forward, forgetting the oldest
+		int delta = Packet.deltaBetweenSequenceNumbers(lastReceivedUnorderedId, messageId);
+		if(delta > 0) {
+			if(delta >= ReliableChannels.UNORDERED_WINDOW) {
+				for(int i = 0; i < receivedUnordered.length; i++)
+					receivedUnordered[i] = false;
+				lastReceivedUnorderedIndex = 0;
+			}
+			else {
+				for(int i = 1; i < delta; i++)
+					receivedUnordered[(lastReceivedUnorderedIndex + i) % ReliableChannels.UNORDERED_WINDOW] = false;
+				lastReceivedUnorderedIndex = (lastReceivedUnorderedIndex + delta) % ReliableChannels.UNORDERED_WINDOW;
+			}
+			receivedUnordered[lastReceivedUnorderedIndex] = true;
+			lastReceivedUnorderedId = messageId;
+			return true;
+		}
+
+		//a message too old to have a record of is assumed to have been received, same as the PacketRecorder does
+		if(delta <= -ReliableChannels.UNORDERED_WINDOW)
+			return false;
+		int index = (lastReceivedUnorderedIndex + delta + ReliableChannels.UNORDERED_WINDOW) % ReliableChannels.UNORDERED_WINDOW;
+		if(receivedUnordered[index])
+			return false;
+		receivedUnordered[index] = true;
+		return true;
+	}
+
+	private void receiveOrdered(int messageId, ByteBuffer message, boolean isFragment, boolean isCompressed, MessageFragments fragments, CompressionContext compression, ReceivedMessages receivedMessages) {
+		//anything before the message we're waiting on has already been handed over
+		int delta = Packet.deltaBetweenSequenceNumbers(nextOrderedId, messageId);
+		if(delta < 0)
+			return;
+
+		//the message we're waiting on goes straight through, along with any that were waiting on it
+		if(delta == 0) {
+			letThrough(Channel.RELIABLE_ORDERED, message, isFragment, isCompressed, fragments, compression, receivedMessages);
+			advanceOrdered();
+			while(numBufferedOrdered > 0 && isBufferedOrdered[nextOrderedIndex]) {
+				letThrough(Channel.RELIABLE_ORDERED, bufferedOrdered[nextOrderedIndex], isBufferedFragment[nextOrderedIndex], isBufferedCompressed[nextOrderedIndex], fragments, compression, receivedMessages);
+				isBufferedOrdered[nextOrderedIndex] = false;
+				numBufferedOrdered--;
+				advanceOrdered();
+			}
+			return;
+		}
+
+		//messages that got here early wait their turn
+		if(isBufferedOrdered == null || delta >= isBufferedOrdered.length) {
+			if(!growOrdered(delta))
+				return;
+		}
+		int index = (nextOrderedIndex + delta) % isBufferedOrdered.length;
+		if(isBufferedOrdered[index])
+			return;
+		int length = (message == null ? 0 : message.remaining());
+		ByteBuffer slot = bufferedOrdered[index];
+		if(slot == null || slot.capacity() < length)
+			slot = bufferedOrdered[index] = ByteBuffer.allocate(Math.max(length, 64));
+		slot.clear();
+		int start = (message == null ? 0 : message.position());
+		for(int i = 0; i < length; i++)
+			slot.put(message.get(start + i));
+		slot.flip();
+		isBufferedOrdered[index] = true;
+		isBufferedFragment[index] = isFragment;
+		isBufferedCompressed[index] = isCompressed;
+		numBufferedOrdered++;
+	}
+
+	private void advanceOrdered() {
+		nextOrderedId = Packet.nextSequenceNumber(nextOrderedId);
+		if(isBufferedOrdered != null)
+			nextOrderedIndex = (nextOrderedIndex + 1) % isBufferedOrdered.length;
+	}
+
+	private boolean growOrdered(int delta) {
+		if(delta >= ReliableChannels.MAXIMUM_ORDERED_BUFFER_SIZE)
+			return false;
+		int size = (isBufferedOrdered == null ? ReliableChannels.INITIAL_ORDERED_BUFFER_SIZE : isBufferedOrdered.length);
+		while(size <= delta)
+			size *= 2;
+		size = Math.min(size, ReliableChannels.MAXIMUM_ORDERED_BUFFER_SIZE);
+
+		//lay the ring back out starting from the message we're waiting on
+		ByteBuffer[] biggerBufferedOrdered = new ByteBuffer[size];
+		boolean[] biggerIsBufferedOrdered = new boolean[size];
+		boolean[] biggerIsBufferedFragment = new boolean[size];
+		boolean[] biggerIsBufferedCompressed = new boolean[size];
+		if(isBufferedOrdered != null) {
+			for(int i = 0; i < isBufferedOrdered.length; i++) {
+				int index = (nextOrderedIndex + i) % isBufferedOrdered.length;
+				biggerBufferedOrdered[i] = bufferedOrdered[index];
+				biggerIsBufferedOrdered[i] = isBufferedOrdered[index];
+				biggerIsBufferedFragment[i] = isBufferedFragment[index];
+				biggerIsBufferedCompressed[i] = isBufferedCompressed[index];
+			}
+		}
+		bufferedOrdered = biggerBufferedOrdered;
+		isBufferedOrdered = biggerIsBufferedOrdered;
+		isBufferedFragment = biggerIsBufferedFragment;
+		isBufferedCompressed = biggerIsBufferedCompressed;
+		nextOrderedIndex = 0;
+		return true;
+	}
+}
\ No newline at end of file
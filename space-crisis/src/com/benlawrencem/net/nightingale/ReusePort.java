@@ -0,0 +1,53 @@
+package com.benlawrencem.net.nightingale;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+
+/**
+ * Turns on SO_REUSEPORT, which lets several sockets bind the same port and
+ * has the kernel spread incoming datagrams between them by source address.
+ * The option only exists on newer JVMs (and only load balances on Linux), so
+ * it's looked up reflectively and anything that can't support it reports as
+ * much instead of failing.
+ */
+class ReusePort {
+	private static final Object SO_REUSEPORT = findOption();
+
+	private ReusePort() {}
+
+	public static boolean isSupported() {
+		return ReusePort.SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Enables SO_REUSEPORT on an unbound DatagramSocket or DatagramChannel.
+	 * Returns false if the JVM or platform doesn't support it.
+	 */
+	public static boolean enable(Object socket) throws IOException {
+		if(ReusePort.SO_REUSEPORT == null)
+			return false;
+		try {
+			//look the method up on the public type--the socket's own class usually isn't accessible
+			Class<?> type = (socket instanceof DatagramSocket ? DatagramSocket.class : Class.forName("java.nio.channels.NetworkChannel"));
+			Method setOption = type.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+			setOption.invoke(socket, ReusePort.SO_REUSEPORT, Boolean.TRUE);
+			return true;
+		} catch(InvocationTargetException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			return false; //UnsupportedOperationException on platforms without the option
+		} catch(Exception e) {
+			return false;
+		}
+	}
+
+	private static Object findOption() {
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+		} catch(Exception e) {
+			return null;
+		}
+	}
+}
\ No newline at end of file
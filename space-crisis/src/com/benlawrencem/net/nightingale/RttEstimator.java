@@ -0,0 +1,119 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Keeps a smoothed round trip time and how much it varies, the same way TCP
+ * does (RFC 6298), and works out from them how long to wait for a packet to
+ * be acknowledged before giving it up for lost. Every sent packet that
+ * comes back acknowledged is a sample, not just pings, so the estimate keeps
+ * up with the connection even when nothing else is measuring it.
+ *
+ * Round trips measured this way include however long the other side took
+ * to send something back carrying the acknowledgement. That's exactly what
+ * matters for deciding when a packet is lost, but it does mean a quiet
+ * connection looks slower than it is.
+ *
+ * Samples are added by whoever owns the PacketRecorder with it locked, but
+ * the estimates can be read from anywhere.
+ */
+public class RttEstimator {
+	public static final long INITIAL_RETRANSMISSION_TIMEOUT = 1000;
+	public static final long MINIMUM_RETRANSMISSION_TIMEOUT = 100;
+	public static final long MAXIMUM_RETRANSMISSION_TIMEOUT = 3000;
+	//how much of each new sample is mixed in, as in RFC 6298
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+	//the minimum is forgotten after this long, in case the route to the other side has changed and got slower
+	private static final long MINIMUM_RTT_LIFETIME = 10000;
+
+	private volatile double smoothedRtt;
+	private volatile double rttVariance;
+	private volatile long retransmissionTimeout;
+	private volatile long numSamples;
+	private volatile long minimumRtt;
+	private long minimumRttTime;
+
+	public RttEstimator() {
+		reset();
+	}
+
+	/**
+	 * Takes in the round trip time of a packet that was only sent once.
+	 * Resent packets shouldn't be sampled, since the acknowledgement may have
+	 * been for an earlier copy (Karn's rule).
+	 */
+	public void addSample(long rtt) {
+		rtt = Math.max(0, rtt);
+		if(numSamples == 0) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2.0;
+		}
+		else {
+			//the variance is updated first since it's measured against the old average
+			rttVariance = (1 - RttEstimator.BETA) * rttVariance + RttEstimator.BETA * Math.abs(smoothedRtt - rtt);
+			smoothedRtt = (1 - RttEstimator.ALPHA) * smoothedRtt + RttEstimator.ALPHA * rtt;
+		}
+		numSamples++;
+		long now = System.currentTimeMillis();
+		if(minimumRtt == -1 || rtt <= minimumRtt || now - minimumRttTime > RttEstimator.MINIMUM_RTT_LIFETIME) {
+			minimumRtt = rtt;
+			minimumRttTime = now;
+		}
+		retransmissionTimeout = clamp((long) Math.ceil(smoothedRtt + RttEstimator.K * rttVariance));
+	}
+
+	public boolean hasSamples() {
+		return numSamples > 0;
+	}
+
+	public long getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Returns the smoothed round trip time in milliseconds, or -1 if there
+	 * haven't been any samples yet.
+	 */
+	public long getSmoothedRtt() {
+		return (numSamples == 0 ? -1 : Math.round(smoothedRtt));
+	}
+
+	/**
+	 * Returns how far round trips tend to stray from the smoothed round trip
+	 * time (the jitter), in milliseconds, or -1 if there haven't been any
+	 * samples yet.
+	 */
+	public long getRttVariance() {
+		return (numSamples == 0 ? -1 : Math.round(rttVariance));
+	}
+
+	/**
+	 * Returns the shortest round trip seen lately, in milliseconds, which is
+	 * as close as it gets to how long the trip takes with nothing queued up
+	 * along the way. Returns -1 if there haven't been any samples yet.
+	 */
+	public long getMinimumRtt() {
+		return minimumRtt;
+	}
+
+	/**
+	 * Returns how many milliseconds a sent packet goes unacknowledged before
+	 * it's given up for lost.
+	 */
+	public long getRetransmissionTimeout() {
+		return retransmissionTimeout;
+	}
+
+	public void reset() {
+		smoothedRtt = 0;
+		rttVariance = 0;
+		numSamples = 0;
+		minimumRtt = -1;
+		minimumRttTime = 0;
+		retransmissionTimeout = RttEstimator.INITIAL_RETRANSMISSION_TIMEOUT;
+	}
+
+	private static long clamp(long retransmissionTimeout) {
+		return Math.min(Math.max(retransmissionTimeout, RttEstimator.MINIMUM_RETRANSMISSION_TIMEOUT), RttEstimator.MAXIMUM_RETRANSMISSION_TIMEOUT);
+	}
+}
\ No newline at end of file
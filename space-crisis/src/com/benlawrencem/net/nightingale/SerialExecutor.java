@@ -0,0 +1,81 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks one at a time, in the order they were given, on another
+ * executor's threads. Timeouts and delivery checks come due on a timer
+ * wheel's thread, which every connection in the process shares, so anything
+ * they have to tell a listener is handed to one of these instead of being
+ * run right there. A listener that takes its time then only holds up its
+ * own connection's callbacks, not everyone's pings, acknowledgements and
+ * timeouts.
+ *
+ * Unless told otherwise, tasks run on a shared pool of daemon threads that
+ * grows when listeners are slow and shrinks back once they aren't.
+ */
+class SerialExecutor implements Executor, Runnable {
+	private static final Logger logger = Logger.getLogger(SerialExecutor.class.getName());
+	private static ExecutorService sharedPool;
+
+	private final Executor executor;
+	private final ArrayDeque<Runnable> tasks;
+	private boolean isScheduled;
+
+	public SerialExecutor() {
+		this(SerialExecutor.getSharedPool());
+	}
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+		tasks = new ArrayDeque<Runnable>();
+		isScheduled = false;
+	}
+
+	static synchronized Executor getSharedPool() {
+		if(sharedPool == null) {
+			sharedPool = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Nightingale listener callbacks");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedPool;
+	}
+
+	public void execute(Runnable task) {
+		synchronized(tasks) {
+			tasks.add(task);
+			if(isScheduled)
+				return;
+			isScheduled = true;
+		}
+		executor.execute(this);
+	}
+
+	public void run() {
+		while(true) {
+			Runnable task;
+			synchronized(tasks) {
+				task = tasks.poll();
+				if(task == null) {
+					isScheduled = false;
+					return;
+				}
+			}
+			try {
+				task.run();
+			} catch(RuntimeException e) {
+				logger.log(Level.WARNING, "Listener threw an exception handling a callback", e);
+			}
+		}
+	}
+}
\ No newline at end of file
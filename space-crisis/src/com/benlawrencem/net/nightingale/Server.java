@@ -1,68 +1,190 @@
 package com.benlawrencem.net.nightingale;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
 import com.benlawrencem.net.nightingale.Packet.CouldNotEncodePacketException;
 import com.benlawrencem.net.nightingale.Packet.CouldNotSendPacketException;
 import com.benlawrencem.net.nightingale.Packet.MessageType;
 import com.benlawrencem.net.nightingale.Packet.NullPacketException;
 import com.benlawrencem.net.nightingale.Packet.PacketEncodingException;
 import com.benlawrencem.net.nightingale.Packet.PacketIOException;
+import com.benlawrencem.net.nightingale.Packet.PacketTooLargeException;
 
 public class Server implements PacketReceiver {
 	private static final Logger logger = Logger.getLogger(Server.class.getName());
-	private final Object CONNECTION_LOCK = new Object();
+	//guards starting and stopping the server--everything to do with a single client is guarded by that client's ClientInfo
+	private final Object SERVER_LOCK = new Object();
+	//undelivered packets are collected here while their client is locked and reported once it isn't
+	private final ThreadLocal<UndeliveredMessages> undeliveredMessages = new ThreadLocal<UndeliveredMessages>() {
+		protected UndeliveredMessages initialValue() {
+			return new UndeliveredMessages();
+		}
+	};
+	//likewise for messages arriving on reliable channels
+	private final ThreadLocal<ReceivedMessages> receivedMessages = new ThreadLocal<ReceivedMessages>() {
+		protected ReceivedMessages initialValue() {
+			return new ReceivedMessages();
+		}
+	};
 	private static final int CLIENT_TIMEOUT = 3000;
+	private static final int DEFAULT_LINGER_TIME = 10;
+	private static final int DEFAULT_ACKNOWLEDGEMENT_DELAY = 40;
 	private static final String SERVER_STOPPING = "Server stopping.";
 	private static final String DISCONNECT_BY_CLIENT = "Disconnect requested by client.";
 	private static final String DROPPED_BY_SERVER = "Client cropped by server.";
 	private static final String CLIENT_COULD_NOT_CONNECT = "Could not accept client connection.";
 	private static final String CLIENT_TIMED_OUT = "Client timed out.";
+	private static final String CLIENT_RECONNECTED = "Client reconnected.";
+	/**
+	 * How many clients a second are let in unless told otherwise.
+	 */
+	public static final double DEFAULT_ADMISSION_RATE = 1000;
+	/**
+	 * The admission rate that lets clients in as soon as they ask, on the
+	 * thread that received the request.
+	 */
+	public static final double UNLIMITED_ADMISSION_RATE = 0;
+	private static final String MBEAN_DOMAIN = "com.benlawrencem.net.nightingale";
 	private ServerListener listener;
-	private DatagramSocket socket;
-	private boolean isRunning;
-	private ServerTimeoutThread timeoutThread;
-	private ReceivePacketThread receivePacketThread;
-	private Map<Integer, ClientInfo> clients;
-	private int lastConnectedClientId;
+	private volatile ReceiveShard[] shards;
+	private volatile boolean isRunning;
+	private final TimerWheel timerWheel;
+	private final ConcurrentMap<Integer, ClientInfo> clients = new ConcurrentHashMap<Integer, ClientInfo>();
+	private final ConnectionIdAllocator clientIdAllocator = new ConnectionIdAllocator();
+	private final ConcurrentMap<String, ClientGroup> groups = new ConcurrentHashMap<String, ClientGroup>();
+	//clients by address and port, so one asking to connect again gets the connection it already has
+	private final ConcurrentMap<String, ClientInfo> clientsByAddress = new ConcurrentHashMap<String, ClientInfo>();
+	//the addresses and ports of clients waiting to be let in or refused, so asking again doesn't queue them twice
+	private final ConcurrentMap<String, Boolean> pendingAdmissions = new ConcurrentHashMap<String, Boolean>();
+	private final ConnectCookies connectCookies = new ConnectCookies();
+	private static final ThreadLocal<ByteBuffer> COOKIE_BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE);
+		}
+	};
+	private volatile boolean isVerifyingConnectCookies;
+	private volatile double admissionRate;
+	private volatile AdmissionThread admissionThread;
+	//a message sent to many clients at once is encoded into here once and only has its header changed for each of them
+	private static final ThreadLocal<ByteBuffer> BROADCAST_BUFFER = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(Packet.MAXIMUM_PACKET_SIZE);
+		}
+	};
+	private volatile boolean isCoalescing;
+	private volatile int lingerTime;
+	private volatile boolean isCompressing;
+	private volatile boolean isPacing;
+	private volatile int acknowledgementDelay;
+	private volatile byte[] compressionDictionary;
+	private final CompressionStats compressionStats = new CompressionStats();
+	private final Queue<ClientInfo> clientsWithBundledMessages = new ConcurrentLinkedQueue<ClientInfo>();
+	private volatile ListenerDispatcher dispatcher;
+	//what timeouts and delivery checks tell the listener goes through this when there's no listener executor
+	private final ListenerDispatcher timerDispatcher;
+	private final ServerMetrics metrics = new ServerMetrics(this);
+	//the name the server and its clients are registered under over JMX, or null if they aren't
+	private volatile String mbeanName;
+	private volatile PacketCapture capture;
 
 	public Server(ServerListener listener) {
+		this(listener, TimerWheel.getSharedInstance());
+	}
+
+	/**
+	 * Creates a server whose client timeouts and coalescing deadlines run on
+	 * the given wheel instead of the shared one.
+	 */
+	public Server(ServerListener listener, TimerWheel timerWheel) {
 		this.listener = listener;
+		this.timerWheel = timerWheel;
+		timerDispatcher = new ListenerDispatcher(this, listener, SerialExecutor.getSharedPool(), ListenerDispatcher.DEFAULT_MAX_BACKLOG);
+		isCoalescing = false;
+		lingerTime = Server.DEFAULT_LINGER_TIME;
+		isCompressing = false;
+		isPacing = true;
+		acknowledgementDelay = Server.DEFAULT_ACKNOWLEDGEMENT_DELAY;
+		compressionDictionary = null;
+		capture = null;
+		isVerifyingConnectCookies = true;
+		admissionRate = Server.DEFAULT_ADMISSION_RATE;
 		resetParameters();
 	}
 
 	public void startServer(int port) throws CouldNotStartServerException {
-		logger.fine("Starting server on port " + port + "...");
-		synchronized(CONNECTION_LOCK) {
+		startServer(port, null);
+	}
+
+	/**
+	 * Starts the server on a transport opened by the given factory, such as
+	 * a non-blocking socket driven by an {@link NioEngine}'s event loops
+	 * rather than a dedicated receive thread, or an {@link InMemoryNetwork}.
+	 * Passing a null factory is the same as calling {@link #startServer(int)}.
+	 */
+	public void startServer(int port, DatagramTransportFactory transportFactory) throws CouldNotStartServerException {
+		startServer(port, transportFactory, 1);
+	}
+
+	/**
+	 * Starts the server on numShards sockets all bound to the same port with
+	 * SO_REUSEPORT, each with a receive loop of its own (its own thread, or
+	 * one of the factory's event loops). The kernel picks the socket for each
+	 * datagram by its source address, so a client's packets always arrive on
+	 * the same shard and stay in order, and replies go back out the same
+	 * socket. Where SO_REUSEPORT isn't available the server falls back to a
+	 * single socket.
+	 */
+	public void startServer(int port, DatagramTransportFactory transportFactory, int numShards) throws CouldNotStartServerException {
+		if(numShards > 1 && !(transportFactory == null ? ReusePort.isSupported() : transportFactory.isReusePortSupported())) {
+			logger.warning("SO_REUSEPORT is not supported--starting server with one socket instead of " + numShards);
+			numShards = 1;
+		}
+		logger.fine("Starting server on port " + port + (transportFactory == null ? "" : " using " + transportFactory.getClass().getSimpleName()) + (numShards > 1 ? " with " + numShards + " shards" : "") + "...");
+		synchronized(SERVER_LOCK) {
 			if(isRunning) {
 				logger.fine("Server is already started!");
 				throw new ServerAlreadyStartedException();
 			}
+			ReceiveShard[] shards = new ReceiveShard[Math.max(1, numShards)];
 			try {
-				socket = new DatagramSocket(port);
-				receivePacketThread = new ReceivePacketThread(this, socket);
-				receivePacketThread.start();
-				timeoutThread = new ServerTimeoutThread(this, Server.CLIENT_TIMEOUT);
-				timeoutThread.start();
+				//every shard after the first binds whatever port the first ended up on
+				for(int i = 0; i < shards.length; i++) {
+					int shardPort = (i == 0 ? port : shards[0].getTransport().getLocalPort());
+					shards[i] = new ReceiveShard();
+					if(transportFactory == null)
+						shards[i].setTransport(new BlockingDatagramTransport(shards[i], shardPort, shards.length > 1));
+					else
+						shards[i].setTransport(transportFactory.open(shards[i], shardPort, shards.length > 1));
+				}
+				this.shards = shards;
+				admissionThread = new AdmissionThread(this);
+				admissionThread.start();
 				isRunning = true;
 				logger.fine("Server is open and receiving connections!");
-			} catch (SocketException e) {
+			} catch (IOException e) {
+				this.shards = shards;
 				closeConnection();
-				logger.fine("Could not start server due to SocketException: " + e.getMessage());
+				logger.fine("Could not start server due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
 				throw new CouldNotOpenServerSocketException(e, port);
 			}
 		}
@@ -72,17 +194,161 @@ public class Server implements PacketReceiver {
 		return isRunning;
 	}
 
+	public int getPort() {
+		ReceiveShard[] shards = this.shards;
+		return (shards == null ? -1 : shards[0].getTransport().getLocalPort());
+	}
+
+	public int getNumShards() {
+		ReceiveShard[] shards = this.shards;
+		return (shards == null ? 0 : shards.length);
+	}
+
+	/**
+	 * Returns how many packets each shard has received since the server
+	 * started.
+	 */
+	public long[] getShardPacketCounts() {
+		ReceiveShard[] shards = this.shards;
+		if(shards == null)
+			return new long[0];
+		long[] packetCounts = new long[shards.length];
+		for(int i = 0; i < shards.length; i++)
+			packetCounts[i] = shards[i].getNumPacketsReceived();
+		return packetCounts;
+	}
+
+	/**
+	 * Returns how many packets per second each shard has received since the
+	 * last time this was called (or since the server started), which is
+	 * handy for checking that clients are being spread evenly.
+	 */
+	public double[] getShardPacketRates() {
+		synchronized(SERVER_LOCK) {
+			ReceiveShard[] shards = this.shards;
+			if(shards == null)
+				return new double[0];
+			double[] packetRates = new double[shards.length];
+			for(int i = 0; i < shards.length; i++)
+				packetRates[i] = shards[i].samplePacketRate();
+			return packetRates;
+		}
+	}
+
+	/**
+	 * Returns the fraction of the time each shard's receive loop has spent
+	 * handling packets rather than waiting for them since the last time this
+	 * was called (or since the server started).
+	 */
+	public double[] getShardUtilizations() {
+		synchronized(SERVER_LOCK) {
+			ReceiveShard[] shards = this.shards;
+			if(shards == null)
+				return new double[0];
+			double[] utilizations = new double[shards.length];
+			for(int i = 0; i < shards.length; i++)
+				utilizations[i] = shards[i].sampleUtilization();
+			return utilizations;
+		}
+	}
+
+	/**
+	 * Returns the running totals for everything the server has sent and
+	 * received.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the running totals and estimates for the client's connection,
+	 * or null if the client isn't connected.
+	 */
+	public ClientMetrics getClientMetrics(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		return (client == null ? null : client.getMetrics());
+	}
+
+	/**
+	 * Makes the server's metrics, and those of every client connected now or
+	 * later, visible to JMX tools like JConsole under
+	 * com.benlawrencem.net.nightingale, with the given name telling this
+	 * server apart from any others in the same JVM. Clients are unregistered
+	 * again as they disconnect.
+	 */
+	public void registerMBeans(String name) {
+		synchronized(SERVER_LOCK) {
+			if(mbeanName != null)
+				unregisterMBeans();
+			registerMBean(metrics, Server.MBEAN_DOMAIN + ":type=Server,name=" + ObjectName.quote(name));
+			mbeanName = name;
+			for(ClientInfo client : clients.values())
+				registerClientMBean(client);
+		}
+	}
+
+	public void unregisterMBeans() {
+		synchronized(SERVER_LOCK) {
+			String name = mbeanName;
+			if(name == null)
+				return;
+			mbeanName = null;
+			for(ClientInfo client : clients.values())
+				unregisterMBean(getClientMBeanName(name, client));
+			unregisterMBean(Server.MBEAN_DOMAIN + ":type=Server,name=" + ObjectName.quote(name));
+		}
+	}
+
+	private void registerClientMBean(ClientInfo client) {
+		String name = mbeanName;
+		if(name != null)
+			registerMBean(client.getMetrics(), getClientMBeanName(name, client));
+	}
+
+	private void unregisterClientMBean(ClientInfo client) {
+		String name = mbeanName;
+		if(name != null)
+			unregisterMBean(getClientMBeanName(name, client));
+	}
+
+	private static String getClientMBeanName(String serverName, ClientInfo client) {
+		return Server.MBEAN_DOMAIN + ":type=Client,server=" + ObjectName.quote(serverName) + ",id=" + client.getClientId();
+	}
+
+	private static void registerMBean(Object mbean, String name) {
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			//a client id handed out again may still have the old client's registration if it was never cleaned up
+			if(mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+			mbeanServer.registerMBean(mbean, objectName);
+		} catch (JMException e) {
+			logger.finer("Could not register " + name + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+
+	private static void unregisterMBean(String name) {
+		try {
+			MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if(mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+		} catch (JMException e) {
+			logger.finer("Could not unregister " + name + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+
 	public void stopServer() {
 		logger.fine("Stopping server...");
 		boolean wasRunning = false;
-		synchronized(CONNECTION_LOCK) {
+		synchronized(SERVER_LOCK) {
 			wasRunning = isRunning;
 			if(isRunning) {
 				logger.finer("Sending disconnect packets to all clients");
-				for(Integer clientId : clients.keySet()) {
-					ClientInfo client = clients.get(clientId);
+				for(ClientInfo client : clients.values()) {
 					try {
-						sendPacket(Packet.createForceDisconnectPacket(clientId, Server.SERVER_STOPPING), client);
+						sendPacket(Packet.createForceDisconnectPacket(client.getClientId(), Server.SERVER_STOPPING), client);
 					} catch (CouldNotSendPacketException e) {
 						//no need to report that we couldn't ask the client to disconnect--the server is stopping regardless
 					}
@@ -97,81 +363,547 @@ public class Server implements PacketReceiver {
 	}
 
 	public List<Integer> getClientIds() {
-		synchronized(CONNECTION_LOCK) {
-			List<Integer> clientIds = new ArrayList<Integer>();
-			for(Integer clientId: clients.keySet()) {
-				if(clients.get(clientId) != null)
-					clientIds.add(clientId);
-			}
-			return clientIds;
-		}
+		return new ArrayList<Integer>(clients.keySet());
 	}
 
+	public int getNumClients() {
+		return clients.size();
+	}
+
+	/**
+	 * Returns the smoothed round trip time to the client in milliseconds,
+	 * measured from every packet the client acknowledges. Until the server
+	 * has measured one it's whatever the client last reported, or -1.
+	 */
 	public long getLatency(int clientId) {
-		synchronized(CONNECTION_LOCK) {
-			ClientInfo client = clients.get(clientId);
-			if(client != null)
-				return client.getLatency();
-			return -1;
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getLatency();
+		return -1;
+	}
+
+	/**
+	 * Returns how much the round trip time to the client varies, in
+	 * milliseconds, or -1 if the client isn't connected or nothing has been
+	 * acknowledged yet.
+	 */
+	public long getJitter(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getPacketRecorder().getRttEstimator().getRttVariance();
+		return -1;
+	}
+
+	/**
+	 * Returns how many milliseconds a packet sent to the client can go
+	 * unacknowledged before it's given up for lost and, on the reliable
+	 * channels, resent. It follows the round trip time, so it's short for
+	 * nearby clients and longer for far away ones. Returns -1 if the client
+	 * isn't connected.
+	 */
+	public long getRetransmissionTimeout(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getPacketRecorder().getRttEstimator().getRetransmissionTimeout();
+		return -1;
+	}
+
+	/**
+	 * Returns how many packets can be on their way to the client at once
+	 * before the rest have to wait, or -1 if the client isn't connected. It
+	 * grows while packets get through and is cut when they go missing.
+	 */
+	public int getCongestionWindow(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getPacketRecorder().getCongestionController().getCongestionWindow();
+		return -1;
+	}
+
+	/**
+	 * Returns how many packets a second are let out to the client, or 0 if
+	 * the client isn't connected or hasn't acknowledged anything yet to pace
+	 * them by.
+	 */
+	public double getSendRate(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			return client.getPacketRecorder().getCongestionController().getPacingRate();
+		return 0;
+	}
+
+	/**
+	 * Returns how many packets are waiting for the congestion window or
+	 * pacing to let them go out to the client.
+	 */
+	public int getNumQueuedPackets(int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client == null)
+			return 0;
+		synchronized(client) {
+			return client.getPacingQueue().size();
+		}
+	}
+
+	/**
+	 * While pacing, packets to each client are held to its congestion
+	 * window and spread out over the round trip instead of all going out the
+	 * moment they're sent, and a client whose link can't keep up has its
+	 * packets queued and, once the queue fills, dropped. Without it every
+	 * packet goes straight out onto the network. Pacing is on by default.
+	 */
+	public void setPacing(boolean isPacing) {
+		this.isPacing = isPacing;
+	}
+
+	public boolean isPacing() {
+		return isPacing;
+	}
+
+	/**
+	 * Sets how many milliseconds a client's packets (pings included) may go
+	 * unacknowledged waiting for something else to be sent to it before a
+	 * packet is sent just to acknowledge them. Resent packets are always
+	 * acknowledged straight away, and a delay of 0 acknowledges everything
+	 * straight away.
+	 */
+	public void setAcknowledgementDelay(int acknowledgementDelay) {
+		this.acknowledgementDelay = Math.max(0, acknowledgementDelay);
+	}
+
+	public int getAcknowledgementDelay() {
+		return acknowledgementDelay;
+	}
+
+	/**
+	 * While coalescing, messages sent to a client are held back and packed
+	 * together into as few packets as possible. They go out when
+	 * {@link #flush} is called (typically at the end of a tick), when a
+	 * packet's worth has built up, or once the oldest of them has waited for
+	 * the linger time, whichever comes first. Resent messages are never held
+	 * back. Turning coalescing off flushes anything still waiting.
+	 */
+	public void setCoalescing(boolean isCoalescing) {
+		synchronized(SERVER_LOCK) {
+			if(this.isCoalescing == isCoalescing)
+				return;
+			this.isCoalescing = isCoalescing;
+			if(isRunning && !isCoalescing)
+				flush();
+		}
+	}
+
+	public boolean isCoalescing() {
+		return isCoalescing;
+	}
+
+	/**
+	 * A client asking to connect is sent a cookie made for its address and
+	 * port, and only gets anywhere once it sends the cookie back. While
+	 * verifying connect cookies, the cookie has to be one this server made
+	 * for that address lately--which the client can only have if it's really
+	 * there. Until then the server keeps nothing for it at all, so a flood
+	 * of requests from made-up addresses costs it next to nothing. Turning
+	 * this off takes any cookie at all, which is only useful for replaying
+	 * captures, whose cookies were made by some other server.
+	 */
+	public void setVerifyingConnectCookies(boolean isVerifyingConnectCookies) {
+		this.isVerifyingConnectCookies = isVerifyingConnectCookies;
+	}
+
+	public boolean isVerifyingConnectCookies() {
+		return isVerifyingConnectCookies;
+	}
+
+	/**
+	 * Sets how many clients a second are let in, a second's worth of them at
+	 * once. Clients waiting their turn are let in (or refused) by the
+	 * listener one at a time on a thread of the server's own rather than on
+	 * the receive loops, and once {@link AdmissionThread#MAXIMUM_PENDING_ADMISSIONS}
+	 * are waiting, the rest are ignored until they ask again.
+	 * {@link #UNLIMITED_ADMISSION_RATE} lets them in straight away on
+	 * whichever thread received their request, which keeps a replay the
+	 * same every time.
+	 */
+	public void setAdmissionRate(double admissionRate) {
+		this.admissionRate = Math.max(Server.UNLIMITED_ADMISSION_RATE, admissionRate);
+	}
+
+	public double getAdmissionRate() {
+		return admissionRate;
+	}
+
+	/**
+	 * Returns how many clients that have sent back their cookies are waiting
+	 * to be let in.
+	 */
+	public int getNumPendingAdmissions() {
+		return pendingAdmissions.size();
+	}
+
+	/**
+	 * Starts recording every datagram that arrives to the given capture, or
+	 * stops recording if it's null. Closing the capture is up to the caller.
+	 * Datagrams passed straight to {@link #receivePacket} aren't recorded,
+	 * so a server can take a replay and a capture of its own at once.
+	 */
+	public void setCapture(PacketCapture capture) {
+		this.capture = capture;
+	}
+
+	public PacketCapture getCapture() {
+		return capture;
+	}
+
+	/**
+	 * Sets how many milliseconds a coalesced message may wait before it's
+	 * sent regardless. A linger time of 0 holds messages until
+	 * {@link #flush} is called or a packet fills up.
+	 */
+	public void setLingerTime(int lingerTime) {
+		this.lingerTime = Math.max(0, lingerTime);
+	}
+
+	public int getLingerTime() {
+		return lingerTime;
+	}
+
+	/**
+	 * While compressing, application messages sent to clients are deflated
+	 * against the compression dictionary, and anything that doesn't come out
+	 * smaller goes out as it was. Messages on RELIABLE_ORDERED are also
+	 * compressed against the last few that went out before them, so a stream
+	 * of similar messages gets much smaller than any one of them would on
+	 * its own. Whatever clients send compressed is decompressed regardless.
+	 *
+	 * Only clients that connect afterwards are affected--a client's messages
+	 * are either all compressed or not at all.
+	 */
+	public void setCompressing(boolean isCompressing) {
+		this.isCompressing = isCompressing;
+	}
+
+	public boolean isCompressing() {
+		return isCompressing;
+	}
+
+	/**
+	 * Sets the bytes messages are compressed against before there's anything
+	 * else to go on. It should be made of the strings that turn up most in
+	 * messages, with the most common at the end, and is best kept to a few
+	 * hundred bytes. The clients have to use exactly the same dictionary, so
+	 * like compressing it only affects clients that connect afterwards.
+	 */
+	public void setCompressionDictionary(byte[] dictionary) {
+		compressionDictionary = (dictionary == null ? null : dictionary.clone());
+	}
+
+	/**
+	 * Returns how well compression has worked and what it's cost, for every
+	 * client put together.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * Runs the listener's callbacks on the given executor instead of on the
+	 * thread that received the packet, so a listener that's slow to handle
+	 * one client doesn't hold up packets from everyone else. Each client's
+	 * callbacks still happen one at a time and in the order they would have
+	 * otherwise, but different clients' callbacks may run at the same time,
+	 * so the listener has to be thread safe. On JVMs that have them,
+	 * Executors.newVirtualThreadPerTaskExecutor() is a good fit.
+	 *
+	 * Passing a null executor goes back to calling the listener directly
+	 * from the thread that received the packet. Callbacks for timeouts and
+	 * undelivered messages that come due on the timer wheel run on a thread
+	 * of their own either way. This should be set before the server is
+	 * started.
+	 */
+	public void setListenerExecutor(Executor executor) {
+		setListenerExecutor(executor, ListenerDispatcher.DEFAULT_MAX_BACKLOG);
+	}
+
+	/**
+	 * Same as {@link #setListenerExecutor(Executor)}, but lets a client's
+	 * listener fall up to maxBacklog callbacks behind before its messages
+	 * on the unreliable channels start getting dropped. Messages on the
+	 * reliable channels and disconnects are never dropped.
+	 */
+	public void setListenerExecutor(Executor executor, int maxBacklog) {
+		dispatcher = (executor == null ? null : new ListenerDispatcher(this, listener, executor, maxBacklog));
+	}
+
+	public Executor getListenerExecutor() {
+		ListenerDispatcher dispatcher = this.dispatcher;
+		return (dispatcher == null ? null : dispatcher.getExecutor());
+	}
+
+	/**
+	 * Returns how many callbacks have been dropped because a client's
+	 * listener fell too far behind.
+	 */
+	public long getNumDroppedListenerCallbacks() {
+		ListenerDispatcher dispatcher = this.dispatcher;
+		return (dispatcher == null ? 0 : dispatcher.getNumDroppedCallbacks());
+	}
+
+	/**
+	 * Sends every message currently held back for coalescing.
+	 */
+	public void flush() {
+		ClientInfo client;
+		while((client = clientsWithBundledMessages.poll()) != null) {
+			try {
+				synchronized(client) {
+					client.setQueuedForFlush(false);
+					flushMessageBundle(client);
+				}
+			} catch (CouldNotSendPacketException e) {
+				//the messages are lost the same as if the packet had been dropped on the way
+				logger.finer("Could not flush messages to client " + client.getClientId() + ": " + e.getMessage());
+			}
 		}
 	}
 
+	/**
+	 * Sends every message currently held back for coalescing to one client.
+	 */
+	public void flush(int clientId) throws CouldNotSendPacketException {
+		ClientInfo client = clients.get(clientId);
+		if(client != null)
+			flushMessageBundle(client);
+	}
+
 	public void dropClient(int clientId, String reason) {
 		logger.finer("Dropping client " + clientId + ": " + reason);
 		boolean clientDropped = false;
-		synchronized(CONNECTION_LOCK) {
-			if(clients.containsKey(clientId)) {
-				ClientInfo client = clients.get(clientId);
-				try {
-					sendPacket(Packet.createForceDisconnectPacket(clientId, reason), client);
-				} catch (CouldNotSendPacketException e) {
-					//no need to report that we couldn't ask the client to disconnect--we're dropping the client regardless
+		ClientInfo client = clients.get(clientId);
+		if(client != null) {
+			synchronized(client) {
+				//only whoever manages to remove the client gets to tell the listener it's gone
+				if(removeClient(client)) {
+					try {
+						sendPacket(Packet.createForceDisconnectPacket(clientId, reason), client);
+					} catch (CouldNotSendPacketException e) {
+						//no need to report that we couldn't ask the client to disconnect--we're dropping the client regardless
+					}
+					clientDropped = true;
 				}
-				clients.remove(clientId);
-				clientDropped = true;
-			}
-			else {
-				logger.finer("Client " + clientId + " could not be dropped: Client not connected.");
 			}
 		}
+		if(!clientDropped)
+			logger.finer("Client " + clientId + " could not be dropped: Client not connected.");
 		if(clientDropped && listener != null)
-			listener.onClientDisconnected(clientId, Server.DROPPED_BY_SERVER);
+			notifyClientDisconnected(getListenerQueue(client), clientId, Server.DROPPED_BY_SERVER);
 	}
 
 	public int send(int clientId, String message) throws CouldNotSendPacketException {
-		synchronized(CONNECTION_LOCK) {
-			Packet packet = Packet.createApplicationPacket(clientId, message);
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
 
-			//if the client isn't connected then throw an exception
-			if(!clients.containsKey(clientId)) {
-				logger.fine("Could not send message to client " + clientId + ": Client not connected.");
-				throw new ClientNotConnectedException(clientId, packet);
-			}
+	/**
+	 * Sends the bytes between the buffer's position and limit. The buffer's
+	 * position isn't changed, and since the message may be handed back by
+	 * {@link ServerListener#onMessageNotDelivered} its contents shouldn't be
+	 * modified afterwards.
+	 */
+	public int send(int clientId, ByteBuffer message) throws CouldNotSendPacketException {
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
 
-			logger.fine("Sending message to client " + clientId + ": " + message);
-			ClientInfo client = clients.get(clientId);
-			return sendPacket(packet, client);
-		}
+	public int send(int clientId, byte[] message) throws CouldNotSendPacketException {
+		return sendApplicationPacket(Packet.createApplicationPacket(clientId, message));
+	}
+
+	/**
+	 * Sends the message on the given channel. Messages on a reliable channel
+	 * are resent automatically until they arrive and are never reported to
+	 * {@link ServerListener#onMessageNotDelivered}, and UNRELIABLE messages
+	 * aren't reported either. Sending without a channel is the same as
+	 * sending on NOTIFY_UNDELIVERED.
+	 *
+	 * On any channel but NOTIFY_UNDELIVERED, messages too big for one packet
+	 * (up to {@link Packet#MAXIMUM_MESSAGE_SIZE}) are split up and put back
+	 * together on the other side, and the sequence number of the last piece
+	 * is returned.
+	 */
+	public int send(int clientId, String message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
+	}
+
+	public int send(int clientId, ByteBuffer message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
+	}
+
+	public int send(int clientId, byte[] message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setChannel(channel);
+		return sendApplicationPacket(packet);
 	}
 
 	public int resend(int clientId, int originalMessageId, String message) throws CouldNotSendPacketException {
-		synchronized(CONNECTION_LOCK) {
-			Packet packet = Packet.createApplicationPacket(clientId, message);
-			packet.setDuplicateSequenceNumber(originalMessageId);
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
+	}
 
-			//if the client isn't connected then throw an exception
-			if(!clients.containsKey(clientId)) {
-				logger.fine("Could not resend message to client " + clientId + ": Client not connected.");
-				throw new ClientNotConnectedException(clientId, packet);
-			}
+	public int resend(int clientId, int originalMessageId, ByteBuffer message) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
+	}
 
-			logger.fine("Resending message to client " + clientId + ": " + message);
-			ClientInfo client = clients.get(clientId);
-			return sendPacket(packet, client);
+	public int resend(int clientId, int originalMessageId, byte[] message) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(clientId, message);
+		packet.setDuplicateSequenceNumber(originalMessageId);
+		return sendApplicationPacket(packet);
+	}
+
+	/**
+	 * Sends the message to every connected client. Messages on UNRELIABLE and
+	 * NOTIFY_UNDELIVERED that fit in one packet are only encoded (and
+	 * compressed) once, and each client's copy just has its header filled in
+	 * on its way out. Messages on reliable channels carry ids of each
+	 * client's own, and coalesced ones are packed in with whatever else is
+	 * waiting for each client, so those go through the same steps as
+	 * {@link #send} for each client.
+	 *
+	 * Clients that can't be sent to are skipped, and messages that don't
+	 * arrive are reported to {@link ServerListener#onMessageNotDelivered}
+	 * client by client the same as any other. Returns how many clients the
+	 * message went out to.
+	 */
+	public int broadcast(String message) throws CouldNotSendPacketException {
+		return broadcast(message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int broadcast(ByteBuffer message) throws CouldNotSendPacketException {
+		return broadcast(message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int broadcast(byte[] message) throws CouldNotSendPacketException {
+		return broadcast(message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int broadcast(String message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToClients(clients.values(), packet);
+	}
+
+	public int broadcast(ByteBuffer message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToClients(clients.values(), packet);
+	}
+
+	public int broadcast(byte[] message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToClients(clients.values(), packet);
+	}
+
+	/**
+	 * Sends the message to every client in the group the same way
+	 * {@link #broadcast} sends it to everyone. Returns how many clients the
+	 * message went out to, which is 0 if there's no such group.
+	 */
+	public int sendToGroup(String group, String message) throws CouldNotSendPacketException {
+		return sendToGroup(group, message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int sendToGroup(String group, ByteBuffer message) throws CouldNotSendPacketException {
+		return sendToGroup(group, message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int sendToGroup(String group, byte[] message) throws CouldNotSendPacketException {
+		return sendToGroup(group, message, Channel.NOTIFY_UNDELIVERED);
+	}
+
+	public int sendToGroup(String group, String message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToGroup(group, packet);
+	}
+
+	public int sendToGroup(String group, ByteBuffer message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToGroup(group, packet);
+	}
+
+	public int sendToGroup(String group, byte[] message, Channel channel) throws CouldNotSendPacketException {
+		Packet packet = Packet.createApplicationPacket(Packet.ANONYMOUS_CONNECTION_ID, message);
+		packet.setChannel(channel);
+		return sendToGroup(group, packet);
+	}
+
+	/**
+	 * Puts the client in the named group, creating the group if it's the
+	 * first one in it. A client can be in any number of groups, and leaves
+	 * all of them when it disconnects. Returns false if the client isn't
+	 * connected or was already in the group.
+	 */
+	public boolean addToGroup(String group, int clientId) {
+		ClientInfo client = clients.get(clientId);
+		if(client == null)
+			return false;
+		ClientGroup clientGroup = groups.get(group);
+		if(clientGroup == null) {
+			ClientGroup newGroup = new ClientGroup(group);
+			clientGroup = groups.putIfAbsent(group, newGroup);
+			if(clientGroup == null)
+				clientGroup = newGroup;
+		}
+
+		//checked with the client locked so it can't disconnect in between and be left behind in the group
+		synchronized(client) {
+			if(clients.get(clientId) != client)
+				return false;
+			return clientGroup.add(client);
+		}
+	}
+
+	/**
+	 * Returns false if the client wasn't in the group.
+	 */
+	public boolean removeFromGroup(String group, int clientId) {
+		ClientInfo client = clients.get(clientId);
+		ClientGroup clientGroup = groups.get(group);
+		if(client == null || clientGroup == null)
+			return false;
+		synchronized(client) {
+			return clientGroup.remove(client);
 		}
 	}
 
+	public boolean isInGroup(String group, int clientId) {
+		ClientInfo client = clients.get(clientId);
+		ClientGroup clientGroup = groups.get(group);
+		return client != null && clientGroup != null && Arrays.asList(clientGroup.getMembers()).contains(client);
+	}
+
+	/**
+	 * Returns how many clients are in the group, or 0 if there's no such
+	 * group.
+	 */
+	public int getGroupSize(String group) {
+		ClientGroup clientGroup = groups.get(group);
+		return (clientGroup == null ? 0 : clientGroup.size());
+	}
+
 	public void receivePacket(Packet packet, String address, int port) {
+		ReceiveShard[] shards = this.shards;
+		receivePacket(packet, address, port, (shards == null ? null : shards[0].getTransport()));
+	}
+
+	private void receivePacket(Packet packet, String address, int port, DatagramTransport transport) {
 		if(logger.isLoggable(Level.FINEST))
 			logger.finest("Incoming packet from " + address + ":" + port + ":" + (packet == null ? " null" : "\n  " + packet.toString().replaceAll("\n", "\n  ")));
 
@@ -184,203 +916,679 @@ public class Server implements PacketReceiver {
 		//ignore packets with invalid protocol bytes
 		if(!packet.isValidProtocol()) {
 			logger.finer("Ignoring packet with invalid protocol");
+			NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_INVALID_PROTOCOL, packet, address, port);
 			return;
 		}
 
 		//ugly, but I don't want the listener callbacks to be in a synchronized block
 		int listenerAction = -1;
-		List<Packet> undeliveredPackets = null;
+		UndeliveredMessages undeliveredMessages = this.undeliveredMessages.get();
+		undeliveredMessages.clear();
+		ReceivedMessages receivedMessages = this.receivedMessages.get();
+		receivedMessages.clear();
 
-		synchronized(CONNECTION_LOCK) {
-			//ignore all packets if the server isn't running
-			if(!isRunning) {
-				logger.finer("Ignoring packet because the server is not running");
+		//ignore all packets if the server isn't running
+		if(!isRunning) {
+			logger.finer("Ignoring packet because the server is not running");
+			return;
+		}
+
+		ClientInfo client = null;
+		if(packet.isAnonymousConnection()) {
+			if(packet.getMessageType() == MessageType.CONNECT_REQUEST) {
+				logger.finest("Client is requesting connection");
+				if(listener != null)
+					receiveConnectRequest(packet, address, port, transport);
+				return;
+			}
+			else {
+				logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECT_REQUEST packets are expected");
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_UNKNOWN_CLIENT, packet, address, port);
+				return;
+			}
+		}
+		else {
+			//ignore packets from clients that aren't connected
+			int clientId = packet.getConnectionId();
+			client = clients.get(clientId);
+			if(client == null) {
+				logger.finer("Ignoring packet from client " + clientId + " because client " + clientId + " is not connected");
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_UNKNOWN_CLIENT, packet, address, port);
 				return;
 			}
 
-			if(packet.isAnonymousConnection()) {
-				if(packet.getMessageType() == MessageType.CONNECT_REQUEST) {
-					logger.finest("Client is requesting connection");
-					listenerAction = 1; //accept/reject connection
-				}
-				else {
-					logger.finer("Ignoring " + packet.getMessageType() + " packet because only CONNECT_REQUEST packets are expected");
-					return;
-				}
+			//ignore packets from unexpected sources
+			if(!client.matchesAddress(address, port)) {
+				logger.finer("Ignoring packet from client " + clientId + " because packet came from " + address + ":" + port + " which does not match the expected " + client.getAddress() + ":" + client.getPort());
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_ADDRESS_MISMATCH, packet, address, port);
+				return;
 			}
-			else {
-				//ignore packets from clients that aren't connected
-				int clientId = packet.getConnectionId();
-				if(!clients.containsKey(clientId) || clients.get(clientId) == null) {
-					logger.finer("Ignoring packet from client " + clientId + " because client " + clientId + " is not connected");
-					return;
-				}
 
-				//ignore packets from unexpected sources
-				ClientInfo client = clients.get(clientId);
-				if(!client.matchesAddress(address, port)) {
-					logger.finer("Ignoring packet from client " + clientId + " because packet came from " + address + ":" + port + " which does not match the expected " + client.getAddress() + ":" + client.getPort());
-					return;
-				}
+			synchronized(client) {
+				client.getMetrics().recordPacketReceived(packet.getLength());
 
-				synchronized(client.getPacketRecorder()) {
+				//ignore packets we've received from the client before
+				if(client.getPacketRecorder().hasRecordedIncomingPacket(packet)) {
+					logger.finer("Ignoring packet that has already been received from client " + clientId + " before");
+					recordDuplicateDropped(client);
+					NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_DUPLICATE, packet, address, port);
+					client.getPacketRecorder().visitUndeliveredPackets(undeliveredMessages, client.getPacingQueue().remainingCapacity());
+				}
 
-					//ignore packets we've received from the client before
-					if(client.getPacketRecorder().hasRecordedIncomingPacket(packet)) {
-						logger.finer("Ignoring packet that has already been received from client " + clientId + " before");
-						undeliveredPackets = client.getPacketRecorder().getUndeliveredPackets();
-					}
+				//ignore duplicates of packets we've received from the client before--reliable channels weed out their own
+				else if(packet.isDuplicate() && !packet.getChannel().isReliable() && client.getPacketRecorder().hasRecordedDuplicateOfIncomingPacket(packet)) {
+					logger.finer("Ignoring duplicate of packet that has already been received from client " + clientId + " before");
+					recordDuplicateDropped(client);
+					NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_DUPLICATE, packet, address, port);
+					client.getPacketRecorder().recordIncomingPacket(packet); //we still want to record having received it (must be run AFTER hasRecordedDuplicateOfIncomingPacket)
+					client.getPacketRecorder().visitUndeliveredPackets(undeliveredMessages, client.getPacingQueue().remainingCapacity());
+				}
 
-					//ignore duplicates of packets we've received from the client before
-					else if(packet.isDuplicate() && client.getPacketRecorder().hasRecordedDuplicateOfIncomingPacket(packet)) {
-						logger.finer("Ignoring duplicate of packet that has already been received from client " + clientId + " before");
-						client.getPacketRecorder().recordIncomingPacket(packet); //we still want to record having received it (must be run AFTER hasRecordedDuplicateOfIncomingPacket)
-						undeliveredPackets = client.getPacketRecorder().getUndeliveredPackets();
-					}
+				else {
+					//record the packet as having been received
+					client.getPacketRecorder().recordIncomingPacket(packet);
+					client.getPacketRecorder().visitUndeliveredPackets(undeliveredMessages, client.getPacingQueue().remainingCapacity());
 
-					else {
-						//record the packet as having been received
-						client.getPacketRecorder().recordIncomingPacket(packet);
-						undeliveredPackets = client.getPacketRecorder().getUndeliveredPackets();
-	
-						//we expect application messages, pings, and disconnect notifications from the client
-						switch(packet.getMessageType()) {
-							case APPLICATION:
-								logger.fine("Receiving message from client " + clientId +": " + packet.getMessage());
-								listenerAction = 2; //onReceive
+					//we expect application messages, pings, and disconnect notifications from the client
+					switch(packet.getMessageType()) {
+						case APPLICATION:
+						case APPLICATION_BUNDLE:
+							//on RELIABLE_ORDERED each message is compressed on its own and gets inflated once it's its turn
+							if(packet.isCompressed() && packet.getChannel() != Channel.RELIABLE_ORDERED && !client.getCompressionContext().decompress(packet)) {
+								logger.finer("Ignoring packet from client " + clientId + " because it could not be decompressed");
 								client.resetTimeout();
 								break;
-							case PING:
+							}
+							if(logger.isLoggable(Level.FINE))
+								logger.fine("Receiving message from client " + clientId +": " + packet.getMessage());
+							if(packet.getChannel().isReliable()) {
+								//only the messages the channel hasn't let through before get handed to the listener
+								client.getReliableChannels().receive(packet, client.getMessageFragments(), client.getCompressionContext(), receivedMessages);
+								listenerAction = 4; //onReceive for each message let through
+							}
+							else if(packet.isFragment()) {
+								//the listener only hears about the message once all of it is here
+								client.getMessageFragments().receive(packet.getChannel(), packet.getPayload(), receivedMessages);
+								listenerAction = 4; //onReceive for each message let through
+							}
+							else
+								listenerAction = 2; //onReceive
+							client.resetTimeout();
+							break;
+						case PING:
+							//there's no reply as such--the acknowledgement rides along on whatever goes to the client next
+							if(packet.getMessage() != null) {
 								try {
-									if(packet.getMessage() != null) {
-										try {
-											client.setLatency(Long.parseLong(packet.getMessage()));
-										}
-										catch(NumberFormatException e) {
-											//ignore--just don't modify latency
-										}
-									}
-									sendPacket(Packet.createPingResponsePacket(clientId), client);
-								} catch (CouldNotSendPacketException e) {
-									//ignore all exceptions--we don't need to report that we had trouble responding to a ping
+									client.setReportedLatency(Long.parseLong(packet.getMessage()));
 								}
-								client.resetTimeout();
-								break;
-							case CLIENT_DISCONNECT:
-								logger.fine("Client " + clientId + " disconnected");
-								clients.remove(client.getClientId());
+								catch(NumberFormatException e) {
+									//ignore--just don't modify latency
+								}
+							}
+							client.resetTimeout();
+							break;
+						case ACKNOWLEDGEMENT:
+							client.resetTimeout();
+							break;
+						case CLIENT_DISCONNECT:
+							logger.fine("Client " + clientId + " disconnected");
+							if(removeClient(client))
 								listenerAction = 3; //onClientDisconnected
-								break;
-							default:
-								logger.finer("Ignoring " + packet.getMessageType() + " packet from client " + clientId + " because only APPLICATION, PING and CLIENT_DISCONNECT packets are expected");
-								return;
-						}
+							break;
+						default:
+							logger.finer("Ignoring " + packet.getMessageType() + " packet from client " + clientId + " because only APPLICATION, APPLICATION_BUNDLE, PING, ACKNOWLEDGEMENT and CLIENT_DISCONNECT packets are expected");
+							return;
 					}
 				}
 			}
 		}
 
+		//messages on reliable channels are resent without ever bothering the listener
+		if(client != null) {
+			recordPacketsUndelivered(client, undeliveredMessages);
+			resendReliableMessages(client, undeliveredMessages);
+			scheduleDeliveryCheck(client);
+
+			//acknowledgements free up room in the window for packets that were waiting on it
+			sendPacedPackets(client);
+			scheduleAcknowledgement(client);
+		}
+
 		//execute listener callback--once again, ugly but shouldn't be synchronized
 		if(listener != null) {
+			ListenerDispatcher.ListenerQueue queue = getListenerQueue(client);
 			switch(listenerAction) {
-				case 1: //onClientConnected
-					int clientId = getNextClientId();
-					logger.finest("Client " + clientId + " asking for permission to connect to server");
-					if(listener.onClientConnected(clientId, address ,port)) {
-						logger.finest("Permission to connect granted to client " + clientId);
-						acceptClient(clientId, address, port);
-					}
-					else {
-						logger.finest("Permission to connect refused for client " + clientId);
-						rejectClient(clientId, address, port);
-					}
-					break;
 				case 2: //onReceive
-					listener.onReceive(packet.getConnectionId(), packet.getMessage());
+					if(packet.getMessageType() == MessageType.APPLICATION_BUNDLE) {
+						ByteBuffer payload = packet.getPayload();
+						if(payload != null) {
+							int end = payload.limit();
+							for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;)
+								notifyReceive(queue, packet.getConnectionId(), (payload.hasRemaining() ? payload : null), false);
+						}
+					}
+					else
+						notifyReceive(queue, packet.getConnectionId(), packet.getPayload(), false);
 					break;
 				case 3: //onClientDisconnected
-					listener.onClientDisconnected(packet.getConnectionId(), Server.DISCONNECT_BY_CLIENT);
+					notifyClientDisconnected(queue, packet.getConnectionId(), Server.DISCONNECT_BY_CLIENT);
+					break;
+				case 4: //onReceive for messages on a reliable channel, or reassembled from fragments
+					for(int i = 0; i < receivedMessages.size(); i++)
+						notifyReceive(queue, packet.getConnectionId(), receivedMessages.getMessage(i), packet.getChannel().isReliable());
 					break;
 			}
 
 			//inform the listener of any undelivered application messages
-			if(undeliveredPackets != null) {
-				for(Packet undeliveredPacket : undeliveredPackets) {
-					if(undeliveredPacket.getMessageType() == MessageType.APPLICATION) {
-						listener.onMessageNotDelivered(
-								undeliveredPacket.getSequenceNumber(),
-								(packet.isDuplicate() ? undeliveredPacket.getDuplicateSequenceNumber() : undeliveredPacket.getSequenceNumber()),
-								undeliveredPacket.getConnectionId(),
-								undeliveredPacket.getMessage());
-					}
+			notifyMessagesNotDelivered(queue, packet.getConnectionId(), undeliveredMessages);
+		}
+	}
+
+	private void notifyMessagesNotDelivered(ListenerDispatcher.ListenerQueue queue, int clientId, UndeliveredMessages undeliveredMessages) {
+		for(int i = 0; i < undeliveredMessages.size(); i++) {
+			if(undeliveredMessages.getChannel(i).isReliable())
+				continue;
+			int messageId = undeliveredMessages.getMessageId(i);
+			int resendMessageId = undeliveredMessages.getResendMessageId(i);
+			ByteBuffer payload = undeliveredMessages.getPayload(i);
+			if(!undeliveredMessages.isBundle(i))
+				notifyMessageNotDelivered(queue, messageId, resendMessageId, clientId, payload);
+
+			//every message in a bundle is reported separately, all under the id of the bundle
+			else if(payload != null) {
+				int end = payload.limit();
+				for(int offset = payload.position(); (offset = MessageBundle.selectFrame(payload, offset, end)) != -1;)
+					notifyMessageNotDelivered(queue, messageId, resendMessageId, clientId, (payload.hasRemaining() ? payload : null));
+			}
+		}
+	}
+
+	/**
+	 * Answers a connect request from a client that isn't connected yet. Only
+	 * the last step, letting the client in, costs anything, and it's only
+	 * taken for clients that have shown they're at the address they say.
+	 */
+	private void receiveConnectRequest(Packet packet, String address, int port, DatagramTransport transport) {
+		//a request that isn't padded out to the size of a cookie would get back more than it sent
+		ByteBuffer cookie = packet.getPayload();
+		if(packet.getPayloadLength() != ConnectCookies.COOKIE_SIZE) {
+			logger.finer("Ignoring connect request from " + address + ":" + port + " because it is too short to answer");
+			NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_MALFORMED, packet, address, port);
+			return;
+		}
+		if(ConnectCookies.isBlank(cookie) || (isVerifyingConnectCookies && !connectCookies.isValid(cookie, address, port))) {
+			logger.finest("Sending connect challenge to " + address + ":" + port);
+			sendConnectChallenge(address, port, transport);
+			return;
+		}
+
+		//a client that didn't hear it was let in asks again, and gets the same answer rather than a second connection
+		String addressKey = Server.getAddressKey(address, port);
+		ClientInfo client = clientsByAddress.get(addressKey);
+		if(client != null) {
+			if(client.getMetrics().getNumPacketsReceived() == 0) {
+				logger.finest("Client " + client.getClientId() + " asked to connect again");
+				try {
+					sendPacket(Packet.createConnectionAcceptedPacket(client.getClientId()), client);
+				} catch (CouldNotSendPacketException e) {
+					//it'll ask again
 				}
+				return;
+			}
+
+			//otherwise it's a copy of an old request that took the long way round, unless its cookie was made since the client
+			// was let in--then the client has started over with the same address and port, and the old connection is let go
+			if(!isVerifyingConnectCookies || ConnectCookies.getTime(cookie) <= client.getConnectCookieTime()) {
+				logger.finer("Ignoring connect request from client " + client.getClientId() + " because it is already connected");
+				NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_DUPLICATE, packet, address, port);
+				return;
+			}
+			logger.fine("Client " + client.getClientId() + " is connecting again from " + address + ":" + port);
+			if(removeClient(client))
+				notifyClientDisconnected(getListenerQueue(client), client.getClientId(), Server.CLIENT_RECONNECTED);
+		}
+
+		if(pendingAdmissions.putIfAbsent(addressKey, Boolean.TRUE) != null) {
+			logger.finest("Ignoring connect request from " + address + ":" + port + " because it is already waiting to be let in");
+			return;
+		}
+		int connectCookieTime = ConnectCookies.getTime(cookie);
+		AdmissionThread admissionThread = this.admissionThread;
+		if(admissionRate == Server.UNLIMITED_ADMISSION_RATE || admissionThread == null)
+			admitClient(address, port, connectCookieTime, transport);
+		else if(!admissionThread.add(address, port, connectCookieTime, transport)) {
+			logger.finer("Ignoring connect request from " + address + ":" + port + " because too many clients are waiting to be let in");
+			pendingAdmissions.remove(addressKey);
+			metrics.recordConnectRequestDropped();
+			NetworkEvents.INSTANCE.packetDropped(NetworkEvents.DROPPED_ADMISSION_QUEUE_FULL, packet, address, port);
+		}
+	}
+
+	/**
+	 * Gives a client that's shown it's at its address an id and asks the
+	 * listener about it, or hands that to the listener executor if there is
+	 * one. Called from the admission thread, or straight from the receive
+	 * thread if the admission rate is unlimited. The time the client's
+	 * cookie was made goes along with it, since that's what a later connect
+	 * request from the same address and port is compared against.
+	 */
+	void admitClient(String address, int port, int connectCookieTime, DatagramTransport transport) {
+		int clientId = getNextClientId();
+		ListenerDispatcher dispatcher = this.dispatcher;
+		if(dispatcher == null)
+			handleConnectRequest(clientId, address, port, connectCookieTime, transport);
+		else if(!dispatcher.dispatchConnectRequest(clientId, address, port, connectCookieTime, transport)) {
+			logger.finest("Refusing client " + clientId + " because too many connection requests are waiting");
+			rejectClient(clientId, address, port, transport);
+			pendingAdmissions.remove(Server.getAddressKey(address, port));
+		}
+	}
+
+	/**
+	 * Asks the listener whether to let a client connect. Called from
+	 * wherever the client was admitted, or from the listener executor if
+	 * there is one.
+	 */
+	void handleConnectRequest(int clientId, String address, int port, int connectCookieTime, DatagramTransport transport) {
+		try {
+			//the server may have been stopped (and its ids handed out again) while the request was waiting
+			if(!isRunning || transport == null)
+				return;
+			logger.finest("Client " + clientId + " asking for permission to connect to server");
+			if(clientId == Packet.ANONYMOUS_CONNECTION_ID) {
+				logger.finest("Refusing client because there are no client ids left");
+				rejectClient(clientId, address, port, transport);
+			}
+			else if(listener.onClientConnected(clientId, address ,port)) {
+				logger.finest("Permission to connect granted to client " + clientId);
+				acceptClient(clientId, address, port, connectCookieTime, transport);
+			}
+			else {
+				logger.finest("Permission to connect refused for client " + clientId);
+				rejectClient(clientId, address, port, transport);
 			}
+		} finally {
+			pendingAdmissions.remove(Server.getAddressKey(address, port));
 		}
 	}
 
+	private ListenerDispatcher.ListenerQueue getListenerQueue(ClientInfo client) {
+		ListenerDispatcher dispatcher = this.dispatcher;
+		return (dispatcher == null || client == null ? null : client.getListenerQueue(dispatcher));
+	}
+
+	/**
+	 * Timeouts and delivery checks come due on the timer wheel's thread,
+	 * which every client of every server in the process can share, so the
+	 * listener is never called from there. Without a listener executor, what
+	 * they have to tell it runs on a thread from a shared pool instead, still
+	 * one callback at a time for each client.
+	 */
+	private ListenerDispatcher.ListenerQueue getTimerListenerQueue(ClientInfo client) {
+		ListenerDispatcher dispatcher = this.dispatcher;
+		return client.getListenerQueue(dispatcher != null ? dispatcher : timerDispatcher);
+	}
+
+	private void notifyReceive(ListenerDispatcher.ListenerQueue queue, int clientId, ByteBuffer message, boolean isReliable) {
+		if(queue == null)
+			listener.onReceive(clientId, message);
+		else
+			queue.receive(clientId, message, isReliable);
+	}
+
+	private void notifyMessageNotDelivered(ListenerDispatcher.ListenerQueue queue, int messageId, int resendMessageId, int clientId, ByteBuffer message) {
+		if(queue == null)
+			listener.onMessageNotDelivered(messageId, resendMessageId, clientId, message);
+		else
+			queue.messageNotDelivered(messageId, resendMessageId, clientId, message);
+	}
+
+	private void notifyClientDisconnected(ListenerDispatcher.ListenerQueue queue, int clientId, String reason) {
+		if(queue == null)
+			listener.onClientDisconnected(clientId, reason);
+		else
+			queue.clientDisconnected(clientId, reason);
+	}
+
 	private void closeConnection() {
 		logger.finer("Closing server connection");
-		synchronized(CONNECTION_LOCK) {
-			if(receivePacketThread != null)
-				receivePacketThread.stopReceiving();
-			if(timeoutThread != null)
-				timeoutThread.stopCheckingForTimeouts();
-			if(socket != null)
-				socket.close();
+		synchronized(SERVER_LOCK) {
+			if(admissionThread != null) {
+				admissionThread.stopAdmitting();
+				admissionThread = null;
+			}
+			if(shards != null) {
+				for(ReceiveShard shard : shards) {
+					if(shard != null && shard.getTransport() != null)
+						shard.getTransport().close();
+				}
+			}
 			resetParameters();
 		}
 	}
 
 	private void resetParameters() {
-		synchronized(CONNECTION_LOCK) {
-			socket = null;
+		synchronized(SERVER_LOCK) {
 			isRunning = false;
-			timeoutThread = null;
-			receivePacketThread = null;
-			clients = new HashMap<Integer, ClientInfo>();
-			lastConnectedClientId = Packet.ANONYMOUS_CONNECTION_ID;
+			shards = null;
+			for(ClientInfo client : clients.values()) {
+				cancelTimeouts(client);
+				unregisterClientMBean(client);
+			}
+			clients.clear();
+			clientsByAddress.clear();
+			pendingAdmissions.clear();
+			groups.clear();
+			clientsWithBundledMessages.clear();
+			clientIdAllocator.reset();
 		}
 	}
 
-	private void acceptClient(int clientId, String address, int port) {
+	private void acceptClient(int clientId, String address, int port, int connectCookieTime, DatagramTransport transport) {
 		boolean clientAccepted = false;
-		synchronized(CONNECTION_LOCK) {
-			try {
-				ClientInfo client = new ClientInfo(clientId, address, port, InetAddress.getByName(address));
-				sendPacket(Packet.createConnectionAcceptedPacket(clientId), client);
-				clientAccepted = true;
-				clients.put(clientId, client);
-				logger.fine("Client " + clientId + " connected");
-			} catch (UnknownHostException e) {
-				//we'll tell the listener the client disconnected outside of the synchronized block
-				logger.fine("Could not accept client " + clientId + " due to UnknownHostException: " + e.getMessage());
-			} catch (CouldNotSendPacketException e) {
-				//we'll tell the listener the client disconnected outside of the synchronized block
-				logger.fine("Could not accept client " + clientId + " due to CouldNotSendPacketException: " + e.getMessage());
+		ClientInfo client = null;
+		try {
+			client = new ClientInfo(clientId, address, port, InetAddress.getByName(address));
+			client.setTransport(transport);
+			client.setConnectCookieTime(connectCookieTime);
+			client.setTimeout(new ClientTimeout(client), Server.CLIENT_TIMEOUT);
+			client.setLingerTimeout(new LingerTimeout(client));
+			client.setDeliveryCheckTimeout(new DeliveryCheckTimeout(client));
+			client.setPacingTimeout(new PacingTimeout(client));
+			client.setAcknowledgementTimeout(new AcknowledgementTimeout(client));
+			client.setCompressionContext(new CompressionContext(compressionStats, compressionDictionary, isCompressing));
+			synchronized(client) {
+				if(clients.putIfAbsent(clientId, client) == null) {
+					clientsByAddress.put(Server.getAddressKey(address, port), client);
+					sendPacket(Packet.createConnectionAcceptedPacket(clientId), client);
+					clientAccepted = true;
+					timerWheel.schedule(client.getTimeout(), Server.CLIENT_TIMEOUT);
+					metrics.recordClientAccepted();
+					registerClientMBean(client);
+					logger.fine("Client " + clientId + " connected");
+				}
+				else
+					logger.fine("Could not accept client " + clientId + " because client id " + clientId + " is already in use");
 			}
+		} catch (UnknownHostException e) {
+			//we'll tell the listener the client disconnected outside of the synchronized block
+			clientIdAllocator.release(clientId);
+			logger.fine("Could not accept client " + clientId + " due to UnknownHostException: " + e.getMessage());
+		} catch (CouldNotSendPacketException e) {
+			//we'll tell the listener the client disconnected outside of the synchronized block
+			removeClient(client);
+			logger.fine("Could not accept client " + clientId + " due to CouldNotSendPacketException: " + e.getMessage());
 		}
 		if(!clientAccepted && listener != null)
 			listener.onClientDisconnected(clientId, Server.CLIENT_COULD_NOT_CONNECT);
 	}
 
-	private void rejectClient(int clientId, String address, int port) {
+	private void rejectClient(int clientId, String address, int port, DatagramTransport transport) {
 		logger.fine("Client " + clientId + " was refused");
-		synchronized(CONNECTION_LOCK) {
+		metrics.recordClientRefused();
+		clientIdAllocator.release(clientId);
+		sendAnonymousPacket(Packet.createConnectionRefusedPacket(), address, port, transport);
+	}
+
+	private void sendConnectChallenge(String address, int port, DatagramTransport transport) {
+		ByteBuffer cookie = COOKIE_BUFFER.get();
+		cookie.clear();
+		connectCookies.write(cookie, address, port);
+		cookie.flip();
+		metrics.recordConnectChallengeSent();
+		sendAnonymousPacket(Packet.createConnectChallengePacket(cookie), address, port, transport);
+	}
+
+	/**
+	 * Sends a packet to someone who isn't a client, without keeping any
+	 * record of it. There's nothing to be done if it doesn't get there--they
+	 * just have to ask again.
+	 */
+	private void sendAnonymousPacket(Packet packet, String address, int port, DatagramTransport transport) {
+		if(!isRunning || transport == null)
+			return;
+		try {
+			//clients' addresses are always numeric, so there's no lookup involved
+			ByteBuffer data = packet.encode();
+			int numBytes = data.remaining();
+			transport.send(data, new InetSocketAddress(InetAddress.getByName(address), port));
+			metrics.recordPacketSent(numBytes);
+			NetworkEvents.INSTANCE.packetSent(Packet.ANONYMOUS_CONNECTION_ID, Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, numBytes);
+			if(logger.isLoggable(Level.FINEST))
+				logger.finest("Outgoing packet to " + address + ":" + port + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+		} catch (PacketEncodingException e) {
+			logger.finest("Could not send " + packet.getMessageType() + " packet to " + address + ":" + port + " due to PacketEncodingException: " + e.getMessage());
+		} catch (IOException e) {
+			//UnknownHostException included
+			logger.finest("Could not send " + packet.getMessageType() + " packet to " + address + ":" + port + " due to " + e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+	}
+
+	private int sendApplicationPacket(Packet packet) throws CouldNotSendPacketException {
+		int clientId = packet.getConnectionId();
+
+		//if the client isn't connected then throw an exception
+		ClientInfo client = clients.get(clientId);
+		if(client == null) {
+			logger.fine("Could not " + (packet.isDuplicate() ? "resend" : "send") + " message to client " + clientId + ": Client not connected.");
+			throw new ClientNotConnectedException(clientId, packet);
+		}
+
+		if(logger.isLoggable(Level.FINE))
+			logger.fine((packet.isDuplicate() ? "Resending" : "Sending") + " message to client " + clientId + ": " + packet.getMessage());
+
+		synchronized(client) {
+			//ordered messages are compressed in the order they get their ids, before they're bundled or split up
+			Channel channel = packet.getChannel();
+			int messageLength = packet.getPayloadLength();
+			if(channel == Channel.RELIABLE_ORDERED && !packet.isDuplicate() && client.getCompressionContext().isCompressing() && messageLength <= Packet.MAXIMUM_MESSAGE_SIZE)
+				packet.setPayload(client.getCompressionContext().compressOrdered(packet.getPayload()));
+
+			//messages too big for one packet get split up, except on NOTIFY_UNDELIVERED where there'd be no telling which piece went missing
+			if(channel != Channel.NOTIFY_UNDELIVERED && !packet.isDuplicate() && MessageFragments.needsFragmenting(packet.getPayloadLength(), channel)) {
+				if(messageLength > Packet.MAXIMUM_MESSAGE_SIZE) {
+					logger.fine("Could not send message to client " + clientId + ": Message is too large.");
+					throw new CouldNotEncodePacketException(new PacketTooLargeException(Packet.MAXIMUM_MESSAGE_SIZE), packet);
+				}
+				flushMessageBundle(client);
+				return sendFragments(packet, client);
+			}
+			int messageId = (channel.isReliable() ? client.getReliableChannels().nextMessageId(channel) : Packet.SEQUENCE_NUMBER_NOT_APPLICABLE);
+
+			//hold the message back to go out with others if we're coalescing--there's no packet yet, so no message id to return
+			if(isCoalescing && isRunning && !packet.isDuplicate() && MessageBundle.fits(packet.getPayloadLength(), channel)) {
+				MessageBundle bundle = client.getMessageBundle(channel);
+				if(!bundle.add(messageId, packet.getPayload())) {
+					try {
+						flushMessageBundle(client, bundle);
+					} finally {
+						//the message has its id now, so it has to go out even if the full bundle didn't
+						bundle.add(messageId, packet.getPayload());
+					}
+				}
+				if(bundle.getNumMessages() == 1) {
+					//a client only needs to be queued once no matter how many times its messages get flushed in between
+					if(!client.isQueuedForFlush()) {
+						client.setQueuedForFlush(true);
+						clientsWithBundledMessages.offer(client);
+					}
+					int lingerTime = this.lingerTime;
+					if(lingerTime > 0 && !client.getLingerTimeout().isScheduled())
+						timerWheel.schedule(client.getLingerTimeout(), lingerTime);
+				}
+				return Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+			}
+
+			//anything that can't be coalesced shouldn't overtake the messages that were held back before it
+			flushMessageBundle(client);
+			if(channel.isReliable())
+				packet = MessageBundle.createReliablePacket(clientId, channel, messageId, packet.getPayload());
+			return sendPacket(packet, client);
+		}
+	}
+
+	private int sendToGroup(String group, Packet packet) throws CouldNotSendPacketException {
+		ClientGroup clientGroup = groups.get(group);
+		if(clientGroup == null) {
+			logger.fine("Could not send message to group " + group + ": No such group.");
+			return 0;
+		}
+		return sendToClients(Arrays.asList(clientGroup.getMembers()), packet);
+	}
+
+	/**
+	 * Sends the message in the packet to each of the clients in one go. The
+	 * packet's connection id, sequence numbers and history are overwritten
+	 * for each client along the way.
+	 */
+	private int sendToClients(Iterable<ClientInfo> recipients, Packet packet) throws CouldNotSendPacketException {
+		if(!isRunning) {
+			logger.fine("Could not send message to many clients: Server is not running.");
+			throw new ServerNotStartedException(packet);
+		}
+		if(logger.isLoggable(Level.FINE))
+			logger.fine("Sending message to many clients: " + packet.getMessage());
+
+		//messages that have to be made up differently for each client are sent to them one at a time
+		Channel channel = packet.getChannel();
+		int numSent = 0;
+		if(channel.isReliable() || isCoalescing || (channel != Channel.NOTIFY_UNDELIVERED && MessageFragments.needsFragmenting(packet.getPayloadLength(), channel))) {
+			ByteBuffer message = packet.getPayload();
+			for(ClientInfo client : recipients) {
+				Packet clientPacket = Packet.createApplicationPacket(client.getClientId(), message);
+				clientPacket.setChannel(channel);
+				try {
+					sendApplicationPacket(clientPacket);
+					numSent++;
+				} catch (CouldNotEncodePacketException e) {
+					//it won't fit for anybody else either
+					throw e;
+				} catch (CouldNotSendPacketException e) {
+					logger.finer("Could not send message to client " + client.getClientId() + ": " + e.getMessage());
+				}
+			}
+			return numSent;
+		}
+
+		ByteBuffer datagram = null;
+		CompressionContext encodedWith = null;
+		for(ClientInfo client : recipients) {
+			synchronized(client) {
+				DatagramTransport transport = client.getTransport();
+				if(!isRunning || transport == null || clients.get(client.getClientId()) != client)
+					continue;
+				packet.setConnectionId(client.getClientId());
+				client.getPacketRecorder().recordAndAddSequenceNumberToOutgoingPacket(packet);
+				client.getPacketRecorder().addReceivedPacketHistoryToOutgoingPacket(packet);
+				try {
+					//the first client's packet is encoded as normal, and the rest only need their own header on it
+					CompressionContext compression = client.getCompressionContext();
+					if(datagram == null || compression == null || !compression.encodesLike(encodedWith)) {
+						datagram = BROADCAST_BUFFER.get();
+						datagram.clear();
+						datagram.put(compression == null ? packet.encode() : compression.encode(packet));
+						datagram.flip();
+						encodedWith = compression;
+					}
+					else {
+						datagram.rewind();
+						packet.rewriteHeaderOf(datagram);
+					}
+					transmitPacket(packet, datagram, client, transport);
+					numSent++;
+				} catch (PacketEncodingException e) {
+					client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+					logger.finest("Outgoing packet: could not send due to PacketEncodingException \"" + e.getMessage() + "\"");
+					throw new CouldNotEncodePacketException(e, packet);
+				} catch (IOException e) {
+					client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+					logger.finest("Outgoing packet: could not send due to IOException \"" + e.getMessage() + "\"");
+				}
+			}
+		}
+		return numSent;
+	}
+
+	private int sendFragments(Packet packet, ClientInfo client) throws CouldNotSendPacketException {
+		synchronized(client) {
+			//each reliable fragment gets an id of its own so the ones that go missing can be resent on their own
+			Channel channel = packet.getChannel();
+			ByteBuffer message = packet.getPayload();
+			int groupId = client.getMessageFragments().nextGroupId();
+			int numFragments = MessageFragments.getNumFragments(message.remaining(), channel);
+			int sequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+			for(int i = 0; i < numFragments; i++) {
+				int messageId = (channel.isReliable() ? client.getReliableChannels().nextMessageId(channel) : Packet.SEQUENCE_NUMBER_NOT_APPLICABLE);
+				sequenceNumber = sendPacket(MessageFragments.createFragmentPacket(client.getClientId(), channel, messageId, groupId, i, numFragments, message), client);
+			}
+			return sequenceNumber;
+		}
+	}
+
+	private void flushMessageBundle(ClientInfo client) throws CouldNotSendPacketException {
+		synchronized(client) {
+			for(MessageBundle bundle : client.getMessageBundles())
+				flushMessageBundle(client, bundle);
+		}
+	}
+
+	private void flushMessageBundle(ClientInfo client, MessageBundle bundle) throws CouldNotSendPacketException {
+		synchronized(client) {
+			if(bundle.isEmpty())
+				return;
+			Packet packet = bundle.toPacket(client.getClientId());
+
+			//a client that's no longer connected just has its messages thrown away
+			if(clients.get(client.getClientId()) != client)
+				return;
+			sendPacket(packet, client);
+		}
+	}
+
+	private void resendReliableMessages(ClientInfo client, UndeliveredMessages undeliveredMessages) {
+		int lastResend = -1;
+		for(int i = 0; i < undeliveredMessages.size(); i++) {
+			if(undeliveredMessages.getChannel(i).isReliable() && undeliveredMessages.getPayload(i) != null)
+				lastResend = i;
+		}
+		for(int i = 0; i <= lastResend; i++) {
+			Channel channel = undeliveredMessages.getChannel(i);
+			ByteBuffer frames = undeliveredMessages.getPayload(i);
+			if(!channel.isReliable() || frames == null)
+				continue;
+
+			//the frames still carry their message ids, so the whole bundle goes out again just as it was
+			Packet packet = Packet.createApplicationBundlePacket(client.getClientId(), channel, frames);
+			packet.setIsFragment(undeliveredMessages.isFragment(i));
+			packet.setDuplicateSequenceNumber(undeliveredMessages.getResendMessageId(i));
+			//the sooner the client acknowledges them, the sooner we know whether anything else went missing with them.
+			// only the last one asks, since the acknowledgement for it covers the rest and a burst of them shouldn't
+			// have the client answer every one on its own
+			packet.setIsImmediateResponse(i == lastResend);
 			try {
-				sendPacket(Packet.createConnectionRefusedPacket(), new ClientInfo(clientId, address, port, InetAddress.getByName(address)));
-			} catch (UnknownHostException e) {
-				//ignore exceptions--we don't need to report that we had trouble rejecting a connection
+				synchronized(client) {
+					if(clients.get(client.getClientId()) != client)
+						return;
+					//a copy that's still waiting to go out will get there as soon as this one would
+					if(client.getPacingQueue().containsCopyOf(undeliveredMessages.getResendMessageId(i)))
+						continue;
+					logger.finer("Resending packet " + undeliveredMessages.getMessageId(i) + " to client " + client.getClientId());
+					sendPacket(packet, client);
+				}
 			} catch (CouldNotSendPacketException e) {
-				//ignore exceptions--we don't need to report that we had trouble rejecting a connection
+				//it's recorded as sent regardless, so it'll be found undelivered and resent again
+				logger.finer("Could not resend packet to client " + client.getClientId() + ": " + e.getMessage());
 			}
 		}
 	}
 
 	private int sendPacket(Packet packet, ClientInfo client) throws ServerNotStartedException, NullPacketException, CouldNotEncodePacketException, PacketIOException {
 		int sequenceNumber = -1;
-		synchronized(CONNECTION_LOCK) {
+		//replies go out the same shard the client's packets come in on
+		DatagramTransport transport = client.getTransport();
+		synchronized(client) {
 			//regardless of whether the packet is valid, if the client is not connected then throw a NotConnectedException
-			if(!isRunning) {
+			if(!isRunning || transport == null) {
 				logger.finest("Outgoing packet: could not send because server is not running");
 				throw new ServerNotStartedException(packet);
 			}
@@ -391,94 +1599,279 @@ public class Server implements PacketReceiver {
 				throw new NullPacketException();
 			}
 
-			synchronized(client.getPacketRecorder()) {
-				//add the sequenceNumber, lastReceivedSequenceNumber, and receivedPacketHistory to the packet which we've been
-				// recording with our PacketRecorder--also simultaneously record this packet as getting sent
-				client.getPacketRecorder().recordAndAddSequenceNumberToOutgoingPacket(packet);
-				client.getPacketRecorder().addReceivedPacketHistoryToOutgoingPacket(packet);
-				sequenceNumber = packet.getSequenceNumber();
+			//add the sequenceNumber, lastReceivedSequenceNumber, and receivedPacketHistory to the packet which we've been
+			// recording with our PacketRecorder--also simultaneously record this packet as getting sent
+			client.getPacketRecorder().recordAndAddSequenceNumberToOutgoingPacket(packet);
+			client.getPacketRecorder().addReceivedPacketHistoryToOutgoingPacket(packet);
+			sequenceNumber = packet.getSequenceNumber();
 
+			try {
+				//attempt to send the packet
+				CompressionContext compression = client.getCompressionContext();
+				transmitPacket(packet, (compression == null ? packet.encode() : compression.encode(packet)), client, transport);
+				if(logger.isLoggable(Level.FINEST))
+					logger.finest("Outgoing packet to " + client.getAddress() + ":" + client.getPort() + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+			} catch (PacketEncodingException e) {
+				//encoding issues result when the packet contains connection id or sequence numbers that are out of range.
+				// we would not expect these to occur if everything is functioning as normal
+				client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+				logger.finest("Outgoing packet: could not send due to PacketEncodingException \"" + e.getMessage() + "\"");
+				throw new CouldNotEncodePacketException(e, packet);
+			}
+			catch (IOException e) {
+				//wrapping any IOException the socket might throw so calling send() only throws CouldNotSendPacketExceptions
+				client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+				logger.finest("Outgoing packet: could not send due to IOException \"" + e.getMessage() + "\"");
+				throw new PacketIOException(e, packet);
+			}
+		}
+
+		//return the sequence number of the packet that we sent
+		return sequenceNumber;
+	}
+
+	/**
+	 * Sends the encoded packet straight out to the client, or holds it back
+	 * if pacing says it has to wait its turn. The data can be reused once
+	 * this returns.
+	 */
+	private void transmitPacket(Packet packet, ByteBuffer data, ClientInfo client, DatagramTransport transport) throws IOException {
+		synchronized(client) {
+			int sequenceNumber = packet.getSequenceNumber();
+			PacingQueue pacingQueue = client.getPacingQueue();
+			if(!isPaced(packet) || (pacingQueue.isEmpty() && client.getPacketRecorder().getTimeUntilSend() == 0)) {
+				int numBytes = data.remaining();
+				transport.send(data, client.getSocketAddress());
+				client.getPacketRecorder().recordOutgoingPacketTransmitted(sequenceNumber);
+				recordPacketSent(client, sequenceNumber, numBytes);
+				if(packet.isDuplicate())
+					recordResend(client, sequenceNumber, packet.getDuplicateSequenceNumber());
+			}
+
+			//anything sent while others are waiting has to wait behind them, or it would look like they'd gone missing
+			else if(pacingQueue.offer(sequenceNumber, (packet.isDuplicate() ? packet.getDuplicateSequenceNumber() : sequenceNumber), data)) {
+				client.getPacketRecorder().recordOutgoingPacketQueued(sequenceNumber);
+				if(pacingQueue.size() == 1)
+					schedulePacing(client);
+			}
+			else {
+				//there's no point waiting to hear it didn't arrive
+				client.getPacketRecorder().recordOutgoingPacketDropped(sequenceNumber);
+				logger.finest("Outgoing packet: dropped because too many packets are waiting to go out to client " + client.getClientId());
+			}
+		}
+	}
+
+	/**
+	 * Only application packets wait their turn. Packets that open or close
+	 * the connection go straight out since by then there's no window to speak
+	 * of, and acknowledgements do too since they never count against it, and
+	 * holding one back would pad out the round trips the client measures.
+	 */
+	private boolean isPaced(Packet packet) {
+		if(!isPacing)
+			return false;
+		MessageType messageType = packet.getMessageType();
+		return messageType == MessageType.APPLICATION || messageType == MessageType.APPLICATION_BUNDLE;
+	}
+
+	private void schedulePacing(ClientInfo client) {
+		long delay = client.getPacketRecorder().getTimeUntilSend();
+		timerWheel.schedule(client.getPacingTimeout(), delay);
+	}
+
+	/**
+	 * Sends as many of the packets waiting for the client as the congestion
+	 * controller allows, and comes back for the rest when it says to.
+	 */
+	private void sendPacedPackets(ClientInfo client) {
+		synchronized(client) {
+			PacingQueue pacingQueue = client.getPacingQueue();
+			if(pacingQueue.isEmpty())
+				return;
+
+			//a client that's no longer connected just has its packets thrown away
+			DatagramTransport transport = client.getTransport();
+			if(!isRunning || transport == null || clients.get(client.getClientId()) != client) {
+				pacingQueue.clear();
+				return;
+			}
+			PacketRecorder recorder = client.getPacketRecorder();
+			while(!pacingQueue.isEmpty()) {
+				long delay = recorder.getTimeUntilSend();
+				if(delay > 0) {
+					timerWheel.schedule(client.getPacingTimeout(), delay);
+					return;
+				}
+				int sequenceNumber = pacingQueue.peekSequenceNumber();
+				int originalSequenceNumber = pacingQueue.peekOriginalSequenceNumber();
 				try {
-					//attempt to send the packet
-					byte[] bytes = packet.toByteArray();
-					DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, client.getInetAddress(), client.getPort());
-					socket.send(datagramPacket);
-					if(logger.isLoggable(Level.FINEST))
-						logger.finest("Outgoing packet to " + client.getAddress() + ":" + client.getPort() + ":\n  " + packet.toString().replaceAll("\n", "\n  "));
+					//it was encoded with whatever had been received back then, which by now is out of date
+					ByteBuffer datagram = pacingQueue.peek();
+					recorder.addReceivedPacketHistoryToOutgoingDatagram(datagram);
+					int numBytes = datagram.remaining();
+					transport.send(datagram, client.getSocketAddress());
+					recorder.recordOutgoingPacketTransmitted(sequenceNumber);
+					recordPacketSent(client, sequenceNumber, numBytes);
+					if(originalSequenceNumber != sequenceNumber)
+						recordResend(client, sequenceNumber, originalSequenceNumber);
 				} catch (PacketEncodingException e) {
-					//encoding issues result when the packet contains connection id or sequence numbers that are out of range.
-					// we would not expect these to occur if everything is functioning as normal
-					client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
 					logger.finest("Outgoing packet: could not send due to PacketEncodingException \"" + e.getMessage() + "\"");
-					throw new CouldNotEncodePacketException(e, packet);
-				}
-				catch (IOException e) {
-					//wrapping any IOException the socket might throw so calling send() only throws CouldNotSendPacketExceptions
-					client.getPacketRecorder().recordPreviousOutgoingPacketNotSent();
+				} catch (IOException e) {
+					//it's as good as lost on the way, and will be found undelivered like any other
 					logger.finest("Outgoing packet: could not send due to IOException \"" + e.getMessage() + "\"");
-					throw new PacketIOException(e, packet);
 				}
+				pacingQueue.remove();
 			}
 		}
+	}
 
-		//return the sequence number of the packet that we sent
-		return sequenceNumber;
+	/**
+	 * Rather than answer every packet from the client, acknowledgements wait
+	 * to ride along on whatever's sent to it next. If nothing is by the time
+	 * they're due, they go out on their own. One that's due straight away,
+	 * like the answer to a ping, goes out before the receive thread moves on
+	 * rather than waiting for the wheel's next tick, which would add most of
+	 * a tick to every round trip the client measures.
+	 */
+	private void scheduleAcknowledgement(ClientInfo client) {
+		long delay = client.getPacketRecorder().getTimeUntilAcknowledgement(acknowledgementDelay);
+		if(delay == 0)
+			sendAcknowledgement(client);
+		else if(delay != -1)
+			timerWheel.schedule(client.getAcknowledgementTimeout(), delay);
+	}
+
+	private void sendAcknowledgement(ClientInfo client) {
+		synchronized(client) {
+			if(!isRunning || clients.get(client.getClientId()) != client)
+				return;
+
+			//anything sent to the client since it was scheduled will have taken care of it
+			long delay = client.getPacketRecorder().getTimeUntilAcknowledgement(acknowledgementDelay);
+			if(delay == -1)
+				return;
+			if(delay > 0) {
+				timerWheel.schedule(client.getAcknowledgementTimeout(), delay);
+				return;
+			}
+			try {
+				sendPacket(Packet.createAcknowledgementPacket(client.getClientId()), client);
+			} catch (CouldNotSendPacketException e) {
+				//it'll be owed again as soon as the client sends anything else
+				logger.finest("Could not acknowledge packets from client " + client.getClientId() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private static String getAddressKey(String address, int port) {
+		return address + ":" + port;
 	}
 
 	private int getNextClientId() {
 		logger.finest("Getting next client id...");
-		synchronized(CONNECTION_LOCK) {
-			if(clients.size() > Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID) {
-				logger.finer("Assigning anonymous connection id of " + Packet.ANONYMOUS_CONNECTION_ID + " to client because server has maximum of " + (Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID) + " connections");
-				return Packet.ANONYMOUS_CONNECTION_ID;
+		int clientId = clientIdAllocator.allocate();
+		if(clientId == Packet.ANONYMOUS_CONNECTION_ID)
+			logger.finer("Assigning anonymous connection id of " + Packet.ANONYMOUS_CONNECTION_ID + " to client because server has maximum of " + (Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID + 1) + " connections");
+		else
+			logger.finest("Next client id is " + clientId);
+		return clientId;
+	}
+
+	private boolean removeClient(ClientInfo client) {
+		//only the caller that actually removes the client frees up its id
+		if(clients.remove(client.getClientId(), client)) {
+			clientsByAddress.remove(Server.getAddressKey(client.getAddress(), client.getPort()), client);
+			cancelTimeouts(client);
+			synchronized(client) {
+				for(ClientGroup group : groups.values())
+					group.remove(client);
 			}
-			do {
-				lastConnectedClientId = Packet.nextConnectionId(lastConnectedClientId);
-			} while(clients.containsKey(lastConnectedClientId));
-			logger.finest("Next client id is " + lastConnectedClientId);
-			return lastConnectedClientId;
+			unregisterClientMBean(client);
+			clientIdAllocator.release(client.getClientId());
+			return true;
 		}
+		return false;
 	}
 
-	private long checkClientTimeouts(int timeout) {
-		//we may need to notify the listener of disconnected clients
-		Set<Integer> disconnectedClientIds = new HashSet<Integer>();
-		long oldestClientCommunicationTime = -1;
+	private void recordPacketSent(ClientInfo client, int sequenceNumber, int numBytes) {
+		client.getMetrics().recordPacketSent(numBytes);
+		metrics.recordPacketSent(numBytes);
+		NetworkEvents.INSTANCE.packetSent(client.getClientId(), sequenceNumber, numBytes);
+	}
 
-		synchronized(CONNECTION_LOCK) {
-			//if the server isn't running just return a sentinel value
-			if(!isRunning)
-				return -1;
+	/**
+	 * Resends only count once they actually go out--one that's dropped
+	 * because the client's pacing queue is full never reaches it.
+	 */
+	private void recordResend(ClientInfo client, int sequenceNumber, int originalSequenceNumber) {
+		client.getMetrics().recordResend();
+		metrics.recordResend();
+		NetworkEvents.INSTANCE.packetResent(client.getClientId(), sequenceNumber, originalSequenceNumber);
+	}
 
-			//check to see if any client has timed out
-			long now = System.currentTimeMillis();
-			oldestClientCommunicationTime = now; //now is a good default value as it will make the timeout thread wait the full timeout if no clients are connected
-			for(Iterator<Integer> iter = clients.keySet().iterator(); iter.hasNext();) {
-				int clientId = iter.next();
-				ClientInfo client = clients.get(clientId);
-
-				//if the client has timed out then remove it from the list of clients
-				if(client.getTimeOfLastCommunication() + timeout <= now) {
-					iter.remove(); //removing client ids from the key set DOES remove clients from the map
-					disconnectedClientIds.add(clientId); 
-				}
+	private void recordDuplicateDropped(ClientInfo client) {
+		client.getMetrics().recordDuplicateDropped();
+		metrics.recordDuplicateDropped();
+	}
 
-				//otherwise this client may be the client closest to timing out
-				else if(client.getTimeOfLastCommunication() < oldestClientCommunicationTime)
-					oldestClientCommunicationTime = client.getTimeOfLastCommunication();
-			}
+	private void recordPacketsUndelivered(ClientInfo client, UndeliveredMessages undeliveredMessages) {
+		if(undeliveredMessages.size() == 0)
+			return;
+		synchronized(client) {
+			client.getMetrics().recordPacketsUndelivered(undeliveredMessages.size());
 		}
+		metrics.recordPacketsUndelivered(undeliveredMessages.size());
+	}
 
-		//inform the listener of any clients that timed out
-		if(listener != null) {
-			for(int clientId : disconnectedClientIds) {
-				logger.fine("Client " + clientId + " timed out");
-				listener.onClientDisconnected(clientId, Server.CLIENT_TIMED_OUT);
-			}
+	private void cancelTimeouts(ClientInfo client) {
+		if(client.getTimeout() != null)
+			client.getTimeout().cancel();
+		if(client.getLingerTimeout() != null)
+			client.getLingerTimeout().cancel();
+		if(client.getDeliveryCheckTimeout() != null)
+			client.getDeliveryCheckTimeout().cancel();
+		if(client.getPacingTimeout() != null)
+			client.getPacingTimeout().cancel();
+		if(client.getAcknowledgementTimeout() != null)
+			client.getAcknowledgementTimeout().cancel();
+	}
+
+	/**
+	 * Packets the client has received something sent after can be waiting out
+	 * the retransmission timeout when the client goes quiet, so rather than
+	 * wait for its next packet to find out they were lost, we look again once
+	 * the timeout is up.
+	 */
+	private void scheduleDeliveryCheck(ClientInfo client) {
+		long delay = client.getPacketRecorder().getTimeUntilDeliveryCheck();
+		if(delay != -1)
+			timerWheel.schedule(client.getDeliveryCheckTimeout(), delay);
+	}
+
+	private void checkDelivery(ClientInfo client) {
+		UndeliveredMessages undeliveredMessages = this.undeliveredMessages.get();
+		undeliveredMessages.clear();
+		synchronized(client) {
+			if(clients.get(client.getClientId()) != client)
+				return;
+			client.getPacketRecorder().visitUndeliveredPackets(undeliveredMessages, client.getPacingQueue().remainingCapacity());
 		}
+		recordPacketsUndelivered(client, undeliveredMessages);
+		resendReliableMessages(client, undeliveredMessages);
+		scheduleDeliveryCheck(client);
+		if(listener != null)
+			notifyMessagesNotDelivered(getTimerListenerQueue(client), client.getClientId(), undeliveredMessages);
+	}
 
-		//return the time of last communication of the client who is closest to timing out
-		return oldestClientCommunicationTime;
+	private void timeOutClient(ClientInfo client) {
+		//the client may have been dropped or have disconnected in the meantime
+		if(!removeClient(client))
+			return;
+		logger.fine("Client " + client.getClientId() + " timed out");
+		NetworkEvents.INSTANCE.connectionTimedOut(client.getClientId(), client.getAddress(), client.getPort());
+		if(listener != null)
+			notifyClientDisconnected(getTimerListenerQueue(client), client.getClientId(), Server.CLIENT_TIMED_OUT);
 	}
 
 	public static abstract class CouldNotStartServerException extends Exception {
@@ -499,14 +1892,14 @@ public class Server implements PacketReceiver {
 
 	public class CouldNotOpenServerSocketException extends CouldNotStartServerException {
 		private static final long serialVersionUID = -6736257520912125766L;
-		private SocketException wrappedException;
+		private IOException wrappedException;
 
-		public CouldNotOpenServerSocketException(SocketException e, int port) {
+		public CouldNotOpenServerSocketException(IOException e, int port) {
 			super("Could not open server socket on port " + port + ".");
 			wrappedException = e;
 		}
 
-		public SocketException getException() {
+		public IOException getException() {
 			return wrappedException;
 		}
 	}
@@ -527,34 +1920,134 @@ public class Server implements PacketReceiver {
 		}
 	}
 
-	private static class ServerTimeoutThread extends Thread {
-		private Server server;
-		private int timeout;
-		private boolean isCheckingForTimeouts;
+	private class ReceiveShard implements PacketReceiver {
+		private DatagramTransport transport;
+		//only the shard's own receive loop ever writes this
+		private volatile long numPacketsReceived;
+		private long numPacketsAtLastSample;
+		private long timeOfLastSample;
+		//likewise--nanoseconds spent handling packets rather than waiting for them
+		private volatile long busyTime;
+		private long busyTimeAtLastSample;
+		private long nanoTimeOfLastSample;
 
-		public ServerTimeoutThread(Server server, int timeoutInMilliseconds) {
-			super();
-			this.server = server;
-			timeout = timeoutInMilliseconds;
-			isCheckingForTimeouts = false;
+		public ReceiveShard() {
+			numPacketsReceived = 0;
+			numPacketsAtLastSample = 0;
+			timeOfLastSample = System.currentTimeMillis();
+			busyTime = 0;
+			busyTimeAtLastSample = 0;
+			nanoTimeOfLastSample = System.nanoTime();
 		}
 
-		public void run() {
-			isCheckingForTimeouts = true;
-			while(isCheckingForTimeouts) {
-				//tell the server to check for clients that have timed out
-				long oldestCommunication = server.checkClientTimeouts(timeout);
+		public DatagramTransport getTransport() {
+			return transport;
+		}
 
-				//sleep until the next client is expected to time out
-				long now = System.currentTimeMillis();
-				try {
-					Thread.sleep(Math.max(50, timeout - now + oldestCommunication));
-				} catch (InterruptedException e) {}
+		public void setTransport(DatagramTransport transport) {
+			this.transport = transport;
+		}
+
+		public long getNumPacketsReceived() {
+			return numPacketsReceived;
+		}
+
+		public double samplePacketRate() {
+			long now = System.currentTimeMillis();
+			long numPackets = numPacketsReceived;
+			double packetRate = (numPackets - numPacketsAtLastSample) * 1000.0 / Math.max(1, now - timeOfLastSample);
+			numPacketsAtLastSample = numPackets;
+			timeOfLastSample = now;
+			return packetRate;
+		}
+
+		public double sampleUtilization() {
+			long now = System.nanoTime();
+			long time = busyTime;
+			double utilization = (time - busyTimeAtLastSample) / (double) Math.max(1, now - nanoTimeOfLastSample);
+			busyTimeAtLastSample = time;
+			nanoTimeOfLastSample = now;
+			return Math.min(1, utilization);
+		}
+
+		public void receivePacket(Packet packet, String address, int port) {
+			long startTime = System.nanoTime();
+			numPacketsReceived++;
+			if(packet != null)
+				metrics.recordPacketReceived(packet.getLength());
+			PacketCapture capture = Server.this.capture;
+			if(capture != null)
+				capture.record(packet, address, port);
+			try {
+				Server.this.receivePacket(packet, address, port, transport);
+			} finally {
+				busyTime += System.nanoTime() - startTime;
 			}
 		}
+	}
+
+	private class ClientTimeout extends TimerWheel.Timeout {
+		private ClientInfo client;
+
+		public ClientTimeout(ClientInfo client) {
+			this.client = client;
+		}
+
+		protected void expire() {
+			timeOutClient(client);
+		}
+	}
+
+	private class LingerTimeout extends TimerWheel.Timeout {
+		private ClientInfo client;
+
+		public LingerTimeout(ClientInfo client) {
+			this.client = client;
+		}
+
+		protected void expire() {
+			//send the coalesced messages once the oldest of them has waited long enough
+			try {
+				flushMessageBundle(client);
+			} catch (CouldNotSendPacketException e) {
+				logger.finer("Could not flush messages to client " + client.getClientId() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private class PacingTimeout extends TimerWheel.Timeout {
+		private ClientInfo client;
+
+		public PacingTimeout(ClientInfo client) {
+			this.client = client;
+		}
+
+		protected void expire() {
+			sendPacedPackets(client);
+		}
+	}
+
+	private class AcknowledgementTimeout extends TimerWheel.Timeout {
+		private ClientInfo client;
+
+		public AcknowledgementTimeout(ClientInfo client) {
+			this.client = client;
+		}
+
+		protected void expire() {
+			sendAcknowledgement(client);
+		}
+	}
+
+	private class DeliveryCheckTimeout extends TimerWheel.Timeout {
+		private ClientInfo client;
+
+		public DeliveryCheckTimeout(ClientInfo client) {
+			this.client = client;
+		}
 
-		public void stopCheckingForTimeouts() {
-			isCheckingForTimeouts = false;
+		protected void expire() {
+			checkDelivery(client);
 		}
 	}
 }
\ No newline at end of file
@@ -1,13 +1,30 @@
 package com.benlawrencem.net.nightingale;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Receives messages as raw bytes. Extend {@link StringServerListener} instead
+ * to work with String messages.
+ */
 public interface ServerListener {
 	void onServerStopped();
 	boolean onClientConnected(int clientId, String address, int port);
 	void onClientDisconnected(int clientId, String reason);
-	void onReceive(int clientId, String message);
 
 	/**
-	 * Called when the server fails to deliver a message to a client.
+	 * Called when a message arrives from a client.
+	 * 
+	 * @param clientId the id of the client that sent the message
+	 * @param message the message, between the buffer's position and limit, or
+	 *  null if the message was empty. The buffer is reused once this method
+	 *  returns, so copy anything that needs to be kept
+	 */
+	void onReceive(int clientId, ByteBuffer message);
+
+	/**
+	 * Called when the server fails to deliver a message to a client. Only
+	 * messages sent on the NOTIFY_UNDELIVERED channel (the default) are
+	 * reported--reliable channels resend on their own.
 	 * 
 	 * @param messageId the id of the message that couldn't be delivered, as
 	 *  returned by {@link Server.send} and {@link Server.resend}
@@ -18,5 +35,5 @@ public interface ServerListener {
 	 * @param clientId the id of the client that this message was intended for
 	 * @param message the message that couldn't be delivered
 	 */
-	void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message);
+	void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer message);
 }
\ No newline at end of file
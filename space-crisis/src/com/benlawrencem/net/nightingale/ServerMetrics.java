@@ -0,0 +1,158 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * Running totals for everything the server sends and receives, across all
+ * of its clients. Packets and bytes are counted the same way as in
+ * {@link ClientMetrics}, except that packets received count whoever they're
+ * from, including ones that get ignored. Every shard adds to the same
+ * totals, so they're striped rather than locked.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private final Server server;
+	private final StripedCounter numPacketsReceived = new StripedCounter();
+	private final StripedCounter numBytesReceived = new StripedCounter();
+	private final StripedCounter numPacketsSent = new StripedCounter();
+	private final StripedCounter numBytesSent = new StripedCounter();
+	private final StripedCounter numDuplicatesDropped = new StripedCounter();
+	private final StripedCounter numPacketsUndelivered = new StripedCounter();
+	private final StripedCounter numResends = new StripedCounter();
+	private final StripedCounter numClientsAccepted = new StripedCounter();
+	private final StripedCounter numClientsRefused = new StripedCounter();
+	private final StripedCounter numConnectChallengesSent = new StripedCounter();
+	private final StripedCounter numConnectRequestsDropped = new StripedCounter();
+
+	ServerMetrics(Server server) {
+		this.server = server;
+	}
+
+	void recordPacketReceived(int numBytes) {
+		numPacketsReceived.increment();
+		numBytesReceived.add(numBytes);
+	}
+
+	void recordPacketSent(int numBytes) {
+		numPacketsSent.increment();
+		numBytesSent.add(numBytes);
+	}
+
+	void recordDuplicateDropped() {
+		numDuplicatesDropped.increment();
+	}
+
+	void recordPacketsUndelivered(int numPackets) {
+		numPacketsUndelivered.add(numPackets);
+	}
+
+	void recordResend() {
+		numResends.increment();
+	}
+
+	void recordClientAccepted() {
+		numClientsAccepted.increment();
+	}
+
+	void recordClientRefused() {
+		numClientsRefused.increment();
+	}
+
+	void recordConnectChallengeSent() {
+		numConnectChallengesSent.increment();
+	}
+
+	void recordConnectRequestDropped() {
+		numConnectRequestsDropped.increment();
+	}
+
+	public boolean isRunning() {
+		return server.isRunning();
+	}
+
+	public int getNumClients() {
+		return server.getNumClients();
+	}
+
+	public int getNumShards() {
+		return server.getNumShards();
+	}
+
+	public long getNumPacketsReceived() {
+		return numPacketsReceived.get();
+	}
+
+	public long getNumBytesReceived() {
+		return numBytesReceived.get();
+	}
+
+	public long getNumPacketsSent() {
+		return numPacketsSent.get();
+	}
+
+	public long getNumBytesSent() {
+		return numBytesSent.get();
+	}
+
+	public long getNumDuplicatesDropped() {
+		return numDuplicatesDropped.get();
+	}
+
+	public long getNumPacketsUndelivered() {
+		return numPacketsUndelivered.get();
+	}
+
+	public long getNumResends() {
+		return numResends.get();
+	}
+
+	public long getNumClientsAccepted() {
+		return numClientsAccepted.get();
+	}
+
+	/**
+	 * Returns how many connect requests were turned down, whether by the
+	 * listener or because too many were waiting to be answered.
+	 */
+	public long getNumClientsRefused() {
+		return numClientsRefused.get();
+	}
+
+	/**
+	 * Returns how many connect requests were answered with a cookie for the
+	 * client to send back. Far more of these than clients accepted means
+	 * something is asking to connect from addresses it isn't at.
+	 */
+	public long getNumConnectChallengesSent() {
+		return numConnectChallengesSent.get();
+	}
+
+	/**
+	 * Returns how many connect requests with good cookies were ignored
+	 * because too many clients were already waiting to be let in.
+	 */
+	public long getNumConnectRequestsDropped() {
+		return numConnectRequestsDropped.get();
+	}
+
+	public int getNumPendingAdmissions() {
+		return server.getNumPendingAdmissions();
+	}
+
+	public long getNumDroppedListenerCallbacks() {
+		return server.getNumDroppedListenerCallbacks();
+	}
+
+	/**
+	 * Returns the fraction of the time the receive loops spent handling
+	 * packets rather than waiting for them since the last time this (or
+	 * {@link Server#getShardUtilizations}) was called, averaged over the
+	 * shards. Near 1 means the server can't keep up with what's arriving.
+	 */
+	public double getReceiveLoopUtilization() {
+		double[] utilizations = server.getShardUtilizations();
+		if(utilizations.length == 0)
+			return 0;
+		double total = 0;
+		for(int i = 0; i < utilizations.length; i++)
+			total += utilizations[i];
+		return total / utilizations.length;
+	}
+}
\ No newline at end of file
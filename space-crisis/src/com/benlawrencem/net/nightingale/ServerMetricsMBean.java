@@ -0,0 +1,25 @@
+package com.benlawrencem.net.nightingale;
+
+/**
+ * How the server as a whole is doing, as seen over JMX. See
+ * {@link ServerMetrics}.
+ */
+public interface ServerMetricsMBean {
+	boolean isRunning();
+	int getNumClients();
+	int getNumShards();
+	long getNumPacketsReceived();
+	long getNumBytesReceived();
+	long getNumPacketsSent();
+	long getNumBytesSent();
+	long getNumDuplicatesDropped();
+	long getNumPacketsUndelivered();
+	long getNumResends();
+	long getNumClientsAccepted();
+	long getNumClientsRefused();
+	long getNumConnectChallengesSent();
+	long getNumConnectRequestsDropped();
+	int getNumPendingAdmissions();
+	long getNumDroppedListenerCallbacks();
+	double getReceiveLoopUtilization();
+}
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ClientConnectionListener} for applications that send String
+ * messages. Every message is decoded into a String before being handed over.
+ */
+public abstract class StringClientConnectionListener implements ClientConnectionListener {
+	public abstract void onReceive(String message);
+
+	/**
+	 * @see ClientConnectionListener#onMessageNotDelivered(int, int, ByteBuffer)
+	 */
+	public abstract void onMessageNotDelivered(int messageId, int resendMessageId, String message);
+
+	public void onReceive(ByteBuffer message) {
+		onReceive(Packet.decodeMessage(message));
+	}
+
+	public void onMessageNotDelivered(int messageId, int resendMessageId, ByteBuffer message) {
+		onMessageNotDelivered(messageId, resendMessageId, Packet.decodeMessage(message));
+	}
+}
\ No newline at end of file
@@ -0,0 +1,24 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ServerListener} for applications that send String messages. Every
+ * message is decoded into a String before being handed over.
+ */
+public abstract class StringServerListener implements ServerListener {
+	public abstract void onReceive(int clientId, String message);
+
+	/**
+	 * @see ServerListener#onMessageNotDelivered(int, int, int, ByteBuffer)
+	 */
+	public abstract void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, String message);
+
+	public void onReceive(int clientId, ByteBuffer message) {
+		onReceive(clientId, Packet.decodeMessage(message));
+	}
+
+	public void onMessageNotDelivered(int messageId, int resendMessageId, int clientId, ByteBuffer message) {
+		onMessageNotDelivered(messageId, resendMessageId, clientId, Packet.decodeMessage(message));
+	}
+}
\ No newline at end of file
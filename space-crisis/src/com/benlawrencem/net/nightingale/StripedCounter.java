@@ -0,0 +1,57 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A running total that many threads can add to at once without all fighting
+ * over the same cache line. Each thread adds to one of several stripes,
+ * picked by its thread id, and reading the total adds the stripes up. Adding
+ * is about as cheap as an uncontended AtomicLong; reading is slower, which
+ * is fine for numbers that are counted on every packet but only looked at
+ * every few seconds.
+ */
+class StripedCounter {
+	//each stripe gets a cache line to itself, so only every eighth long is used
+	private static final int PADDING = 8;
+	private static final int NUM_STRIPES = StripedCounter.getNumStripes();
+
+	private final AtomicLongArray stripes;
+
+	public StripedCounter() {
+		stripes = new AtomicLongArray(StripedCounter.NUM_STRIPES * StripedCounter.PADDING);
+	}
+
+	public void increment() {
+		stripes.getAndIncrement(getStripe());
+	}
+
+	public void add(long amount) {
+		stripes.getAndAdd(getStripe(), amount);
+	}
+
+	/**
+	 * Returns the total. Anything added while it's being worked out may or
+	 * may not be included.
+	 */
+	public long get() {
+		long total = 0;
+		for(int i = 0; i < StripedCounter.NUM_STRIPES; i++)
+			total += stripes.get(i * StripedCounter.PADDING);
+		return total;
+	}
+
+	private static int getStripe() {
+		//thread ids are handed out in order, so they're spread out before being cut down to a stripe
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+		return (hash & (StripedCounter.NUM_STRIPES - 1)) * StripedCounter.PADDING;
+	}
+
+	private static int getNumStripes() {
+		//a power of two at least twice the number of processors, so threads running at once rarely share one
+		int numStripes = 1;
+		while(numStripes < 2 * Runtime.getRuntime().availableProcessors() && numStripes < 64)
+			numStripes *= 2;
+		return numStripes;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,244 @@
+package com.benlawrencem.net.nightingale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel that runs the timeouts, pings and other deadlines
+ * for any number of connections off of a single thread. Timeouts are hashed
+ * into buckets by the tick they're due on, so scheduling, cancelling and
+ * expiring each take constant time no matter how many are waiting.
+ *
+ * Connections that keep getting pushed back (a client that's still talking
+ * shouldn't time out) don't touch the wheel at all: {@link Timeout#postpone}
+ * just moves the deadline, and the wheel notices when the old one comes
+ * around and files the timeout under the new one instead.
+ */
+public class TimerWheel {
+	private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+	public static final int DEFAULT_TICK_DURATION = 5;
+	private static final int NUM_BUCKETS = 512;
+	private static final long NOT_SCHEDULED = -1;
+	private static TimerWheel sharedInstance;
+
+	private final Object WHEEL_LOCK = new Object();
+	private final int tickDuration;
+	private final Timeout[] buckets;
+	private final long startTime;
+	private long currentTick;
+	private final List<Timeout> expiredTimeouts;
+	private final TickThread tickThread;
+
+	public TimerWheel() {
+		this(TimerWheel.DEFAULT_TICK_DURATION);
+	}
+
+	public TimerWheel(int tickDurationInMilliseconds) {
+		tickDuration = Math.max(1, tickDurationInMilliseconds);
+		buckets = new Timeout[TimerWheel.NUM_BUCKETS];
+		startTime = System.currentTimeMillis();
+		currentTick = 0;
+		expiredTimeouts = new ArrayList<Timeout>();
+		tickThread = new TickThread(this);
+		tickThread.start();
+	}
+
+	/**
+	 * The wheel connections use when they aren't given one of their own. Its
+	 * thread is a daemon, so it never needs shutting down.
+	 */
+	public static synchronized TimerWheel getSharedInstance() {
+		if(sharedInstance == null)
+			sharedInstance = new TimerWheel();
+		return sharedInstance;
+	}
+
+	public int getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * Schedules the timeout to expire after the given delay, replacing
+	 * whatever it was scheduled for before.
+	 */
+	public void schedule(Timeout timeout, long delayInMilliseconds) {
+		long deadline = System.currentTimeMillis() + Math.max(0, delayInMilliseconds);
+		TimerWheel previousWheel = timeout.wheel;
+		if(previousWheel != null && previousWheel != this)
+			previousWheel.cancel(timeout);
+		synchronized(WHEEL_LOCK) {
+			if(timeout.isInBucket)
+				removeFromBucket(timeout);
+			timeout.wheel = this;
+			timeout.deadline = deadline;
+			addToBucket(timeout, deadline);
+		}
+	}
+
+	public void cancel(Timeout timeout) {
+		synchronized(WHEEL_LOCK) {
+			timeout.deadline = TimerWheel.NOT_SCHEDULED;
+			if(timeout.isInBucket)
+				removeFromBucket(timeout);
+		}
+	}
+
+	/**
+	 * Stops the wheel's thread. Anything still scheduled never expires.
+	 */
+	public void shutdown() {
+		tickThread.stopTicking();
+	}
+
+	private void addToBucket(Timeout timeout, long deadline) {
+		//anything due on a tick that's already gone by goes in the next one
+		long tick = (deadline - startTime + tickDuration - 1) / tickDuration;
+		if(tick <= currentTick)
+			tick = currentTick + 1;
+		int bucket = (int) (tick % TimerWheel.NUM_BUCKETS);
+		timeout.tick = tick;
+		timeout.bucket = bucket;
+		timeout.previous = null;
+		timeout.next = buckets[bucket];
+		if(timeout.next != null)
+			timeout.next.previous = timeout;
+		buckets[bucket] = timeout;
+		timeout.isInBucket = true;
+	}
+
+	private void removeFromBucket(Timeout timeout) {
+		if(timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if(timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.isInBucket = false;
+	}
+
+	private long tick() {
+		long now = System.currentTimeMillis();
+		synchronized(WHEEL_LOCK) {
+			//catch up on every tick that's come due, in case we were late waking up
+			long lastDueTick = (now - startTime) / tickDuration;
+			while(currentTick < lastDueTick) {
+				currentTick++;
+				Timeout timeout = buckets[(int) (currentTick % TimerWheel.NUM_BUCKETS)];
+				while(timeout != null) {
+					Timeout next = timeout.next;
+
+					//timeouts more than a full turn of the wheel away share the bucket but aren't due yet
+					if(timeout.tick <= currentTick) {
+						removeFromBucket(timeout);
+						long deadline = timeout.deadline;
+						if(deadline > now)
+							addToBucket(timeout, deadline); //it was postponed since it was filed
+						else if(deadline != TimerWheel.NOT_SCHEDULED)
+							expiredTimeouts.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+		}
+
+		//expire timeouts outside of the lock so they're free to schedule themselves again
+		for(int i = 0; i < expiredTimeouts.size(); i++) {
+			Timeout timeout = expiredTimeouts.get(i);
+			long deadline = timeout.deadline;
+			if(deadline == TimerWheel.NOT_SCHEDULED)
+				continue;
+			if(deadline > now || !Timeout.DEADLINE_UPDATER.compareAndSet(timeout, deadline, TimerWheel.NOT_SCHEDULED)) {
+				//postponed at the last moment--file it under its new deadline
+				synchronized(WHEEL_LOCK) {
+					if(!timeout.isInBucket && timeout.deadline != TimerWheel.NOT_SCHEDULED)
+						addToBucket(timeout, timeout.deadline);
+				}
+				continue;
+			}
+			try {
+				timeout.expire();
+			} catch(RuntimeException e) {
+				logger.log(Level.WARNING, "Timeout threw an exception when it expired", e);
+			}
+		}
+		expiredTimeouts.clear();
+		return startTime + (currentTick + 1) * tickDuration - System.currentTimeMillis();
+	}
+
+	/**
+	 * Something that should happen once a deadline passes. Each connection
+	 * keeps its timeouts around and reschedules them, so the wheel never
+	 * allocates anything itself.
+	 */
+	public static abstract class Timeout {
+		private static final AtomicLongFieldUpdater<Timeout> DEADLINE_UPDATER = AtomicLongFieldUpdater.newUpdater(Timeout.class, "deadline");
+		private volatile long deadline = TimerWheel.NOT_SCHEDULED;
+		private volatile TimerWheel wheel;
+
+		//guarded by the wheel's lock
+		private Timeout previous;
+		private Timeout next;
+		private long tick;
+		private int bucket;
+		private boolean isInBucket;
+
+		protected abstract void expire();
+
+		public boolean isScheduled() {
+			return deadline != TimerWheel.NOT_SCHEDULED;
+		}
+
+		/**
+		 * Pushes the deadline back to the given delay from now without taking
+		 * any locks. Only ever moves the deadline later, and does nothing if
+		 * the timeout isn't scheduled.
+		 */
+		public void postpone(long delayInMilliseconds) {
+			long newDeadline = System.currentTimeMillis() + delayInMilliseconds;
+			while(true) {
+				long oldDeadline = deadline;
+				if(oldDeadline == TimerWheel.NOT_SCHEDULED || oldDeadline >= newDeadline)
+					return;
+				if(DEADLINE_UPDATER.compareAndSet(this, oldDeadline, newDeadline))
+					return;
+			}
+		}
+
+		public void cancel() {
+			TimerWheel wheel = this.wheel;
+			if(wheel != null)
+				wheel.cancel(this);
+		}
+	}
+
+	private static class TickThread extends Thread {
+		private TimerWheel wheel;
+		private volatile boolean isTicking;
+
+		public TickThread(TimerWheel wheel) {
+			super("nightingale-timer");
+			this.wheel = wheel;
+			isTicking = true;
+			setDaemon(true);
+		}
+
+		public void run() {
+			while(isTicking) {
+				long wait = wheel.tick();
+				try {
+					Thread.sleep(Math.max(1, wait));
+				} catch (InterruptedException e) {}
+			}
+		}
+
+		public void stopTicking() {
+			isTicking = false;
+			interrupt();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,128 @@
+package com.benlawrencem.net.nightingale;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Collects the undelivered packets a PacketRecorder reports while it's
+ * locked so the listener can be told about them afterwards. Payloads are
+ * copied into one reusable buffer, so once it has grown to fit a connection's
+ * traffic collecting them doesn't allocate anything.
+ */
+class UndeliveredMessages implements PacketRecorder.UndeliveredPacketVisitor {
+	private int[] messageIds;
+	private int[] resendMessageIds;
+	private boolean[] isBundle;
+	private Packet.Channel[] channels;
+	private boolean[] isFragment;
+	private int[] payloadOffsets;
+	private int[] payloadLengths;
+	private ByteBuffer payloads;
+	private int numMessages;
+
+	public UndeliveredMessages() {
+		messageIds = new int[8];
+		resendMessageIds = new int[8];
+		isBundle = new boolean[8];
+		channels = new Packet.Channel[8];
+		isFragment = new boolean[8];
+		payloadOffsets = new int[8];
+		payloadLengths = new int[8];
+		payloads = ByteBuffer.allocate(Packet.MAXIMUM_PACKET_SIZE);
+		numMessages = 0;
+	}
+
+	public void visitUndeliveredPacket(int sequenceNumber, int originalSequenceNumber, boolean isBundle, Packet.Channel channel, boolean isFragment, ByteBuffer payload) {
+		if(numMessages == messageIds.length)
+			grow();
+		int length = (payload == null ? -1 : payload.remaining());
+		int offset = (numMessages == 0 ? 0 : payloadOffsets[numMessages - 1] + Math.max(payloadLengths[numMessages - 1], 0));
+		if(length > 0) {
+			if(offset + length > payloads.capacity()) {
+				ByteBuffer biggerPayloads = ByteBuffer.allocate(Math.max(2 * payloads.capacity(), offset + length));
+				payloads.clear();
+				payloads.limit(offset);
+				biggerPayloads.put(payloads);
+				payloads = biggerPayloads;
+			}
+			//handing out the last batch of payloads left the limit wherever the last one ended
+			payloads.clear();
+			int start = payload.position();
+			for(int i = 0; i < length; i++)
+				payloads.put(offset + i, payload.get(start + i));
+		}
+		messageIds[numMessages] = sequenceNumber;
+		resendMessageIds[numMessages] = originalSequenceNumber;
+		this.isBundle[numMessages] = isBundle;
+		channels[numMessages] = channel;
+		this.isFragment[numMessages] = isFragment;
+		payloadOffsets[numMessages] = offset;
+		payloadLengths[numMessages] = length;
+		numMessages++;
+	}
+
+	public int size() {
+		return numMessages;
+	}
+
+	public void clear() {
+		numMessages = 0;
+	}
+
+	public int getMessageId(int i) {
+		return messageIds[i];
+	}
+
+	public int getResendMessageId(int i) {
+		return resendMessageIds[i];
+	}
+
+	public boolean isBundle(int i) {
+		return isBundle[i];
+	}
+
+	public Packet.Channel getChannel(int i) {
+		return channels[i];
+	}
+
+	public boolean isFragment(int i) {
+		return isFragment[i];
+	}
+
+	/**
+	 * Positions the shared payload buffer on the i-th message. It's only valid
+	 * until the next call.
+	 */
+	public ByteBuffer getPayload(int i) {
+		if(payloadLengths[i] <= 0)
+			return null;
+		payloads.clear();
+		payloads.position(payloadOffsets[i]);
+		payloads.limit(payloadOffsets[i] + payloadLengths[i]);
+		return payloads;
+	}
+
+	private void grow() {
+		int capacity = 2 * messageIds.length;
+		int[] biggerMessageIds = new int[capacity];
+		int[] biggerResendMessageIds = new int[capacity];
+		boolean[] biggerIsBundle = new boolean[capacity];
+		Packet.Channel[] biggerChannels = new Packet.Channel[capacity];
+		boolean[] biggerIsFragment = new boolean[capacity];
+		int[] biggerPayloadOffsets = new int[capacity];
+		int[] biggerPayloadLengths = new int[capacity];
+		System.arraycopy(messageIds, 0, biggerMessageIds, 0, numMessages);
+		System.arraycopy(resendMessageIds, 0, biggerResendMessageIds, 0, numMessages);
+		System.arraycopy(isBundle, 0, biggerIsBundle, 0, numMessages);
+		System.arraycopy(channels, 0, biggerChannels, 0, numMessages);
+		System.arraycopy(isFragment, 0, biggerIsFragment, 0, numMessages);
+		System.arraycopy(payloadOffsets, 0, biggerPayloadOffsets, 0, numMessages);
+		System.arraycopy(payloadLengths, 0, biggerPayloadLengths, 0, numMessages);
+		messageIds = biggerMessageIds;
+		resendMessageIds = biggerResendMessageIds;
+		isBundle = biggerIsBundle;
+		channels = biggerChannels;
+		isFragment = biggerIsFragment;
+		payloadOffsets = biggerPayloadOffsets;
+		payloadLengths = biggerPayloadLengths;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectCookiesTest {
+	private static final String ADDRESS = "192.168.0.10";
+	private static final int PORT = 7000;
+	private int time;
+	private ConnectCookies cookies;
+
+	@Before
+	public void setUp() {
+		//the cookies' clock is wound by hand so they can be made to expire without waiting
+		time = 100;
+		cookies = new ConnectCookies() {
+			public int getTime() {
+				return time;
+			}
+		};
+	}
+
+	@Test
+	public void cookieIsGoodForTheAddressAndPortItWasMadeFor() {
+		ByteBuffer cookie = createCookie(ADDRESS, PORT);
+		assertTrue(cookies.isValid(cookie, ADDRESS, PORT));
+		assertFalse(cookies.isValid(cookie, ADDRESS, PORT + 1));
+		assertFalse(cookies.isValid(cookie, "192.168.0.11", PORT));
+		assertEquals(0, cookie.position());
+	}
+
+	@Test
+	public void cookieExpires() {
+		ByteBuffer cookie = createCookie(ADDRESS, PORT);
+		assertEquals(100, ConnectCookies.getTime(cookie));
+		time = 110;
+		assertTrue(cookies.isValid(cookie, ADDRESS, PORT));
+		time = 111;
+		assertFalse(cookies.isValid(cookie, ADDRESS, PORT));
+
+		//nor is one from the future any good
+		time = 99;
+		assertFalse(cookies.isValid(cookie, ADDRESS, PORT));
+	}
+
+	@Test
+	public void forgedCookiesAreRejected() {
+		ByteBuffer cookie = createCookie(ADDRESS, PORT);
+		for(int i = 0; i < ConnectCookies.COOKIE_SIZE; i++) {
+			ByteBuffer forgery = ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE);
+			forgery.put(cookie.duplicate());
+			forgery.flip();
+			forgery.put(i, (byte) (forgery.get(i) ^ 1));
+			assertFalse(cookies.isValid(forgery, ADDRESS, PORT));
+		}
+
+		//another server's cookies use a key of their own
+		ConnectCookies otherCookies = new ConnectCookies() {
+			public int getTime() {
+				return time;
+			}
+		};
+		assertFalse(otherCookies.isValid(cookie, ADDRESS, PORT));
+	}
+
+	@Test
+	public void cookiesOfTheWrongSizeAreRejected() {
+		ByteBuffer cookie = createCookie(ADDRESS, PORT);
+		cookie.limit(cookie.limit() - 1);
+		assertFalse(cookies.isValid(cookie, ADDRESS, PORT));
+		assertFalse(cookies.isValid(null, ADDRESS, PORT));
+	}
+
+	@Test
+	public void cookieIsReadFromTheBuffersPosition() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + ConnectCookies.COOKIE_SIZE);
+		buffer.position(4);
+		cookies.write(buffer, ADDRESS, PORT);
+		buffer.position(4);
+		assertTrue(cookies.isValid(buffer, ADDRESS, PORT));
+		assertEquals(100, ConnectCookies.getTime(buffer));
+	}
+
+	@Test
+	public void blankCookieIsAllZeros() {
+		assertTrue(ConnectCookies.isBlank(ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE)));
+		assertTrue(ConnectCookies.isBlank(null));
+		assertFalse(ConnectCookies.isBlank(createCookie(ADDRESS, PORT)));
+	}
+
+	private ByteBuffer createCookie(String address, int port) {
+		ByteBuffer cookie = ByteBuffer.allocate(ConnectCookies.COOKIE_SIZE);
+		cookies.write(cookie, address, port);
+		cookie.flip();
+		return cookie;
+	}
+}
\ No newline at end of file
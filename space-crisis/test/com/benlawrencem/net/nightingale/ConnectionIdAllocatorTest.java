@@ -0,0 +1,74 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionIdAllocatorTest {
+	private static final int NUM_IDS = Packet.MAXIMUM_CONNECTION_ID - Packet.MINIMUM_CONNECTION_ID + 1;
+	private ConnectionIdAllocator allocator;
+
+	@Before
+	public void setUp() {
+		allocator = new ConnectionIdAllocator();
+	}
+
+	@Test
+	public void everyIdIsHandedOutOnce() {
+		boolean[] isHandedOut = new boolean[Packet.MAXIMUM_CONNECTION_ID + 1];
+		for(int i = 0; i < NUM_IDS; i++) {
+			int connectionId = allocator.allocate();
+			assertNotEquals(Packet.ANONYMOUS_CONNECTION_ID, connectionId);
+			assertFalse(isHandedOut[connectionId]);
+			isHandedOut[connectionId] = true;
+		}
+		assertEquals(NUM_IDS, allocator.getNumAllocated());
+		assertEquals(Packet.ANONYMOUS_CONNECTION_ID, allocator.allocate());
+
+		//once one comes back it's the only one there is to hand out
+		allocator.release(1234);
+		assertEquals(1234, allocator.allocate());
+		assertEquals(Packet.ANONYMOUS_CONNECTION_ID, allocator.allocate());
+	}
+
+	@Test
+	public void releasedIdsWaitBehindTheOthers() {
+		int first = allocator.allocate();
+		allocator.allocate();
+		allocator.release(first);
+		assertEquals(1, allocator.getNumAllocated());
+		for(int i = 0; i < NUM_IDS - 2; i++)
+			assertNotEquals(first, allocator.allocate());
+		assertEquals(first, allocator.allocate());
+	}
+
+	@Test
+	public void idsThatWerentHandedOutAreIgnored() {
+		int connectionId = allocator.allocate();
+		allocator.release(connectionId + 1);
+		allocator.release(Packet.ANONYMOUS_CONNECTION_ID);
+		allocator.release(Packet.MAXIMUM_CONNECTION_ID + 1);
+		allocator.release(-1);
+		assertEquals(1, allocator.getNumAllocated());
+
+		//nor can an id be released twice and end up handed out to two connections
+		allocator.release(connectionId);
+		allocator.release(connectionId);
+		assertEquals(0, allocator.getNumAllocated());
+		for(int i = 0; i < NUM_IDS; i++)
+			allocator.allocate();
+		assertEquals(Packet.ANONYMOUS_CONNECTION_ID, allocator.allocate());
+	}
+
+	@Test
+	public void resetFreesEveryId() {
+		for(int i = 0; i < 10; i++)
+			allocator.allocate();
+		allocator.reset();
+		assertEquals(0, allocator.getNumAllocated());
+		assertEquals(Packet.MINIMUM_CONNECTION_ID, allocator.allocate());
+	}
+}
\ No newline at end of file
@@ -0,0 +1,193 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+
+public class MessageFragmentsTest {
+	private MessageFragments fragments;
+	private ReceivedMessages receivedMessages;
+
+	@Before
+	public void setUp() {
+		fragments = new MessageFragments();
+		receivedMessages = new ReceivedMessages();
+	}
+
+	@Test
+	public void fragmentsArePutBackTogetherInAnyOrder() {
+		ByteBuffer message = createMessage(3 * MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+		int numFragments = MessageFragments.getNumFragments(message.remaining(), Channel.UNRELIABLE);
+		assertEquals(4, numFragments);
+
+		int[] order = { 2, 0, 3, 1 };
+		for(int i = 0; i < order.length; i++) {
+			assertEquals(0, receivedMessages.size());
+			fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, order[i], numFragments, message), receivedMessages);
+		}
+		assertEquals(1, receivedMessages.size());
+		assertEquals(message, receivedMessages.getMessage(0));
+		assertEquals(0, fragments.getNumPartialMessages());
+	}
+
+	@Test
+	public void reliableFragmentsArePutBackTogether() {
+		ByteBuffer message = createMessage(2 * MessageFragments.getFragmentSize(Channel.RELIABLE_ORDERED) + 1);
+		fragments.receive(Channel.RELIABLE_ORDERED, createFragment(Channel.RELIABLE_ORDERED, 7, 2, 3, message), receivedMessages);
+		fragments.receive(Channel.RELIABLE_ORDERED, createFragment(Channel.RELIABLE_ORDERED, 7, 1, 3, message), receivedMessages);
+		fragments.receive(Channel.RELIABLE_ORDERED, createFragment(Channel.RELIABLE_ORDERED, 7, 0, 3, message), receivedMessages);
+		assertEquals(1, receivedMessages.size());
+		assertEquals(message, receivedMessages.getMessage(0));
+	}
+
+	@Test
+	public void duplicateFragmentsAreIgnored() {
+		ByteBuffer message = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 0, 2, message), receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 0, 2, message), receivedMessages);
+		assertEquals(0, receivedMessages.size());
+		assertEquals(1, fragments.getNumPartialMessages());
+
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 1, 2, message), receivedMessages);
+		assertEquals(1, receivedMessages.size());
+
+		//a copy of a piece of a message that's already been put back together can't finish it a second time
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 1, 2, message), receivedMessages);
+		assertEquals(1, receivedMessages.size());
+	}
+
+	@Test
+	public void messagesInDifferentGroupsAndChannelsAreKeptApart() {
+		ByteBuffer first = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+		ByteBuffer second = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 20);
+		second.put(0, (byte) 42);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 0, 2, first), receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 2, 1, 2, second), receivedMessages);
+		fragments.receive(Channel.RELIABLE_UNORDERED, createFragment(Channel.UNRELIABLE, 1, 1, 2, second), receivedMessages);
+		assertEquals(0, receivedMessages.size());
+		assertEquals(3, fragments.getNumPartialMessages());
+
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 2, 0, 2, second), receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 1, 2, first), receivedMessages);
+		assertEquals(2, receivedMessages.size());
+		assertEquals(second, receivedMessages.getMessage(0));
+		assertEquals(first, receivedMessages.getMessage(1));
+	}
+
+	@Test
+	public void malformedFragmentsAreIgnored() {
+		ByteBuffer message = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+
+		//an index past the end, and a fragment that isn't the last one but isn't full either
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 2, 2, message), receivedMessages);
+		ByteBuffer shortFragment = createFragment(Channel.UNRELIABLE, 1, 0, 2, message);
+		shortFragment.limit(shortFragment.limit() - 1);
+		fragments.receive(Channel.UNRELIABLE, shortFragment, receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, ByteBuffer.allocate(MessageFragments.HEADER_SIZE - 1), receivedMessages);
+		assertEquals(0, fragments.getNumPartialMessages());
+		assertEquals(0, receivedMessages.size());
+	}
+
+	@Test
+	public void oldestUnreliableMessageIsEvictedToMakeRoom() throws InterruptedException {
+		ByteBuffer message = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+		for(int groupId = 1; groupId <= 5; groupId++) {
+			fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, groupId, 0, 2, message), receivedMessages);
+			//so which one is oldest doesn't come down to the clock's resolution
+			Thread.sleep(5);
+		}
+		assertEquals(4, fragments.getNumPartialMessages());
+		assertEquals(1, fragments.getNumEvictedMessages());
+
+		//the first group was thrown away, so its last fragment starts over instead of finishing it
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 1, 2, message), receivedMessages);
+		assertEquals(0, receivedMessages.size());
+		assertEquals(2, fragments.getNumEvictedMessages());
+
+		//the rest are still there
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 5, 1, 2, message), receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 4, 1, 2, message), receivedMessages);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 3, 1, 2, message), receivedMessages);
+		assertEquals(3, receivedMessages.size());
+	}
+
+	@Test
+	public void reliableMessagesAreNotEvictedUntilThereAreFarMore() {
+		ByteBuffer message = createMessage(MessageFragments.getFragmentSize(Channel.RELIABLE_UNORDERED) + 10);
+		for(int groupId = 1; groupId <= 100; groupId++)
+			fragments.receive(Channel.RELIABLE_UNORDERED, createFragment(Channel.RELIABLE_UNORDERED, groupId, 0, 2, message), receivedMessages);
+		assertEquals(100, fragments.getNumPartialMessages());
+		assertEquals(0, fragments.getNumEvictedMessages());
+
+		for(int groupId = 1; groupId <= 100; groupId++)
+			fragments.receive(Channel.RELIABLE_UNORDERED, createFragment(Channel.RELIABLE_UNORDERED, groupId, 1, 2, message), receivedMessages);
+		assertEquals(100, receivedMessages.size());
+		assertEquals(0, fragments.getNumPartialMessages());
+	}
+
+	@Test
+	public void resetThrowsAwayPartialMessages() {
+		ByteBuffer message = createMessage(MessageFragments.getFragmentSize(Channel.UNRELIABLE) + 10);
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 0, 2, message), receivedMessages);
+		fragments.reset();
+		assertEquals(0, fragments.getNumPartialMessages());
+		fragments.receive(Channel.UNRELIABLE, createFragment(Channel.UNRELIABLE, 1, 1, 2, message), receivedMessages);
+		assertEquals(0, receivedMessages.size());
+	}
+
+	@Test
+	public void groupIdsWrapAround() {
+		int groupId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		for(int i = Packet.MINIMUM_SEQUENCE_NUMBER; i <= Packet.MAXIMUM_SEQUENCE_NUMBER; i++)
+			groupId = fragments.nextGroupId();
+		assertEquals(Packet.MAXIMUM_SEQUENCE_NUMBER, groupId);
+		assertEquals(Packet.MINIMUM_SEQUENCE_NUMBER, fragments.nextGroupId());
+	}
+
+	@Test
+	public void messagesAreSplitIntoFullFragments() {
+		int fragmentSize = MessageFragments.getFragmentSize(Channel.UNRELIABLE);
+		assertTrue(MessageFragments.needsFragmenting(Packet.MAXIMUM_PAYLOAD_SIZE + 1, Channel.UNRELIABLE));
+		assertEquals(1, MessageFragments.getNumFragments(fragmentSize, Channel.UNRELIABLE));
+		assertEquals(2, MessageFragments.getNumFragments(fragmentSize + 1, Channel.UNRELIABLE));
+
+		ByteBuffer message = createMessage(fragmentSize + 1);
+		Packet packet = MessageFragments.createFragmentPacket(1, Channel.UNRELIABLE, Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, 1, 0, 2, message);
+		assertTrue(packet.isFragment());
+		assertEquals(Channel.UNRELIABLE, packet.getChannel());
+		assertEquals(MessageFragments.HEADER_SIZE + fragmentSize, packet.getPayloadLength());
+		packet = MessageFragments.createFragmentPacket(1, Channel.UNRELIABLE, Packet.SEQUENCE_NUMBER_NOT_APPLICABLE, 1, 1, 2, message);
+		assertEquals(MessageFragments.HEADER_SIZE + 1, packet.getPayloadLength());
+	}
+
+	private static ByteBuffer createMessage(int length) {
+		ByteBuffer message = ByteBuffer.allocate(length);
+		for(int i = 0; i < length; i++)
+			message.put(i, (byte) (i * 31));
+		return message;
+	}
+
+	/**
+	 * Cuts out one fragment of the message the way it arrives on the given
+	 * channel, header and all.
+	 */
+	private static ByteBuffer createFragment(Channel channel, int groupId, int index, int numFragments, ByteBuffer message) {
+		int fragmentSize = MessageFragments.getFragmentSize(channel);
+		int start = Math.min(index * fragmentSize, message.limit());
+		int length = Math.min(fragmentSize, message.limit() - start);
+		ByteBuffer fragment = ByteBuffer.allocate(MessageFragments.HEADER_SIZE + length);
+		fragment.putShort((short) groupId);
+		fragment.putShort((short) index);
+		fragment.putShort((short) numFragments);
+		for(int i = 0; i < length; i++)
+			fragment.put(message.get(start + i));
+		fragment.flip();
+		return fragment;
+	}
+}
\ No newline at end of file
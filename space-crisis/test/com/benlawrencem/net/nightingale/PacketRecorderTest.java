@@ -0,0 +1,250 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+
+public class PacketRecorderTest {
+	private PacketRecorder recorder;
+	private List<Integer> undelivered;
+	private List<ByteBuffer> undeliveredPayloads;
+	private PacketRecorder.UndeliveredPacketVisitor visitor;
+	private int lastIncomingSequenceNumber;
+
+	@Before
+	public void setUp() {
+		recorder = new PacketRecorder();
+		undelivered = new ArrayList<Integer>();
+		undeliveredPayloads = new ArrayList<ByteBuffer>();
+		visitor = new PacketRecorder.UndeliveredPacketVisitor() {
+			public void visitUndeliveredPacket(int sequenceNumber, int originalSequenceNumber, boolean isBundle, Channel channel, boolean isFragment, ByteBuffer payload) {
+				undelivered.add(sequenceNumber);
+				ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+				copy.put(payload);
+				copy.flip();
+				undeliveredPayloads.add(copy);
+			}
+		};
+		lastIncomingSequenceNumber = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+	}
+
+	@Test
+	public void historyMarksWhichPacketsArrived() {
+		receive(1);
+		receive(2);
+		receive(4);
+		Packet packet = Packet.createApplicationPacket(1, new byte[1]);
+		recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
+		assertEquals(4, packet.getLastReceivedSequenceNumber());
+		//the leftmost bit is the packet before the last one received, so 3 is missing and 2 and 1 arrived
+		assertEquals(0x6000000000000000L, packet.getReceivedPacketHistory());
+
+		//a late packet gets its bit set without disturbing the rest
+		receive(3);
+		recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
+		assertEquals(4, packet.getLastReceivedSequenceNumber());
+		assertEquals(0xE000000000000000L, packet.getReceivedPacketHistory());
+	}
+
+	@Test
+	public void historyShiftsAlongAsPacketsArrive() {
+		for(int sequenceNumber = 1; sequenceNumber <= Packet.RECEIVED_PACKET_HISTORY_SIZE + 1; sequenceNumber++) {
+			if(sequenceNumber != 2)
+				receive(sequenceNumber);
+		}
+		Packet packet = Packet.createApplicationPacket(1, new byte[1]);
+		recorder.addReceivedPacketHistoryToOutgoingPacket(packet);
+		assertEquals(Packet.RECEIVED_PACKET_HISTORY_SIZE + 1, packet.getLastReceivedSequenceNumber());
+		//the rightmost bit is packet 1, the oldest the history still covers, so 2 is the one next to it
+		assertEquals(~2L, packet.getReceivedPacketHistory());
+	}
+
+	@Test
+	public void duplicatesAreRecognized() {
+		receive(10);
+		receive(12);
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(10)));
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(12)));
+		assertFalse(recorder.hasRecordedIncomingPacket(createIncomingPacket(11)));
+		assertFalse(recorder.hasRecordedIncomingPacket(createIncomingPacket(13)));
+		receive(11);
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(11)));
+
+		//anything too old to have a record of is assumed to have been received already
+		for(int sequenceNumber = 13; sequenceNumber < 13 + 2 * Packet.RECEIVED_PACKET_HISTORY_SIZE; sequenceNumber++)
+			receive(sequenceNumber);
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(9)));
+	}
+
+	@Test
+	public void duplicatesAreRecognizedAcrossTheWrap() {
+		receive(Packet.MAXIMUM_SEQUENCE_NUMBER - 1);
+		receive(1);
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(Packet.MAXIMUM_SEQUENCE_NUMBER - 1)));
+		assertTrue(recorder.hasRecordedIncomingPacket(createIncomingPacket(1)));
+		assertFalse(recorder.hasRecordedIncomingPacket(createIncomingPacket(Packet.MAXIMUM_SEQUENCE_NUMBER)));
+		assertFalse(recorder.hasRecordedIncomingPacket(createIncomingPacket(2)));
+	}
+
+	@Test
+	public void packetOvertakenByEnoughOthersIsUndelivered() {
+		sendUpTo(6);
+		//everything but 2 arrived
+		acknowledge(6, 0xE800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(1, undelivered.size());
+		assertEquals(2, (int) undelivered.get(0));
+		assertEquals(createPayload(2), undeliveredPayloads.get(0));
+
+		//it's only reported the once
+		acknowledge(6, 0xE800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(1, undelivered.size());
+	}
+
+	@Test
+	public void packetOvertakenByOnlyAFewIsNotUndeliveredYet() {
+		sendUpTo(6);
+		//4 may only have been overtaken on the way
+		acknowledge(6, 0xB800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(0, undelivered.size());
+
+		//and it was
+		acknowledge(6, 0xF800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(0, undelivered.size());
+		assertEquals(0, recorder.getNumSpuriousResends());
+	}
+
+	@Test
+	public void packetThatArrivesAfterBeingGivenUpOnRaisesTheReorderingThreshold() {
+		sendUpTo(6);
+		acknowledge(6, 0xE800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(1, undelivered.size());
+		assertEquals(3, recorder.getReorderingThreshold());
+
+		//2 turns up four packets late
+		acknowledge(6, 0xF800000000000000L);
+		assertEquals(1, recorder.getNumSpuriousResends());
+		assertEquals(4, recorder.getReorderingThreshold());
+	}
+
+	@Test
+	public void unreliablePacketsAreNeverReported() {
+		for(int i = 1; i <= 6; i++) {
+			Packet packet = Packet.createApplicationPacket(1, createPayload(i));
+			packet.setChannel(i == 2 ? Channel.UNRELIABLE : Channel.RELIABLE_UNORDERED);
+			recorder.recordAndAddSequenceNumberToOutgoingPacket(packet);
+			recorder.recordOutgoingPacketTransmitted(packet.getSequenceNumber());
+		}
+		acknowledge(6, 0xE800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(0, undelivered.size());
+	}
+
+	@Test
+	public void droppedPacketsWaitForRoomToBeResent() {
+		send(1);
+		record(2);
+		recorder.recordOutgoingPacketDropped(2);
+		record(3);
+		recorder.recordOutgoingPacketDropped(3);
+		acknowledge(1, 0);
+		recorder.visitUndeliveredPackets(visitor, 0);
+		assertEquals(0, undelivered.size());
+		assertEquals(-1, recorder.getTimeUntilDeliveryCheck());
+
+		recorder.visitUndeliveredPackets(visitor, 1);
+		assertEquals(1, undelivered.size());
+		assertEquals(2, (int) undelivered.get(0));
+		recorder.visitUndeliveredPackets(visitor, 5);
+		assertEquals(2, undelivered.size());
+		assertEquals(3, (int) undelivered.get(1));
+	}
+
+	@Test
+	public void queuedPacketsAreNotUndeliveredUntilTheyGoOut() {
+		send(1);
+		record(2);
+		recorder.recordOutgoingPacketQueued(2);
+		for(int i = 3; i <= 6; i++)
+			send(i);
+		acknowledge(6, 0xE800000000000000L);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(0, undelivered.size());
+	}
+
+	@Test
+	public void nothingIsUndeliveredUntilSomethingComesBack() {
+		sendUpTo(6);
+		recorder.visitUndeliveredPackets(visitor);
+		assertEquals(0, undelivered.size());
+		assertEquals(-1, recorder.getTimeUntilDeliveryCheck());
+	}
+
+	/**
+	 * Sends reliable packets up to the given sequence number, each of which
+	 * carries its sequence number as its message.
+	 */
+	private void sendUpTo(int sequenceNumber) {
+		for(int i = 1; i <= sequenceNumber; i++)
+			send(i);
+	}
+
+	private void send(int sequenceNumber) {
+		record(sequenceNumber);
+		recorder.recordOutgoingPacketTransmitted(sequenceNumber);
+	}
+
+	/**
+	 * Gives the next reliable packet its sequence number without it going
+	 * out yet.
+	 */
+	private void record(int sequenceNumber) {
+		Packet packet = Packet.createApplicationPacket(1, createPayload(sequenceNumber));
+		packet.setChannel(Channel.RELIABLE_UNORDERED);
+		recorder.recordAndAddSequenceNumberToOutgoingPacket(packet);
+		assertEquals(sequenceNumber, packet.getSequenceNumber());
+	}
+
+	private void receive(int sequenceNumber) {
+		recorder.recordIncomingPacket(createIncomingPacket(sequenceNumber));
+		lastIncomingSequenceNumber = sequenceNumber;
+	}
+
+	/**
+	 * Has the other side say which of our packets it's received, in a packet
+	 * of its own that it's sending right after the last one.
+	 */
+	private void acknowledge(int lastReceivedSequenceNumber, long receivedPacketHistory) {
+		Packet packet = createIncomingPacket(Packet.nextSequenceNumber(lastIncomingSequenceNumber));
+		packet.setLastReceivedSequenceNumber(lastReceivedSequenceNumber);
+		packet.setReceivedPacketHistory(receivedPacketHistory);
+		recorder.recordIncomingPacket(packet);
+		lastIncomingSequenceNumber = packet.getSequenceNumber();
+	}
+
+	private Packet createIncomingPacket(int sequenceNumber) {
+		Packet packet = Packet.createApplicationPacket(1, new byte[1]);
+		packet.setSequenceNumber(sequenceNumber);
+		return packet;
+	}
+
+	private static ByteBuffer createPayload(int i) {
+		ByteBuffer payload = ByteBuffer.allocate(4);
+		payload.putInt(i);
+		payload.flip();
+		return payload;
+	}
+}
\ No newline at end of file
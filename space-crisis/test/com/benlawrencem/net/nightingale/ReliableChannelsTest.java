@@ -0,0 +1,169 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.benlawrencem.net.nightingale.Packet.Channel;
+
+public class ReliableChannelsTest {
+	private ReliableChannels channels;
+	private MessageFragments fragments;
+	private ReceivedMessages receivedMessages;
+
+	@Before
+	public void setUp() {
+		channels = new ReliableChannels();
+		fragments = new MessageFragments();
+		receivedMessages = new ReceivedMessages();
+	}
+
+	@Test
+	public void orderedMessagesAreHandedOverInOrder() {
+		receive(Channel.RELIABLE_ORDERED, 3);
+		receive(Channel.RELIABLE_ORDERED, 2);
+		assertReceived();
+		assertEquals(2, channels.getNumBufferedMessages());
+
+		//the one they were waiting on lets all of them through
+		receive(Channel.RELIABLE_ORDERED, 1);
+		assertReceived(1, 2, 3);
+		assertEquals(0, channels.getNumBufferedMessages());
+
+		receive(Channel.RELIABLE_ORDERED, 4);
+		assertReceived(4);
+	}
+
+	@Test
+	public void orderedMessagesFarAheadStillWaitTheirTurn() {
+		for(int messageId = 100; messageId >= 2; messageId--)
+			receive(Channel.RELIABLE_ORDERED, messageId);
+		assertReceived();
+		assertEquals(99, channels.getNumBufferedMessages());
+
+		receive(Channel.RELIABLE_ORDERED, 1);
+		assertEquals(100, receivedMessages.size());
+		for(int i = 0; i < receivedMessages.size(); i++)
+			assertEquals(i + 1, receivedMessages.getMessage(i).getInt());
+	}
+
+	@Test
+	public void duplicateOrderedMessagesAreIgnored() {
+		receive(Channel.RELIABLE_ORDERED, 1);
+		receive(Channel.RELIABLE_ORDERED, 1);
+		assertReceived(1);
+
+		//a duplicate of one that's still waiting doesn't get handed over twice either
+		receive(Channel.RELIABLE_ORDERED, 3);
+		receive(Channel.RELIABLE_ORDERED, 3);
+		assertEquals(1, channels.getNumBufferedMessages());
+		receive(Channel.RELIABLE_ORDERED, 2);
+		assertReceived(2, 3);
+		receive(Channel.RELIABLE_ORDERED, 2);
+		receive(Channel.RELIABLE_ORDERED, 3);
+		assertReceived();
+	}
+
+	@Test
+	public void unorderedMessagesGoStraightThroughButOnlyOnce() {
+		receive(Channel.RELIABLE_UNORDERED, 5);
+		receive(Channel.RELIABLE_UNORDERED, 2);
+		receive(Channel.RELIABLE_UNORDERED, 9);
+		assertReceived(5, 2, 9);
+
+		receive(Channel.RELIABLE_UNORDERED, 2);
+		receive(Channel.RELIABLE_UNORDERED, 5);
+		receive(Channel.RELIABLE_UNORDERED, 9);
+		receive(Channel.RELIABLE_UNORDERED, 7);
+		assertReceived(7);
+	}
+
+	@Test
+	public void unorderedMessagesTooOldToRememberAreTreatedAsDuplicates() {
+		receive(Channel.RELIABLE_UNORDERED, 1);
+		receive(Channel.RELIABLE_UNORDERED, 2000);
+		receive(Channel.RELIABLE_UNORDERED, 500);
+		receive(Channel.RELIABLE_UNORDERED, 1500);
+		assertReceived(1, 2000, 1500);
+	}
+
+	@Test
+	public void messageIdsWrapAround() {
+		int messageId = Packet.SEQUENCE_NUMBER_NOT_APPLICABLE;
+		for(int i = Packet.MINIMUM_SEQUENCE_NUMBER; i <= Packet.MAXIMUM_SEQUENCE_NUMBER; i++)
+			messageId = channels.nextMessageId(Channel.RELIABLE_ORDERED);
+		assertEquals(Packet.MAXIMUM_SEQUENCE_NUMBER, messageId);
+		assertEquals(Packet.MINIMUM_SEQUENCE_NUMBER, channels.nextMessageId(Channel.RELIABLE_ORDERED));
+
+		//the unordered channel counts on its own
+		assertEquals(Packet.MINIMUM_SEQUENCE_NUMBER, channels.nextMessageId(Channel.RELIABLE_UNORDERED));
+	}
+
+	@Test
+	public void orderedMessagesWrapAround() {
+		for(int messageId = Packet.MINIMUM_SEQUENCE_NUMBER; messageId <= Packet.MAXIMUM_SEQUENCE_NUMBER - 2; messageId++) {
+			receive(Channel.RELIABLE_ORDERED, messageId);
+			receivedMessages.clear();
+		}
+
+		//the ids after the wrap are newer, not ones that were handed over long ago
+		receive(Channel.RELIABLE_ORDERED, 2);
+		receive(Channel.RELIABLE_ORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER);
+		receive(Channel.RELIABLE_ORDERED, 1);
+		assertReceived();
+		receive(Channel.RELIABLE_ORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER - 1);
+		assertReceived(Packet.MAXIMUM_SEQUENCE_NUMBER - 1, Packet.MAXIMUM_SEQUENCE_NUMBER, 1, 2);
+
+		receive(Channel.RELIABLE_ORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER);
+		receive(Channel.RELIABLE_ORDERED, 1);
+		assertReceived();
+	}
+
+	@Test
+	public void unorderedMessagesWrapAround() {
+		receive(Channel.RELIABLE_UNORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER - 1);
+		receive(Channel.RELIABLE_UNORDERED, 1);
+		receive(Channel.RELIABLE_UNORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER);
+		assertReceived(Packet.MAXIMUM_SEQUENCE_NUMBER - 1, 1, Packet.MAXIMUM_SEQUENCE_NUMBER);
+
+		receive(Channel.RELIABLE_UNORDERED, Packet.MAXIMUM_SEQUENCE_NUMBER);
+		receive(Channel.RELIABLE_UNORDERED, 1);
+		receive(Channel.RELIABLE_UNORDERED, 2);
+		assertReceived(2);
+	}
+
+	@Test
+	public void resetForgetsWhatWasReceived() {
+		receive(Channel.RELIABLE_ORDERED, 1);
+		receive(Channel.RELIABLE_ORDERED, 3);
+		receive(Channel.RELIABLE_UNORDERED, 1);
+		channels.reset();
+		receivedMessages.clear();
+
+		receive(Channel.RELIABLE_ORDERED, 1);
+		receive(Channel.RELIABLE_UNORDERED, 1);
+		assertReceived(1, 1);
+		assertEquals(0, channels.getNumBufferedMessages());
+	}
+
+	private void receive(Channel channel, int messageId) {
+		ByteBuffer message = ByteBuffer.allocate(4);
+		message.putInt(messageId);
+		message.flip();
+		channels.receive(channel, messageId, message, false, false, fragments, null, receivedMessages);
+	}
+
+	/**
+	 * Checks the messages handed over since the last check, each of which
+	 * holds the id it was sent with.
+	 */
+	private void assertReceived(int... messageIds) {
+		assertEquals(messageIds.length, receivedMessages.size());
+		for(int i = 0; i < messageIds.length; i++)
+			assertEquals(messageIds[i], receivedMessages.getMessage(i).getInt());
+		receivedMessages.clear();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+package com.benlawrencem.net.nightingale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimerWheelTest {
+	private TimerWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel(1);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.shutdown();
+	}
+
+	@Test
+	public void timeoutExpiresOnceItsDelayIsUp() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		long start = System.currentTimeMillis();
+		wheel.schedule(timeout, 50);
+		assertTrue(timeout.isScheduled());
+		assertTrue(timeout.awaitExpiry(2000));
+		assertTrue(System.currentTimeMillis() - start >= 50 - wheel.getTickDuration());
+		assertFalse(timeout.isScheduled());
+
+		//and only the once
+		Thread.sleep(50);
+		assertEquals(1, timeout.getNumExpiries());
+	}
+
+	@Test
+	public void postponedTimeoutExpiresLater() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		long start = System.currentTimeMillis();
+		wheel.schedule(timeout, 50);
+		timeout.postpone(300);
+		Thread.sleep(150);
+		assertEquals(0, timeout.getNumExpiries());
+		assertTrue(timeout.awaitExpiry(2000));
+		assertTrue(System.currentTimeMillis() - start >= 300 - wheel.getTickDuration());
+	}
+
+	@Test
+	public void postponeNeverBringsTheDeadlineForward() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 300);
+		timeout.postpone(10);
+		Thread.sleep(150);
+		assertEquals(0, timeout.getNumExpiries());
+		assertTrue(timeout.isScheduled());
+	}
+
+	@Test
+	public void postponeDoesNothingToATimeoutThatIsntScheduled() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		timeout.postpone(10);
+		assertFalse(timeout.isScheduled());
+		Thread.sleep(50);
+		assertEquals(0, timeout.getNumExpiries());
+	}
+
+	@Test
+	public void cancelledTimeoutNeverExpires() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 30);
+		timeout.cancel();
+		assertFalse(timeout.isScheduled());
+		Thread.sleep(100);
+		assertEquals(0, timeout.getNumExpiries());
+
+		//it can still be scheduled again afterwards
+		wheel.schedule(timeout, 10);
+		assertTrue(timeout.awaitExpiry(2000));
+	}
+
+	@Test
+	public void schedulingAgainReplacesTheOldDeadline() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 300);
+		wheel.schedule(timeout, 10);
+		assertTrue(timeout.awaitExpiry(150));
+		Thread.sleep(300);
+		assertEquals(1, timeout.getNumExpiries());
+	}
+
+	@Test
+	public void timeoutsMoreThanATurnOfTheWheelAwayWaitTheirTurn() throws InterruptedException {
+		//the wheel has 512 buckets, so with 1ms ticks this comes around to the same bucket as one due in 88ms
+		CountingTimeout nearTimeout = new CountingTimeout();
+		CountingTimeout farTimeout = new CountingTimeout();
+		wheel.schedule(farTimeout, 600);
+		wheel.schedule(nearTimeout, 88);
+		assertTrue(nearTimeout.awaitExpiry(2000));
+		assertEquals(0, farTimeout.getNumExpiries());
+		assertTrue(farTimeout.awaitExpiry(2000));
+	}
+
+	@Test
+	public void timeoutCanScheduleItselfAgainWhenItExpires() throws InterruptedException {
+		final CountDownLatch expiries = new CountDownLatch(3);
+		TimerWheel.Timeout timeout = new TimerWheel.Timeout() {
+			protected void expire() {
+				expiries.countDown();
+				if(expiries.getCount() > 0)
+					wheel.schedule(this, 5);
+			}
+		};
+		wheel.schedule(timeout, 5);
+		assertTrue(expiries.await(2000, TimeUnit.MILLISECONDS));
+	}
+
+	private static class CountingTimeout extends TimerWheel.Timeout {
+		private final AtomicInteger numExpiries = new AtomicInteger();
+		private final CountDownLatch expired = new CountDownLatch(1);
+
+		protected void expire() {
+			numExpiries.incrementAndGet();
+			expired.countDown();
+		}
+
+		public int getNumExpiries() {
+			return numExpiries.get();
+		}
+
+		public boolean awaitExpiry(long timeoutInMilliseconds) throws InterruptedException {
+			return expired.await(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+		}
+	}
+}
\ No newline at end of file